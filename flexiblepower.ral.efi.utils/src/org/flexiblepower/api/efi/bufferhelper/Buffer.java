@@ -279,6 +279,26 @@ public class Buffer<Q extends Quantity> {
         leakageFunction = bufferLeakage;
     }
 
+    /**
+     * Creates a {@link BufferSimulator} that projects the fill level of this buffer forward in time, using the leakage
+     * function of the last system description. The running modes that should be simulated still have to be added to
+     * it.
+     *
+     * @param timeStep
+     *            The duration of each step of the simulation
+     * @param steps
+     *            The number of steps that are simulated
+     * @return A new simulator for this buffer
+     * @throws IllegalStateException
+     *             When no system description has been received
+     */
+    public BufferSimulator<Q> createSimulator(Measurable<Duration> timeStep, int steps) throws IllegalStateException {
+        if (!hasReceivedSystemDescription) {
+            throw new IllegalStateException("Cannot create a simulator when no system description has been sent yet.");
+        }
+        return new BufferSimulator<Q>(fillLevelUnit, leakageFunction, timeStep, steps);
+    }
+
     // TODO: Forecast and target update message interpretation.
     /**
      * Gets the allocation delay.
@@ -1,9 +1,9 @@
 package org.flexiblepower.api.efi.bufferhelper;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +13,7 @@ import javax.measure.Measurable;
 import javax.measure.quantity.Power;
 import javax.measure.quantity.Quantity;
 
+import org.flexiblepower.api.efi.commonhelper.ReachabilityGraph;
 import org.flexiblepower.api.efi.commonhelper.TimerModel;
 import org.flexiblepower.efi.buffer.Actuator;
 import org.flexiblepower.efi.buffer.RunningModeBehaviour;
@@ -36,6 +37,10 @@ public class BufferActuator<Q extends Quantity> {
     private int currentRunningModeId;
     private Map<Integer, RunningMode<FillLevelFunction<RunningModeBehaviour>>> allRunningModes = new HashMap<Integer, RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
     private Map<Integer, TimerModel> timers = new HashMap<Integer, TimerModel>();
+    private ReachabilityGraph<FillLevelFunction<RunningModeBehaviour>> graph =
+            ReachabilityGraph.compile(Collections.<RunningMode<FillLevelFunction<RunningModeBehaviour>>> emptyList());
+    /** The same objects as in timers, in the order of their index in the graph */
+    private TimerModel[] timerModels = new TimerModel[0];
     private final Buffer<Q> parentBuffer;
 
     /**
@@ -74,29 +79,31 @@ public class BufferActuator<Q extends Quantity> {
     }
 
     /**
-     * Renews the set of RunningModes of this Actuator.
+     * Renews the set of RunningModes of this Actuator and compiles them into a {@link ReachabilityGraph}.
      *
      * @param runningModes
      */
     protected void setAllRunningModes(Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes) {
+        graph = ReachabilityGraph.compile(runningModes);
         allRunningModes = new HashMap<Integer, RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
         for (RunningMode<FillLevelFunction<RunningModeBehaviour>> r : runningModes) {
             allRunningModes.put(r.getId(), r);
         }
 
+        timerModels = graph.createTimerModels();
         timers = new HashMap<Integer, TimerModel>();
-        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> r : allRunningModes.values()) {
-            for (Transition tran : r.getTransitions()) {
-                for (org.flexiblepower.efi.util.Timer blockingTimer : tran.getBlockingTimers()) {
-                    timers.put(blockingTimer.getId(), new TimerModel(blockingTimer));
-                }
-                for (org.flexiblepower.efi.util.Timer startTimer : tran.getStartTimers()) {
-                    timers.put(startTimer.getId(), new TimerModel(startTimer));
-                }
-            }
+        for (TimerModel timer : timerModels) {
+            timers.put(timer.getId(), timer);
         }
     }
 
+    /**
+     * @return The compiled form of the running modes of this actuator, which is renewed with each system description.
+     */
+    public ReachabilityGraph<FillLevelFunction<RunningModeBehaviour>> getReachabilityGraph() {
+        return graph;
+    }
+
     /**
      * Returns whether the RunningMode id is valid for this actuator.
      *
@@ -125,15 +132,7 @@ public class BufferActuator<Q extends Quantity> {
      */
     public Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>>
             getReachableRunningModes(Date now) throws IllegalArgumentException {
-        Set<RunningMode<FillLevelFunction<RunningModeBehaviour>>> rmSet = new HashSet<RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
-        for (int rmId : getReachableRunningModeIds(now)) {
-            if (!allRunningModes.containsKey(rmId))
-            {
-                throw new IllegalArgumentException("Running Mode Id is not known.");
-            }
-            rmSet.add(allRunningModes.get(rmId));
-        }
-        return rmSet;
+        return graph.getRunningModes(getReachableRunningModeSet(now));
     }
 
     /**
@@ -145,25 +144,49 @@ public class BufferActuator<Q extends Quantity> {
      * @return The reachable running mode ids including the current one.
      */
     public Set<Integer> getReachableRunningModeIds(Date now) {
-        Set<Integer> targets = new HashSet<Integer>();
-        if (allRunningModes == null || allRunningModes.get(currentRunningModeId) == null)
-        {
+        return graph.getRunningModeIds(getReachableRunningModeSet(now));
+    }
+
+    /**
+     * Returns the reachable running modes including the current one as a set of indices in the
+     * {@link #getReachabilityGraph()}, see {@link ReachabilityGraph#contains(long[], int)}. This is the same as
+     * {@link #getReachableRunningModeIds(Date)}, without the boxing of the identifiers.
+     *
+     * @param now
+     *            The current time.
+     * @return The indices of the reachable running modes including the current one.
+     */
+    public long[] getReachableRunningModeSet(Date now) {
+        long[] reachable = graph.createRunningModeSet();
+        int current = graph.indexOfRunningMode(currentRunningModeId);
+        if (current < 0) {
             // Device is not in a valid state. No reachable running modes.
-            return targets;
+            return reachable;
         }
-        for (Transition transition : allRunningModes.get(currentRunningModeId).getTransitions()) {
-            // Check for timers that block this transition, over and undercharge and that the current state of charge is
-            // within the valid range of the target running mode.
-            if (!isBlockedAt(transition, now) && !willOverOrUndercharge(transition, now)
-                && !allRunningModes.get(transition.getToRunningMode())
-                                   .getValue()
-                                   .isOutsideOfRange(parentBuffer.getCurrentFillLevel()
-                                                                 .doubleValue(parentBuffer.getUnit()))) {
-                targets.add(transition.getToRunningMode());
+        // Remove the transitions that are blocked by timers
+        graph.getReachable(current, graph.getBlockedTimers(timerModels, now, graph.createTimerSet()), reachable);
+
+        // Remove the transitions that will over or undercharge the buffer
+        for (Transition transition : graph.getRunningMode(current).getTransitions()) {
+            int target = graph.indexOfRunningMode(transition.getToRunningMode());
+            if (target != current && willOverOrUndercharge(transition, now)) {
+                ReachabilityGraph.remove(reachable, target);
             }
         }
-        targets.add(currentRunningModeId);
-        return targets;
+
+        // Remove the targets for which the current state of charge is not within their valid range
+        double fillLevel = Double.NaN;
+        for (int ix = 0; ix < graph.getRunningModeCount(); ix++) {
+            if (ix != current && ReachabilityGraph.contains(reachable, ix)) {
+                if (Double.isNaN(fillLevel)) {
+                    fillLevel = parentBuffer.getCurrentFillLevel().doubleValue(parentBuffer.getUnit());
+                }
+                if (graph.getRunningMode(ix).getValue().isOutsideOfRange(fillLevel)) {
+                    ReachabilityGraph.remove(reachable, ix);
+                }
+            }
+        }
+        return reachable;
     }
 
     /**
@@ -181,25 +204,8 @@ public class BufferActuator<Q extends Quantity> {
         // If I make this transition will I overcharge the buffer.
         // Check the blocking timers this transition starts
         // Check usage and leakage as well...
-        return false;
-    }
-
-    /**
-     * Checks all timers to see if a transition is blocked on the moment.
-     *
-     * @param transition
-     *            The transition of this actuator that you are interested in.
-     * @param moment
-     *            The moment at which the possibility is or is not blocked.
-     * @return True if the transition is blocked, false if it is not.
-     */
-    private boolean isBlockedAt(Transition transition, Date moment) {
-        for (org.flexiblepower.efi.util.Timer t : transition.getBlockingTimers()) {
-            TimerModel at = timers.get(t.getId());
-            if (at.isBlockingAt(moment)) {
-                return true;
-            }
-        }
+        // The BufferSimulator can project the fill level, but that needs a usage forecast and a schedule after the
+        // transition, which this class does not know.
         return false;
     }
 
@@ -0,0 +1,317 @@
+package org.flexiblepower.api.efi.bufferhelper;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.Unit;
+
+import org.flexiblepower.efi.buffer.BufferUsageForecast;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.UncertainMeasurableProfile;
+import org.flexiblepower.ral.values.UnitConverterCache;
+import org.flexiblepower.ral.values.UnitConverterCache.Conversion;
+
+/**
+ * Projects the fill level of a buffer forward in time for a schedule of running modes. The rate of change of the fill
+ * level (per second) is the sum of the filling rates of the running modes, minus the leakage rate and minus the
+ * expected usage of the buffer:
+ *
+ * <pre>
+ * d(fillLevel)/dt = sum(fillingRate(fillLevel)) - leakageRate(fillLevel) - usage(t)
+ * </pre>
+ *
+ * This is integrated with fixed time steps: the fill level is updated once per step, with the rates at the start of
+ * the step used for the whole step. The step should therefore be small compared to the time in which the fill level
+ * moves through a range of the {@link FillLevelFunction}s.
+ *
+ * The running modes are first added with {@link #addRunningMode(FillLevelFunction)}, which returns the index that is
+ * used in the schedules. All the rates are then kept in primitive arrays, so {@link #simulate(double, int[][])} does
+ * not allocate anything and can be called for many candidate schedules. The result of the last simulation is available
+ * through {@link #getFillLevel(int)} and {@link #getTimeToBoundsMillis()}, so a simulator must not be shared between
+ * threads.
+ *
+ * @param <Q>
+ *            The quantity that describes what is stored in the buffer (e.g. temperature or electricity).
+ */
+public class BufferSimulator<Q extends Quantity> {
+    /** A {@link FillLevelFunction} together with the rate of each of its elements */
+    private static final class Rates {
+        final FillLevelFunction<?> function;
+        final double[] rates;
+
+        Rates(FillLevelFunction<?> function, double[] rates) {
+            this.function = function;
+            this.rates = rates;
+        }
+
+        double getRate(double fillLevel) {
+            if (function.isAboveMaximum(fillLevel)) {
+                return rates[rates.length - 1];
+            }
+            // Below the minimum this gives the first element
+            return rates[function.getIndexForFillLevel(fillLevel)];
+        }
+    }
+
+    private final Unit<Q> unit;
+    private final long timeStepMs;
+    private final double timeStepSeconds;
+    private final Rates leakage;
+    private final List<Rates> runningModes;
+    /** The usage of the buffer in units per second during each step */
+    private final double[] usage;
+    /** The fill level at the start of each step, followed by the fill level at the end of the last step */
+    private final double[] trajectory;
+
+    private double minimumFillLevel = Double.POSITIVE_INFINITY;
+    private double maximumFillLevel = Double.NEGATIVE_INFINITY;
+    private long timeToBoundsMs = -1;
+
+    /**
+     * @param unit
+     *            The unit in which the fill level of the buffer is expressed
+     * @param leakageFunction
+     *            The leakage of the buffer, or <code>null</code> when the buffer does not leak
+     * @param timeStep
+     *            The duration of each step of the simulation
+     * @param steps
+     *            The number of steps that are simulated
+     * @throws IllegalArgumentException
+     *             When the time step is shorter than a millisecond or the number of steps is not positive
+     */
+    public BufferSimulator(Unit<Q> unit,
+                           FillLevelFunction<LeakageRate> leakageFunction,
+                           Measurable<Duration> timeStep,
+                           int steps) {
+        if (unit == null) {
+            throw new NullPointerException("unit");
+        }
+        timeStepMs = UnitConverterCache.longValue(timeStep, Profile.MS);
+        if (timeStepMs <= 0) {
+            throw new IllegalArgumentException("The time step should be at least 1 ms");
+        } else if (steps <= 0) {
+            throw new IllegalArgumentException("At least 1 step should be simulated");
+        }
+
+        this.unit = unit;
+        timeStepSeconds = timeStepMs / 1000.0;
+        if (leakageFunction == null) {
+            leakage = null;
+        } else {
+            double[] rates = new double[leakageFunction.size()];
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = leakageFunction.get(i).getValue().getLeakageRate();
+            }
+            leakage = new Rates(leakageFunction, rates);
+        }
+        runningModes = new ArrayList<Rates>();
+        usage = new double[steps];
+        trajectory = new double[steps + 1];
+    }
+
+    /**
+     * Adds a running mode that can be used in the schedules. The minimum and maximum fill level of the buffer are the
+     * lowest and highest bound of all the running modes that have been added, just like in
+     * {@link Buffer#getMinimumFillLevel()} and {@link Buffer#getMaximumFillLevel()}.
+     *
+     * @param behaviour
+     *            The behaviour of the running mode (see {@link org.flexiblepower.efi.util.RunningMode#getValue()})
+     * @return The index of the running mode that should be used in the schedules
+     */
+    public int addRunningMode(FillLevelFunction<RunningModeBehaviour> behaviour) {
+        double[] rates = new double[behaviour.size()];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = behaviour.get(i).getValue().getFillingRate();
+        }
+        runningModes.add(new Rates(behaviour, rates));
+        minimumFillLevel = Math.min(minimumFillLevel, behaviour.getLowerBound());
+        maximumFillLevel = Math.max(maximumFillLevel, behaviour.getUpperBound());
+        return runningModes.size() - 1;
+    }
+
+    /**
+     * Sets the expected usage of the buffer from a forecast. The usage of a step is the average of the forecast during
+     * that step. Where the forecast is not valid (before its valid from date or after the end of its profile) the usage
+     * is taken to be zero.
+     *
+     * @param forecast
+     *            The usage forecast, of which the mean values are used, or <code>null</code> to remove the usage
+     * @param start
+     *            The moment at which the simulation starts
+     * @throws IllegalArgumentException
+     *             When the unit of the forecast can not be converted to a rate in the unit of the buffer
+     */
+    public void setUsageForecast(BufferUsageForecast<Q> forecast, Date start) {
+        if (forecast == null) {
+            setUsage(null, 0);
+        } else {
+            setUsage(forecast.getProfile(), start.getTime() - forecast.getValidFrom().getTime());
+        }
+    }
+
+    /**
+     * Sets the expected usage of the buffer, see {@link #setUsageForecast(BufferUsageForecast, Date)}.
+     *
+     * @param profile
+     *            The expected usage in units per second, of which the mean values are used
+     * @param offsetMs
+     *            The offset in the profile at which the simulation starts, which may be negative when the profile
+     *            starts later
+     */
+    public void setUsage(UncertainMeasurableProfile<Q> profile, long offsetMs) {
+        for (int step = 0; step < usage.length; step++) {
+            usage[step] = 0;
+        }
+        if (profile == null || profile.isEmpty()) {
+            return;
+        }
+
+        // Only the factor is used, an offset (e.g. degrees Celsius to Kelvin) does not apply to a rate
+        double factor = 1;
+        if (profile.getUnit() != unit) {
+            Conversion conversion = UnitConverterCache.getConversion(profile.getUnit(), unit);
+            factor = conversion.getFactor();
+            if (Double.isNaN(factor)) {
+                throw new IllegalArgumentException("The usage in " + profile.getUnit()
+                                                   + " can not be converted to a rate in "
+                                                   + unit);
+            }
+        }
+
+        // Walk through the steps and the elements of the profile together
+        int element = 0;
+        for (int step = 0; step < usage.length && element < profile.size(); step++) {
+            long stepStart = offsetMs + step * timeStepMs;
+            long stepEnd = stepStart + timeStepMs;
+            double sum = 0;
+            while (element < profile.size()) {
+                long elementStart = profile.getStartOffsetMillis(element);
+                long elementEnd = profile.getEndOffsetMillis(element);
+                long overlap = Math.min(stepEnd, elementEnd) - Math.max(stepStart, elementStart);
+                if (overlap > 0) {
+                    sum += overlap * profile.getMean(element);
+                }
+                if (elementEnd > stepEnd) {
+                    break;
+                }
+                element++;
+            }
+            usage[step] = factor * sum / timeStepMs;
+        }
+    }
+
+    /**
+     * Simulates the fill level of the buffer. The schedules contain for each actuator the index of the running mode
+     * (see {@link #addRunningMode(FillLevelFunction)}) during each step. The filling rates of all actuators are added
+     * up. This method does not allocate any objects.
+     *
+     * @param fillLevel
+     *            The fill level at the start, in the unit of the buffer
+     * @param schedules
+     *            For each actuator an array with at least {@link #getSteps()} indices of running modes
+     * @return The time until the fill level crosses the minimum or maximum fill level, see
+     *         {@link #getTimeToBoundsMillis()}
+     * @throws IndexOutOfBoundsException
+     *             When a schedule is too short or contains an unknown running mode
+     */
+    public long simulate(double fillLevel, int[]... schedules) {
+        int steps = usage.length;
+        timeToBoundsMs = -1;
+        trajectory[0] = fillLevel;
+        if (isOutsideOfBounds(fillLevel)) {
+            timeToBoundsMs = 0;
+        }
+
+        for (int step = 0; step < steps; step++) {
+            double rate = -usage[step];
+            if (leakage != null) {
+                rate -= leakage.getRate(fillLevel);
+            }
+            for (int actuator = 0; actuator < schedules.length; actuator++) {
+                rate += runningModes.get(schedules[actuator][step]).getRate(fillLevel);
+            }
+
+            double next = fillLevel + rate * timeStepSeconds;
+            if (timeToBoundsMs < 0 && isOutsideOfBounds(next)) {
+                // The fill level changes linearly during the step
+                double bound = next < minimumFillLevel ? minimumFillLevel : maximumFillLevel;
+                double fraction = (bound - fillLevel) / (next - fillLevel);
+                timeToBoundsMs = step * timeStepMs + (long) Math.ceil(fraction * timeStepMs);
+            }
+            fillLevel = next;
+            trajectory[step + 1] = fillLevel;
+        }
+        return timeToBoundsMs;
+    }
+
+    private boolean isOutsideOfBounds(double fillLevel) {
+        return fillLevel < minimumFillLevel || fillLevel > maximumFillLevel;
+    }
+
+    /**
+     * @return The time until the fill level first crossed the minimum or maximum fill level in the last simulation, 0
+     *         when it started outside of the bounds or -1 when it stayed within the bounds
+     */
+    public long getTimeToBoundsMillis() {
+        return timeToBoundsMs;
+    }
+
+    /**
+     * @param step
+     *            The step, from 0 up to and including {@link #getSteps()}
+     * @return The fill level at the start of the step in the last simulation, where step {@link #getSteps()} gives the
+     *         fill level at the end of the simulation
+     */
+    public double getFillLevel(int step) {
+        return trajectory[step];
+    }
+
+    /**
+     * @return A copy of the fill levels of the last simulation, see {@link #getFillLevel(int)}
+     */
+    public double[] getTrajectory() {
+        return trajectory.clone();
+    }
+
+    /**
+     * @return The number of steps that are simulated
+     */
+    public int getSteps() {
+        return usage.length;
+    }
+
+    /**
+     * @return The duration of each step in milliseconds
+     */
+    public long getTimeStepMillis() {
+        return timeStepMs;
+    }
+
+    /**
+     * @return The lowest bound of all running modes that have been added
+     */
+    public double getMinimumFillLevel() {
+        return minimumFillLevel;
+    }
+
+    /**
+     * @return The highest bound of all running modes that have been added
+     */
+    public double getMaximumFillLevel() {
+        return maximumFillLevel;
+    }
+
+    /**
+     * @return The unit in which the fill level is expressed
+     */
+    public Unit<Q> getUnit() {
+        return unit;
+    }
+}
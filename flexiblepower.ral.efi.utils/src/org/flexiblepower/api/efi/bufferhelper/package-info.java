@@ -1,4 +1,4 @@
-@Version("2.0.0.${qualifier}")
+@Version("2.1.0.${qualifier}")
 package org.flexiblepower.api.efi.bufferhelper;
 
 import aQute.bnd.annotation.Version;
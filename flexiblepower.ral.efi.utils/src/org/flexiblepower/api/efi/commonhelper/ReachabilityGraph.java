@@ -0,0 +1,330 @@
+package org.flexiblepower.api.efi.commonhelper;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.Timer;
+import org.flexiblepower.efi.util.Transition;
+
+/**
+ * An immutable, compiled form of the {@link RunningMode}s and {@link Transition}s of an actuator or an unconstrained
+ * device. The running modes and the timers get an index, in the order of their identifiers. Sets of running modes and
+ * sets of timers are then bitsets, stored in a <code>long[]</code> where bit <code>i</code> of word
+ * <code>i / 64</code> represents index <code>i</code>.
+ *
+ * The timers that are blocking at a moment (see {@link #getBlockedTimers(TimerModel[], Date, long[])}) and the running
+ * modes that are reachable from a running mode (see {@link #getReachable(int, long[], long[])}) are calculated with
+ * bitmask operations, without any boxing or map lookups. A graph should be compiled once for each system description.
+ *
+ * @param <T>
+ *            The value stored in the {@link RunningMode}s
+ */
+public final class ReachabilityGraph<T> {
+    /**
+     * Compiles the running modes.
+     *
+     * @param runningModes
+     *            All the running modes of an actuator or device
+     * @return The compiled graph of the running modes
+     * @throws IllegalArgumentException
+     *             When two running modes have the same identifier or when a {@link Transition} has an unknown running
+     *             mode as target
+     */
+    public static <T> ReachabilityGraph<T> compile(Collection<RunningMode<T>> runningModes) {
+        return new ReachabilityGraph<T>(runningModes);
+    }
+
+    private final RunningMode<T>[] runningModes;
+    /** The identifiers of the running modes, sorted */
+    private final int[] runningModeIds;
+    private final Timer[] timers;
+    /** The identifiers of the timers, sorted */
+    private final int[] timerIds;
+    private final int runningModeWords, timerWords;
+
+    /** The transitions of running mode i are the transitions from transitionOffsets[i] to transitionOffsets[i + 1] */
+    private final int[] transitionOffsets;
+    /** The index of the target of each transition */
+    private final int[] transitionTargets;
+    /** The blocking timers of each transition, timerWords words per transition */
+    private final long[] transitionBlockers;
+
+    @SuppressWarnings("unchecked")
+    private ReachabilityGraph(Collection<RunningMode<T>> runningModes) {
+        TreeMap<Integer, RunningMode<T>> sortedModes = new TreeMap<Integer, RunningMode<T>>();
+        TreeMap<Integer, Timer> sortedTimers = new TreeMap<Integer, Timer>();
+        int transitionCount = 0;
+        for (RunningMode<T> runningMode : runningModes) {
+            if (sortedModes.put(runningMode.getId(), runningMode) != null) {
+                throw new IllegalArgumentException("Cannot add multiple RunningModes with the same Id ("
+                                                   + runningMode.getId()
+                                                   + ")");
+            }
+            for (Transition transition : runningMode.getTransitions()) {
+                for (Timer timer : transition.getBlockingTimers()) {
+                    sortedTimers.put(timer.getId(), timer);
+                }
+                for (Timer timer : transition.getStartTimers()) {
+                    sortedTimers.put(timer.getId(), timer);
+                }
+                transitionCount++;
+            }
+        }
+
+        this.runningModes = sortedModes.values().toArray((RunningMode<T>[]) Array.newInstance(RunningMode.class,
+                                                                                             sortedModes.size()));
+        runningModeIds = new int[this.runningModes.length];
+        for (int ix = 0; ix < runningModeIds.length; ix++) {
+            runningModeIds[ix] = this.runningModes[ix].getId();
+        }
+        timers = sortedTimers.values().toArray(new Timer[sortedTimers.size()]);
+        timerIds = new int[timers.length];
+        for (int ix = 0; ix < timerIds.length; ix++) {
+            timerIds[ix] = timers[ix].getId();
+        }
+        runningModeWords = words(runningModeIds.length);
+        timerWords = words(timerIds.length);
+
+        transitionOffsets = new int[this.runningModes.length + 1];
+        transitionTargets = new int[transitionCount];
+        transitionBlockers = new long[transitionCount * timerWords];
+        int transition = 0;
+        for (int ix = 0; ix < this.runningModes.length; ix++) {
+            transitionOffsets[ix] = transition;
+            for (Transition t : this.runningModes[ix].getTransitions()) {
+                int target = indexOfRunningMode(t.getToRunningMode());
+                if (target < 0) {
+                    throw new IllegalArgumentException("There is a Transition that has a target (toRunningMode) with a "
+                                                       + "RunningMode Id which does not exist: "
+                                                       + t.getToRunningMode());
+                }
+                transitionTargets[transition] = target;
+                for (Timer timer : t.getBlockingTimers()) {
+                    set(transitionBlockers, transition * timerWords, indexOfTimer(timer.getId()));
+                }
+                transition++;
+            }
+        }
+        transitionOffsets[this.runningModes.length] = transition;
+    }
+
+    private static int words(int bits) {
+        return Math.max(1, (bits + 63) >>> 6);
+    }
+
+    private static void set(long[] words, int offset, int index) {
+        words[offset + (index >>> 6)] |= 1L << index;
+    }
+
+    /**
+     * @param set
+     *            A set of running modes or timers
+     * @param index
+     *            The index of a running mode or timer
+     * @return true when the set contains the index
+     */
+    public static boolean contains(long[] set, int index) {
+        return (set[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @param set
+     *            A set of running modes or timers
+     * @param index
+     *            The index of a running mode or timer that is removed from the set
+     */
+    public static void remove(long[] set, int index) {
+        set[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Can be used to iterate over a set, like {@link java.util.BitSet#nextSetBit(int)}:
+     *
+     * <pre>
+     * for (int ix = ReachabilityGraph.nextIndex(set, 0); ix &gt;= 0; ix = ReachabilityGraph.nextIndex(set, ix + 1)) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param set
+     *            A set of running modes or timers
+     * @param fromIndex
+     *            The index to start at
+     * @return The first index in the set at or after fromIndex, or -1 when there is none
+     */
+    public static int nextIndex(long[] set, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= set.length) {
+            return -1;
+        }
+        long bits = set[word] & (-1L << fromIndex);
+        while (bits == 0) {
+            if (++word == set.length) {
+                return -1;
+            }
+            bits = set[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return The number of running modes
+     */
+    public int getRunningModeCount() {
+        return runningModes.length;
+    }
+
+    /**
+     * @param index
+     *            The index of the running mode
+     * @return The running mode
+     */
+    public RunningMode<T> getRunningMode(int index) {
+        return runningModes[index];
+    }
+
+    /**
+     * @param runningModeId
+     *            The identifier of a running mode
+     * @return The index of the running mode, or -1 when it is unknown
+     */
+    public int indexOfRunningMode(int runningModeId) {
+        int index = Arrays.binarySearch(runningModeIds, runningModeId);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @param set
+     *            A set of running modes
+     * @return The running modes in the set
+     */
+    public Set<RunningMode<T>> getRunningModes(long[] set) {
+        Set<RunningMode<T>> result = new HashSet<RunningMode<T>>();
+        for (int ix = nextIndex(set, 0); ix >= 0; ix = nextIndex(set, ix + 1)) {
+            result.add(runningModes[ix]);
+        }
+        return result;
+    }
+
+    /**
+     * @param set
+     *            A set of running modes
+     * @return The identifiers of the running modes in the set
+     */
+    public Set<Integer> getRunningModeIds(long[] set) {
+        Set<Integer> result = new HashSet<Integer>();
+        for (int ix = nextIndex(set, 0); ix >= 0; ix = nextIndex(set, ix + 1)) {
+            result.add(runningModeIds[ix]);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of timers that are used in the transitions
+     */
+    public int getTimerCount() {
+        return timers.length;
+    }
+
+    /**
+     * @param index
+     *            The index of the timer
+     * @return The timer
+     */
+    public Timer getTimer(int index) {
+        return timers[index];
+    }
+
+    /**
+     * @param timerId
+     *            The identifier of a timer
+     * @return The index of the timer, or -1 when it is unknown
+     */
+    public int indexOfTimer(int timerId) {
+        int index = Arrays.binarySearch(timerIds, timerId);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @return A new, empty set of running modes
+     */
+    public long[] createRunningModeSet() {
+        return new long[runningModeWords];
+    }
+
+    /**
+     * @return A new, empty set of timers
+     */
+    public long[] createTimerSet() {
+        return new long[timerWords];
+    }
+
+    /**
+     * @return A new {@link TimerModel} for each timer, in the order of their index
+     */
+    public TimerModel[] createTimerModels() {
+        TimerModel[] models = new TimerModel[timers.length];
+        for (int ix = 0; ix < models.length; ix++) {
+            models[ix] = new TimerModel(timers[ix]);
+        }
+        return models;
+    }
+
+    /**
+     * Determines which timers are blocking at a moment.
+     *
+     * @param timerModels
+     *            The state of the timers, in the order of their index (see {@link #createTimerModels()})
+     * @param moment
+     *            The moment of interest
+     * @param result
+     *            The set of timers that is overwritten with the timers that are blocking
+     * @return The result
+     */
+    public long[] getBlockedTimers(TimerModel[] timerModels, Date moment, long[] result) {
+        Arrays.fill(result, 0);
+        for (int ix = 0; ix < timerModels.length; ix++) {
+            if (timerModels[ix].isBlockingAt(moment)) {
+                set(result, 0, ix);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines which running modes are reachable from a running mode. The running mode itself is always included.
+     *
+     * @param runningModeIndex
+     *            The index of the current running mode
+     * @param blockedTimers
+     *            The timers that are blocking (see {@link #getBlockedTimers(TimerModel[], Date, long[])})
+     * @param result
+     *            The set of running modes that is overwritten with the reachable running modes
+     * @return The result
+     */
+    public long[] getReachable(int runningModeIndex, long[] blockedTimers, long[] result) {
+        Arrays.fill(result, 0);
+        set(result, 0, runningModeIndex);
+        int end = transitionOffsets[runningModeIndex + 1];
+        for (int transition = transitionOffsets[runningModeIndex]; transition < end; transition++) {
+            boolean blocked = false;
+            int offset = transition * timerWords;
+            for (int word = 0; word < timerWords; word++) {
+                if ((transitionBlockers[offset + word] & blockedTimers[word]) != 0) {
+                    blocked = true;
+                    break;
+                }
+            }
+            if (!blocked) {
+                set(result, 0, transitionTargets[transition]);
+            }
+        }
+        return result;
+    }
+}
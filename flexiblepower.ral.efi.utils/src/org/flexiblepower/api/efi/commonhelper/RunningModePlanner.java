@@ -0,0 +1,452 @@
+package org.flexiblepower.api.efi.commonhelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Power;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.efi.unconstrained.RunningModeBehaviour;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.Timer;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.UnitConverterCache;
+
+/**
+ * Plans a sequence of running modes over a horizon of equal time slots, such that the total cost is minimal. This is a
+ * dynamic program over the states (time slot, running mode, timer state), which respects the {@link Transition}s of
+ * the running modes:
+ * <ul>
+ * <li>A transition can only be made when none of its blocking timers is running;</li>
+ * <li>A transition starts its start timers;</li>
+ * <li>During the transition time of a transition no other transition can be made;</li>
+ * <li>The transition costs are added to the costs of the running modes (see {@link SlotCosts}).</li>
+ * </ul>
+ * Transitions are made at the start of a slot. Timers and transition times are rounded up to whole slots, so a plan
+ * never makes a transition too early.
+ *
+ * The number of timer states is the product of the durations of the timers in slots (plus one), so this is meant for
+ * a small number of timers. The time budget limits the time that is spent on a plan; when it runs out, the plan only
+ * covers the slots that were done (see {@link Plan#isComplete()}). Such a plan is only optimal for those slots, as the
+ * costs of the later slots have not been taken into account. Planners are immutable and can be shared; the plans
+ * of several actuators can be made in parallel with {@link #planAll(List, ExecutorService)}.
+ *
+ * @param <T>
+ *            The value stored in the {@link RunningMode}s
+ */
+public class RunningModePlanner<T> {
+    /** The maximum number of states times the number of slots, which limits the memory that is used */
+    private static final long MAX_STATES = 1 << 23;
+    /** The largest time budget, such that the deadline can be compared with {@link System#nanoTime()} */
+    private static final long MAX_BUDGET_MS = TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE / 2);
+
+    /**
+     * The costs of being in a running mode during a time slot.
+     */
+    public interface SlotCosts {
+        /**
+         * @param slot
+         *            The index of the time slot
+         * @param runningModeIndex
+         *            The index of the running mode in the {@link ReachabilityGraph}
+         * @return The costs in euro of being in the running mode during the slot, or
+         *         {@link Double#POSITIVE_INFINITY} when the running mode is not allowed during the slot
+         */
+        double getCost(int slot, int runningModeIndex);
+    }
+
+    /**
+     * The result of {@link RunningModePlanner#plan(int, Map, Date, SlotCosts, long)}.
+     */
+    public static final class Plan {
+        private final int[] runningModeIds;
+        private final double cost;
+        private final boolean complete;
+
+        Plan(int[] runningModeIds, double cost, boolean complete) {
+            this.runningModeIds = runningModeIds;
+            this.cost = cost;
+            this.complete = complete;
+        }
+
+        /**
+         * @return The number of slots that have been planned
+         */
+        public int getSlots() {
+            return runningModeIds.length;
+        }
+
+        /**
+         * @param slot
+         *            The index of the slot
+         * @return The identifier of the running mode during the slot
+         */
+        public int getRunningModeId(int slot) {
+            return runningModeIds[slot];
+        }
+
+        /**
+         * @return The total costs in euro of the running modes and transitions, or {@link Double#POSITIVE_INFINITY}
+         *         when there is no plan that avoids the running modes that are not allowed. In that case the running
+         *         modes of the plan are only a possible sequence.
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        /**
+         * @return true when the plan covers all slots, false when the time budget ran out before. An incomplete plan
+         *         has the lowest costs for the slots that it covers, but its last running modes may be a bad start for
+         *         the slots after it, so it should be made again with a larger budget or used only for the first
+         *         slots.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan [runningModeIds=" + Arrays.toString(runningModeIds)
+                   + ", cost="
+                   + cost
+                   + ", complete="
+                   + complete
+                   + "]";
+        }
+    }
+
+    /**
+     * Creates the costs of the running modes of an unconstrained device: its running costs plus the costs of its
+     * electricity consumption.
+     *
+     * @param graph
+     *            The compiled running modes
+     * @param slotDuration
+     *            The duration of each slot
+     * @param electricityPrices
+     *            The price of electricity in euro per kWh for each slot
+     * @return The costs of each running mode during each slot
+     */
+    public static SlotCosts electricityCosts(ReachabilityGraph<RunningModeBehaviour> graph,
+                                             Measurable<Duration> slotDuration,
+                                             final double[] electricityPrices) {
+        double hours = UnitConverterCache.doubleValue(slotDuration, NonSI.HOUR);
+        final int modes = graph.getRunningModeCount();
+        final double[] runningCosts = new double[modes];
+        final double[] energy = new double[modes];
+        for (int ix = 0; ix < modes; ix++) {
+            RunningModeBehaviour behaviour = graph.getRunningMode(ix).getValue();
+            runningCosts[ix] = behaviour.getRunningCosts().doubleValue(NonSI.EUR_PER_HOUR) * hours;
+            Measurable<Power> power = behaviour.getCommodityConsumption().get(Commodity.ELECTRICITY);
+            energy[ix] = power == null ? 0 : power.doubleValue(SI.KILO(SI.WATT)) * hours;
+        }
+        return new SlotCosts() {
+            @Override
+            public double getCost(int slot, int runningModeIndex) {
+                return runningCosts[runningModeIndex] + energy[runningModeIndex] * electricityPrices[slot];
+            }
+        };
+    }
+
+    /**
+     * Makes the plans of several actuators in parallel. The actuators are planned independently of each other.
+     *
+     * @param tasks
+     *            The tasks that make the plans (see {@link #createTask(int, Map, Date, SlotCosts, long)})
+     * @param executor
+     *            The executor that runs the tasks
+     * @return The plans, in the same order as the tasks
+     * @throws InterruptedException
+     *             When the thread is interrupted while waiting for the plans
+     */
+    public static List<Plan> planAll(List<Callable<Plan>> tasks, ExecutorService executor) throws InterruptedException {
+        List<Plan> plans = new ArrayList<Plan>(tasks.size());
+        for (Future<Plan> future : executor.invokeAll(tasks)) {
+            try {
+                plans.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Could not make a plan", e.getCause());
+            }
+        }
+        return plans;
+    }
+
+    private final ReachabilityGraph<T> graph;
+    private final long slotMs;
+    private final int slots;
+    private final int modes;
+
+    /** The duration of each timer in slots */
+    private final int[] timerSlots;
+    /** The transitions of running mode i are the transitions from transitionOffsets[i] to transitionOffsets[i + 1] */
+    private final int[] transitionOffsets;
+    private final int[] transitionTargets;
+    /** The timers that block each transition, where the highest bit is the transition that is still in progress */
+    private final long[] transitionBlockers;
+    /** The timers that are started by each transition */
+    private final int[][] transitionStarts;
+    private final double[] transitionCosts;
+    /** The transition time of each transition in slots */
+    private final int[] transitionSlots;
+    private final int maxTransitionSlots;
+
+    /**
+     * @param graph
+     *            The compiled running modes of an actuator or device
+     * @param slotDuration
+     *            The duration of each slot
+     * @param slots
+     *            The number of slots that are planned
+     * @throws IllegalArgumentException
+     *             When the slot duration is shorter than a millisecond, the number of slots is not positive or there
+     *             are more than 62 timers
+     */
+    public RunningModePlanner(ReachabilityGraph<T> graph, Measurable<Duration> slotDuration, int slots) {
+        slotMs = UnitConverterCache.longValue(slotDuration, Profile.MS);
+        if (slotMs <= 0) {
+            throw new IllegalArgumentException("The slot duration should be at least 1 ms");
+        } else if (slots <= 0) {
+            throw new IllegalArgumentException("At least 1 slot should be planned");
+        } else if (graph.getTimerCount() > 62) {
+            throw new IllegalArgumentException("Cannot plan with more than 62 timers");
+        }
+        this.graph = graph;
+        this.slots = slots;
+        modes = graph.getRunningModeCount();
+
+        timerSlots = new int[graph.getTimerCount()];
+        for (int ix = 0; ix < timerSlots.length; ix++) {
+            timerSlots[ix] = toSlots(graph.getTimer(ix).getDuration());
+        }
+
+        List<Transition> transitions = new ArrayList<Transition>();
+        transitionOffsets = new int[modes + 1];
+        for (int ix = 0; ix < modes; ix++) {
+            transitionOffsets[ix] = transitions.size();
+            transitions.addAll(graph.getRunningMode(ix).getTransitions());
+        }
+        transitionOffsets[modes] = transitions.size();
+
+        int count = transitions.size();
+        transitionTargets = new int[count];
+        transitionBlockers = new long[count];
+        transitionStarts = new int[count][];
+        transitionCosts = new double[count];
+        transitionSlots = new int[count];
+        int maxSlots = 0;
+        for (int ix = 0; ix < count; ix++) {
+            Transition transition = transitions.get(ix);
+            transitionTargets[ix] = graph.indexOfRunningMode(transition.getToRunningMode());
+            long blockers = 1L << timerSlots.length;
+            for (Timer timer : transition.getBlockingTimers()) {
+                blockers |= 1L << graph.indexOfTimer(timer.getId());
+            }
+            transitionBlockers[ix] = blockers;
+            transitionStarts[ix] = new int[transition.getStartTimers().size()];
+            int start = 0;
+            for (Timer timer : transition.getStartTimers()) {
+                transitionStarts[ix][start++] = graph.indexOfTimer(timer.getId());
+            }
+            if (transition.getTransitionCosts() != null) {
+                transitionCosts[ix] = transition.getTransitionCosts().doubleValue(NonSI.EUR);
+            }
+            transitionSlots[ix] = toSlots(transition.getTransitionTime());
+            maxSlots = Math.max(maxSlots, transitionSlots[ix]);
+        }
+        maxTransitionSlots = maxSlots;
+    }
+
+    private int toSlots(Measurable<Duration> duration) {
+        return toSlots(UnitConverterCache.longValue(duration, Profile.MS));
+    }
+
+    private int toSlots(long durationMs) {
+        return durationMs <= 0 ? 0 : (int) ((durationMs + slotMs - 1) / slotMs);
+    }
+
+    /**
+     * Creates a task that makes a plan, see {@link #plan(int, Map, Date, SlotCosts, long)} and
+     * {@link #planAll(List, ExecutorService)}.
+     *
+     * @return The task
+     */
+    public Callable<Plan> createTask(final int currentRunningModeId,
+                                     final Map<Integer, TimerModel> timers,
+                                     final Date start,
+                                     final SlotCosts costs,
+                                     final long budgetMs) {
+        return new Callable<Plan>() {
+            @Override
+            public Plan call() {
+                return plan(currentRunningModeId, timers, start, costs, budgetMs);
+            }
+        };
+    }
+
+    /**
+     * Plans the running modes with the lowest total costs.
+     *
+     * @param currentRunningModeId
+     *            The identifier of the current running mode
+     * @param timers
+     *            The state of the timers at the start, indexed on their identifier (see
+     *            {@link org.flexiblepower.api.efi.bufferhelper.BufferActuator#getAllTimers()}), or <code>null</code>
+     *            when no timer is running
+     * @param start
+     *            The start of the first slot
+     * @param costs
+     *            The costs of the running modes during each slot
+     * @param budgetMs
+     *            The time in milliseconds that may be spent on the plan. At least one slot is always planned.
+     * @return The plan with the lowest costs, which only covers the slots that were done within the budget (see
+     *         {@link Plan#isComplete()})
+     * @throws IllegalArgumentException
+     *             When the running mode is unknown or when there are too many states to plan
+     */
+    public Plan plan(int currentRunningModeId,
+                     Map<Integer, TimerModel> timers,
+                     Date start,
+                     SlotCosts costs,
+                     long budgetMs) {
+        long budgetNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Math.min(budgetMs, MAX_BUDGET_MS)));
+        long deadline = System.nanoTime() + budgetNs;
+        int current = graph.indexOfRunningMode(currentRunningModeId);
+        if (current < 0) {
+            throw new IllegalArgumentException("Running Mode Id is not known.");
+        }
+
+        // The timer state is a number where digit i (with radix[i]) is the number of slots that timer i still runs.
+        // The last digit is the number of slots that the current transition still takes.
+        int timerCount = timerSlots.length + 1;
+        int[] initial = new int[timerCount];
+        int[] radix = new int[timerCount];
+        for (int ix = 0; ix < timerSlots.length; ix++) {
+            TimerModel model = timers == null ? null : timers.get(graph.getTimer(ix).getId());
+            if (model != null && model.getFinishedAt() != null) {
+                initial[ix] = toSlots(model.getFinishedAt().getTime() - start.getTime());
+            }
+            radix[ix] = Math.max(timerSlots[ix], initial[ix]) + 1;
+        }
+        radix[timerSlots.length] = maxTransitionSlots + 1;
+
+        int[] weight = new int[timerCount];
+        long timerStates = 1;
+        for (int ix = 0; ix < timerCount; ix++) {
+            weight[ix] = (int) timerStates;
+            timerStates *= radix[ix];
+            if (timerStates * modes * slots > MAX_STATES) {
+                throw new IllegalArgumentException("There are too many timer states to plan " + slots + " slots");
+            }
+        }
+        int codes = (int) timerStates;
+        int states = codes * modes;
+
+        // For each timer state: which timers are running and the state one slot later
+        long[] running = new long[codes];
+        int[] tick = new int[codes];
+        for (int code = 0; code < codes; code++) {
+            int next = 0;
+            for (int ix = 0; ix < timerCount; ix++) {
+                int remaining = (code / weight[ix]) % radix[ix];
+                if (remaining > 0) {
+                    running[code] |= 1L << ix;
+                    next += (remaining - 1) * weight[ix];
+                }
+            }
+            tick[code] = next;
+        }
+
+        int initialCode = 0;
+        for (int ix = 0; ix < timerCount; ix++) {
+            initialCode += initial[ix] * weight[ix];
+        }
+
+        // Forward dynamic program, where the state is code * modes + running mode
+        double[] cost = new double[states];
+        double[] nextCost = new double[states];
+        int[][] previous = new int[slots][];
+        Arrays.fill(cost, Double.NaN);
+        cost[initialCode * modes + current] = 0;
+        int done = 0;
+        // Compares the difference, which stays correct when nanoTime() wraps around
+        while (done < slots && (done == 0 || System.nanoTime() - deadline < 0)) {
+            int slot = done;
+            int[] from = new int[states];
+            Arrays.fill(from, -1);
+            Arrays.fill(nextCost, Double.NaN);
+            for (int state = 0; state < states; state++) {
+                double base = cost[state];
+                if (Double.isNaN(base)) {
+                    continue;
+                }
+                int mode = state % modes;
+                int code = state / modes;
+
+                // Stay in the same running mode
+                relax(state, tick[code] * modes + mode, base + costs.getCost(slot, mode), from, nextCost);
+
+                // Or make a transition that is not blocked
+                for (int t = transitionOffsets[mode]; t < transitionOffsets[mode + 1]; t++) {
+                    if ((running[code] & transitionBlockers[t]) != 0) {
+                        continue;
+                    }
+                    int nextCode = code;
+                    for (int timer : transitionStarts[t]) {
+                        nextCode += (timerSlots[timer] - (code / weight[timer]) % radix[timer]) * weight[timer];
+                    }
+                    nextCode += transitionSlots[t] * weight[timerSlots.length];
+                    int target = transitionTargets[t];
+                    relax(state,
+                          tick[nextCode] * modes + target,
+                          base + transitionCosts[t] + costs.getCost(slot, target),
+                          from,
+                          nextCost);
+                }
+            }
+            previous[slot] = from;
+            double[] swap = cost;
+            cost = nextCost;
+            nextCost = swap;
+            done++;
+        }
+
+        // Follow the cheapest final state back to the start
+        int best = -1;
+        for (int state = 0; state < states; state++) {
+            if (!Double.isNaN(cost[state]) && (best < 0 || cost[state] < cost[best])) {
+                best = state;
+            }
+        }
+        int[] runningModeIds = new int[done];
+        int state = best;
+        for (int slot = done - 1; slot >= 0; slot--) {
+            runningModeIds[slot] = graph.getRunningMode(state % modes).getId();
+            state = previous[slot][state];
+        }
+        return new Plan(runningModeIds, cost[best], done == slots);
+    }
+
+    /** Updates the costs of a state when it can be reached with lower costs */
+    private static void relax(int state, int next, double cost, int[] from, double[] nextCost) {
+        if (from[next] < 0 || cost < nextCost[next]) {
+            nextCost[next] = cost;
+            from[next] = state;
+        }
+    }
+}
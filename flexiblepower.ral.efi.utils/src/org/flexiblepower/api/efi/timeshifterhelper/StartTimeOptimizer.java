@@ -0,0 +1,468 @@
+package org.flexiblepower.api.efi.timeshifterhelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.NonSI;
+
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.efi.timeshifter.SequentialProfileAllocation;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommodityUncertainMeasurables;
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.UncertainMeasure;
+import org.flexiblepower.ral.values.UnitConverterCache;
+
+/**
+ * Finds the cheapest start times for the {@link SequentialProfile}s of a time shifter. Time is divided in slots of a
+ * fixed length, from the start of the optimization up to the moment before which every profile must have ended. A
+ * profile may only start at the beginning of a slot, its duration is rounded up to whole slots and its
+ * maxIntervalBefore is rounded down to whole slots, so every schedule that is found is also allowed in continuous
+ * time. The maxIntervalBefore of the first profile is counted from the validFrom of the update, so it limits how late
+ * the first profile may start.
+ *
+ * The costs are given as a signal with a value for each slot, e.g. a price in EUR/kWh or the residual load of a
+ * cluster. The cost of a profile is the sum over its slots of the expected amount of the commodity (in the billable
+ * unit) times the signal. A profile is stored as runs of slots with the same amount, so the cost of a start time is
+ * calculated from the prefix sums of the signal with one subtraction per run. The cheapest sequence of start times is
+ * found with a dynamic programme over the profiles, where the best predecessor for each start time is taken from a
+ * sliding-window minimum. Optimizing therefore takes O(slots &times; runs) time, where runs is the total number of runs
+ * of all profiles, instead of trying every combination of start times. For a profile with a constant amount that is
+ * linear in the number of slots, but a profile of which the amount changes in every slot takes time proportional to
+ * the number of slots times its duration.
+ *
+ * The working arrays are allocated once, so {@link #optimize(double[])} can be called for many signals, but an
+ * optimizer must not be shared between threads.
+ */
+public class StartTimeOptimizer {
+    /**
+     * The result of an optimization: a start time for each profile.
+     */
+    public static final class Schedule {
+        private final StartTimeOptimizer optimizer;
+        private final int[] startSlots;
+        private final double cost;
+
+        Schedule(StartTimeOptimizer optimizer, int[] startSlots, double cost) {
+            this.optimizer = optimizer;
+            this.startSlots = startSlots;
+            this.cost = cost;
+        }
+
+        /**
+         * @param profileIndex
+         *            The index of the profile in the list of sequential profiles
+         * @return The index of the slot where the profile starts
+         */
+        public int getStartSlot(int profileIndex) {
+            return startSlots[profileIndex];
+        }
+
+        /**
+         * @param profileIndex
+         *            The index of the profile in the list of sequential profiles
+         * @return The moment when the profile starts
+         */
+        public Date getStartTime(int profileIndex) {
+            return optimizer.getSlotStart(startSlots[profileIndex]);
+        }
+
+        /**
+         * @return The total cost of the schedule
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        /**
+         * @return An allocation for each sequential profile, which can be used to create a
+         *         {@link org.flexiblepower.efi.timeshifter.TimeShifterAllocation}
+         */
+        public List<SequentialProfileAllocation> getSequentialProfileAllocations() {
+            List<SequentialProfileAllocation> allocations =
+                    new ArrayList<SequentialProfileAllocation>(startSlots.length);
+            for (int ix = 0; ix < startSlots.length; ix++) {
+                allocations.add(new SequentialProfileAllocation(optimizer.profiles.get(ix).getId(), getStartTime(ix)));
+            }
+            return allocations;
+        }
+
+        @Override
+        public String toString() {
+            return "Schedule [startSlots=" + Arrays.toString(startSlots) + ", cost=" + cost + "]";
+        }
+    }
+
+    private static final Measure<Integer, Duration> ONE_HOUR = Measure.valueOf(1, NonSI.HOUR);
+    private static final double MS_PER_HOUR = 3600000;
+
+    private final List<SequentialProfile> profiles;
+    /** The latest start slot of the first profile because of its maxIntervalBefore, or Long.MAX_VALUE */
+    private final long firstLatestStart;
+    private final long startMs;
+    private final long slotMs;
+    private final int slots;
+
+    /** The duration of each profile in slots */
+    private final int[] durations;
+    /** The maximum number of slots between the end of the previous profile and the start of each profile */
+    private final int[] maxIntervals;
+    /** The slot offsets of the runs of each profile, runOffsets[p][r] to runOffsets[p][r + 1] is run r */
+    private final int[][] runOffsets;
+    /** The amount of the commodity in each slot of a run */
+    private final double[][] runAmounts;
+    /** The earliest and latest start slot of each profile */
+    private final int[] earliestStarts, latestStarts;
+
+    private final double[] prefixSums;
+    /** The lowest cost of the profiles up to p when profile p starts in slot s */
+    private final double[][] best;
+    /** The start slot of profile p - 1 that gives best[p][s] */
+    private final int[][] previous;
+    private final int[] deque;
+
+    /**
+     * @param profiles
+     *            The sequential profiles, in the order in which they must run
+     * @param validFrom
+     *            The validFrom of the update, from which the maxIntervalBefore of the first profile is counted
+     * @param start
+     *            The first moment a profile may start (e.g. the later of now and validFrom of the update)
+     * @param endBefore
+     *            The moment before which every profile must have ended
+     * @param slotDuration
+     *            The length of a slot, which is the resolution of the start times
+     * @param commodity
+     *            The commodity of the {@link CommodityForecast}s for which the costs are calculated
+     * @throws IllegalArgumentException
+     *             When there are no profiles, when the slot duration is not positive or when endBefore is before the
+     *             start
+     */
+    public <BQ extends Quantity, FQ extends Quantity> StartTimeOptimizer(List<SequentialProfile> profiles,
+                                                                         Date validFrom,
+                                                                         Date start,
+                                                                         Date endBefore,
+                                                                         Measurable<Duration> slotDuration,
+                                                                         Commodity<BQ, FQ> commodity) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("There are no sequential profiles");
+        }
+        this.profiles = Collections.unmodifiableList(new ArrayList<SequentialProfile>(profiles));
+        startMs = start.getTime();
+        slotMs = UnitConverterCache.longValue(slotDuration, Profile.MS);
+        if (slotMs <= 0) {
+            throw new IllegalArgumentException("The slot duration should be positive: " + slotDuration);
+        }
+        if (endBefore.getTime() < startMs) {
+            throw new IllegalArgumentException("endBefore (" + endBefore + ") is before the start (" + start + ")");
+        }
+        slots = (int) ((endBefore.getTime() - startMs) / slotMs);
+
+        Measurable<Duration> firstInterval = profiles.get(0).getMaxIntervalBefore();
+        if (firstInterval == null) {
+            firstLatestStart = Long.MAX_VALUE;
+        } else {
+            long latestMs = validFrom.getTime() + UnitConverterCache.longValue(firstInterval, Profile.MS) - startMs;
+            // Rounded down, also when the latest start has already passed
+            firstLatestStart = latestMs < 0 ? -1 : latestMs / slotMs;
+        }
+
+        int count = profiles.size();
+        durations = new int[count];
+        maxIntervals = new int[count];
+        runOffsets = new int[count][];
+        runAmounts = new double[count][];
+        for (int p = 0; p < count; p++) {
+            SequentialProfile profile = profiles.get(p);
+            Measurable<Duration> maxInterval = profile.getMaxIntervalBefore();
+            maxIntervals[p] = maxInterval == null ? Integer.MAX_VALUE
+                                                 : (int) Math.min(Integer.MAX_VALUE,
+                                                                  UnitConverterCache.longValue(maxInterval, Profile.MS)
+                                                                          / slotMs);
+            compileProfile(p, profile.getCommodityForecast(), commodity);
+        }
+
+        earliestStarts = new int[count];
+        latestStarts = new int[count];
+        calculateWindows();
+
+        prefixSums = new double[slots + 1];
+        // A profile without duration may start at the end of the last slot
+        best = new double[count][slots + 1];
+        previous = new int[count][slots + 1];
+        deque = new int[slots + 1];
+    }
+
+    /**
+     * Determines the amount of the commodity in each slot of the profile and stores it as runs of equal amounts.
+     */
+    private <BQ extends Quantity, FQ extends Quantity> void compileProfile(int p,
+                                                                           CommodityForecast forecast,
+                                                                           Commodity<BQ, FQ> commodity) {
+        long totalMs = forecast == null ? 0 : forecast.getTotalDurationMillis();
+        int duration = (int) ((totalMs + slotMs - 1) / slotMs);
+        double[] amounts = new double[duration];
+        if (forecast != null) {
+            for (int element = 0; element < forecast.size(); element++) {
+                CommodityUncertainMeasurables value = forecast.get(element).getValue();
+                UncertainMeasure<FQ> flow = value == null ? null : value.get(commodity);
+                if (flow == null) {
+                    continue;
+                }
+                double perHour = commodity.amount(flow, ONE_HOUR).doubleValue(commodity.getBillableUnit());
+                long elementStart = forecast.getStartOffsetMillis(element);
+                long elementEnd = forecast.getEndOffsetMillis(element);
+                for (int slot = (int) (elementStart / slotMs); slot < duration && slot * slotMs < elementEnd; slot++) {
+                    long overlap = Math.min(elementEnd, (slot + 1) * slotMs) - Math.max(elementStart, slot * slotMs);
+                    amounts[slot] += perHour * overlap / MS_PER_HOUR;
+                }
+            }
+        }
+
+        int runs = 0;
+        int[] offsets = new int[duration + 1];
+        double[] values = new double[duration];
+        for (int slot = 0; slot < duration; slot++) {
+            if (runs == 0 || amounts[slot] != values[runs - 1]) {
+                offsets[runs] = slot;
+                values[runs] = amounts[slot];
+                runs++;
+            }
+        }
+        offsets[runs] = duration;
+        durations[p] = duration;
+        runOffsets[p] = Arrays.copyOf(offsets, runs + 1);
+        runAmounts[p] = Arrays.copyOf(values, runs);
+    }
+
+    /**
+     * Calculates the window of start slots of each profile. A forward pass gives the earliest starts when every profile
+     * starts right after the previous one, and limits the latest starts by the maximum interval. A backward pass makes
+     * sure that every profile can still end before the end of the last slot and that the next profile can still be
+     * reached within its maximum interval.
+     */
+    private void calculateWindows() {
+        int count = durations.length;
+        earliestStarts[0] = 0;
+        latestStarts[0] = (int) Math.min(slots - durations[0], firstLatestStart);
+        for (int p = 1; p < count; p++) {
+            earliestStarts[p] = earliestStarts[p - 1] + durations[p - 1];
+            latestStarts[p] = slots - durations[p];
+            long latest = (long) latestStarts[p - 1] + durations[p - 1] + maxIntervals[p];
+            if (latest < latestStarts[p]) {
+                latestStarts[p] = (int) latest;
+            }
+        }
+        for (int p = count - 2; p >= 0; p--) {
+            latestStarts[p] = Math.min(latestStarts[p], latestStarts[p + 1] - durations[p]);
+            long earliest = (long) earliestStarts[p + 1] - maxIntervals[p + 1] - durations[p];
+            if (earliest > earliestStarts[p]) {
+                earliestStarts[p] = (int) earliest;
+            }
+        }
+    }
+
+    /**
+     * @return The number of slots between the start and endBefore
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return The length of a slot in milliseconds
+     */
+    public long getSlotDurationMillis() {
+        return slotMs;
+    }
+
+    /**
+     * @param slot
+     *            The index of a slot
+     * @return The moment the slot starts
+     */
+    public Date getSlotStart(int slot) {
+        return new Date(startMs + slot * slotMs);
+    }
+
+    /**
+     * @return The number of sequential profiles
+     */
+    public int getProfileCount() {
+        return durations.length;
+    }
+
+    /**
+     * @param profileIndex
+     *            The index of the profile in the list of sequential profiles
+     * @return The duration of the profile in slots
+     */
+    public int getDurationSlots(int profileIndex) {
+        return durations[profileIndex];
+    }
+
+    /**
+     * @return true when all the profiles fit before endBefore, respecting the maximum intervals between them
+     */
+    public boolean isFeasible() {
+        for (int p = 0; p < durations.length; p++) {
+            if (earliestStarts[p] > latestStarts[p]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param profileIndex
+     *            The index of the profile in the list of sequential profiles
+     * @return The earliest moment the profile can start in any feasible schedule
+     */
+    public Date getEarliestStartTime(int profileIndex) {
+        return getSlotStart(earliestStarts[profileIndex]);
+    }
+
+    /**
+     * @param profileIndex
+     *            The index of the profile in the list of sequential profiles
+     * @return The latest moment the profile can start in any feasible schedule
+     */
+    public Date getLatestStartTime(int profileIndex) {
+        return getSlotStart(latestStarts[profileIndex]);
+    }
+
+    /**
+     * Calculates the cost of each possible start slot of a single profile. The signal must have been loaded with
+     * {@link #loadSignal(double[])}.
+     */
+    private void calculateCosts(int p, double[] costs) {
+        int[] offsets = runOffsets[p];
+        double[] amounts = runAmounts[p];
+        for (int s = earliestStarts[p]; s <= latestStarts[p]; s++) {
+            double cost = 0;
+            for (int run = 0; run < amounts.length; run++) {
+                cost += amounts[run] * (prefixSums[s + offsets[run + 1]] - prefixSums[s + offsets[run]]);
+            }
+            costs[s] = cost;
+        }
+    }
+
+    private void loadSignal(double[] signal) {
+        if (signal.length < slots) {
+            throw new IllegalArgumentException("The signal has " + signal.length
+                                               + " values, but there are "
+                                               + slots
+                                               + " slots");
+        }
+        prefixSums[0] = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            prefixSums[slot + 1] = prefixSums[slot] + signal[slot];
+        }
+    }
+
+    /**
+     * Finds the start times with the lowest total cost. When several schedules have the same cost, the one where the
+     * profiles start earliest is chosen.
+     *
+     * @param signal
+     *            The cost signal for each slot (e.g. the price per billable unit of the commodity). It must have at
+     *            least {@link #getSlots()} finite values.
+     * @return The cheapest schedule, or null when the profiles do not fit (see {@link #isFeasible()})
+     * @throws IllegalArgumentException
+     *             When the signal has too few values
+     */
+    public Schedule optimize(double[] signal) {
+        loadSignal(signal);
+        if (!isFeasible()) {
+            return null;
+        }
+
+        int count = durations.length;
+        calculateCosts(0, best[0]);
+        for (int p = 1; p < count; p++) {
+            double[] costs = best[p];
+            double[] before = best[p - 1];
+            int[] from = previous[p];
+            calculateCosts(p, costs);
+
+            // The previous profile may start in [s - duration - maxInterval, s - duration], within its own window
+            int duration = durations[p - 1];
+            int firstBefore = earliestStarts[p - 1], lastBefore = latestStarts[p - 1];
+            int next = firstBefore, head = 0, tail = 0;
+            for (int s = earliestStarts[p]; s <= latestStarts[p]; s++) {
+                for (; next <= lastBefore && next <= s - duration; next++) {
+                    // Strictly greater, so the earliest of equal values stays in front
+                    while (tail > head && before[deque[tail - 1]] > before[next]) {
+                        tail--;
+                    }
+                    deque[tail++] = next;
+                }
+                long oldest = (long) s - duration - maxIntervals[p];
+                while (tail > head && deque[head] < oldest) {
+                    head++;
+                }
+                if (tail > head) {
+                    from[s] = deque[head];
+                    costs[s] += before[deque[head]];
+                } else {
+                    // Can not happen after calculateWindows, but keeps a slot without predecessor out of the result
+                    from[s] = -1;
+                    costs[s] = Double.POSITIVE_INFINITY;
+                }
+            }
+        }
+
+        int last = count - 1;
+        int slot = earliestStarts[last];
+        for (int s = slot + 1; s <= latestStarts[last]; s++) {
+            if (best[last][s] < best[last][slot]) {
+                slot = s;
+            }
+        }
+        double cost = best[last][slot];
+        int[] startSlots = new int[count];
+        for (int p = last; p >= 0; p--) {
+            startSlots[p] = slot;
+            if (p > 0) {
+                slot = previous[p][slot];
+            }
+        }
+        return new Schedule(this, startSlots, cost);
+    }
+
+    /**
+     * Calculates the cost of a profile that starts in a slot, for instance to compare a schedule with the cost of
+     * starting right away.
+     *
+     * @param signal
+     *            The cost signal for each slot, as in {@link #optimize(double[])}
+     * @param profileIndex
+     *            The index of the profile in the list of sequential profiles
+     * @param startSlot
+     *            The slot where the profile starts
+     * @return The cost of the profile
+     * @throws IllegalArgumentException
+     *             When the signal has too few values or when the profile would not end before the last slot
+     */
+    public double getCost(double[] signal, int profileIndex, int startSlot) {
+        if (startSlot < 0 || startSlot + durations[profileIndex] > slots) {
+            throw new IllegalArgumentException("Profile " + profileIndex + " can not start in slot " + startSlot);
+        }
+        loadSignal(signal);
+        int[] offsets = runOffsets[profileIndex];
+        double[] amounts = runAmounts[profileIndex];
+        double cost = 0;
+        for (int run = 0; run < amounts.length; run++) {
+            cost += amounts[run] * (prefixSums[startSlot + offsets[run + 1]] - prefixSums[startSlot + offsets[run]]);
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,111 @@
+package org.flexiblepower.api.efi.timeshifterhelper;
+
+import java.util.Date;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Quantity;
+
+import org.flexiblepower.api.efi.timeshifterhelper.StartTimeOptimizer.Schedule;
+import org.flexiblepower.efi.timeshifter.TimeShifterAllocation;
+import org.flexiblepower.efi.timeshifter.TimeShifterRegistration;
+import org.flexiblepower.efi.timeshifter.TimeShifterUpdate;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommoditySet;
+
+/**
+ * This class contains helper functions to process the TimeShifter EFI messages (registration and update) and to
+ * provide shortcuts for the Controller/Energy App to determine when the sequential profiles can start and which start
+ * times are the cheapest.
+ */
+public class TimeShifter {
+    private final String resourceId;
+    private final CommoditySet supportedCommodities;
+
+    private TimeShifterUpdate update;
+
+    /**
+     * Constructs a TimeShifter object that keeps the latest update of the time shifter appliance.
+     *
+     * @param registration
+     *            The complete and correct initial registration message.
+     */
+    public TimeShifter(TimeShifterRegistration registration) {
+        resourceId = registration.getResourceId();
+        supportedCommodities = registration.getSupportedCommodities();
+    }
+
+    /**
+     * Takes an update with the sequential profiles that have to be scheduled. It replaces the previous update.
+     *
+     * @param update
+     *            The update message
+     * @throws IllegalArgumentException
+     *             When the update is for another resource
+     */
+    public void processUpdate(TimeShifterUpdate update) {
+        if (!resourceId.equals(update.getResourceId())) {
+            throw new IllegalArgumentException("The update is for resource " + update.getResourceId()
+                                               + " instead of "
+                                               + resourceId);
+        }
+        this.update = update;
+    }
+
+    /**
+     * @return The latest update, or null when no update has been received yet
+     */
+    public TimeShifterUpdate getUpdate() {
+        return update;
+    }
+
+    /**
+     * Creates an optimizer for the sequential profiles of the latest update. The profiles may start from the later of
+     * now and the validFrom of the update, and must end before the endBefore of the update.
+     *
+     * @param now
+     *            The current time
+     * @param resolution
+     *            The resolution of the start times
+     * @param commodity
+     *            The commodity for which the costs are calculated, which should be one of the supported commodities
+     * @return The optimizer, or null when no update has been received yet
+     * @throws IllegalArgumentException
+     *             When the commodity is not supported by the time shifter
+     */
+    public <BQ extends Quantity, FQ extends Quantity> StartTimeOptimizer
+            createOptimizer(Date now, Measurable<Duration> resolution, Commodity<BQ, FQ> commodity) {
+        if (!supportedCommodities.contains(commodity)) {
+            throw new IllegalArgumentException("The time shifter does not support " + commodity);
+        }
+        if (update == null) {
+            return null;
+        }
+        Date start = now.before(update.getValidFrom()) ? update.getValidFrom() : now;
+        Date endBefore = update.getEndBefore().before(start) ? start : update.getEndBefore();
+        return new StartTimeOptimizer(update.getTimeShifterProfiles(),
+                                      update.getValidFrom(),
+                                      start,
+                                      endBefore,
+                                      resolution,
+                                      commodity);
+    }
+
+    /**
+     * Creates the allocation for a schedule that is found by an optimizer of the latest update.
+     *
+     * @param schedule
+     *            The schedule with the start times
+     * @param now
+     *            The current time
+     * @return The allocation that can be sent to the time shifter
+     * @throws IllegalStateException
+     *             When no update has been received yet
+     */
+    public TimeShifterAllocation createAllocation(Schedule schedule, Date now) {
+        if (update == null) {
+            throw new IllegalStateException("No TimeShifterUpdate has been received");
+        }
+        return new TimeShifterAllocation(update, now, false, schedule.getSequentialProfileAllocations());
+    }
+}
@@ -1,9 +1,9 @@
 package org.flexiblepower.api.efi.unconstrainedhelper;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +12,7 @@ import java.util.Set;
 import javax.measure.Measurable;
 import javax.measure.quantity.Power;
 
+import org.flexiblepower.api.efi.commonhelper.ReachabilityGraph;
 import org.flexiblepower.api.efi.commonhelper.TimerModel;
 import org.flexiblepower.efi.unconstrained.RunningModeBehaviour;
 import org.flexiblepower.efi.unconstrained.UnconstrainedRegistration;
@@ -19,7 +20,6 @@ import org.flexiblepower.efi.unconstrained.UnconstrainedStateUpdate;
 import org.flexiblepower.efi.unconstrained.UnconstrainedSystemDescription;
 import org.flexiblepower.efi.util.RunningMode;
 import org.flexiblepower.efi.util.TimerUpdate;
-import org.flexiblepower.efi.util.Transition;
 import org.flexiblepower.ral.values.Commodity;
 import org.flexiblepower.ral.values.CommoditySet;
 
@@ -34,6 +34,10 @@ public class Unconstrained {
 
     private Map<Integer, RunningMode<RunningModeBehaviour>> allRunningModes = new HashMap<Integer, RunningMode<RunningModeBehaviour>>();
     private Map<Integer, TimerModel> timers;
+    private ReachabilityGraph<RunningModeBehaviour> graph =
+            ReachabilityGraph.compile(Collections.<RunningMode<RunningModeBehaviour>> emptyList());
+    /** The same objects as in timers, in the order of their index in the graph */
+    private TimerModel[] timerModels = new TimerModel[0];
     private boolean hasReceivedSystemDescription = false;
     private boolean hasReceivedStateUpdate = false;
     private int currentRunningModeId;
@@ -63,33 +67,36 @@ public class Unconstrained {
     }
 
     /**
-     * Takes a system description and inserts the running modes and the timers.
+     * Takes a system description and inserts the running modes and the timers. They are compiled into a
+     * {@link ReachabilityGraph}.
      *
      * @param description
      *            The description message with Timers and RunningModes.
      */
     public void processSystemDescription(UnconstrainedSystemDescription description) {
         hasReceivedStateUpdate = false;
+        graph = ReachabilityGraph.compile(description.getRunningModes());
         allRunningModes = new HashMap<Integer, RunningMode<RunningModeBehaviour>>();
         for (RunningMode<RunningModeBehaviour> rm : description.getRunningModes())
         {
             allRunningModes.put(rm.getId(), rm);
         }
 
+        timerModels = graph.createTimerModels();
         timers = new HashMap<Integer, TimerModel>();
-        for (RunningMode<RunningModeBehaviour> r : allRunningModes.values()) {
-            for (Transition tran : r.getTransitions()) {
-                for (org.flexiblepower.efi.util.Timer blockingTimer : tran.getBlockingTimers()) {
-                    timers.put(blockingTimer.getId(), new TimerModel(blockingTimer));
-                }
-                for (org.flexiblepower.efi.util.Timer startTimer : tran.getStartTimers()) {
-                    timers.put(startTimer.getId(), new TimerModel(startTimer));
-                }
-            }
+        for (TimerModel timer : timerModels) {
+            timers.put(timer.getId(), timer);
         }
         hasReceivedSystemDescription = true;
     }
 
+    /**
+     * @return The compiled form of the running modes, which is renewed with each system description.
+     */
+    public ReachabilityGraph<RunningModeBehaviour> getReachabilityGraph() {
+        return graph;
+    }
+
     /**
      * Updates the current running mode and the timers.
      *
@@ -130,15 +137,7 @@ public class Unconstrained {
      */
     public Collection<RunningMode<RunningModeBehaviour>>
             getReachableRunningModes(Date now) throws IllegalArgumentException {
-        Set<RunningMode<RunningModeBehaviour>> rmSet = new HashSet<RunningMode<RunningModeBehaviour>>();
-        for (int rmId : getReachableRunningModeIds(now)) {
-            if (!allRunningModes.containsKey(rmId))
-            {
-                throw new IllegalArgumentException("Running Mode Id is not known.");
-            }
-            rmSet.add(allRunningModes.get(rmId));
-        }
-        return rmSet;
+        return graph.getRunningModes(getReachableRunningModeSet(now));
     }
 
     /**
@@ -150,20 +149,27 @@ public class Unconstrained {
      * @return The reachable running mode ids including the current one.
      */
     public Set<Integer> getReachableRunningModeIds(Date now) {
-        Set<Integer> targets = new HashSet<Integer>();
-        if (allRunningModes == null || allRunningModes.get(currentRunningModeId) == null)
-        {
+        return graph.getRunningModeIds(getReachableRunningModeSet(now));
+    }
+
+    /**
+     * Returns the reachable running modes including the current one as a set of indices in the
+     * {@link #getReachabilityGraph()}, see {@link ReachabilityGraph#contains(long[], int)}. This is the same as
+     * {@link #getReachableRunningModeIds(Date)}, without the boxing of the identifiers.
+     *
+     * @param now
+     *            The current time.
+     * @return The indices of the reachable running modes including the current one.
+     */
+    public long[] getReachableRunningModeSet(Date now) {
+        long[] reachable = graph.createRunningModeSet();
+        int current = graph.indexOfRunningMode(currentRunningModeId);
+        if (current < 0) {
             // Device is not in a valid state. No reachable running modes.
-            return targets;
+            return reachable;
         }
-        for (Transition transition : allRunningModes.get(currentRunningModeId).getTransitions()) {
-            // Check for timers that block this transition.
-            if (!isBlockedAt(transition, now) && !willOverOrUndercharge(transition, now)) {
-                targets.add(transition.getToRunningMode());
-            }
-        }
-        targets.add(currentRunningModeId);
-        return targets;
+        // Check for timers that block the transitions.
+        return graph.getReachable(current, graph.getBlockedTimers(timerModels, now, graph.createTimerSet()), reachable);
     }
 
     /**
@@ -209,46 +215,12 @@ public class Unconstrained {
     }
 
     /**
-     * This function is not implemented yet, but will provide an estimate of whether a transition (die to
-     * timers/transitions) will lead to an over or undercharge of the buffer.
+     * Gets all the timers of all of the transitions of all of the running modes.
      *
-     * @param transition
-     *            The transition to be checked.
-     * @param now
-     *            The moment for which the transition should be checked.
-     * @return Whether the transition is impossible due to timers follow-up transitions. Always returns false for now.
+     * @return A Map of timer id and timers, or <code>null</code> when no system description has been received.
      */
-    private boolean willOverOrUndercharge(Transition transition, Date now) {
-        // TODO: This is a complex problem... Discussion Wilco JP 17 Oct 2014
-        // If I make this transition will I overcharge the buffer.
-        // Check the blocking timers this transition starts
-        // Check usage and leakage as well...
-        return false;
-    }
-
-    /**
-     * Checks all timers to see if a transition is blocked on the moment.
-     *
-     * @param transition
-     *            The transition of this actuator that you are interested in.
-     * @param moment
-     *            The moment at which the possibility is or is not blocked.
-     * @return True if the transition is blocked, false if it is not.
-     *
-     * @throws IllegalStateException
-     *
-     */
-    private boolean isBlockedAt(Transition transition, Date moment) throws IllegalStateException {
-        if (!hasReceivedSystemDescription) {
-            throw new IllegalStateException("Can not call this method when no sys description is known yet.");
-        }
-        for (org.flexiblepower.efi.util.Timer t : transition.getBlockingTimers()) {
-            TimerModel at = timers.get(t.getId());
-            if (at.isBlockingAt(moment)) {
-                return true;
-            }
-        }
-        return false;
+    public Map<Integer, TimerModel> getAllTimers() {
+        return timers;
     }
 
     /**
@@ -1,4 +1,4 @@
-@Version("1.1.0.${qualifier}")
+@Version("1.2.0.${qualifier}")
 package org.flexiblepower.api.efi.unconstrainedhelper;
 
 import aQute.bnd.annotation.Version;
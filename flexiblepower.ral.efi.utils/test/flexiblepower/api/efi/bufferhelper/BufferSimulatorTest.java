@@ -0,0 +1,128 @@
+package flexiblepower.api.efi.bufferhelper;
+
+import java.util.Date;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Temperature;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.api.efi.bufferhelper.BufferSimulator;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.UncertainMeasurableProfile;
+
+public class BufferSimulatorTest extends TestCase {
+    private BufferSimulator<Temperature> simulator;
+    private int off, on;
+
+    private static RunningModeBehaviour behaviour(double fillingRate) {
+        return new RunningModeBehaviour(fillingRate,
+                                        CommodityMeasurables.create()
+                                                            .electricity(Measure.valueOf(1000 * fillingRate, SI.WATT))
+                                                            .build(),
+                                        Measure.zero(NonSI.EUR_PER_HOUR));
+    }
+
+    @Override
+    public void setUp() {
+        // Leaks 0.01 degree per second below 50 degrees, 0.02 above
+        FillLevelFunction<LeakageRate> leakage = FillLevelFunction.<LeakageRate> create(0)
+                                                                  .add(50, new LeakageRate(0.01))
+                                                                  .add(100, new LeakageRate(0.02))
+                                                                  .build();
+        simulator = new BufferSimulator<Temperature>(SI.CELSIUS, leakage, Measure.valueOf(1, NonSI.MINUTE), 60);
+        off = simulator.addRunningMode(FillLevelFunction.<RunningModeBehaviour> create(20)
+                                                        .add(60, behaviour(0))
+                                                        .build());
+        on = simulator.addRunningMode(FillLevelFunction.<RunningModeBehaviour> create(20)
+                                                       .add(40, behaviour(0.1))
+                                                       .add(60, behaviour(0.05))
+                                                       .build());
+    }
+
+    private static int[] constant(int mode) {
+        int[] schedule = new int[60];
+        for (int step = 0; step < schedule.length; step++) {
+            schedule[step] = mode;
+        }
+        return schedule;
+    }
+
+    public void testLeakage() {
+        assertEquals(20, simulator.getMinimumFillLevel(), 0);
+        assertEquals(60, simulator.getMaximumFillLevel(), 0);
+
+        // Leaking 0.6 degrees per minute from 30 degrees reaches 20 degrees after 16:40 minutes
+        assertEquals(1000000, simulator.simulate(30, constant(off)));
+        assertEquals(29.4, simulator.getFillLevel(1), 1e-9);
+        assertEquals(30 - 36, simulator.getFillLevel(60), 1e-9);
+        assertEquals(61, simulator.getTrajectory().length);
+    }
+
+    public void testRunningModes() {
+        // Heating 5.4 degrees per minute below 40 degrees and 2.4 degrees per minute above (leakage subtracted)
+        long time = simulator.simulate(30, constant(on));
+        assertEquals(35.4, simulator.getFillLevel(1), 1e-9);
+        assertEquals(40.8, simulator.getFillLevel(2), 1e-9);
+        assertEquals(43.2, simulator.getFillLevel(3), 1e-9);
+        assertTrue(time > 0);
+        assertTrue(simulator.getFillLevel((int) (time / 60000)) <= 60);
+        assertTrue(simulator.getFillLevel((int) (time / 60000) + 1) > 60);
+
+        // Two actuators add up
+        simulator.simulate(30, constant(on), constant(on));
+        assertEquals(30 + 12 - 0.6, simulator.getFillLevel(1), 1e-9);
+
+        // Switching off at 48 degrees after 5 minutes, the buffer cools down to 20 degrees after 51:40 minutes
+        int[] schedule = constant(off);
+        for (int step = 0; step < 5; step++) {
+            schedule[step] = on;
+        }
+        assertEquals(3100000, simulator.simulate(30, schedule));
+        assertEquals(3100000, simulator.getTimeToBoundsMillis());
+        assertEquals(48, simulator.getFillLevel(5), 1e-9);
+
+        // Switching on every fourth minute after that keeps the buffer within its bounds
+        for (int step = 5; step < schedule.length; step += 4) {
+            schedule[step] = on;
+        }
+        assertEquals(-1, simulator.simulate(30, schedule));
+        assertEquals(0, simulator.simulate(70, schedule));
+    }
+
+    public void testUsage() {
+        // 0.02 degree per second during the first 30 minutes, 0.01 degree per second in kelvin after that
+        Measure<Integer, Duration> halfAnHour = Measure.valueOf(30, NonSI.MINUTE);
+        UncertainMeasurableProfile<Temperature> celsius = UncertainMeasurableProfile.create(SI.CELSIUS)
+                                                                                    .duration(halfAnHour)
+                                                                                    .add(0.02, 0)
+                                                                                    .build();
+        simulator.setUsage(celsius, 0);
+        simulator.simulate(30, constant(off));
+        assertEquals(30 - 0.6 - 1.2, simulator.getFillLevel(1), 1e-9);
+        assertEquals(30 - 36 - 36, simulator.getFillLevel(60), 1e-9);
+
+        // The usage starts halfway the second step and the offset of the unit is not applied
+        UncertainMeasurableProfile<Temperature> kelvin = UncertainMeasurableProfile.create(SI.KELVIN)
+                                                                                   .duration(Measure.valueOf(30,
+                                                                                                             SI.SECOND))
+                                                                                   .add(0.01, 0)
+                                                                                   .add(0.02, 0)
+                                                                                   .build();
+        simulator.setUsage(kelvin, -90000);
+        simulator.simulate(30, constant(off));
+        assertEquals(30 - 0.6, simulator.getFillLevel(1), 1e-9);
+        assertEquals(30 - 1.2 - 0.3, simulator.getFillLevel(2), 1e-9);
+        assertEquals(30 - 1.8 - 0.3 - 0.6, simulator.getFillLevel(3), 1e-9);
+
+        simulator.setUsageForecast(null, new Date());
+        simulator.simulate(30, constant(off));
+        assertEquals(29.4, simulator.getFillLevel(1), 1e-9);
+    }
+}
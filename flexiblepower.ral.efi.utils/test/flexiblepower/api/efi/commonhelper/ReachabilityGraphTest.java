@@ -0,0 +1,110 @@
+package flexiblepower.api.efi.commonhelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.api.efi.commonhelper.ReachabilityGraph;
+import org.flexiblepower.api.efi.commonhelper.TimerModel;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.Timer;
+import org.flexiblepower.efi.util.Transition;
+
+public class ReachabilityGraphTest extends TestCase {
+    private final Timer minOn = new Timer(7, "Minimum on", Measure.valueOf(60, SI.SECOND));
+    private final Timer minOff = new Timer(3, "Minimum off", Measure.valueOf(60, SI.SECOND));
+
+    /** Running mode 0 is off, 1 to 100 are on. Off can go to every on mode, every on mode can go back to off. */
+    private List<RunningMode<String>> createRunningModes() {
+        List<RunningMode<String>> runningModes = new ArrayList<RunningMode<String>>();
+        Set<Transition> fromOff = new HashSet<Transition>();
+        for (int id = 1; id <= 100; id++) {
+            fromOff.add(Transition.create(id).isBlockedBy(minOff).starts(minOn).build());
+            Set<Transition> fromOn = Collections.singleton(Transition.create(0)
+                                                                     .isBlockedBy(minOn)
+                                                                     .starts(minOff)
+                                                                     .build());
+            runningModes.add(new RunningMode<String>(id, "on " + id, "on", fromOn));
+        }
+        runningModes.add(new RunningMode<String>(0, "off", "off", fromOff));
+        return runningModes;
+    }
+
+    public void testIndices() {
+        ReachabilityGraph<String> graph = ReachabilityGraph.compile(createRunningModes());
+
+        assertEquals(101, graph.getRunningModeCount());
+        assertEquals(0, graph.indexOfRunningMode(0));
+        assertEquals(100, graph.indexOfRunningMode(100));
+        assertEquals(-1, graph.indexOfRunningMode(101));
+        assertEquals(42, graph.getRunningMode(42).getId());
+        assertEquals(2, graph.getTimerCount());
+        assertEquals(minOff, graph.getTimer(graph.indexOfTimer(3)));
+        assertEquals(1, graph.indexOfTimer(7));
+        assertEquals(-1, graph.indexOfTimer(5));
+        assertEquals(2, graph.createRunningModeSet().length);
+    }
+
+    public void testReachable() {
+        ReachabilityGraph<String> graph = ReachabilityGraph.compile(createRunningModes());
+        TimerModel[] timers = graph.createTimerModels();
+        Date now = new Date();
+        long[] blocked = graph.createTimerSet();
+        long[] reachable = graph.createRunningModeSet();
+
+        // No timer is running, so off can go to all running modes
+        graph.getReachable(0, graph.getBlockedTimers(timers, now, blocked), reachable);
+        int count = 0;
+        for (int ix = ReachabilityGraph.nextIndex(reachable, 0); ix >= 0; ix = ReachabilityGraph.nextIndex(reachable,
+                                                                                                           ix + 1)) {
+            assertEquals(count, ix);
+            count++;
+        }
+        assertEquals(101, count);
+
+        // The minimum on timer blocks the way back, but the running mode itself stays reachable
+        timers[graph.indexOfTimer(7)].updateFinishedAt(new Date(now.getTime() + 1000));
+        graph.getReachable(70, graph.getBlockedTimers(timers, now, blocked), reachable);
+        assertTrue(ReachabilityGraph.contains(blocked, graph.indexOfTimer(7)));
+        assertFalse(ReachabilityGraph.contains(blocked, graph.indexOfTimer(3)));
+        assertEquals(70, ReachabilityGraph.nextIndex(reachable, 0));
+        assertEquals(-1, ReachabilityGraph.nextIndex(reachable, 71));
+
+        // After the timer has finished, off is reachable again
+        graph.getReachable(70, graph.getBlockedTimers(timers, new Date(now.getTime() + 1000), blocked), reachable);
+        assertTrue(ReachabilityGraph.contains(reachable, 0));
+        ReachabilityGraph.remove(reachable, 0);
+        assertEquals(70, ReachabilityGraph.nextIndex(reachable, 0));
+    }
+
+    public void testInvalidRunningModes() {
+        List<RunningMode<String>> runningModes = createRunningModes();
+        runningModes.add(new RunningMode<String>(5, "duplicate", "on", Collections.<Transition> emptySet()));
+        try {
+            ReachabilityGraph.compile(runningModes);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        runningModes = createRunningModes();
+        runningModes.add(new RunningMode<String>(200,
+                                                 "unknown target",
+                                                 "on",
+                                                 Collections.singleton(Transition.create(300).build())));
+        try {
+            ReachabilityGraph.compile(runningModes);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
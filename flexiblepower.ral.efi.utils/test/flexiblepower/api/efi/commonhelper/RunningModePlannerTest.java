@@ -0,0 +1,170 @@
+package flexiblepower.api.efi.commonhelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.api.efi.commonhelper.ReachabilityGraph;
+import org.flexiblepower.api.efi.commonhelper.RunningModePlanner;
+import org.flexiblepower.api.efi.commonhelper.RunningModePlanner.Plan;
+import org.flexiblepower.api.efi.commonhelper.RunningModePlanner.SlotCosts;
+import org.flexiblepower.api.efi.commonhelper.TimerModel;
+import org.flexiblepower.efi.unconstrained.RunningModeBehaviour;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.Timer;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+
+public class RunningModePlannerTest extends TestCase {
+    private static final int OFF = 0, ON = 1;
+    /** 1 kW for 15 minutes costs 0.05 euro at the normal price, and earns 0.025 euro at the negative price */
+    private static final double[] PRICES = { 0.2, 0.2, -0.1, 0.2, 0.2, -0.1, -0.1, 0.2 };
+    private static final Measurable<Duration> SLOT = Measure.valueOf(15, NonSI.MINUTE);
+
+    private final Timer minOn = new Timer(1, "Minimum on", Measure.valueOf(30, NonSI.MINUTE));
+    private final Timer minOff = new Timer(2, "Minimum off", Measure.valueOf(30, NonSI.MINUTE));
+
+    private static RunningModeBehaviour behaviour(double watt) {
+        CommodityMeasurables power = CommodityMeasurables.create().electricity(Measure.valueOf(watt, SI.WATT)).build();
+        return new RunningModeBehaviour(power, Measure.zero(NonSI.EUR_PER_HOUR));
+    }
+
+    /** Off and on, where each transition costs 1 eurocent and switching on takes the given time */
+    private ReachabilityGraph<RunningModeBehaviour> createGraph(double switchOnMinutes) {
+        List<RunningMode<RunningModeBehaviour>> runningModes = new ArrayList<RunningMode<RunningModeBehaviour>>();
+        Transition switchOn = Transition.create(ON)
+                                        .isBlockedBy(minOff)
+                                        .starts(minOn)
+                                        .setCosts(1)
+                                        .setTime(switchOnMinutes * 60)
+                                        .build();
+        runningModes.add(new RunningMode<RunningModeBehaviour>(OFF,
+                                                               "off",
+                                                               behaviour(0),
+                                                               Collections.singleton(switchOn)));
+        runningModes.add(new RunningMode<RunningModeBehaviour>(ON,
+                                                               "on",
+                                                               behaviour(1000),
+                                                               Collections.singleton(Transition.create(OFF)
+                                                                                               .isBlockedBy(minOn)
+                                                                                               .starts(minOff)
+                                                                                               .setCosts(1)
+                                                                                               .build())));
+        return ReachabilityGraph.compile(runningModes);
+    }
+
+    private static void assertPlan(int[] expected, Plan plan) {
+        assertEquals(expected.length, plan.getSlots());
+        for (int slot = 0; slot < expected.length; slot++) {
+            assertEquals("slot " + slot, expected[slot], plan.getRunningModeId(slot));
+        }
+    }
+
+    public void testOptimalPlan() {
+        ReachabilityGraph<RunningModeBehaviour> graph = createGraph(0);
+        RunningModePlanner<RunningModeBehaviour> planner = new RunningModePlanner<RunningModeBehaviour>(graph, SLOT, 8);
+        SlotCosts costs = RunningModePlanner.electricityCosts(graph, SLOT, PRICES);
+
+        // A single cheap slot does not pay for the minimum on time, two cheap slots do
+        Plan plan = planner.plan(OFF, null, new Date(), costs, 1000);
+        assertTrue(plan.isComplete());
+        assertPlan(new int[] { OFF, OFF, OFF, OFF, OFF, ON, ON, OFF }, plan);
+        assertEquals(-0.05 + 0.02, plan.getCost(), 1e-9);
+
+        // The minimum on timer is still running for 20 minutes, so the device stays on for 2 slots
+        Date now = new Date();
+        Map<Integer, TimerModel> timers = new HashMap<Integer, TimerModel>();
+        TimerModel running = new TimerModel(minOn);
+        running.updateFinishedAt(new Date(now.getTime() + 20 * 60000));
+        timers.put(minOn.getId(), running);
+        plan = planner.plan(ON, timers, now, costs, 1000);
+        assertPlan(new int[] { ON, ON, ON, OFF, OFF, ON, ON, OFF }, plan);
+        assertEquals(0.05 + 0.05 - 0.025 + 0.01 - 0.05 + 0.02, plan.getCost(), 1e-9);
+    }
+
+    public void testTransitionTime() {
+        // Switching on takes 40 minutes, so the device can not switch off before the last slot
+        ReachabilityGraph<RunningModeBehaviour> graph = createGraph(40);
+        RunningModePlanner<RunningModeBehaviour> planner = new RunningModePlanner<RunningModeBehaviour>(graph, SLOT, 8);
+        SlotCosts costs = RunningModePlanner.electricityCosts(graph, SLOT, PRICES);
+        Plan plan = planner.plan(OFF, null, new Date(), costs, 1000);
+        assertPlan(new int[] { OFF, OFF, OFF, OFF, OFF, OFF, OFF, OFF }, plan);
+        assertEquals(0, plan.getCost(), 1e-9);
+    }
+
+    public void testForbiddenRunningMode() {
+        ReachabilityGraph<RunningModeBehaviour> graph = createGraph(0);
+        RunningModePlanner<RunningModeBehaviour> planner = new RunningModePlanner<RunningModeBehaviour>(graph, SLOT, 4);
+        final SlotCosts prices = RunningModePlanner.electricityCosts(graph, SLOT, PRICES);
+        // The device has to be on in slot 1
+        SlotCosts costs = new SlotCosts() {
+            @Override
+            public double getCost(int slot, int runningModeIndex) {
+                return slot == 1 && runningModeIndex == OFF ? Double.POSITIVE_INFINITY
+                                                            : prices.getCost(slot, runningModeIndex);
+            }
+        };
+        assertPlan(new int[] { OFF, ON, ON, OFF }, planner.plan(OFF, null, new Date(), costs, 1000));
+
+        // Off is not allowed in any slot, but the minimum off timer keeps the device off during slot 0
+        Date now = new Date();
+        Map<Integer, TimerModel> timers = new HashMap<Integer, TimerModel>();
+        TimerModel running = new TimerModel(minOff);
+        running.updateFinishedAt(new Date(now.getTime() + 60000));
+        timers.put(minOff.getId(), running);
+        costs = new SlotCosts() {
+            @Override
+            public double getCost(int slot, int runningModeIndex) {
+                return runningModeIndex == OFF ? Double.POSITIVE_INFINITY : prices.getCost(slot, runningModeIndex);
+            }
+        };
+        Plan plan = planner.plan(OFF, timers, now, costs, 1000);
+        assertEquals(Double.POSITIVE_INFINITY, plan.getCost());
+        assertEquals(4, plan.getSlots());
+        assertEquals(OFF, plan.getRunningModeId(0));
+    }
+
+    public void testBudgetAndParallelPlans() throws InterruptedException {
+        ReachabilityGraph<RunningModeBehaviour> graph = createGraph(0);
+        RunningModePlanner<RunningModeBehaviour> planner = new RunningModePlanner<RunningModeBehaviour>(graph, SLOT, 8);
+        SlotCosts costs = RunningModePlanner.electricityCosts(graph, SLOT, PRICES);
+
+        // Without any budget only the first slot is planned
+        Plan plan = planner.plan(OFF, null, new Date(), costs, -1);
+        assertFalse(plan.isComplete());
+        assertEquals(1, plan.getSlots());
+
+        // An unlimited budget does not overflow the deadline
+        plan = planner.plan(OFF, null, new Date(), costs, Long.MAX_VALUE);
+        assertTrue(plan.isComplete());
+        assertEquals(8, plan.getSlots());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Callable<Plan>> tasks = new ArrayList<Callable<Plan>>();
+            tasks.add(planner.createTask(OFF, null, new Date(), costs, 1000));
+            tasks.add(planner.createTask(ON, null, new Date(), costs, 1000));
+            List<Plan> plans = RunningModePlanner.planAll(tasks, executor);
+            assertPlan(new int[] { OFF, OFF, OFF, OFF, OFF, ON, ON, OFF }, plans.get(0));
+            // Switching off right away is cheaper than staying on
+            assertPlan(new int[] { OFF, OFF, OFF, OFF, OFF, ON, ON, OFF }, plans.get(1));
+            assertEquals(0.01 - 0.05 + 0.02, plans.get(1).getCost(), 1e-9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
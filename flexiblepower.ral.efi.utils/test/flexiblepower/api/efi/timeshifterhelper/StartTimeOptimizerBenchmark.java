@@ -0,0 +1,139 @@
+package flexiblepower.api.efi.timeshifterhelper;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.api.efi.timeshifterhelper.StartTimeOptimizer;
+import org.flexiblepower.api.efi.timeshifterhelper.StartTimeOptimizer.Schedule;
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+/**
+ * Compares the {@link StartTimeOptimizer} with a brute-force search of all start times, for a dishwasher that may run
+ * anywhere in the next 24 hours with a resolution of 1 minute. The dishwasher has a washing program of 2 hours and a
+ * drying program of 40 minutes, which has to start within an hour after washing. This is not a unit test, run the
+ * {@link #main(String[])} method manually.
+ */
+public class StartTimeOptimizerBenchmark {
+    private static final int SLOTS = 24 * 60;
+    private static final int ROUNDS = 200;
+
+    private static final double[] WASH_POWERS = { 100, 2000, 150, 2000, 50 };
+    private static final int[] WASH_MINUTES = { 10, 20, 50, 15, 25 };
+    private static final double[] DRY_POWERS = { 800 };
+    private static final int[] DRY_MINUTES = { 40 };
+    private static final int MAX_INTERVAL = 60;
+
+    public static void main(String[] args) {
+        // The washing may start at any time
+        List<SequentialProfile> profiles = Arrays.asList(new SequentialProfile(1,
+                                                                               null,
+                                                                               forecast(WASH_POWERS, WASH_MINUTES)),
+                                                         new SequentialProfile(2,
+                                                                               Measure.valueOf(MAX_INTERVAL,
+                                                                                               NonSI.MINUTE),
+                                                                               forecast(DRY_POWERS, DRY_MINUTES)));
+        Date start = new Date();
+        StartTimeOptimizer optimizer = new StartTimeOptimizer(profiles,
+                                                              start,
+                                                              start,
+                                                              new Date(start.getTime() + SLOTS * 60000L),
+                                                              Measure.valueOf(1, NonSI.MINUTE),
+                                                              Commodity.ELECTRICITY);
+
+        Random random = new Random(1);
+        double[][] prices = new double[ROUNDS][SLOTS];
+        for (double[] price : prices) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                price[slot] = 0.2 + 0.1 * Math.sin(slot * Math.PI / 720) + random.nextGaussian() * 0.02;
+            }
+        }
+
+        // First a few rounds to warm up the JIT
+        for (int round = 0; round < 5; round++) {
+            run(optimizer, prices, false);
+        }
+        run(optimizer, prices, true);
+    }
+
+    private static CommodityForecast forecast(double[] powers, int[] minutes) {
+        CommodityForecast.Builder builder = CommodityForecast.create();
+        for (int ix = 0; ix < powers.length; ix++) {
+            builder.duration(Measure.valueOf(minutes[ix], NonSI.MINUTE))
+                   .electricity(new UncertainMeasure<Power>(powers[ix], SI.WATT))
+                   .next();
+        }
+        return builder.build();
+    }
+
+    private static double[] kwhPerMinute(double[] powers, int[] minutes) {
+        int total = 0;
+        for (int m : minutes) {
+            total += m;
+        }
+        double[] result = new double[total];
+        int minute = 0;
+        for (int ix = 0; ix < powers.length; ix++) {
+            Arrays.fill(result, minute, minute + minutes[ix], powers[ix] / 60000);
+            minute += minutes[ix];
+        }
+        return result;
+    }
+
+    /** Tries every start time of washing with every allowed start time of drying */
+    private static double bruteForce(double[] wash, double[] dry, double[] prices) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int washStart = 0; washStart + wash.length + dry.length <= prices.length; washStart++) {
+            double washCost = 0;
+            for (int ix = 0; ix < wash.length; ix++) {
+                washCost += wash[ix] * prices[washStart + ix];
+            }
+            int washEnd = washStart + wash.length;
+            for (int dryStart = washEnd; dryStart <= washEnd + MAX_INTERVAL
+                                         && dryStart + dry.length <= prices.length; dryStart++) {
+                double cost = washCost;
+                for (int ix = 0; ix < dry.length; ix++) {
+                    cost += dry[ix] * prices[dryStart + ix];
+                }
+                best = Math.min(best, cost);
+            }
+        }
+        return best;
+    }
+
+    private static void run(StartTimeOptimizer optimizer, double[][] prices, boolean print) {
+        double[] wash = kwhPerMinute(WASH_POWERS, WASH_MINUTES);
+        double[] dry = kwhPerMinute(DRY_POWERS, DRY_MINUTES);
+
+        double check = 0;
+        long start = System.nanoTime();
+        for (double[] price : prices) {
+            check += bruteForce(wash, dry, price);
+        }
+        long bruteForce = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (double[] price : prices) {
+            Schedule schedule = optimizer.optimize(price);
+            check -= schedule.getCost();
+        }
+        long optimized = System.nanoTime() - start;
+
+        if (print) {
+            System.out.printf("Dishwasher, %d slots: brute force %8.1f us, optimizer %8.1f us per search [%.6f]%n",
+                              SLOTS,
+                              bruteForce / 1000d / prices.length,
+                              optimized / 1000d / prices.length,
+                              check);
+        }
+    }
+}
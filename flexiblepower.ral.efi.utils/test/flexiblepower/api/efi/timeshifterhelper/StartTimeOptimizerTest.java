@@ -0,0 +1,234 @@
+package flexiblepower.api.efi.timeshifterhelper;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.api.efi.timeshifterhelper.StartTimeOptimizer;
+import org.flexiblepower.api.efi.timeshifterhelper.StartTimeOptimizer.Schedule;
+import org.flexiblepower.api.efi.timeshifterhelper.TimeShifter;
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.efi.timeshifter.TimeShifterAllocation;
+import org.flexiblepower.efi.timeshifter.TimeShifterRegistration;
+import org.flexiblepower.efi.timeshifter.TimeShifterUpdate;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+public class StartTimeOptimizerTest extends TestCase {
+    private static final long MINUTE = 60000;
+
+    /** Washing: 10 minutes at 100 W, 20 minutes at 2000 W and 30 minutes at 150 W */
+    private static final double[] WASH = watts(new double[] { 100, 2000, 150 }, new int[] { 10, 20, 30 });
+    /** Drying: 30 minutes at 1500 W, at most 15 minutes after washing */
+    private static final double[] DRY = watts(new double[] { 1500 }, new int[] { 30 });
+
+    private final Date start = new Date(1400000000000L);
+
+    private static double[] watts(double[] powers, int[] minutes) {
+        int total = 0;
+        for (int m : minutes) {
+            total += m;
+        }
+        double[] result = new double[total];
+        int minute = 0;
+        for (int ix = 0; ix < powers.length; ix++) {
+            Arrays.fill(result, minute, minute + minutes[ix], powers[ix]);
+            minute += minutes[ix];
+        }
+        return result;
+    }
+
+    private static CommodityForecast forecast(double[] powers, int[] minutes) {
+        CommodityForecast.Builder builder = CommodityForecast.create();
+        for (int ix = 0; ix < powers.length; ix++) {
+            builder.duration(Measure.valueOf(minutes[ix], NonSI.MINUTE))
+                   .electricity(new UncertainMeasure<Power>(powers[ix], SI.WATT))
+                   .next();
+        }
+        return builder.build();
+    }
+
+    private static List<SequentialProfile> createProfiles() {
+        return Arrays.asList(new SequentialProfile(1,
+                                                   null,
+                                                   forecast(new double[] { 100, 2000, 150 }, new int[] { 10, 20, 30 })),
+                             new SequentialProfile(2,
+                                                   Measure.valueOf(15, NonSI.MINUTE),
+                                                   forecast(new double[] { 1500 }, new int[] { 30 })));
+    }
+
+    private StartTimeOptimizer createOptimizer(long durationMs) {
+        return new StartTimeOptimizer(createProfiles(),
+                                      start,
+                                      start,
+                                      new Date(start.getTime() + durationMs),
+                                      Measure.valueOf(1, NonSI.MINUTE),
+                                      Commodity.ELECTRICITY);
+    }
+
+    private static double cost(double[] watts, int startSlot, double[] prices) {
+        double cost = 0;
+        for (int ix = 0; ix < watts.length; ix++) {
+            cost += watts[ix] / 60000 * prices[startSlot + ix];
+        }
+        return cost;
+    }
+
+    public void testWindows() {
+        StartTimeOptimizer optimizer = createOptimizer(240 * MINUTE + 30000);
+        assertEquals(240, optimizer.getSlots());
+        assertEquals(60, optimizer.getDurationSlots(0));
+        assertEquals(30, optimizer.getDurationSlots(1));
+        assertTrue(optimizer.isFeasible());
+        assertEquals(start, optimizer.getEarliestStartTime(0));
+        assertEquals(new Date(start.getTime() + 150 * MINUTE), optimizer.getLatestStartTime(0));
+        assertEquals(new Date(start.getTime() + 60 * MINUTE), optimizer.getEarliestStartTime(1));
+        assertEquals(new Date(start.getTime() + 210 * MINUTE), optimizer.getLatestStartTime(1));
+
+        // With a constant price the profiles start as early as possible
+        double[] prices = new double[240];
+        Arrays.fill(prices, 0.25);
+        Schedule schedule = optimizer.optimize(prices);
+        assertEquals(0, schedule.getStartSlot(0));
+        assertEquals(60, schedule.getStartSlot(1));
+        assertEquals((0.1 / 6 + 2.0 / 3 + 0.075 + 0.75) * 0.25, schedule.getCost(), 1e-9);
+
+        optimizer = createOptimizer(89 * MINUTE);
+        assertFalse(optimizer.isFeasible());
+        assertNull(optimizer.optimize(prices));
+    }
+
+    public void testAgainstBruteForce() {
+        StartTimeOptimizer optimizer = createOptimizer(240 * MINUTE);
+        Random random = new Random(1);
+        double[] prices = new double[240];
+        for (int round = 0; round < 20; round++) {
+            for (int ix = 0; ix < prices.length; ix++) {
+                prices[ix] = random.nextDouble() * 0.4 - 0.1;
+            }
+
+            double bestCost = Double.POSITIVE_INFINITY;
+            int bestWash = -1, bestDry = -1;
+            for (int wash = 0; wash + WASH.length <= prices.length; wash++) {
+                for (int dry = wash + WASH.length; dry <= wash + WASH.length + 15
+                                                   && dry + DRY.length <= prices.length; dry++) {
+                    double cost = cost(WASH, wash, prices) + cost(DRY, dry, prices);
+                    if (cost < bestCost - 1e-12) {
+                        bestCost = cost;
+                        bestWash = wash;
+                        bestDry = dry;
+                    }
+                }
+            }
+
+            Schedule schedule = optimizer.optimize(prices);
+            assertEquals(bestCost, schedule.getCost(), 1e-9);
+            assertEquals(bestWash, schedule.getStartSlot(0));
+            assertEquals(bestDry, schedule.getStartSlot(1));
+            assertEquals(cost(WASH, bestWash, prices), optimizer.getCost(prices, 0, bestWash), 1e-9);
+        }
+    }
+
+    public void testPartialSlots() {
+        // 20 minutes at 600 W and 20 minutes at nothing, in slots of 15 minutes
+        List<SequentialProfile> profiles = Arrays.asList(new SequentialProfile(1,
+                                                                               null,
+                                                                               forecast(new double[] { 600, 0 },
+                                                                                        new int[] { 20, 20 })));
+        StartTimeOptimizer optimizer = new StartTimeOptimizer(profiles,
+                                                              start,
+                                                              start,
+                                                              new Date(start.getTime() + 60 * MINUTE),
+                                                              Measure.valueOf(15, NonSI.MINUTE),
+                                                              Commodity.ELECTRICITY);
+        assertEquals(3, optimizer.getDurationSlots(0));
+        double[] prices = { 1, 2, 4, 8 };
+        assertEquals(0.15 + 0.05 * 2, optimizer.getCost(prices, 0, 0), 1e-9);
+        assertEquals(0.15 * 2 + 0.05 * 4, optimizer.getCost(prices, 0, 1), 1e-9);
+        assertEquals(0, optimizer.optimize(prices).getStartSlot(0));
+    }
+
+    public void testMaxIntervalOfFirstProfile() {
+        // The washing must start within 30 minutes after validFrom, which was 10 minutes ago
+        List<SequentialProfile> profiles = Arrays.asList(new SequentialProfile(1,
+                                                                               Measure.valueOf(30, NonSI.MINUTE),
+                                                                               forecast(new double[] { 1000 },
+                                                                                        new int[] { 30 })));
+        StartTimeOptimizer optimizer = new StartTimeOptimizer(profiles,
+                                                              new Date(start.getTime() - 10 * MINUTE),
+                                                              start,
+                                                              new Date(start.getTime() + 240 * MINUTE),
+                                                              Measure.valueOf(1, NonSI.MINUTE),
+                                                              Commodity.ELECTRICITY);
+        assertTrue(optimizer.isFeasible());
+        assertEquals(new Date(start.getTime() + 20 * MINUTE), optimizer.getLatestStartTime(0));
+
+        // Even though it gets cheaper every minute
+        double[] prices = new double[240];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = 240 - i;
+        }
+        assertEquals(20, optimizer.optimize(prices).getStartSlot(0));
+
+        // When the interval has passed already, there is no schedule
+        optimizer = new StartTimeOptimizer(profiles,
+                                           new Date(start.getTime() - 31 * MINUTE),
+                                           start,
+                                           new Date(start.getTime() + 240 * MINUTE),
+                                           Measure.valueOf(1, NonSI.MINUTE),
+                                           Commodity.ELECTRICITY);
+        assertFalse(optimizer.isFeasible());
+    }
+
+    public void testTimeShifter() {
+        TimeShifter timeShifter = new TimeShifter(new TimeShifterRegistration("dishwasher",
+                                                                              start,
+                                                                              Measure.zero(SI.SECOND),
+                                                                              CommoditySet.onlyElectricity));
+        assertNull(timeShifter.createOptimizer(start, Measure.valueOf(1, NonSI.MINUTE), Commodity.ELECTRICITY));
+
+        // The update is valid from 10 minutes from now
+        Date validFrom = new Date(start.getTime() + 10 * MINUTE);
+        TimeShifterUpdate update = new TimeShifterUpdate("dishwasher",
+                                                         start,
+                                                         validFrom,
+                                                         new Date(start.getTime() + 240 * MINUTE),
+                                                         createProfiles());
+        timeShifter.processUpdate(update);
+        StartTimeOptimizer optimizer = timeShifter.createOptimizer(start,
+                                                                   Measure.valueOf(1, NonSI.MINUTE),
+                                                                   Commodity.ELECTRICITY);
+        assertEquals(230, optimizer.getSlots());
+        assertEquals(validFrom, optimizer.getEarliestStartTime(0));
+
+        double[] prices = new double[230];
+        Arrays.fill(prices, 0.2);
+        Arrays.fill(prices, 100, 200, 0.1);
+        Schedule schedule = optimizer.optimize(prices);
+        TimeShifterAllocation allocation = timeShifter.createAllocation(schedule, start);
+        assertEquals(2, allocation.getSequentialProfileAllocation().size());
+        assertEquals(1, allocation.getSequentialProfileAllocation().get(0).getSequentialProfileId());
+        assertEquals(new Date(validFrom.getTime() + 100 * MINUTE),
+                     allocation.getSequentialProfileAllocation().get(0).getStartTime());
+        assertEquals(2, allocation.getSequentialProfileAllocation().get(1).getSequentialProfileId());
+        assertEquals(new Date(validFrom.getTime() + 160 * MINUTE),
+                     allocation.getSequentialProfileAllocation().get(1).getStartTime());
+
+        try {
+            timeShifter.createOptimizer(start, Measure.valueOf(1, NonSI.MINUTE), Commodity.GAS);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -11,6 +11,10 @@ import org.flexiblepower.efi.util.FillLevelFunction.RangeElement;
  * This class approximates a function where the value is dependent on the fill level of the buffer. It implements a
  * {@link List} of {@link RangeElement}s and can be used in that manner.
  *
+ * The bounds of the elements are also kept in a <code>double[]</code>, so looking up the element for a fill level is a
+ * binary search. When the values describe a continuous (piecewise-linear) behaviour, {@link #interpolate(Evaluator)}
+ * gives an {@link Interpolation} that evaluates it without looking at the {@link RangeElement}s at all.
+ *
  * @param <T>
  *            The type of value that is stored at each element
  */
@@ -154,7 +158,103 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
         }
     }
 
+    /**
+     * Maps the value of a {@link RangeElement} to a number, see {@link FillLevelFunction#interpolate(Evaluator)}.
+     *
+     * @param <T>
+     *            The type of value that is stored at each element
+     */
+    public interface Evaluator<T> {
+        /**
+         * @param value
+         *            The value of an element
+         * @return The number that should be interpolated for this value
+         */
+        double evaluate(T value);
+    }
+
+    /**
+     * A piecewise-linear interpolation of the numbers that an {@link Evaluator} gives for the elements of a
+     * {@link FillLevelFunction}. The value of each element is taken to be exact at the middle of its range and the
+     * interpolation is linear between those points. Between the bounds of the function and the middle of the first and
+     * the last element the value is constant. When the middles of two elements are the same, which can only happen
+     * through rounding for very narrow elements, the interpolation steps from the value of one to the next.
+     *
+     * An interpolation only stores primitive arrays and is immutable, so it can be created once for each
+     * {@link FillLevelFunction} and shared.
+     */
+    public static final class Interpolation {
+        private final double lowerBound, upperBound;
+        /** The fill levels at the middle of each element */
+        private final double[] points;
+        private final double[] values;
+        /** The slope between point i and point i + 1 */
+        private final double[] slopes;
+
+        Interpolation(double[] bounds, double[] values) {
+            int size = values.length;
+            lowerBound = bounds[0];
+            upperBound = bounds[size];
+            points = new double[size];
+            for (int ix = 0; ix < size; ix++) {
+                points[ix] = (bounds[ix] + bounds[ix + 1]) / 2;
+            }
+            this.values = values;
+            slopes = new double[size - 1];
+            for (int ix = 0; ix < size - 1; ix++) {
+                double width = points[ix + 1] - points[ix];
+                slopes[ix] = width > 0 ? (values[ix + 1] - values[ix]) / width : 0;
+            }
+        }
+
+        /**
+         * @param fillLevel
+         *            The fill level of the buffer
+         * @return The interpolated value at the fill level
+         * @throws IllegalArgumentException
+         *             when the fillLevel is outside the bounds of the {@link FillLevelFunction}
+         */
+        public double getValue(double fillLevel) {
+            if (!(fillLevel >= lowerBound && fillLevel <= upperBound)) {
+                throw new IllegalArgumentException("FillLevel is not in range of the fill level function");
+            }
+            int last = points.length - 1;
+            if (fillLevel <= points[0]) {
+                return values[0];
+            } else if (fillLevel >= points[last]) {
+                return values[last];
+            }
+            // Look for the last point that is at or below the fill level
+            int low = 0, high = last - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (points[mid] <= fillLevel) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return values[low] + (fillLevel - points[low]) * slopes[low];
+        }
+
+        /**
+         * @return The lower bound for which this interpolation is valid
+         */
+        public double getLowerBound() {
+            return lowerBound;
+        }
+
+        /**
+         * @return The upper bound for which this interpolation is valid
+         */
+        public double getUpperBound() {
+            return upperBound;
+        }
+    }
+
     protected final RangeElement<T>[] elements;
+    /** The lower bound of the first element, followed by the upper bounds of all elements */
+    private final double[] bounds;
 
     @SuppressWarnings("unchecked")
     public FillLevelFunction(List<RangeElement<T>> elements) {
@@ -170,6 +270,11 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
         }
 
         this.elements = elements.toArray(new RangeElement[elements.size()]);
+        bounds = new double[this.elements.length + 1];
+        bounds[0] = this.elements[0].getLowerBound();
+        for (int i = 0; i < this.elements.length; i++) {
+            bounds[i + 1] = this.elements[i].getUpperBound();
+        }
     }
 
     @Override
@@ -186,14 +291,14 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
      * @return the lower bound for which this function is valid
      */
     public double getLowerBound() {
-        return this.elements[0].getLowerBound();
+        return bounds[0];
     }
 
     /**
      * @return the upper bound for which this function is valid
      */
     public double getUpperBound() {
-        return this.elements[elements.length - 1].getUpperBound();
+        return bounds[elements.length];
     }
 
     /**
@@ -215,12 +320,50 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
      *             when the fillLevel is outside the bounds (see {@link #getLowerBound()} and {@link #getUpperBound()})
      */
     public RangeElement<T> getRangeElementForFillLevel(double fillLevel) {
-        for (RangeElement<T> re : elements) {
-            if (fillLevel <= re.getUpperBound()) {
-                return re;
+        return elements[getIndexForFillLevel(fillLevel)];
+    }
+
+    /**
+     * Looks up the element that corresponds to the fill level with a binary search. When the fill level is exactly on
+     * the bound between two elements, the lower element is used.
+     *
+     * @param fillLevel
+     *            The fill level of the buffer for which to get the index of the corresponding element
+     * @return the index of the element that corresponds to the fill level
+     * @throws IllegalArgumentException
+     *             when the fillLevel is outside the bounds (see {@link #getLowerBound()} and {@link #getUpperBound()})
+     */
+    public int getIndexForFillLevel(double fillLevel) {
+        if (!(fillLevel <= bounds[elements.length])) {
+            throw new IllegalArgumentException("FillLevel is not in range of the fill level function");
+        }
+        // Look for the first element of which the upper bound is at or above the fill level
+        int low = 0, high = elements.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fillLevel <= bounds[mid + 1]) {
+                high = mid;
+            } else {
+                low = mid + 1;
             }
         }
-        throw new IllegalArgumentException("FillLevel is not in range of the fill level function");
+        return low;
+    }
+
+    /**
+     * Creates a piecewise-linear interpolation of this function. The evaluator is called once for each element, after
+     * that the {@link Interpolation} only uses primitive values.
+     *
+     * @param evaluator
+     *            Maps the value of each element to the number that should be interpolated
+     * @return The interpolation of the values of this function
+     */
+    public Interpolation interpolate(Evaluator<? super T> evaluator) {
+        double[] values = new double[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            values[i] = evaluator.evaluate(elements[i].getValue());
+        }
+        return new Interpolation(bounds, values);
     }
 
     /**
@@ -240,7 +383,7 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
      * @return Whether the fill level is lower than the lower bound of this FillLevelFunction.
      */
     public boolean isBelowMinimum(double fillLevel) {
-        return (fillLevel < getLowerBound());
+        return (fillLevel < bounds[0]);
     }
 
     /**
@@ -250,7 +393,7 @@ public class FillLevelFunction<T> extends AbstractList<RangeElement<T>> {
      * @return Whether the fill level is higher than the upper bound of this FillLevelFunction.
      */
     public boolean isAboveMaximum(double fillLevel) {
-        return (fillLevel > getUpperBound());
+        return (fillLevel > bounds[elements.length]);
     }
 
     @Override
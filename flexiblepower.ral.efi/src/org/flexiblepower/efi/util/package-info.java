@@ -1,4 +1,4 @@
-@Version("1.0.0.${qualifier}")
+@Version("1.1.0.${qualifier}")
 package org.flexiblepower.efi.util;
 
 import aQute.bnd.annotation.Version;
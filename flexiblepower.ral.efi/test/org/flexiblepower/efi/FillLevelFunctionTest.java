@@ -0,0 +1,113 @@
+package org.flexiblepower.efi;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.efi.util.FillLevelFunction.Evaluator;
+import org.flexiblepower.efi.util.FillLevelFunction.Interpolation;
+
+public class FillLevelFunctionTest extends TestCase {
+    private static final Evaluator<LeakageRate> LEAKAGE = new Evaluator<LeakageRate>() {
+        @Override
+        public double evaluate(LeakageRate value) {
+            return value.getLeakageRate();
+        }
+    };
+
+    /** Elements of 10 between 0 and 100, the leakage rate of element i is i */
+    private static FillLevelFunction<LeakageRate> createFunction() {
+        FillLevelFunction.Builder<LeakageRate> builder = FillLevelFunction.<LeakageRate> create(0);
+        for (int i = 0; i < 10; i++) {
+            builder.add(10 * (i + 1), new LeakageRate(i));
+        }
+        return builder.build();
+    }
+
+    public void testLookup() {
+        FillLevelFunction<LeakageRate> function = createFunction();
+
+        assertEquals(0, function.getIndexForFillLevel(0));
+        assertEquals(0, function.getIndexForFillLevel(10));
+        assertEquals(1, function.getIndexForFillLevel(10.001));
+        assertEquals(5, function.getIndexForFillLevel(55));
+        assertEquals(9, function.getIndexForFillLevel(100));
+        // Just like before, a fill level below the lower bound gives the first element
+        assertEquals(0, function.getIndexForFillLevel(-5));
+        assertEquals(7, function.getValueForFillLevel(75).getLeakageRate(), 0);
+        assertSame(function.get(3), function.getRangeElementForFillLevel(31));
+
+        // The binary search gives the same element as a linear scan
+        for (double fillLevel = -1; fillLevel <= 100; fillLevel += 0.25) {
+            int expected = 0;
+            while (fillLevel > function.get(expected).getUpperBound()) {
+                expected++;
+            }
+            assertEquals(expected, function.getIndexForFillLevel(fillLevel));
+        }
+
+        try {
+            function.getIndexForFillLevel(100.5);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            function.getRangeElementForFillLevel(Double.NaN);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testInterpolation() {
+        Interpolation interpolation = createFunction().interpolate(LEAKAGE);
+
+        assertEquals(0, interpolation.getLowerBound(), 0);
+        assertEquals(100, interpolation.getUpperBound(), 0);
+        // Constant up to the middle of the first element and from the middle of the last element
+        assertEquals(0, interpolation.getValue(0), 1e-9);
+        assertEquals(0, interpolation.getValue(5), 1e-9);
+        assertEquals(9, interpolation.getValue(95), 1e-9);
+        assertEquals(9, interpolation.getValue(100), 1e-9);
+        // Linear in between
+        assertEquals(0.5, interpolation.getValue(10), 1e-9);
+        assertEquals(4.2, interpolation.getValue(47), 1e-9);
+        assertEquals(8.75, interpolation.getValue(92.5), 1e-9);
+
+        try {
+            interpolation.getValue(-0.1);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSingleElement() {
+        FillLevelFunction<LeakageRate> function = FillLevelFunction.<LeakageRate> create(20)
+                                                                   .add(30, new LeakageRate(2))
+                                                                   .build();
+        assertEquals(0, function.getIndexForFillLevel(25));
+        Interpolation interpolation = function.interpolate(LEAKAGE);
+        assertEquals(2, interpolation.getValue(20), 0);
+        assertEquals(2, interpolation.getValue(30), 0);
+    }
+
+    public void testElementsWithTheSameMiddle() {
+        // The middles of the second and the third element both round to 2
+        FillLevelFunction<LeakageRate> function = FillLevelFunction.<LeakageRate> create(0)
+                                                                   .add(Math.nextAfter(2.0, 0), new LeakageRate(1))
+                                                                   .add(2, new LeakageRate(2))
+                                                                   .add(Math.nextUp(2.0), new LeakageRate(3))
+                                                                   .add(4, new LeakageRate(4))
+                                                                   .build();
+        Interpolation interpolation = function.interpolate(LEAKAGE);
+        assertEquals(3, interpolation.getValue(2), 0);
+        for (double fillLevel = 0; fillLevel <= 4; fillLevel += 0.25) {
+            double value = interpolation.getValue(fillLevel);
+            assertFalse(Double.isNaN(value) || Double.isInfinite(value));
+        }
+        assertEquals(1.5, interpolation.getValue(1.5), 1e-9);
+        assertEquals(3.5, interpolation.getValue(2.5), 1e-9);
+    }
+}
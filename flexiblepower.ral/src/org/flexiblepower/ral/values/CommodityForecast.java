@@ -162,6 +162,10 @@ public final class CommodityForecast extends Profile<CommodityUncertainMeasurabl
         }
     }
 
+    private CommodityForecast(CommodityForecast source, long offsetMs, long durationMs) {
+        super(source, offsetMs, durationMs);
+    }
+
     /**
      * @return The set of commodities that are supported in this profile
      */
@@ -170,9 +174,9 @@ public final class CommodityForecast extends Profile<CommodityUncertainMeasurabl
     }
 
     @Override
-    public Profile<CommodityUncertainMeasurables>
-            subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
-        // TODO Needs to be implemented
-        throw new UnsupportedOperationException();
+    public CommodityForecast subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
+        return new CommodityForecast(this,
+                                     UnitConverterCache.longValue(offset, MS),
+                                     UnitConverterCache.longValue(duration, MS));
     }
 }
@@ -4,16 +4,27 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.measure.Measurable;
+import javax.measure.Measure;
 import javax.measure.quantity.Duration;
 import javax.measure.quantity.Power;
+import javax.measure.quantity.Quantity;
 import javax.measure.quantity.VolumetricFlowRate;
 
 /**
  * This class is derived from {@link Profile}. By parameterizing this class with the billable quantity (BQ) and the flow
  * quantity (FQ) it can be validated whether all commodity profile elements are of the same commodity. CommodityProfile
  * does not have any additional attributes.
+ *
+ * The values are only kept in a primitive array for each commodity, in the flow unit of that commodity (see
+ * {@link Commodity#getFlowUnit()}). The elements that are returned by {@link #get(int)} are created when they are asked
+ * for, so their measurables and durations are always in those units. Use {@link #getValue(Commodity, int)} to read the
+ * values without creating objects.
  */
 public final class CommodityProfile extends Profile<CommodityMeasurables> {
+    private final CommoditySet commodities;
+    /** The values of each commodity in its flow unit, or null when the commodity is not in this profile */
+    private final double[] electricityValues, gasValues, heatValues;
+
     /**
      * The Builder object that will be used to easily create {@link CommodityProfile}s.
      */
@@ -146,7 +157,7 @@ public final class CommodityProfile extends Profile<CommodityMeasurables> {
      *            The elements that are stored in this profile
      */
     public CommodityProfile(Element<CommodityMeasurables>... elements) {
-        super(elements);
+        super(elements, false);
 
         // Check if profile is empty
         if (elements.length == 0) {
@@ -159,18 +170,110 @@ public final class CommodityProfile extends Profile<CommodityMeasurables> {
                 throw new IllegalArgumentException("A CommodityProfile can only consist of commodites of the same type");
             }
         }
+
+        commodities = set;
+        electricityValues = getValues(elements, Commodity.ELECTRICITY);
+        gasValues = getValues(elements, Commodity.GAS);
+        heatValues = getValues(elements, Commodity.HEAT);
+    }
+
+    /**
+     * Creates a profile directly from primitive arrays, which are not copied.
+     *
+     * @param durations
+     *            The durations of the elements in milliseconds
+     * @param electricityValues
+     *            The electricity values in {@link Commodity#getFlowUnit()}, or null when there is no electricity
+     * @param gasValues
+     *            The gas values in {@link Commodity#getFlowUnit()}, or null when there is no gas
+     * @param heatValues
+     *            The heat values in {@link Commodity#getFlowUnit()}, or null when there is no heat
+     */
+    CommodityProfile(long[] durations, double[] electricityValues, double[] gasValues, double[] heatValues) {
+        super(durations);
+        if (durations.length == 0) {
+            throw new IllegalArgumentException("A CommodityProfile cannot be empty");
+        }
+        commodities = new CommoditySet(electricityValues != null, gasValues != null, heatValues != null);
+        this.electricityValues = electricityValues;
+        this.gasValues = gasValues;
+        this.heatValues = heatValues;
+    }
+
+    private CommodityProfile(CommodityProfile source, long offsetMs, long durationMs) {
+        super(source, offsetMs, durationMs);
+        commodities = source.commodities;
+        electricityValues = source.electricityValues;
+        gasValues = source.gasValues;
+        heatValues = source.heatValues;
+    }
+
+    private static <BQ extends Quantity, FQ extends Quantity> Measurable<FQ>
+            getMeasurable(Commodity<BQ, FQ> commodity, double[] values, int index) {
+        return values == null ? null : Measure.valueOf(values[index], commodity.getFlowUnit());
+    }
+
+    private static <BQ extends Quantity, FQ extends Quantity> double[]
+            getValues(Element<CommodityMeasurables>[] elements, Commodity<BQ, FQ> commodity) {
+        if (!elements[0].getValue().containsKey(commodity)) {
+            return null;
+        }
+        double[] values = new double[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            values[i] = elements[i].getValue().get(commodity).doubleValue(commodity.getFlowUnit());
+        }
+        return values;
     }
 
     /**
      * @return The set of commodities that are supported in this profile
      */
     public CommoditySet getCommodities() {
-        return elements[0].getValue().keySet();
+        return commodities;
+    }
+
+    private double[] getValues(Commodity<?, ?> commodity) {
+        if (commodity == Commodity.ELECTRICITY) {
+            return electricityValues;
+        } else if (commodity == Commodity.GAS) {
+            return gasValues;
+        } else if (commodity == Commodity.HEAT) {
+            return heatValues;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Gives the value of a single commodity without creating any objects.
+     *
+     * @param commodity
+     *            The commodity, which should be one of {@link #getCommodities()}
+     * @param index
+     *            The index of the element
+     * @return The value of the commodity in the element, expressed in the flow unit of the commodity
+     * @throws IllegalArgumentException
+     *             When the commodity is not part of this profile
+     */
+    public double getValue(Commodity<?, ?> commodity, int index) {
+        double[] values = getValues(commodity);
+        if (values == null) {
+            throw new IllegalArgumentException("The commodity " + commodity + " is not part of this profile");
+        }
+        return values[getBaseIndex(index)];
+    }
+
+    @Override
+    CommodityMeasurables getBaseValue(int baseIndex) {
+        return new CommodityMeasurables(getMeasurable(Commodity.ELECTRICITY, electricityValues, baseIndex),
+                                        getMeasurable(Commodity.GAS, gasValues, baseIndex),
+                                        getMeasurable(Commodity.HEAT, heatValues, baseIndex));
     }
 
     @Override
-    public Profile<CommodityMeasurables> subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
-        // TODO Needs to be implemented
-        throw new UnsupportedOperationException();
+    public CommodityProfile subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
+        return new CommodityProfile(this,
+                                    UnitConverterCache.longValue(offset, MS),
+                                    UnitConverterCache.longValue(duration, MS));
     }
 }
@@ -1,16 +1,28 @@
 package org.flexiblepower.ral.values;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.measure.Measurable;
+import javax.measure.Measure;
 import javax.measure.quantity.Duration;
 import javax.measure.quantity.Quantity;
+import javax.measure.unit.Unit;
 
 /**
  * This class is derived from {@link Profile} and is parameterized with a {@link Constraint}.
+ *
+ * When the bounds are {@link Measure}s, they are only kept in primitive arrays in the unit of the first lower bound, to
+ * read them without creating objects. The elements that are returned by {@link #get(int)} are then created when they
+ * are asked for, with their durations in milliseconds and their bounds in that unit. Other implementations of
+ * {@link Measurable} are read from the elements themselves.
  */
 public final class ConstraintProfile<Q extends Quantity> extends Profile<Constraint<Q>> {
+    /** The unit of the bounds, or null when the bounds are only kept in the elements */
+    private final Unit<Q> unit;
+    private final double[] lowerBounds, upperBounds;
+
     /**
      * The Builder object that will be used to easily create {@link ConstraintProfile}s.
      */
@@ -60,7 +72,9 @@ public final class ConstraintProfile<Q extends Quantity> extends Profile<Constra
 
         @SuppressWarnings("unchecked")
         public ConstraintProfile<Q> build() {
-            return new ConstraintProfile<Q>(elements.toArray(new Element[elements.size()]));
+            Element<Constraint<Q>>[] array = (Element<Constraint<Q>>[]) Array.newInstance(Element.class,
+                                                                                          elements.size());
+            return new ConstraintProfile<Q>(elements.toArray(array));
         }
     }
 
@@ -79,17 +93,97 @@ public final class ConstraintProfile<Q extends Quantity> extends Profile<Constra
      *            The elements that are stored in this profile
      */
     public ConstraintProfile(Element<Constraint<Q>>... elements) {
-        super(elements);
+        super(elements, getUnit(elements) == null);
 
         // Check if profile is empty
         if (elements.length == 0) {
             throw new IllegalArgumentException("A CommodityProfile cannot be empty");
         }
+
+        unit = getUnit(elements);
+        if (unit == null) {
+            lowerBounds = upperBounds = null;
+        } else {
+            lowerBounds = new double[elements.length];
+            upperBounds = new double[elements.length];
+            for (int ix = 0; ix < elements.length; ix++) {
+                lowerBounds[ix] = elements[ix].getValue().getLowerBound().doubleValue(unit);
+                upperBounds[ix] = elements[ix].getValue().getUpperBound().doubleValue(unit);
+            }
+        }
+    }
+
+    private ConstraintProfile(ConstraintProfile<Q> source, long offsetMs, long durationMs) {
+        super(source, offsetMs, durationMs);
+        unit = source.unit;
+        lowerBounds = source.lowerBounds;
+        upperBounds = source.upperBounds;
+    }
+
+    /**
+     * @return The unit of the first lower bound, or null when not all the bounds are {@link Measure}s
+     */
+    @SuppressWarnings("unchecked")
+    private static <Q extends Quantity> Unit<Q> getUnit(Element<Constraint<Q>>[] elements) {
+        for (Element<Constraint<Q>> element : elements) {
+            if (!(element.getValue().getLowerBound() instanceof Measure)
+                || !(element.getValue().getUpperBound() instanceof Measure)) {
+                return null;
+            }
+        }
+        return elements.length == 0 ? null : ((Measure<?, Q>) elements[0].getValue().getLowerBound()).getUnit();
+    }
+
+    /**
+     * Gives the lower bound of an element without creating a {@link Constraint}.
+     *
+     * @param index
+     *            The index of the element
+     * @param unit
+     *            The unit in which the bound should be expressed
+     * @return The lower bound of the element
+     */
+    public double getLowerBound(int index, Unit<Q> unit) {
+        int baseIndex = getBaseIndex(index);
+        if (this.unit == null) {
+            return elements[baseIndex].getValue().getLowerBound().doubleValue(unit);
+        }
+        return convert(lowerBounds[baseIndex], unit);
+    }
+
+    /**
+     * Gives the upper bound of an element without creating a {@link Constraint}.
+     *
+     * @param index
+     *            The index of the element
+     * @param unit
+     *            The unit in which the bound should be expressed
+     * @return The upper bound of the element
+     */
+    public double getUpperBound(int index, Unit<Q> unit) {
+        int baseIndex = getBaseIndex(index);
+        if (this.unit == null) {
+            return elements[baseIndex].getValue().getUpperBound().doubleValue(unit);
+        }
+        return convert(upperBounds[baseIndex], unit);
+    }
+
+    private double convert(double value, Unit<Q> unit) {
+        return this.unit.equals(unit) ? value : this.unit.getConverterTo(unit).convert(value);
+    }
+
+    @Override
+    Constraint<Q> getBaseValue(int baseIndex) {
+        if (unit == null) {
+            return super.getBaseValue(baseIndex);
+        }
+        return new Constraint<Q>(lowerBounds[baseIndex], upperBounds[baseIndex], unit);
     }
 
     @Override
     public ConstraintProfile<Q> subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
-        // TODO Needs to be implemented
-        throw new UnsupportedOperationException();
+        return new ConstraintProfile<Q>(this,
+                                        UnitConverterCache.longValue(offset, MS),
+                                        UnitConverterCache.longValue(duration, MS));
     }
 }
@@ -2,6 +2,8 @@ package org.flexiblepower.ral.values;
 
 import java.util.AbstractList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.measure.Measurable;
 import javax.measure.Measure;
@@ -13,6 +15,18 @@ import javax.measure.unit.Unit;
  * Throughout this specification different profile types are being used. These profiles are all derived from this
  * generic {@link Profile} class.
  *
+ * The durations of the elements are kept in milliseconds, together with the offset at which each element ends. This
+ * makes the total duration available without any conversion and lets {@link #getElementAtOffset(Measurable)} use a
+ * binary search. The profiles of this package that have numeric values only keep those in primitive arrays, without
+ * any elements. Their elements are created when they are asked for, with their durations in milliseconds.
+ *
+ * A {@link #subProfile(Measurable, Measurable)} is a view on the same arrays, which only stores where it starts and
+ * ends. The elements at the boundaries of the view are shortened to fit. Use {@link #getBaseIndex(int)} to find the
+ * index of an element in the arrays of the profile that the view was created from.
+ *
+ * Elements are equal when their durations and values are equal, so two profiles are equal when they contain the same
+ * durations and values, however they are stored.
+ *
  * @param <T>
  *            The type of the values stored in the elements
  */
@@ -59,6 +73,32 @@ public abstract class Profile<T> extends AbstractList<Profile.Element<T>> {
             return value;
         }
 
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((duration == null) ? 0 : duration.hashCode());
+            result = prime * result + ((value == null) ? 0 : value.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            } else {
+                Element<?> other = (Element<?>) obj;
+                if (duration == null ? other.duration != null : !duration.equals(other.duration)) {
+                    return false;
+                } else if (value == null ? other.value != null : !value.equals(other.value)) {
+                    return false;
+                }
+                return true;
+            }
+        }
+
         @Override
         public String toString() {
             return "(" + value + " for " + duration + ")";
@@ -66,10 +106,27 @@ public abstract class Profile<T> extends AbstractList<Profile.Element<T>> {
     }
 
     /**
-     * The array that contains all the elements.
+     * The array that contains all the elements. This array is shared with all the subprofiles, so use
+     * {@link #getBaseIndex(int)} to find an element of this profile in it. It is only null for the profiles of this
+     * package that keep their values in primitive arrays, see {@link #getBaseValue(int)}.
      */
     protected final Element<T>[] elements;
 
+    /**
+     * The offset in milliseconds at which each element ends, so the last one is the total duration. This array is
+     * shared with all the subprofiles.
+     */
+    private final long[] endOffsets;
+
+    /** The index of the first element of this profile in the shared arrays */
+    private final int first;
+    /** The number of elements in this profile */
+    private final int size;
+    /** The offsets in the shared arrays at which this profile starts and ends */
+    private final long startOffset, endOffset;
+
+    private final Measurable<Duration> totalDuration;
+
     /**
      * Creates a new instance of the profile by using the given elements.
      *
@@ -77,28 +134,213 @@ public abstract class Profile<T> extends AbstractList<Profile.Element<T>> {
      *            The array of elements (in order!) that make up this profile.
      */
     protected Profile(Element<T>... elements) {
-        this.elements = Arrays.copyOf(elements, elements.length);
+        this(elements, true);
+    }
+
+    /**
+     * Creates a new instance of the profile with the durations of the given elements.
+     *
+     * @param elements
+     *            The array of elements (in order!) that make up this profile.
+     * @param keepElements
+     *            false when the subclass keeps the values itself and overrides {@link #getBaseValue(int)}
+     */
+    Profile(Element<T>[] elements, boolean keepElements) {
+        this.elements = keepElements ? Arrays.copyOf(elements, elements.length) : null;
+        endOffsets = new long[elements.length];
+        long offset = 0;
+        double total = 0;
+        for (int ix = 0; ix < elements.length; ix++) {
+            offset += UnitConverterCache.longValue(elements[ix].getDuration(), MS);
+            endOffsets[ix] = offset;
+            total += UnitConverterCache.doubleValue(elements[ix].getDuration(), Duration.UNIT);
+        }
+        first = 0;
+        size = elements.length;
+        startOffset = 0;
+        endOffset = offset;
+        totalDuration = Measure.valueOf(total, Duration.UNIT);
+    }
+
+    /**
+     * Creates a new instance of the profile of which the subclass keeps the values itself and overrides
+     * {@link #getBaseValue(int)}.
+     *
+     * @param durations
+     *            The durations of the elements in milliseconds
+     */
+    Profile(long[] durations) {
+        elements = null;
+        endOffsets = new long[durations.length];
+        long offset = 0;
+        for (int ix = 0; ix < durations.length; ix++) {
+            offset += durations[ix];
+            endOffsets[ix] = offset;
+        }
+        first = 0;
+        size = durations.length;
+        startOffset = 0;
+        endOffset = offset;
+        totalDuration = Measure.valueOf(MS.getConverterTo(Duration.UNIT).convert(offset), Duration.UNIT);
+    }
+
+    /**
+     * Creates a view on a part of another profile. No arrays are copied, so a subclass should share its values with
+     * the source as well.
+     *
+     * @param source
+     *            The profile of which this is a part
+     * @param offsetMs
+     *            The offset in the source in milliseconds at which this profile starts
+     * @param durationMs
+     *            The duration of this profile in milliseconds
+     * @throws IllegalArgumentException
+     *             When the part is empty or does not fit in the source
+     */
+    protected Profile(Profile<T> source, long offsetMs, long durationMs) {
+        if (offsetMs < 0) {
+            throw new IllegalArgumentException("Offset connot be negative");
+        } else if (durationMs <= 0) {
+            throw new IllegalArgumentException("A subprofile cannot be empty");
+        } else if (offsetMs + durationMs > source.getTotalDurationMillis()) {
+            throw new IllegalArgumentException("The subprofile does not fit in the profile");
+        }
+        elements = source.elements;
+        endOffsets = source.endOffsets;
+        startOffset = source.startOffset + offsetMs;
+        endOffset = startOffset + durationMs;
+        int sourceEnd = source.first + source.size;
+        // The first element that ends after the start and the first one that ends at or after the end
+        first = search(endOffsets, source.first, sourceEnd, startOffset + 1);
+        size = search(endOffsets, first, sourceEnd, endOffset) - first + 1;
+        totalDuration = Measure.valueOf(MS.getConverterTo(Duration.UNIT).convert(durationMs), Duration.UNIT);
+    }
+
+    /**
+     * @return The first index in the range from..to of the array of which the value is at least the key, or to if
+     *         there is none.
+     */
+    private static int search(long[] array, int from, int to, long key) {
+        int low = from, high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gives the index in the arrays of the profile that this view was created from. For a profile that is not a view
+     * this is the index itself.
+     *
+     * @param index
+     *            The index of the element in this profile
+     * @return The index of the element in the shared arrays
+     * @throws IndexOutOfBoundsException
+     *             When the index is not in this profile
+     */
+    protected int getBaseIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return first + index;
+    }
+
+    /**
+     * Gives the value of an element in the shared arrays. A profile without elements creates it from its own arrays.
+     *
+     * @param baseIndex
+     *            The index in the shared arrays, see {@link #getBaseIndex(int)}
+     * @return The value of the element
+     */
+    T getBaseValue(int baseIndex) {
+        return elements[baseIndex].getValue();
     }
 
     @Override
     public Element<T> get(int index) {
-        return elements[index];
+        int baseIndex = getBaseIndex(index);
+        if (elements != null && (index > 0 || startOffset == getBaseStartOffset(baseIndex))
+            && (index < size - 1 || endOffset == endOffsets[baseIndex])) {
+            return elements[baseIndex];
+        }
+        // The element is shortened or the subclass only keeps the values
+        return new Element<T>(Measure.valueOf(getDurationMillis(index), MS), getBaseValue(baseIndex));
     }
 
     @Override
     public int size() {
-        return elements.length;
+        return size;
+    }
+
+    private long getBaseStartOffset(int baseIndex) {
+        return baseIndex == 0 ? 0 : endOffsets[baseIndex - 1];
     }
 
     /**
-     * @return The total duration of the whole profile. This sums all the durations of the elements.
+     * @return The total duration of the whole profile in {@link Duration#UNIT}. This sums all the durations of the
+     *         elements.
      */
     public Measurable<Duration> getTotalDuration() {
-        double total = 0;
-        for (final Element<T> e : elements) {
-            total += e.getDuration().doubleValue(Duration.UNIT);
+        return totalDuration;
+    }
+
+    /**
+     * @return The total duration of the whole profile in milliseconds.
+     */
+    public long getTotalDurationMillis() {
+        return endOffset - startOffset;
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The duration of the element in milliseconds
+     */
+    public long getDurationMillis(int index) {
+        int baseIndex = getBaseIndex(index);
+        return Math.min(endOffsets[baseIndex], endOffset) - Math.max(getBaseStartOffset(baseIndex), startOffset);
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The offset in milliseconds at which the element starts
+     */
+    public long getStartOffsetMillis(int index) {
+        return Math.max(getBaseStartOffset(getBaseIndex(index)), startOffset) - startOffset;
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The offset in milliseconds at which the element ends
+     */
+    public long getEndOffsetMillis(int index) {
+        return Math.min(endOffsets[getBaseIndex(index)], endOffset) - startOffset;
+    }
+
+    /**
+     * Finds the index of the element at a specific offset. An offset at the boundary of two elements belongs to the
+     * first of them.
+     *
+     * @param offsetMs
+     *            The offset in milliseconds
+     * @return The index of the element at the offset, or -1 if the offset is bigger than the profile
+     */
+    public int getIndexAtOffset(long offsetMs) {
+        if (offsetMs < 0) {
+            throw new IllegalArgumentException("Offset connot be negative");
         }
-        return Measure.valueOf(total, Duration.UNIT);
+        if (offsetMs > getTotalDurationMillis()) {
+            return -1;
+        }
+        // The first element that ends at or after the offset
+        return search(endOffsets, first, first + size, startOffset + offsetMs) - first;
     }
 
     /**
@@ -109,19 +351,8 @@ public abstract class Profile<T> extends AbstractList<Profile.Element<T>> {
      * @return The element of the profile at offset or null if the offset is bigger than the profile
      */
     public Element<T> getElementAtOffset(Measurable<Duration> offset) {
-        if (offset.longValue(MS) < 0) {
-            throw new IllegalArgumentException("Offset connot be negative");
-        }
-        long offsetMs = offset.longValue(MS);
-        for (Element<T> e : elements) {
-            long elementDuration = e.getDuration().longValue(MS);
-            if (offsetMs <= elementDuration) {
-                return e;
-            } else {
-                offsetMs -= elementDuration;
-            }
-        }
-        return null;
+        int index = getIndexAtOffset(UnitConverterCache.longValue(offset, MS));
+        return index < 0 ? null : get(index);
     }
 
     /**
@@ -136,4 +367,49 @@ public abstract class Profile<T> extends AbstractList<Profile.Element<T>> {
      * @return A new {@link Profile} implementation that represents the selected subprofile.
      */
     public abstract Profile<T> subProfile(Measurable<Duration> offset, Measurable<Duration> duration);
+
+    /**
+     * Slides a window over this profile, for planning with a rolling horizon. The windows are created with
+     * {@link #subProfile(Measurable, Measurable)}, so they share the arrays of this profile. The last window is the
+     * last one that still fits completely in this profile.
+     *
+     * @param windowSize
+     *            The duration of each window
+     * @param step
+     *            The time between the start of two windows
+     * @return An iterator over the windows, starting at offset 0
+     * @throws IllegalArgumentException
+     *             When the window size or the step is not positive
+     */
+    public Iterator<Profile<T>> slidingWindow(Measurable<Duration> windowSize, Measurable<Duration> step) {
+        final long windowMs = UnitConverterCache.longValue(windowSize, MS);
+        final long stepMs = UnitConverterCache.longValue(step, MS);
+        if (windowMs <= 0 || stepMs <= 0) {
+            throw new IllegalArgumentException("The window size and the step should be positive");
+        }
+        final Measurable<Duration> windowDuration = Measure.valueOf(windowMs, MS);
+        return new Iterator<Profile<T>>() {
+            private long offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return offset + windowMs <= getTotalDurationMillis();
+            }
+
+            @Override
+            public Profile<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Profile<T> window = subProfile(Measure.valueOf(offset, MS), windowDuration);
+                offset += stepMs;
+                return window;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 }
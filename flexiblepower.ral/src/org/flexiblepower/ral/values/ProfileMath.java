@@ -0,0 +1,433 @@
+package org.flexiblepower.ral.values;
+
+import static org.flexiblepower.ral.values.Profile.MS;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.Unit;
+
+import org.flexiblepower.ral.values.UnitConverterCache.Conversion;
+
+/**
+ * Arithmetic on {@link CommodityProfile}s. All the operations work on the primitive values of the profiles (see
+ * {@link CommodityProfile#getValue(Commodity, int)}) and create new profiles, the arguments are never changed.
+ *
+ * When profiles are combined, their element boundaries are aligned first: the result has an element boundary wherever
+ * one of the profiles has one. Profiles that are combined should have the same total duration. A commodity that is
+ * missing in one of the profiles counts as a flow of 0 in that profile.
+ *
+ * {@link UncertainMeasurableProfile}s are added up using their means and variances, assuming normal distributions.
+ */
+public final class ProfileMath {
+    private static final Commodity<?, ?>[] COMMODITIES = { Commodity.ELECTRICITY, Commodity.GAS, Commodity.HEAT };
+
+    private ProfileMath() {
+    }
+
+    /**
+     * @param profiles
+     *            The profiles that should be added
+     * @return The sum of all the profiles
+     * @throws IllegalArgumentException
+     *             When there are no profiles, or when they do not have the same total duration
+     */
+    public static CommodityProfile sum(CommodityProfile... profiles) {
+        return sum(Arrays.asList(profiles));
+    }
+
+    /**
+     * Adds up many profiles, e.g. of all the devices in a household. When all the profiles have the same element
+     * boundaries, this takes linear time in the total number of elements.
+     *
+     * @param profiles
+     *            The profiles that should be added
+     * @return The sum of all the profiles
+     * @throws IllegalArgumentException
+     *             When there are no profiles, or when they do not have the same total duration
+     */
+    public static CommodityProfile sum(List<CommodityProfile> profiles) {
+        return combine(profiles, null);
+    }
+
+    /**
+     * @param profile
+     *            The profile to subtract from
+     * @param subtrahend
+     *            The profile that is subtracted
+     * @return The difference profile - subtrahend
+     * @throws IllegalArgumentException
+     *             When the profiles do not have the same total duration
+     */
+    public static CommodityProfile difference(CommodityProfile profile, CommodityProfile subtrahend) {
+        return combine(Arrays.asList(profile, subtrahend), new double[] { 1, -1 });
+    }
+
+    /**
+     * @param profile
+     *            The profile to scale
+     * @param factor
+     *            The factor with which all the values are multiplied
+     * @return A profile with the same elements, of which the values are scaled
+     */
+    public static CommodityProfile scale(CommodityProfile profile, double factor) {
+        long[] ends = getEndOffsets(profile);
+        double[][] values = createValues(profile.getCommodities(), ends.length);
+        for (int c = 0; c < COMMODITIES.length; c++) {
+            if (values[c] != null) {
+                for (int ix = 0; ix < ends.length; ix++) {
+                    values[c][ix] = factor * profile.getValue(COMMODITIES[c], ix);
+                }
+            }
+        }
+        return create(ends, values);
+    }
+
+    /**
+     * Limits the values of a single commodity to a {@link ConstraintProfile}. The other commodities are kept as they
+     * are.
+     *
+     * @param profile
+     *            The profile to clip
+     * @param commodity
+     *            The commodity of which the values should be limited
+     * @param constraints
+     *            The lower and upper bounds of the flow of the commodity
+     * @return A profile in which each value of the commodity is within its constraint
+     * @throws IllegalArgumentException
+     *             When the commodity is not in the profile, or when the profiles do not have the same total duration
+     */
+    public static <BQ extends Quantity, FQ extends Quantity>
+            CommodityProfile
+            clip(CommodityProfile profile, Commodity<BQ, FQ> commodity, ConstraintProfile<FQ> constraints) {
+        if (!profile.getCommodities().contains(commodity)) {
+            throw new IllegalArgumentException("The commodity " + commodity + " is not part of the profile");
+        }
+        long[] ends = alignEndOffsets(Arrays.<Profile<?>> asList(profile, constraints));
+        double[][] values = createValues(profile.getCommodities(), ends.length);
+        for (int c = 0; c < COMMODITIES.length; c++) {
+            if (values[c] != null) {
+                accumulate(values[c], ends, profile, COMMODITIES[c], 1);
+            }
+        }
+
+        double[] clipped = values[indexOf(commodity)];
+        Unit<FQ> unit = commodity.getFlowUnit();
+        int ix = 0;
+        for (int jx = 0; jx < ends.length; jx++) {
+            while (constraints.getEndOffsetMillis(ix) < ends[jx]) {
+                ix++;
+            }
+            clipped[jx] = Math.min(Math.max(clipped[jx], constraints.getLowerBound(ix, unit)),
+                                   constraints.getUpperBound(ix, unit));
+        }
+        return create(ends, values);
+    }
+
+    /**
+     * Resamples a profile to elements of a fixed duration, e.g. from 1 minute to 15 minutes. The value of each new
+     * element is the time-weighted average of the values that it covers, so the amount of each commodity stays the
+     * same.
+     *
+     * @param profile
+     *            The profile to resample
+     * @param period
+     *            The duration of the new elements. When the total duration is not a multiple of this, the last element
+     *            is shorter.
+     * @return The resampled profile
+     * @throws IllegalArgumentException
+     *             When the period is not positive
+     */
+    public static CommodityProfile resample(CommodityProfile profile, Measurable<Duration> period) {
+        long periodMs = period.longValue(MS);
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        long total = profile.getTotalDurationMillis();
+        int count = (int) Math.max(1, (total + periodMs - 1) / periodMs);
+        long[] ends = new long[count];
+        for (int jx = 0; jx < count; jx++) {
+            ends[jx] = Math.min((jx + 1) * periodMs, total);
+        }
+
+        double[][] values = createValues(profile.getCommodities(), count);
+        for (int c = 0; c < COMMODITIES.length; c++) {
+            if (values[c] != null) {
+                int first = 0;
+                for (int jx = 0; jx < count; jx++) {
+                    long start = jx * periodMs;
+                    while (first < profile.size() && profile.getEndOffsetMillis(first) <= start) {
+                        first++;
+                    }
+                    double sum = 0;
+                    for (int ix = first; ix < profile.size() && profile.getStartOffsetMillis(ix) < ends[jx]; ix++) {
+                        long overlap = Math.min(ends[jx], profile.getEndOffsetMillis(ix))
+                                       - Math.max(start, profile.getStartOffsetMillis(ix));
+                        sum += profile.getValue(COMMODITIES[c], ix) * overlap;
+                    }
+                    values[c][jx] = ends[jx] > start ? sum / (ends[jx] - start) : 0;
+                }
+            }
+        }
+        return create(ends, values);
+    }
+
+    /**
+     * @param profile
+     *            The profile to integrate
+     * @param commodity
+     *            The commodity of which the amount is calculated
+     * @return The total amount of the commodity over the whole profile, e.g. the energy of a power profile
+     * @throws IllegalArgumentException
+     *             When the commodity is not in the profile
+     */
+    public static <BQ extends Quantity, FQ extends Quantity> Measurable<BQ> integrate(CommodityProfile profile,
+                                                                                       Commodity<BQ, FQ> commodity) {
+        if (!profile.getCommodities().contains(commodity)) {
+            throw new IllegalArgumentException("The commodity " + commodity + " is not part of the profile");
+        }
+        double sum = 0;
+        for (int ix = 0; ix < profile.size(); ix++) {
+            sum += profile.getValue(commodity, ix) * profile.getDurationMillis(ix);
+        }
+        long total = profile.getTotalDurationMillis();
+        return commodity.amount(Measure.valueOf(total == 0 ? 0 : sum / total, commodity.getFlowUnit()),
+                                Measure.valueOf(total, MS));
+    }
+
+    /**
+     * @param profile
+     *            The profile to integrate
+     * @param commodity
+     *            The commodity of which the amount is calculated
+     * @param offset
+     *            The start of the window
+     * @param duration
+     *            The duration of the window
+     * @return The total amount of the commodity in the window
+     * @throws IllegalArgumentException
+     *             When the commodity is not in the profile, or when the window does not fit in the profile
+     */
+    public static <BQ extends Quantity, FQ extends Quantity> Measurable<BQ> integrate(CommodityProfile profile,
+                                                                                       Commodity<BQ, FQ> commodity,
+                                                                                       Measurable<Duration> offset,
+                                                                                       Measurable<Duration> duration) {
+        return integrate(profile.subProfile(offset, duration), commodity);
+    }
+
+    /**
+     * Adds up many forecasts, e.g. of all the households in a portfolio. The means are added and the variances are
+     * combined in closed form, with the same correlation between each pair of forecasts:
+     *
+     * <pre>
+     * variance = (1 - correlation) * sum(variance_i) + correlation * sum(standardDeviation_i)^2
+     * </pre>
+     *
+     * A correlation of 0 means that the forecasts are independent, in which case the variances are simply added (see
+     * {@link UncertainMeasure#add(Measurable)}). With a correlation of 1 the standard deviations are added.
+     *
+     * @param profiles
+     *            The forecasts that should be added
+     * @param correlation
+     *            The correlation between the forecasts, between 0 and 1
+     * @return The sum of the forecasts, in the unit of the first one
+     * @throws IllegalArgumentException
+     *             When there are no profiles, when they do not have the same total duration or when the correlation is
+     *             not between 0 and 1
+     */
+    public static <Q extends Quantity> UncertainMeasurableProfile<Q>
+            sum(List<UncertainMeasurableProfile<Q>> profiles, double correlation) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("There should be at least one profile");
+        } else if (!(correlation >= 0 && correlation <= 1)) {
+            throw new IllegalArgumentException("The correlation should be between 0 and 1");
+        }
+        long[] ends = alignEndOffsets(profiles);
+        Unit<Q> unit = profiles.get(0).getUnit();
+        double[] means = new double[ends.length];
+        double[] variances = new double[ends.length];
+        double[] deviations = correlation > 0 ? new double[ends.length] : null;
+
+        for (UncertainMeasurableProfile<Q> profile : profiles) {
+            boolean sameUnit = profile.getUnit().equals(unit);
+            Conversion converter = UnitConverterCache.getConversion(profile.getUnit(), unit);
+            double factor = sameUnit ? 1 : converter.convert(1) - converter.convert(0);
+            int ix = 0;
+            for (int jx = 0; jx < ends.length; jx++) {
+                while (profile.getEndOffsetMillis(ix) < ends[jx]) {
+                    ix++;
+                }
+                double mean = profile.getMean(ix);
+                double variance = profile.getVariance(ix);
+                if (!sameUnit) {
+                    mean = converter.convert(mean);
+                    variance *= factor * factor;
+                }
+                means[jx] += mean;
+                variances[jx] += variance;
+                if (deviations != null) {
+                    deviations[jx] += Math.sqrt(variance);
+                }
+            }
+        }
+
+        if (deviations != null) {
+            for (int jx = 0; jx < ends.length; jx++) {
+                variances[jx] = (1 - correlation) * variances[jx] + correlation * deviations[jx] * deviations[jx];
+            }
+        }
+        return new UncertainMeasurableProfile<Q>(getDurations(ends), unit, means, variances);
+    }
+
+    /**
+     * @param profile
+     *            The forecast to scale
+     * @param factor
+     *            The factor with which the values are multiplied
+     * @return A forecast of which the means are multiplied by the factor and the variances by its square
+     */
+    public static <Q extends Quantity> UncertainMeasurableProfile<Q> scale(UncertainMeasurableProfile<Q> profile,
+                                                                           double factor) {
+        double[] means = new double[profile.size()];
+        double[] variances = new double[profile.size()];
+        long[] durations = new long[profile.size()];
+        for (int ix = 0; ix < means.length; ix++) {
+            means[ix] = factor * profile.getMean(ix);
+            variances[ix] = factor * factor * profile.getVariance(ix);
+            durations[ix] = profile.getDurationMillis(ix);
+        }
+        return new UncertainMeasurableProfile<Q>(durations, profile.getUnit(), means, variances);
+    }
+
+    private static CommodityProfile combine(List<CommodityProfile> profiles, double[] factors) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("There should be at least one profile");
+        }
+        long[] ends = alignEndOffsets(profiles);
+
+        CommoditySet.Builder commodities = CommoditySet.create();
+        for (CommodityProfile profile : profiles) {
+            for (Commodity<?, ?> commodity : profile.getCommodities()) {
+                commodities.add(commodity);
+            }
+        }
+        double[][] values = createValues(commodities.build(), ends.length);
+
+        for (int ix = 0; ix < profiles.size(); ix++) {
+            CommodityProfile profile = profiles.get(ix);
+            double factor = factors == null ? 1 : factors[ix];
+            for (int c = 0; c < COMMODITIES.length; c++) {
+                if (values[c] != null && profile.getCommodities().contains(COMMODITIES[c])) {
+                    accumulate(values[c], ends, profile, COMMODITIES[c], factor);
+                }
+            }
+        }
+        return create(ends, values);
+    }
+
+    /**
+     * Adds the values of a profile to the target, of which the elements end at the given (aligned) offsets.
+     */
+    private static void accumulate(double[] target,
+                                   long[] ends,
+                                   CommodityProfile profile,
+                                   Commodity<?, ?> commodity,
+                                   double factor) {
+        int ix = 0;
+        for (int jx = 0; jx < ends.length; jx++) {
+            while (profile.getEndOffsetMillis(ix) < ends[jx]) {
+                ix++;
+            }
+            target[jx] += factor * profile.getValue(commodity, ix);
+        }
+    }
+
+    /**
+     * @return All the offsets at which an element of one of the profiles ends, in order and without duplicates
+     */
+    private static long[] alignEndOffsets(List<? extends Profile<?>> profiles) {
+        long[] ends = getEndOffsets(profiles.get(0));
+        long total = profiles.get(0).getTotalDurationMillis();
+        for (int ix = 1; ix < profiles.size(); ix++) {
+            Profile<?> profile = profiles.get(ix);
+            if (profile.getTotalDurationMillis() != total) {
+                throw new IllegalArgumentException("The profiles should have the same total duration");
+            } else if (!hasEndOffsets(profile, ends)) {
+                ends = merge(ends, profile);
+            }
+        }
+        return ends;
+    }
+
+    private static long[] getEndOffsets(Profile<?> profile) {
+        long[] ends = new long[profile.size()];
+        for (int ix = 0; ix < ends.length; ix++) {
+            ends[ix] = profile.getEndOffsetMillis(ix);
+        }
+        return ends;
+    }
+
+    private static boolean hasEndOffsets(Profile<?> profile, long[] ends) {
+        if (profile.size() != ends.length) {
+            return false;
+        }
+        for (int ix = 0; ix < ends.length; ix++) {
+            if (profile.getEndOffsetMillis(ix) != ends[ix]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] merge(long[] ends, Profile<?> profile) {
+        long[] merged = new long[ends.length + profile.size()];
+        int count = 0, ix = 0, jx = 0;
+        while (ix < ends.length || jx < profile.size()) {
+            long next;
+            if (jx >= profile.size() || (ix < ends.length && ends[ix] <= profile.getEndOffsetMillis(jx))) {
+                next = ends[ix++];
+            } else {
+                next = profile.getEndOffsetMillis(jx++);
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    private static int indexOf(Commodity<?, ?> commodity) {
+        for (int c = 0; c < COMMODITIES.length; c++) {
+            if (COMMODITIES[c] == commodity) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Unknown commodity " + commodity);
+    }
+
+    private static double[][] createValues(CommoditySet commodities, int length) {
+        double[][] values = new double[COMMODITIES.length][];
+        for (int c = 0; c < COMMODITIES.length; c++) {
+            if (commodities.contains(COMMODITIES[c])) {
+                values[c] = new double[length];
+            }
+        }
+        return values;
+    }
+
+    private static long[] getDurations(long[] ends) {
+        long[] durations = new long[ends.length];
+        for (int ix = 0; ix < ends.length; ix++) {
+            durations[ix] = ix == 0 ? ends[0] : ends[ix] - ends[ix - 1];
+        }
+        return durations;
+    }
+
+    private static CommodityProfile create(long[] ends, double[][] values) {
+        return new CommodityProfile(getDurations(ends), values[0], values[1], values[2]);
+    }
+}
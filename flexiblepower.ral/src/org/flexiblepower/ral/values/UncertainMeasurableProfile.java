@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.measure.Measurable;
+import javax.measure.converter.UnitConverter;
 import javax.measure.quantity.Duration;
 import javax.measure.quantity.Quantity;
 import javax.measure.unit.Unit;
@@ -12,8 +13,19 @@ import javax.measure.unit.Unit;
  * This class is derived from {@link Profile}. By parameterizing this class with the billable quantity (BQ) and the flow
  * quantity (FQ) it can be validated whether all commodity profile elements are of the same commodity. CommodityProfile
  * does not have any additional attributes.
+ *
+ * The means, variances and bounds are only kept in primitive arrays in the unit of the first element, and the
+ * {@link UncertainMeasure}s are created when they are asked for. Use {@link #getMean(int)} and
+ * {@link #getVariance(int)} to read them without creating objects, and {@link ProfileMath#sum(List, double)} to add up
+ * many profiles.
  */
 public final class UncertainMeasurableProfile<Q extends Quantity> extends Profile<UncertainMeasure<Q>> {
+    /** The unit in which all the values are kept */
+    private final Unit<Q> unit;
+    private final double[] means, variances;
+    /** The bounds of the 68% and 95% ranges, which do not need to be symmetric */
+    private final double[] lower95, lower68, upper68, upper95;
+
     /**
      * The Builder object that will be used to easily create {@link UncertainMeasurableProfile}s.
      */
@@ -83,17 +95,118 @@ public final class UncertainMeasurableProfile<Q extends Quantity> extends Profil
      *            The elements that are stored in this profile
      */
     public UncertainMeasurableProfile(Element<UncertainMeasure<Q>>... elements) {
-        super(elements);
+        super(elements, false);
 
         // Check if profile is empty
         if (elements.length == 0) {
             throw new IllegalArgumentException("A CommodityProfile cannot be empty");
         }
+
+        unit = elements[0].getValue().getUnit();
+        means = new double[elements.length];
+        variances = new double[elements.length];
+        lower95 = new double[elements.length];
+        lower68 = new double[elements.length];
+        upper68 = new double[elements.length];
+        upper95 = new double[elements.length];
+        for (int ix = 0; ix < elements.length; ix++) {
+            UncertainMeasure<Q> measure = elements[ix].getValue();
+            UnitConverter converter = measure.getUnit().getConverterTo(unit);
+            means[ix] = converter.convert(measure.getMean().getValue());
+            lower95[ix] = converter.convert(measure.get95PPRLowerBound().getValue());
+            lower68[ix] = converter.convert(measure.get68PPRLowerBound().getValue());
+            upper68[ix] = converter.convert(measure.get68PPRUpperBound().getValue());
+            upper95[ix] = converter.convert(measure.get95PPRUpperBound().getValue());
+            // Just like UncertainMeasure#getStandardDeviation()
+            double standardDeviation = means[ix] - lower68[ix];
+            variances[ix] = standardDeviation * standardDeviation;
+        }
+    }
+
+    /**
+     * Creates a profile of normally distributed values directly from primitive arrays, which are not copied.
+     *
+     * @param durations
+     *            The durations of the elements in milliseconds
+     * @param unit
+     *            The unit of the values
+     * @param means
+     *            The means of the elements
+     * @param variances
+     *            The variances of the elements
+     */
+    UncertainMeasurableProfile(long[] durations, Unit<Q> unit, double[] means, double[] variances) {
+        super(durations);
+        if (durations.length == 0) {
+            throw new IllegalArgumentException("A CommodityProfile cannot be empty");
+        }
+        this.unit = unit;
+        this.means = means;
+        this.variances = variances;
+        lower95 = new double[means.length];
+        lower68 = new double[means.length];
+        upper68 = new double[means.length];
+        upper95 = new double[means.length];
+        for (int ix = 0; ix < means.length; ix++) {
+            double standardDeviation = Math.sqrt(variances[ix]);
+            lower95[ix] = means[ix] - 2 * standardDeviation;
+            lower68[ix] = means[ix] - standardDeviation;
+            upper68[ix] = means[ix] + standardDeviation;
+            upper95[ix] = means[ix] + 2 * standardDeviation;
+        }
+    }
+
+    private UncertainMeasurableProfile(UncertainMeasurableProfile<Q> source, long offsetMs, long durationMs) {
+        super(source, offsetMs, durationMs);
+        unit = source.unit;
+        means = source.means;
+        variances = source.variances;
+        lower95 = source.lower95;
+        lower68 = source.lower68;
+        upper68 = source.upper68;
+        upper95 = source.upper95;
+    }
+
+    /**
+     * @return The unit in which the values of this profile are kept
+     */
+    public Unit<Q> getUnit() {
+        return unit;
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The mean of the element in {@link #getUnit()}
+     */
+    public double getMean(int index) {
+        return means[getBaseIndex(index)];
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The variance of the element in {@link #getUnit()} squared. This assumes a normal distribution, just like
+     *         {@link UncertainMeasure#getStandardDeviation()}.
+     */
+    public double getVariance(int index) {
+        return variances[getBaseIndex(index)];
+    }
+
+    @Override
+    UncertainMeasure<Q> getBaseValue(int baseIndex) {
+        return new UncertainMeasure<Q>(lower95[baseIndex],
+                                       lower68[baseIndex],
+                                       means[baseIndex],
+                                       upper68[baseIndex],
+                                       upper95[baseIndex],
+                                       unit);
     }
 
     @Override
-    public Profile<UncertainMeasure<Q>> subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
-        // TODO Needs to be implemented
-        throw new UnsupportedOperationException();
+    public UncertainMeasurableProfile<Q> subProfile(Measurable<Duration> offset, Measurable<Duration> duration) {
+        return new UncertainMeasurableProfile<Q>(this,
+                                                 UnitConverterCache.longValue(offset, MS),
+                                                 UnitConverterCache.longValue(duration, MS));
     }
 }
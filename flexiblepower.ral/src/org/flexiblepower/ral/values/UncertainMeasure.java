@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 import javax.measure.Measurable;
 import javax.measure.Measure;
+import javax.measure.converter.UnitConverter;
 import javax.measure.quantity.Quantity;
 import javax.measure.unit.Unit;
 
@@ -134,11 +135,16 @@ public class UncertainMeasure<Q extends Quantity> implements Serializable, Measu
             UncertainMeasure<Q> that = (UncertainMeasure<Q>) other;
             // Assume normal distribution
             // See http://en.wikipedia.org/wiki/Sum_of_normally_distributed_random_variables
-            double thisSd = this.getStandardDeviation().doubleValue(unit);
-            double thatSd = that.getStandardDeviation().doubleValue(unit);
-            double newSd = Math.sqrt(Math.pow(thisSd, 2) + Math.pow(thatSd, 2));
-            double newMean = this.getMean().doubleValue(unit) + that.getMean().doubleValue(unit);
-            return new UncertainMeasure<Q>(newMean, newSd, unit);
+            double thisSd = mean - the68PPRLowerBound;
+            double thatMean = that.mean;
+            double thatSd = that.mean - that.the68PPRLowerBound;
+            if (!unit.equals(that.unit)) {
+                UnitConverter converter = that.unit.getConverterTo(unit);
+                thatMean = converter.convert(that.mean);
+                thatSd = thatMean - converter.convert(that.the68PPRLowerBound);
+            }
+            double newSd = Math.sqrt(thisSd * thisSd + thatSd * thatSd);
+            return new UncertainMeasure<Q>(mean + thatMean, newSd, unit);
         } else {
             // User add method from other
             return other.add(this);
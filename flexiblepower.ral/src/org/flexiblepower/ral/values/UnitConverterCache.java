@@ -0,0 +1,228 @@
+package org.flexiblepower.ral.values;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.converter.UnitConverter;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.Unit;
+
+/**
+ * A thread-safe cache of the conversions between units. Looking up a {@link UnitConverter} with
+ * {@link Unit#getConverterTo(Unit)} transforms both units to their standard units each time, which makes
+ * {@link Measurable#doubleValue(Unit)} expensive when it is called in a loop. This cache does the lookup once for each
+ * pair of units and keeps the result as a factor and an offset, see {@link Conversion}.
+ *
+ * The units in the hot paths are constants (such as {@link Profile#MS} or the default unit of a builder), so the cache
+ * is a small table of the recently used pairs of units, which are compared on identity. This avoids
+ * {@link Unit#equals(Object)} and {@link Unit#hashCode()}, which both walk through the structure of a unit and cost
+ * about as much as the conversion itself. Units that are created again for each value (e.g.
+ * <code>SI.KILO(SI.WATT)</code> in a loop) never hit the cache, so those should be kept in a constant.
+ *
+ * The static methods of this class can be used in place of {@link Measurable#doubleValue(Unit)},
+ * {@link Measurable#longValue(Unit)} and {@link Measurable#compareTo(Measurable)}. They give the same results, apart
+ * from rounding differences in the last digit. They only pay off for conversions that are expensive in JScience, such
+ * as the durations of the profiles in minutes or hours to {@link Profile#MS}. Cheap conversions, such as kW to W, are
+ * faster with {@link Measurable#doubleValue(Unit)} itself, so the value classes keep using that.
+ */
+public final class UnitConverterCache {
+    /**
+     * A conversion from one unit to another. Most conversions are affine (e.g. kW to W or degrees Celsius to Kelvin),
+     * those are applied as a primitive multiplication and addition. Other conversions (e.g. to a logarithmic unit) use
+     * the {@link UnitConverter} itself.
+     */
+    public static final class Conversion {
+        private final UnitConverter converter;
+        private final double factor, offset;
+        private final boolean affine;
+
+        Conversion(UnitConverter converter) {
+            this.converter = converter;
+            if (converter.isLinear()) {
+                offset = 0;
+                factor = converter.convert(1);
+                affine = true;
+            } else {
+                offset = converter.convert(0);
+                factor = converter.convert(1) - offset;
+                affine = isAffine(converter, factor, offset);
+            }
+        }
+
+        private static boolean isAffine(UnitConverter converter, double factor, double offset) {
+            for (double x : new double[] { -1000, 0.5, 1e6 }) {
+                double expected = converter.convert(x);
+                if (Math.abs(offset + factor * x - expected) > 1e-12 * Math.max(1, Math.abs(expected))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param value
+         *            The value in the source unit
+         * @return The value in the target unit
+         */
+        public double convert(double value) {
+            if (converter == UnitConverter.IDENTITY) {
+                return value;
+            }
+            return affine ? value * factor + offset : converter.convert(value);
+        }
+
+        /**
+         * @return true when both units are the same, so values do not change
+         */
+        public boolean isIdentity() {
+            return converter == UnitConverter.IDENTITY;
+        }
+
+        /**
+         * @return The factor with which a value is multiplied, or NaN when the conversion is not affine
+         */
+        public double getFactor() {
+            return affine ? factor : Double.NaN;
+        }
+
+        /**
+         * @return The offset that is added after the multiplication, or NaN when the conversion is not affine
+         */
+        public double getOffset() {
+            return affine ? offset : Double.NaN;
+        }
+    }
+
+    /** A conversion together with the instances of its units */
+    private static final class Entry {
+        final Unit<?> from, to;
+        final Conversion conversion;
+
+        Entry(Unit<?> from, Unit<?> to, Conversion conversion) {
+            this.from = from;
+            this.to = to;
+            this.conversion = conversion;
+        }
+    }
+
+    /**
+     * The recently used conversions. A new conversion replaces the oldest one. An entry is immutable, so reading an old
+     * entry from another thread is harmless.
+     */
+    private static final Entry[] recent = new Entry[16];
+    /** The slot in which the next new conversion is stored. Races only affect which entry is replaced. */
+    private static int nextSlot = 0;
+    /** The last conversion that has been used, which is checked first */
+    private static Entry last;
+
+    private UnitConverterCache() {
+    }
+
+    /**
+     * @param from
+     *            The unit to convert from
+     * @param to
+     *            The unit to convert to
+     * @return The (cached) conversion between the units
+     * @throws javax.measure.converter.ConversionException
+     *             When the units are not compatible
+     */
+    public static <Q extends Quantity> Conversion getConversion(Unit<Q> from, Unit<Q> to) {
+        Entry entry = last;
+        if (entry != null && entry.from == from && entry.to == to) {
+            return entry.conversion;
+        }
+        return find(from, to);
+    }
+
+    /**
+     * Looks for the conversion in the recently used conversions, or creates it. This is separate from
+     * {@link #getConversion(Unit, Unit)} to keep the check of the last conversion small enough to be inlined.
+     */
+    private static <Q extends Quantity> Conversion find(Unit<Q> from, Unit<Q> to) {
+        Entry entry;
+        for (int ix = 0; ix < recent.length; ix++) {
+            entry = recent[ix];
+            if (entry != null && entry.from == from && entry.to == to) {
+                last = entry;
+                return entry.conversion;
+            }
+        }
+        entry = new Entry(from, to, new Conversion(from.getConverterTo(to)));
+        int slot = nextSlot;
+        recent[slot] = entry;
+        nextSlot = (slot + 1) % recent.length;
+        last = entry;
+        return entry.conversion;
+    }
+
+    /**
+     * The same as {@link Measurable#doubleValue(Unit)}, but with a cached conversion when the value is a
+     * {@link Measure}.
+     *
+     * @param value
+     *            The value to convert
+     * @param unit
+     *            The unit in which the value should be expressed
+     * @return The value in the unit
+     */
+    public static <Q extends Quantity> double doubleValue(Measurable<Q> value, Unit<Q> unit) {
+        if (value instanceof Measure) {
+            Unit<Q> valueUnit = ((Measure<?, Q>) value).getUnit();
+            // In its own unit, Measure returns its value directly
+            if (valueUnit == unit) {
+                return value.doubleValue(unit);
+            }
+            return getConversion(valueUnit, unit).convert(value.doubleValue(valueUnit));
+        }
+        return value.doubleValue(unit);
+    }
+
+    /**
+     * The same as {@link Measurable#longValue(Unit)}, but with a cached conversion when the value is a {@link Measure}.
+     * Just like {@link Measure#longValue(Unit)} the converted value is rounded.
+     *
+     * @param value
+     *            The value to convert
+     * @param unit
+     *            The unit in which the value should be expressed
+     * @return The value in the unit
+     * @throws ArithmeticException
+     *             When the value can not be represented as a long
+     */
+    public static <Q extends Quantity> long longValue(Measurable<Q> value, Unit<Q> unit) {
+        if (value instanceof Measure) {
+            Unit<Q> valueUnit = ((Measure<?, Q>) value).getUnit();
+            if (valueUnit == unit) {
+                return value.longValue(unit);
+            }
+            Conversion conversion = getConversion(valueUnit, unit);
+            if (conversion.isIdentity()) {
+                return value.longValue(valueUnit);
+            }
+            double result = conversion.convert(value.doubleValue(valueUnit));
+            if (Double.isNaN(result) || result < Long.MIN_VALUE || result > Long.MAX_VALUE) {
+                throw new ArithmeticException(result + " " + unit + " cannot be represented as long");
+            }
+            return Math.round(result);
+        }
+        return value.longValue(unit);
+    }
+
+    /**
+     * The same as {@link Measurable#compareTo(Measurable)}, but with a cached conversion when the first value is a
+     * {@link Measure}.
+     *
+     * @param value
+     *            The first value
+     * @param other
+     *            The value to compare with
+     * @return A negative number, zero or a positive number when the first value is smaller, equal or bigger
+     */
+    public static <Q extends Quantity> int compare(Measurable<Q> value, Measurable<Q> other) {
+        if (value instanceof Measure) {
+            Unit<Q> unit = ((Measure<?, Q>) value).getUnit();
+            return Double.compare(value.doubleValue(unit), doubleValue(other, unit));
+        }
+        return value.compareTo(other);
+    }
+}
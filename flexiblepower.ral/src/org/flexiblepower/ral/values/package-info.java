@@ -1,7 +1,7 @@
 /**
  * The values that are used in the Resource Abstraction Interfaces (RAI) layer.
  */
-@Version("2.0.0.${qualifier}")
+@Version("2.1.0.${qualifier}")
 package org.flexiblepower.ral.values;
 
 import aQute.bnd.annotation.Version;
@@ -0,0 +1,114 @@
+package org.flexiblepower.ral.values.test;
+
+import static javax.measure.unit.NonSI.MINUTE;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityProfile;
+import org.flexiblepower.ral.values.ProfileMath;
+import org.flexiblepower.ral.values.UncertainMeasurableProfile;
+
+/**
+ * Measures the throughput of {@link ProfileMath} when aggregating household profiles. This is not a unit test, run the
+ * {@link #main(String[])} method manually.
+ *
+ * Each household has an electricity profile of a day. The aligned case uses 96 elements of 15 minutes for every
+ * household. In the misaligned case half of the households use elements of 10 minutes, so the boundaries have to be
+ * merged. Then the 1-minute sum of the households is resampled to 15 minutes. At last 1000 forecasts with a 1-minute
+ * resolution are added up, both as independent and as correlated forecasts.
+ */
+public class ProfileMathBenchmark {
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        int[] sizes = { 1000, 10000 };
+        // First a round to warm up the JIT
+        run(1000, false);
+        for (int size : sizes) {
+            run(size, true);
+        }
+    }
+
+    private static CommodityProfile createProfile(Random random, int minutes) {
+        CommodityProfile.Builder builder = CommodityProfile.create().duration(Measure.valueOf(minutes, MINUTE));
+        for (int ix = 0; ix < 24 * 60 / minutes; ix++) {
+            builder.electricity(Measure.valueOf(random.nextDouble() * 3000, WATT)).next();
+        }
+        return builder.build();
+    }
+
+    private static UncertainMeasurableProfile<Power> createForecast(Random random) {
+        UncertainMeasurableProfile.Builder<Power> builder = UncertainMeasurableProfile.create(WATT);
+        builder.duration(Measure.valueOf(1, MINUTE));
+        for (int ix = 0; ix < 24 * 60; ix++) {
+            double mean = random.nextDouble() * 3000;
+            builder.add(mean, mean * 0.1);
+        }
+        return builder.build();
+    }
+
+    private static void run(int size, boolean print) {
+        Random random = new Random(size);
+        List<CommodityProfile> aligned = new ArrayList<CommodityProfile>(size);
+        List<CommodityProfile> misaligned = new ArrayList<CommodityProfile>(size);
+        List<CommodityProfile> minutes = new ArrayList<CommodityProfile>(size);
+        for (int ix = 0; ix < size; ix++) {
+            aligned.add(createProfile(random, 15));
+            misaligned.add(createProfile(random, ix % 2 == 0 ? 15 : 10));
+            if (ix < 100) {
+                minutes.add(createProfile(random, 1));
+            }
+        }
+        List<UncertainMeasurableProfile<Power>> forecasts = new ArrayList<UncertainMeasurableProfile<Power>>();
+        for (int ix = 0; ix < 1000; ix++) {
+            forecasts.add(createForecast(random));
+        }
+
+        double check = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            check += ProfileMath.sum(aligned).getValue(Commodity.ELECTRICITY, 0);
+        }
+        long alignedTime = (System.nanoTime() - start) / ROUNDS;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            check += ProfileMath.sum(misaligned).getValue(Commodity.ELECTRICITY, 0);
+        }
+        long misalignedTime = (System.nanoTime() - start) / ROUNDS;
+
+        CommodityProfile minuteSum = ProfileMath.sum(minutes);
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            check += ProfileMath.resample(minuteSum, Measure.valueOf(15, MINUTE)).getValue(Commodity.ELECTRICITY, 0);
+        }
+        long resampleTime = (System.nanoTime() - start) / ROUNDS;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            check += ProfileMath.sum(forecasts, round % 2 == 0 ? 0 : 0.5).getVariance(0);
+        }
+        long forecastTime = (System.nanoTime() - start) / ROUNDS;
+
+        if (print) {
+            System.out.printf("%6d profiles: aligned sum %8.3f ms (%6.0f profiles/ms), "
+                                      + "misaligned sum %8.3f ms (%6.0f profiles/ms), "
+                                      + "resample %6.1f us, 1000 forecasts %6.3f ms [%.0f]%n",
+                              size,
+                              alignedTime / 1e6,
+                              size / (alignedTime / 1e6),
+                              misalignedTime / 1e6,
+                              size / (misalignedTime / 1e6),
+                              resampleTime / 1e3,
+                              forecastTime / 1e6,
+                              check);
+        }
+    }
+}
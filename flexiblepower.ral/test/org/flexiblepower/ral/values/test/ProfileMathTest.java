@@ -0,0 +1,148 @@
+package org.flexiblepower.ral.values.test;
+
+import static javax.measure.unit.NonSI.CUBIC_METRE_PER_SECOND;
+import static javax.measure.unit.NonSI.MINUTE;
+import static javax.measure.unit.SI.JOULE;
+import static javax.measure.unit.SI.KILO;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityProfile;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.Constraint;
+import org.flexiblepower.ral.values.ConstraintProfile;
+import org.flexiblepower.ral.values.ProfileMath;
+import org.flexiblepower.ral.values.UncertainMeasurableProfile;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+public class ProfileMathTest extends TestCase {
+    /** 100W for 10 minutes, 300W for 20 minutes */
+    private final CommodityProfile a = CommodityProfile.create()
+                                                       .duration(Measure.valueOf(10, MINUTE))
+                                                       .electricity(Measure.valueOf(100, WATT))
+                                                       .next()
+                                                       .duration(Measure.valueOf(20, MINUTE))
+                                                       .electricity(Measure.valueOf(300, WATT))
+                                                       .next()
+                                                       .build();
+
+    /** 3 elements of 10 minutes with both electricity and gas */
+    private final CommodityProfile b = CommodityProfile.create()
+                                                       .duration(Measure.valueOf(10, MINUTE))
+                                                       .electricity(Measure.valueOf(10, WATT))
+                                                       .gas(Measure.valueOf(1, CUBIC_METRE_PER_SECOND))
+                                                       .next()
+                                                       .electricity(Measure.valueOf(20, WATT))
+                                                       .next()
+                                                       .electricity(Measure.valueOf(30, WATT))
+                                                       .next()
+                                                       .build();
+
+    public void testSumAlignsBoundaries() {
+        CommodityProfile sum = ProfileMath.sum(a, b);
+
+        assertEquals(3, sum.size());
+        assertEquals(30 * 60000, sum.getTotalDurationMillis());
+        assertEquals(CommoditySet.create().addElectricity().addGas().build(), sum.getCommodities());
+        assertEquals(110, sum.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        assertEquals(320, sum.getValue(Commodity.ELECTRICITY, 1), 1e-9);
+        assertEquals(330, sum.getValue(Commodity.ELECTRICITY, 2), 1e-9);
+        assertEquals(1, sum.getValue(Commodity.GAS, 2), 1e-9);
+
+        CommodityProfile difference = ProfileMath.difference(a, b);
+        assertEquals(280, difference.getValue(Commodity.ELECTRICITY, 1), 1e-9);
+        assertEquals(-1, difference.getValue(Commodity.GAS, 1), 1e-9);
+
+        try {
+            ProfileMath.sum(a, a.subProfile(Measure.valueOf(0, MINUTE), Measure.valueOf(20, MINUTE)));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testScaleAndClip() {
+        CommodityProfile scaled = ProfileMath.scale(a, 2);
+        assertEquals(2, scaled.size());
+        assertEquals(600, scaled.getValue(Commodity.ELECTRICITY, 1), 1e-9);
+
+        ConstraintProfile<Power> limits = ConstraintProfile.<Power> create()
+                                                           .duration(Measure.valueOf(15, MINUTE))
+                                                           .add(new Constraint<Power>(150, 1000, WATT))
+                                                           .add(new Constraint<Power>(0, 200, WATT))
+                                                           .build();
+        CommodityProfile clipped = ProfileMath.clip(a, Commodity.ELECTRICITY, limits);
+        assertEquals(3, clipped.size());
+        assertEquals(150, clipped.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        assertEquals(300, clipped.getValue(Commodity.ELECTRICITY, 1), 1e-9);
+        assertEquals(200, clipped.getValue(Commodity.ELECTRICITY, 2), 1e-9);
+        assertEquals(5 * 60000, clipped.getDurationMillis(1));
+    }
+
+    public void testResampleAndIntegrate() {
+        CommodityProfile resampled = ProfileMath.resample(a, Measure.valueOf(15, MINUTE));
+        assertEquals(2, resampled.size());
+        assertEquals((100 * 10 + 300 * 5) / 15.0, resampled.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        assertEquals(300, resampled.getValue(Commodity.ELECTRICITY, 1), 1e-9);
+
+        double energy = (100 * 600 + 300 * 1200);
+        assertEquals(energy, ProfileMath.integrate(a, Commodity.ELECTRICITY).doubleValue(JOULE), 1e-6);
+        assertEquals(energy, ProfileMath.integrate(resampled, Commodity.ELECTRICITY).doubleValue(JOULE), 1e-6);
+        assertEquals(300 * 600,
+                     ProfileMath.integrate(a, Commodity.ELECTRICITY, Measure.valueOf(15, MINUTE),
+                                           Measure.valueOf(10, MINUTE))
+                                .doubleValue(JOULE),
+                     1e-6);
+    }
+
+    public void testSumForecasts() {
+        List<UncertainMeasurableProfile<Power>> forecasts = new ArrayList<UncertainMeasurableProfile<Power>>();
+        for (int ix = 0; ix < 4; ix++) {
+            forecasts.add(UncertainMeasurableProfile.create(WATT)
+                                                    .duration(Measure.valueOf(15, MINUTE))
+                                                    .add(100, 10)
+                                                    .add(200, 20)
+                                                    .build());
+        }
+        // The same forecast in kW, with elements of 10 minutes
+        forecasts.add(UncertainMeasurableProfile.create(KILO(WATT))
+                                                .duration(Measure.valueOf(10, MINUTE))
+                                                .add(0.1, 0.01)
+                                                .add(0.15, 0.015)
+                                                .add(0.2, 0.02)
+                                                .build());
+
+        UncertainMeasurableProfile<Power> independent = ProfileMath.sum(forecasts, 0);
+        assertEquals(WATT, independent.getUnit());
+        assertEquals(4, independent.size());
+        assertEquals(500, independent.getMean(0), 1e-9);
+        assertEquals(4 * 100 + 150, independent.getMean(1), 1e-9);
+        assertEquals(5 * 100, independent.getVariance(0), 1e-9);
+        UncertainMeasure<Power> measure = independent.get(3).getValue();
+        assertEquals(1000 + 2 * Math.sqrt(5 * 400), measure.get95PPRUpperBound().getValue(), 1e-9);
+
+        UncertainMeasurableProfile<Power> correlated = ProfileMath.sum(forecasts, 1);
+        assertEquals(50 * 50, correlated.getVariance(0), 1e-9);
+
+        UncertainMeasurableProfile<Power> scaled = ProfileMath.scale(independent, 2);
+        assertEquals(2000, scaled.getMean(3), 1e-9);
+        assertEquals(4 * 5 * 400, scaled.getVariance(3), 1e-9);
+
+        // The primitive sum matches the sum of the measures themselves
+        UncertainMeasure<Power> first = forecasts.get(0).get(0).getValue();
+        UncertainMeasure<Power> sum = (UncertainMeasure<Power>) first.add(forecasts.get(4).get(0).getValue());
+        assertEquals(200, sum.getMean().getValue(), 1e-9);
+        assertEquals(Math.sqrt(200), sum.getStandardDeviation().getValue(), 1e-9);
+        assertEquals(ProfileMath.sum(forecasts.subList(3, 5), 0).getVariance(0),
+                     Math.pow(sum.getStandardDeviation().getValue(), 2),
+                     1e-9);
+    }
+}
@@ -0,0 +1,209 @@
+package org.flexiblepower.ral.values.test;
+
+import static javax.measure.unit.SI.KILO;
+import static javax.measure.unit.SI.SECOND;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.Iterator;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Power;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommodityProfile;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.Constraint;
+import org.flexiblepower.ral.values.ConstraintProfile;
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.Profile.Element;
+import org.flexiblepower.ral.values.UncertainMeasurableProfile;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+public class ProfileTest extends TestCase {
+    private static CommodityProfile createProfile() {
+        return CommodityProfile.create()
+                               .duration(Measure.valueOf(10, SECOND))
+                               .electricity(Measure.valueOf(1, KILO(WATT)))
+                               .next()
+                               .electricity(Measure.valueOf(200, WATT))
+                               .next()
+                               .duration(Measure.valueOf(30, SECOND))
+                               .electricity(Measure.valueOf(-300, WATT))
+                               .next()
+                               .build();
+    }
+
+    public void testOffsets() {
+        CommodityProfile profile = createProfile();
+
+        assertEquals(3, profile.size());
+        assertEquals(50000, profile.getTotalDurationMillis());
+        assertEquals(50000, profile.getTotalDuration().longValue(Profile.MS));
+        assertEquals(20000, profile.getStartOffsetMillis(2));
+        assertEquals(30000, profile.getDurationMillis(2));
+
+        assertEquals(0, profile.getIndexAtOffset(0));
+        assertEquals(0, profile.getIndexAtOffset(10000));
+        assertEquals(1, profile.getIndexAtOffset(10001));
+        assertEquals(2, profile.getIndexAtOffset(50000));
+        assertEquals(-1, profile.getIndexAtOffset(50001));
+        assertSame(null, profile.getElementAtOffset(Measure.valueOf(51, SECOND)));
+        assertEquals(profile.get(1), profile.getElementAtOffset(Measure.valueOf(15, SECOND)));
+
+        try {
+            profile.getIndexAtOffset(-1);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testCommodityValues() {
+        CommodityProfile profile = createProfile();
+
+        assertEquals(CommoditySet.onlyElectricity, profile.getCommodities());
+        assertEquals(1000, profile.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        assertEquals(-300, profile.getValue(Commodity.ELECTRICITY, 2), 1e-9);
+        assertEquals(200, profile.get(1).getValue().get(Commodity.ELECTRICITY).doubleValue(WATT), 1e-9);
+        assertEquals(10000, profile.get(1).getDuration().longValue(Profile.MS));
+        assertEquals(CommoditySet.onlyElectricity, profile.get(1).getValue().keySet());
+
+        try {
+            profile.getValue(Commodity.GAS, 0);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testElementsAreCreatedOnDemand() {
+        CommodityMeasurables value = CommodityMeasurables.create().electricity(Measure.valueOf(1, WATT)).build();
+        Element<CommodityMeasurables> element = new Element<CommodityMeasurables>(Measure.valueOf(10, SECOND), value);
+        CommodityProfile profile = new CommodityProfile(element, element);
+
+        // Only the values are kept, the elements are created in milliseconds and in the flow unit
+        assertNotSame(element, profile.get(1));
+        assertEquals(Profile.MS, ((Measure<?, Duration>) profile.get(1).getDuration()).getUnit());
+        assertEquals(10000, profile.get(1).getDuration().longValue(Profile.MS));
+        assertEquals(1, profile.get(1).getValue().get(Commodity.ELECTRICITY).doubleValue(WATT), 1e-9);
+
+        // Two profiles are equal when they have the same durations and values
+        assertEquals(profile.get(0), profile.get(1));
+        assertEquals(profile, new CommodityProfile(element, element));
+        assertEquals(profile.hashCode(), new CommodityProfile(element, element).hashCode());
+        assertFalse(profile.equals(createProfile()));
+        assertEquals(Duration.UNIT, ((Measure<?, Duration>) profile.getTotalDuration()).getUnit());
+        assertEquals(20, profile.getTotalDuration().doubleValue(SECOND), 1e-9);
+
+        // A view only differs at its boundaries
+        CommodityProfile full = createProfile();
+        CommodityProfile view = full.subProfile(Measure.valueOf(5, SECOND), Measure.valueOf(20, SECOND));
+        assertEquals(full.get(1), view.get(1));
+        assertFalse(full.get(0).equals(view.get(0)));
+        assertEquals(Duration.UNIT, ((Measure<?, Duration>) view.getTotalDuration()).getUnit());
+        assertEquals(20, view.getTotalDuration().doubleValue(SECOND), 1e-9);
+    }
+
+    public void testMixedCommoditiesAreRejected() {
+        try {
+            CommodityProfile.create()
+                            .duration(Measure.valueOf(10, SECOND))
+                            .electricity(Measure.valueOf(1, WATT))
+                            .next()
+                            .add(CommodityMeasurables.create().heat(Measure.valueOf(1, WATT)).build())
+                            .build();
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testConstraintProfile() {
+        ConstraintProfile<Power> profile = ConstraintProfile.<Power> create()
+                                                            .duration(Measure.valueOf(1, SECOND))
+                                                            .add(new Constraint<Power>(0, 500, WATT))
+                                                            .add(new Constraint<Power>(Measure.valueOf(1,
+                                                                                                       KILO(WATT))))
+                                                            .build();
+
+        assertEquals(2000, profile.getTotalDurationMillis());
+        assertEquals(new Constraint<Power>(0, 500, WATT), profile.get(0).getValue());
+        assertEquals(1000, profile.get(1).getValue().getLowerBound().doubleValue(WATT), 1e-9);
+        assertEquals(1000, profile.get(1).getValue().getUpperBound().doubleValue(WATT), 1e-9);
+    }
+
+    public void testSubProfile() {
+        // Elements of 10s, 10s and 30s: the view from 5s to 25s cuts the first and the last element
+        CommodityProfile profile = createProfile().subProfile(Measure.valueOf(5, SECOND), Measure.valueOf(20, SECOND));
+
+        assertEquals(3, profile.size());
+        assertEquals(20000, profile.getTotalDurationMillis());
+        assertEquals(5000, profile.getDurationMillis(0));
+        assertEquals(10000, profile.getDurationMillis(1));
+        assertEquals(5000, profile.getDurationMillis(2));
+        assertEquals(15000, profile.getStartOffsetMillis(2));
+        assertEquals(1000, profile.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        assertEquals(-300, profile.get(2).getValue().get(Commodity.ELECTRICITY).doubleValue(WATT), 1e-9);
+        assertEquals(5000, profile.get(2).getDuration().longValue(Profile.MS));
+        assertEquals(0, profile.getIndexAtOffset(5000));
+        assertEquals(2, profile.getIndexAtOffset(20000));
+        assertEquals(-1, profile.getIndexAtOffset(20001));
+
+        // A view on a view, starting at the boundary of two elements
+        CommodityProfile last = profile.subProfile(Measure.valueOf(15, SECOND), Measure.valueOf(5, SECOND));
+        assertEquals(1, last.size());
+        assertEquals(-300, last.getValue(Commodity.ELECTRICITY, 0), 1e-9);
+        try {
+            last.get(1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+
+        try {
+            profile.subProfile(Measure.valueOf(10, SECOND), Measure.valueOf(11, SECOND));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSlidingWindow() {
+        Iterator<Profile<CommodityMeasurables>> windows = createProfile().slidingWindow(Measure.valueOf(20, SECOND),
+                                                                                        Measure.valueOf(15, SECOND));
+        int count = 0;
+        while (windows.hasNext()) {
+            Profile<CommodityMeasurables> window = windows.next();
+            assertEquals(20000, window.getTotalDurationMillis());
+            long total = 0;
+            for (Element<CommodityMeasurables> element : window) {
+                total += element.getDuration().longValue(Profile.MS);
+            }
+            assertEquals(20000, total);
+            count++;
+        }
+        // Windows at 0s, 15s and 30s
+        assertEquals(3, count);
+    }
+
+    public void testUncertainBoundsAreKept() {
+        UncertainMeasurableProfile<Power> profile = UncertainMeasurableProfile.create(WATT)
+                                                                              .duration(Measure.valueOf(10, SECOND))
+                                                                              .add(0, 50, 100, 300, 600)
+                                                                              .build();
+        UncertainMeasure<Power> value = profile.get(0).getValue();
+
+        // An asymmetric distribution keeps its bounds, only the variance assumes a normal distribution
+        assertEquals(0, value.get95PPRLowerBound().doubleValue(WATT), 1e-9);
+        assertEquals(50, value.get68PPRLowerBound().doubleValue(WATT), 1e-9);
+        assertEquals(100, value.getMean().doubleValue(WATT), 1e-9);
+        assertEquals(300, value.get68PPRUpperBound().doubleValue(WATT), 1e-9);
+        assertEquals(600, value.get95PPRUpperBound().doubleValue(WATT), 1e-9);
+        assertEquals(50 * 50, profile.getVariance(0), 1e-9);
+    }
+}
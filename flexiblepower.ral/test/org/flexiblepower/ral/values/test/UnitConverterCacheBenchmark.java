@@ -0,0 +1,116 @@
+package org.flexiblepower.ral.values.test;
+
+import static javax.measure.unit.NonSI.MINUTE;
+import static javax.measure.unit.SI.KILO;
+import static javax.measure.unit.SI.WATT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.quantity.Power;
+import javax.measure.unit.Unit;
+
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.UnitConverterCache;
+
+/**
+ * Compares {@link Measurable#doubleValue(javax.measure.unit.Unit)} with {@link UnitConverterCache} on the conversions
+ * that are used most: a power in kW to W and a duration in minutes to milliseconds. This is not a unit test, run the
+ * {@link #main(String[])} method manually.
+ *
+ * The powers use a single kW unit, like the default unit of a builder. The last case creates a new kW unit for each
+ * value, which never hits the cache.
+ */
+public class UnitConverterCacheBenchmark {
+    private static final int SIZE = 100000;
+    private static final int ROUNDS = 50;
+    private static final Unit<Power> KILOWATT = KILO(WATT);
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        List<Measurable<Power>> powers = new ArrayList<Measurable<Power>>(SIZE);
+        List<Measurable<Duration>> durations = new ArrayList<Measurable<Duration>>(SIZE);
+        List<Measurable<Power>> newUnits = new ArrayList<Measurable<Power>>(SIZE);
+        for (int ix = 0; ix < SIZE; ix++) {
+            powers.add(Measure.valueOf(random.nextDouble() * 10, KILOWATT));
+            durations.add(Measure.valueOf(random.nextInt(60), MINUTE));
+            newUnits.add(Measure.valueOf(random.nextDouble() * 10, KILO(WATT)));
+        }
+
+        // First a round to warm up the JIT
+        run(powers, durations, newUnits, false);
+        run(powers, durations, newUnits, true);
+    }
+
+    private static void run(List<Measurable<Power>> powers,
+                            List<Measurable<Duration>> durations,
+                            List<Measurable<Power>> newUnits,
+                            boolean print) {
+        double check = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Power> power : powers) {
+                check += power.doubleValue(WATT);
+            }
+        }
+        long measurablePower = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Power> power : powers) {
+                check += UnitConverterCache.doubleValue(power, WATT);
+            }
+        }
+        long cachedPower = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Duration> duration : durations) {
+                check += duration.longValue(Profile.MS);
+            }
+        }
+        long measurableDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Duration> duration : durations) {
+                check += UnitConverterCache.longValue(duration, Profile.MS);
+            }
+        }
+        long cachedDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Power> power : newUnits) {
+                check += power.doubleValue(WATT);
+            }
+        }
+        long measurableNewUnit = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurable<Power> power : newUnits) {
+                check += UnitConverterCache.doubleValue(power, WATT);
+            }
+        }
+        long cachedNewUnit = System.nanoTime() - start;
+
+        if (print) {
+            double conversions = (double) SIZE * ROUNDS;
+            System.out.printf("kW to W:          measurable %6.1f ns, cached %6.1f ns%n",
+                              measurablePower / conversions,
+                              cachedPower / conversions);
+            System.out.printf("min to ms:        measurable %6.1f ns, cached %6.1f ns%n",
+                              measurableDuration / conversions,
+                              cachedDuration / conversions);
+            System.out.printf("new kW unit to W: measurable %6.1f ns, cached %6.1f ns [%.0f]%n",
+                              measurableNewUnit / conversions,
+                              cachedNewUnit / conversions,
+                              check);
+        }
+    }
+}
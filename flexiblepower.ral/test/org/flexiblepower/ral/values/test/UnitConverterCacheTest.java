@@ -0,0 +1,56 @@
+package org.flexiblepower.ral.values.test;
+
+import static javax.measure.unit.NonSI.HOUR;
+import static javax.measure.unit.SI.CELSIUS;
+import static javax.measure.unit.SI.KELVIN;
+import static javax.measure.unit.SI.KILO;
+import static javax.measure.unit.SI.WATT;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.ral.values.Profile;
+import org.flexiblepower.ral.values.UncertainMeasure;
+import org.flexiblepower.ral.values.UnitConverterCache;
+import org.flexiblepower.ral.values.UnitConverterCache.Conversion;
+
+public class UnitConverterCacheTest extends TestCase {
+    private static final Unit<Power> KILOWATT = KILO(WATT);
+
+    public void testAffineConversions() {
+        Conversion kilowatt = UnitConverterCache.getConversion(KILOWATT, WATT);
+        assertSame(kilowatt, UnitConverterCache.getConversion(KILOWATT, WATT));
+        assertTrue(UnitConverterCache.getConversion(KILO(WATT), KILOWATT).isIdentity());
+        assertEquals(1000, kilowatt.getFactor(), 1e-12);
+        assertEquals(0, kilowatt.getOffset(), 1e-12);
+        assertEquals(2500, kilowatt.convert(2.5), 1e-9);
+
+        Conversion celsius = UnitConverterCache.getConversion(CELSIUS, KELVIN);
+        assertEquals(1, celsius.getFactor(), 1e-12);
+        assertEquals(273.15, celsius.getOffset(), 1e-9);
+        assertEquals(293.15, UnitConverterCache.doubleValue(Measure.valueOf(20, CELSIUS), KELVIN), 1e-9);
+    }
+
+    public void testSameResultsAsMeasurable() {
+        Measurable<Power> value = Measure.valueOf(1.5, KILO(WATT));
+        assertEquals(value.doubleValue(WATT), UnitConverterCache.doubleValue(value, WATT), 1e-9);
+        assertEquals(1.5, UnitConverterCache.doubleValue(value, KILO(WATT)), 0);
+        assertEquals(Measure.valueOf(2, HOUR).longValue(Profile.MS),
+                     UnitConverterCache.longValue(Measure.valueOf(2, HOUR), Profile.MS));
+        assertEquals(3, UnitConverterCache.longValue(Measure.valueOf(2.5, WATT), WATT));
+        assertEquals(3, UnitConverterCache.longValue(Measure.valueOf(0.0025, KILO(WATT)), WATT));
+
+        assertTrue(UnitConverterCache.compare(value, Measure.valueOf(1400, WATT)) > 0);
+        assertTrue(UnitConverterCache.compare(Measure.valueOf(1400, WATT), value) < 0);
+        assertEquals(0, UnitConverterCache.compare(value, Measure.valueOf(1500, WATT)));
+
+        // Other measurables convert themselves
+        UncertainMeasure<Power> uncertain = new UncertainMeasure<Power>(2, 0.1, KILO(WATT));
+        assertEquals(2000, UnitConverterCache.doubleValue(uncertain, WATT), 1e-9);
+        assertTrue(UnitConverterCache.compare(uncertain, value) > 0);
+    }
+}
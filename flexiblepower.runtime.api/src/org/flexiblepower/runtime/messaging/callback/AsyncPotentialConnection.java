@@ -0,0 +1,21 @@
+package org.flexiblepower.runtime.messaging.callback;
+
+import java.util.concurrent.Future;
+
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.MessageHandler;
+
+/**
+ * The {@link PotentialConnection}s of this runtime implement this interface, so the caller can disconnect without
+ * blocking in {@link PotentialConnection#disconnect()}.
+ */
+public interface AsyncPotentialConnection extends PotentialConnection {
+    /**
+     * Disconnects the ports without waiting for the endpoints. The {@link MessageHandler#disconnected()} calls are
+     * queued after the messages that the endpoints still have to handle.
+     *
+     * @return The future that completes when both endpoints have handled the disconnect. It can't be cancelled. When
+     *         the ports were not connected, it has already completed.
+     */
+    Future<Void> disconnectAsync();
+}
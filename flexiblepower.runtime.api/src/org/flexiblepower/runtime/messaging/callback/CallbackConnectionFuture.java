@@ -0,0 +1,21 @@
+package org.flexiblepower.runtime.messaging.callback;
+
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager;
+
+/**
+ * The {@link ConnectionFuture}s that are returned by
+ * {@link ConnectionManager#asyncConnectEndpointPorts(String, String, String, String)} of this runtime implement this
+ * interface, so the caller can be notified of the connection instead of blocking in
+ * {@link ConnectionFuture#awaitConnection()}.
+ */
+public interface CallbackConnectionFuture extends ConnectionFuture {
+    /**
+     * Adds a callback that is called when this future completes. When the future has already completed, the callback
+     * is called immediately on the calling thread.
+     *
+     * @param callback
+     *            The callback that should be called
+     */
+    void addCallback(ConnectionCallback callback);
+}
@@ -0,0 +1,24 @@
+package org.flexiblepower.runtime.messaging.callback;
+
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+
+/**
+ * A {@link ConnectionCallback} is called when a {@link CallbackConnectionFuture} completes. It is called exactly once,
+ * either with {@link #connected(PotentialConnection)} or with {@link #cancelled()}. This happens on the thread that
+ * completes the future, which could be the thread that registers an endpoint, so the implementation should return
+ * quickly.
+ */
+public interface ConnectionCallback {
+    /**
+     * Called when the connection has been established.
+     *
+     * @param connection
+     *            The connection that has been connected
+     */
+    void connected(PotentialConnection connection);
+
+    /**
+     * Called when the future has been cancelled before the connection could be established.
+     */
+    void cancelled();
+}
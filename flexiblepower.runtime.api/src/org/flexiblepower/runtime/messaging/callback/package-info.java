@@ -0,0 +1,3 @@
+@Version("1.0.0.${qualifier}")
+package org.flexiblepower.runtime.messaging.callback;
+import aQute.bnd.annotation.Version;
@@ -0,0 +1,102 @@
+package org.flexiblepower.scheduling.metrics;
+
+/**
+ * A snapshot of a histogram of non-negative values. The percentiles have a relative precision of about 6%.
+ */
+public final class HistogramSnapshot {
+    private final long count;
+    private final long min;
+    private final long max;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+
+    public HistogramSnapshot(long count, long min, long max, double mean, long p50, long p90, long p99, long p999) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The lowest recorded value, or 0 when there are no values.
+     */
+    public long getMin() {
+        return min;
+    }
+
+    /**
+     * @return The highest recorded value, or 0 when there are no values.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 when there are no values.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The median of the recorded values.
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * @return The 90th percentile of the recorded values.
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * @return The 99th percentile of the recorded values.
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return The 99.9th percentile of the recorded values.
+     */
+    public long getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot [count=" + count
+               + ", min="
+               + min
+               + ", max="
+               + max
+               + ", mean="
+               + mean
+               + ", p50="
+               + p50
+               + ", p90="
+               + p90
+               + ", p99="
+               + p99
+               + ", p999="
+               + p999
+               + "]";
+    }
+}
@@ -0,0 +1,91 @@
+package org.flexiblepower.scheduling.metrics;
+
+/**
+ * A snapshot of the metrics of a single job that is scheduled.
+ */
+public final class JobMetrics {
+    private final String description;
+    private final long timeOfNextRun;
+    private final long executions;
+    private final long lateExecutions;
+    private final long totalRunTime;
+    private final long maxRunTime;
+
+    public JobMetrics(String description,
+                      long timeOfNextRun,
+                      long executions,
+                      long lateExecutions,
+                      long totalRunTime,
+                      long maxRunTime) {
+        this.description = description;
+        this.timeOfNextRun = timeOfNextRun;
+        this.executions = executions;
+        this.lateExecutions = lateExecutions;
+        this.totalRunTime = totalRunTime;
+        this.maxRunTime = maxRunTime;
+    }
+
+    /**
+     * @return The description of the job, which is based on the toString of the task.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) at which the job will run next.
+     */
+    public long getTimeOfNextRun() {
+        return timeOfNextRun;
+    }
+
+    /**
+     * @return The number of times that this job has been executed. This will only be more than 0 for repeating jobs.
+     */
+    public long getExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return The number of times that this job started too late.
+     */
+    public long getLateExecutions() {
+        return lateExecutions;
+    }
+
+    /**
+     * @return The total number of microseconds that the executions of this job took.
+     */
+    public long getTotalRunTime() {
+        return totalRunTime;
+    }
+
+    /**
+     * @return The number of microseconds of the longest execution of this job.
+     */
+    public long getMaxRunTime() {
+        return maxRunTime;
+    }
+
+    /**
+     * @return The average number of microseconds that an execution of this job took, or 0 when it has not been
+     *         executed yet.
+     */
+    public long getMeanRunTime() {
+        return executions == 0 ? 0 : totalRunTime / executions;
+    }
+
+    @Override
+    public String toString() {
+        return "JobMetrics [description=" + description
+               + ", executions="
+               + executions
+               + ", lateExecutions="
+               + lateExecutions
+               + ", meanRunTime="
+               + getMeanRunTime()
+               + ", maxRunTime="
+               + maxRunTime
+               + "]";
+    }
+}
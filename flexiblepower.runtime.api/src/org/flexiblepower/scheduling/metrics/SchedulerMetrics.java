@@ -0,0 +1,110 @@
+package org.flexiblepower.scheduling.metrics;
+
+import java.util.List;
+
+/**
+ * A snapshot of the metrics of a single scheduler, since it has been created.
+ */
+public final class SchedulerMetrics {
+    private final String name;
+    private final long executedJobs;
+    private final long lateJobs;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final HistogramSnapshot lateness;
+    private final HistogramSnapshot runTime;
+    private final List<JobMetrics> jobs;
+
+    public SchedulerMetrics(String name,
+                            long executedJobs,
+                            long lateJobs,
+                            int queueDepth,
+                            int maxQueueDepth,
+                            HistogramSnapshot lateness,
+                            HistogramSnapshot runTime,
+                            List<JobMetrics> jobs) {
+        this.name = name;
+        this.executedJobs = executedJobs;
+        this.lateJobs = lateJobs;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.lateness = lateness;
+        this.runTime = runTime;
+        this.jobs = jobs;
+    }
+
+    /**
+     * @return The name of the scheduler, which is the name of its thread (or lane when it runs on a shared pool).
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of times that a job has been executed.
+     */
+    public long getExecutedJobs() {
+        return executedJobs;
+    }
+
+    /**
+     * @return The number of times that a job started too late, see {@link #getLateness()}.
+     */
+    public long getLateJobs() {
+        return lateJobs;
+    }
+
+    /**
+     * @return The number of jobs that are currently scheduled.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The highest number of jobs that have been scheduled at the same time.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return The distribution of the number of milliseconds between the planned time of a job and the moment that it
+     *         actually started.
+     */
+    public HistogramSnapshot getLateness() {
+        return lateness;
+    }
+
+    /**
+     * @return The distribution of the number of microseconds that the execution of a job took.
+     */
+    public HistogramSnapshot getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * @return The metrics of each job that is currently scheduled, in the order in which they will be executed.
+     */
+    public List<JobMetrics> getJobs() {
+        return jobs;
+    }
+
+    @Override
+    public String toString() {
+        return "SchedulerMetrics [name=" + name
+               + ", executedJobs="
+               + executedJobs
+               + ", lateJobs="
+               + lateJobs
+               + ", queueDepth="
+               + queueDepth
+               + ", maxQueueDepth="
+               + maxQueueDepth
+               + ", lateness="
+               + lateness
+               + ", runTime="
+               + runTime
+               + "]";
+    }
+}
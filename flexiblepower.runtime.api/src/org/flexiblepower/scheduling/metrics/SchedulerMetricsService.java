@@ -0,0 +1,15 @@
+package org.flexiblepower.scheduling.metrics;
+
+import java.util.List;
+
+/**
+ * The {@link SchedulerMetricsService} gives insight in how well the schedulers of the runtime keep up with their jobs.
+ * Each bundle that uses the runtime has its own scheduler, so these metrics can be used to find the bundle that is
+ * starving its own scheduler.
+ */
+public interface SchedulerMetricsService {
+    /**
+     * @return A snapshot of the metrics of each scheduler that is currently running.
+     */
+    List<SchedulerMetrics> getSchedulerMetrics();
+}
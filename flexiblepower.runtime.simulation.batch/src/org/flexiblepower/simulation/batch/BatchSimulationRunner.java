@@ -0,0 +1,235 @@
+package org.flexiblepower.simulation.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.flexiblepower.efi.uncontrolled.UncontrolledMeasurement;
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.batch.api.BatchSimulation;
+import org.flexiblepower.simulation.batch.api.Scenario;
+import org.flexiblepower.simulation.batch.api.ScenarioParticipant;
+import org.flexiblepower.simulation.batch.api.ScenarioResult;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.ConfigurationPolicy;
+import aQute.bnd.annotation.component.Reference;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta;
+
+/**
+ * The {@link BatchSimulationRunner} runs the scenarios of a batch on the {@link Simulation} in fast-forward mode. While
+ * a batch is running, it listens to the {@link UncontrolledMeasurement}s on the message bus and integrates the measured
+ * flows into totals per endpoint and commodity.
+ */
+@Component(designate = BatchSimulationRunner.Config.class,
+           configurationPolicy = ConfigurationPolicy.optional,
+           provide = BatchSimulation.class)
+public class BatchSimulationRunner implements BatchSimulation {
+    private static final Logger logger = LoggerFactory.getLogger(BatchSimulationRunner.class);
+
+    private static final String HEADER = "scenario,endpoint,commodity,amount,unit,status";
+
+    @Meta.OCD(name = "Batch Simulation Configuration",
+              description = "Runs simulation scenarios back to back in fast-forward mode")
+    public interface Config {
+        @Meta.AD(deflt = "3600000",
+                 description = "The maximum time in milliseconds (wall clock) that a single scenario may take. "
+                               + "When a scenario takes longer, it is stopped and recorded as failed and the rest "
+                               + "of the batch is skipped",
+                 required = false)
+        long scenarioTimeout();
+    }
+
+    /**
+     * Passes the {@link UncontrolledMeasurement}s to the meter of the scenario that is running. This is only
+     * registered as a {@link MessageListener} while a batch is running.
+     */
+    @Filter(UncontrolledMeasurement.class)
+    static final class MeasurementListener implements MessageListener {
+        /** The meter of the scenario that is running, or null between the scenarios */
+        volatile EnergyMeter meter;
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            EnergyMeter meter = this.meter;
+            if (meter != null && message instanceof UncontrolledMeasurement) {
+                UncontrolledMeasurement measurement = (UncontrolledMeasurement) message;
+                meter.measure(from.getEndpoint().getPid(),
+                              measurement.getValidFrom().getTime(),
+                              measurement.getMeasurable());
+            }
+        }
+    }
+
+    private volatile Simulation simulation;
+    private final List<ScenarioParticipant> participants = new CopyOnWriteArrayList<ScenarioParticipant>();
+
+    private BundleContext bundleContext;
+    private long scenarioTimeout;
+
+    @Activate
+    public void activate(BundleContext bundleContext, Map<String, Object> properties) {
+        Config config = Configurable.createConfigurable(Config.class, properties);
+        this.bundleContext = bundleContext;
+        scenarioTimeout = config.scenarioTimeout();
+    }
+
+    @Reference
+    public void setSimulation(Simulation simulation) {
+        this.simulation = simulation;
+    }
+
+    @Reference(dynamic = true, multiple = true, optional = true)
+    public void addScenarioParticipant(ScenarioParticipant participant) {
+        participants.add(participant);
+    }
+
+    public void removeScenarioParticipant(ScenarioParticipant participant) {
+        participants.remove(participant);
+    }
+
+    @Override
+    public synchronized List<ScenarioResult> runScenarios(List<Scenario> scenarios,
+                                                          File resultsFile) throws IOException, InterruptedException {
+        if (simulation.getSimulationClockState() != Simulation.State.STOPPED) {
+            throw new IllegalStateException("The batch can only be started when the simulation is stopped");
+        }
+
+        Writer writer = null;
+        boolean fastForward = simulation.isFastForward();
+        MeasurementListener listener = new MeasurementListener();
+        ServiceRegistration<MessageListener> registration = bundleContext.registerService(MessageListener.class,
+                                                                                          listener,
+                                                                                          null);
+        try {
+            if (resultsFile != null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultsFile), "UTF-8"));
+                writer.write(HEADER);
+                writer.write('\n');
+            }
+
+            simulation.setFastForward(true);
+            List<ScenarioResult> results = new ArrayList<ScenarioResult>(scenarios.size());
+            for (Scenario scenario : scenarios) {
+                ScenarioResult result = runScenario(scenario, listener);
+                results.add(result);
+                if (writer != null) {
+                    write(writer, result);
+                    writer.flush();
+                }
+                if (!result.isFinished()) {
+                    logger.error("The scenario {} did not finish within {}ms, skipping the rest of the batch",
+                                 scenario.getName(),
+                                 scenarioTimeout);
+                    break;
+                }
+            }
+            return results;
+        } finally {
+            registration.unregister();
+            simulation.setFastForward(fastForward);
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private ScenarioResult runScenario(Scenario scenario, MeasurementListener listener) throws InterruptedException {
+        if (simulation.getSimulationClockState() != Simulation.State.STOPPED) {
+            throw new IllegalStateException("The simulation is not stopped at the start of " + scenario.getName());
+        }
+        logger.debug("Starting {}", scenario);
+        for (ScenarioParticipant participant : participants) {
+            participant.prepareScenario(scenario);
+        }
+
+        EnergyMeter meter = new EnergyMeter();
+        listener.meter = meter;
+        long wallStart = System.currentTimeMillis();
+        if (scenario.getCheckpoint() != null) {
+            simulation.startSimulation(scenario.getCheckpoint(), scenario.getStopTime(), 1);
+        } else {
+            simulation.startSimulation(scenario.getStartTime(), scenario.getStopTime(), 1);
+        }
+        boolean finished = false;
+        try {
+            // In fast-forward mode the simulation only stops after all the messages have been delivered
+            finished = simulation.waitUntilStopped(scenarioTimeout);
+        } finally {
+            listener.meter = null;
+            if (!finished) {
+                simulation.stopSimulation();
+            }
+        }
+
+        long wallTime = System.currentTimeMillis() - wallStart;
+        if (!finished) {
+            return new ScenarioResult(scenario, wallTime, Collections.<String, Map<String, Double>> emptyMap(), false);
+        }
+        ScenarioResult result = new ScenarioResult(scenario, wallTime, meter.finish(scenario.getStopTime().getTime()));
+        logger.info("Finished scenario {} in {}ms", scenario.getName(), wallTime);
+        return result;
+    }
+
+    private static void write(Writer writer, ScenarioResult result) throws IOException {
+        String name = escape(result.getScenario().getName());
+        String status = result.isFinished() ? "finished" : "failed";
+        if (result.getTotals().isEmpty()) {
+            writer.write(name + ",,,,," + status + "\n");
+        }
+        for (Entry<String, Map<String, Double>> endpointEntry : result.getTotals().entrySet()) {
+            for (Entry<String, Double> entry : endpointEntry.getValue().entrySet()) {
+                writer.write(name);
+                writer.write(',');
+                writer.write(escape(endpointEntry.getKey()));
+                writer.write(',');
+                writer.write(entry.getKey());
+                writer.write(',');
+                writer.write(String.valueOf(entry.getValue()));
+                writer.write(',');
+                writer.write(getUnit(entry.getKey()));
+                writer.write(',');
+                writer.write(status);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static String getUnit(String commodity) {
+        if (EnergyMeter.getName(Commodity.ELECTRICITY).equals(commodity)) {
+            return Commodity.ELECTRICITY.getBillableUnit().toString();
+        } else if (EnergyMeter.getName(Commodity.GAS).equals(commodity)) {
+            return Commodity.GAS.getBillableUnit().toString();
+        } else if (EnergyMeter.getName(Commodity.HEAT).equals(commodity)) {
+            return Commodity.HEAT.getBillableUnit().toString();
+        } else {
+            return "";
+        }
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,113 @@
+package org.flexiblepower.simulation.batch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Quantity;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+
+/**
+ * Integrates the measured flows (power or gas flow) of the endpoints into amounts. Each measurement is valid from its
+ * time until the next measurement of the same endpoint and commodity, or until the end of the scenario. A measurement
+ * that is older than the last measurement of the same endpoint and commodity is ignored.
+ */
+final class EnergyMeter {
+    /** The last measurement of a single endpoint and commodity, and the amount so far */
+    private static final class Meter {
+        long time;
+        Measurable<?> flow;
+        double amount;
+    }
+
+    /** The meters of each endpoint, sorted on the pid such that the results are in a fixed order */
+    private final Map<String, Map<Commodity<?, ?>, Meter>> meters = new TreeMap<String, Map<Commodity<?, ?>, Meter>>();
+
+    static String getName(Commodity<?, ?> commodity) {
+        if (commodity == Commodity.ELECTRICITY) {
+            return "electricity";
+        } else if (commodity == Commodity.GAS) {
+            return "gas";
+        } else if (commodity == Commodity.HEAT) {
+            return "heat";
+        } else {
+            return commodity.getClass().getSimpleName().toLowerCase();
+        }
+    }
+
+    /**
+     * Adds the measurements of an endpoint.
+     *
+     * @param endpoint
+     *            The pid of the endpoint that sent the measurement
+     * @param time
+     *            The time from which the measurement is valid
+     * @param measurables
+     *            The measured flows
+     */
+    synchronized void measure(String endpoint, long time, CommodityMeasurables measurables) {
+        Map<Commodity<?, ?>, Meter> endpointMeters = meters.get(endpoint);
+        if (endpointMeters == null) {
+            endpointMeters = new LinkedHashMap<Commodity<?, ?>, Meter>();
+            meters.put(endpoint, endpointMeters);
+        }
+
+        for (Entry<Commodity<?, ?>, Measurable<?>> entry : measurables.entrySet()) {
+            Meter meter = endpointMeters.get(entry.getKey());
+            if (meter == null) {
+                meter = new Meter();
+                endpointMeters.put(entry.getKey(), meter);
+            } else if (time < meter.time) {
+                // Out of order, the flow since the last measurement has already been counted
+                continue;
+            } else {
+                integrate(entry.getKey(), meter, time);
+            }
+            meter.time = time;
+            meter.flow = entry.getValue();
+        }
+    }
+
+    /**
+     * Integrates all the flows until the end time.
+     *
+     * @param endTime
+     *            The end of the scenario
+     * @return The amounts per endpoint pid and commodity name, in the billable units of the commodities.
+     */
+    synchronized Map<String, Map<String, Double>> finish(long endTime) {
+        Map<String, Map<String, Double>> totals = new LinkedHashMap<String, Map<String, Double>>();
+        for (Entry<String, Map<Commodity<?, ?>, Meter>> endpointEntry : meters.entrySet()) {
+            Map<String, Double> endpointTotals = new LinkedHashMap<String, Double>();
+            for (Entry<Commodity<?, ?>, Meter> entry : endpointEntry.getValue().entrySet()) {
+                Meter meter = entry.getValue();
+                integrate(entry.getKey(), meter, endTime);
+                meter.time = endTime;
+                endpointTotals.put(getName(entry.getKey()), meter.amount);
+            }
+            totals.put(endpointEntry.getKey(), endpointTotals);
+        }
+        return totals;
+    }
+
+    private static void integrate(Commodity<?, ?> commodity, Meter meter, long time) {
+        long duration = time - meter.time;
+        if (duration > 0 && meter.flow != null) {
+            meter.amount += amount(commodity, meter.flow, duration);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <BQ extends Quantity, FQ extends Quantity> double amount(Commodity<BQ, FQ> commodity,
+                                                                            Measurable<?> flow,
+                                                                            long duration) {
+        Measurable<BQ> amount = commodity.amount((Measurable<FQ>) flow, Measure.valueOf(duration, SI.MILLI(SI.SECOND)));
+        return amount.doubleValue(commodity.getBillableUnit());
+    }
+}
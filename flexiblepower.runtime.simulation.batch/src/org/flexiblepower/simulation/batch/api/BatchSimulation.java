@@ -0,0 +1,36 @@
+package org.flexiblepower.simulation.batch.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.flexiblepower.simulation.api.Simulation;
+
+/**
+ * Runs a list of {@link Scenario}s back to back on the {@link Simulation}, without user interaction. Each scenario
+ * runs in fast-forward mode. During the run the measurements on the message bus are collected into energy totals.
+ */
+public interface BatchSimulation {
+    /**
+     * Runs the scenarios one after the other and blocks until all of them have finished. The results are written to
+     * the results file as comma separated values, with one line per scenario, endpoint and commodity. The file is
+     * flushed after every scenario, so the results of the finished scenarios are kept when the batch fails.
+     *
+     * When a scenario does not finish within the configured timeout, it is stopped and recorded as failed (see
+     * {@link ScenarioResult#isFinished()}) and the rest of the batch is skipped.
+     *
+     * @param scenarios
+     *            The scenarios to run
+     * @param resultsFile
+     *            The file to write the results to, or null to only return them
+     * @return The results of the scenarios, in the same order. When a scenario has failed, it is the last one.
+     * @throws IOException
+     *             When the results file could not be written
+     * @throws InterruptedException
+     *             When the thread has been interrupted while waiting for a scenario to finish
+     * @throws IllegalStateException
+     *             When the simulation is not stopped at the start of a scenario
+     */
+    List<ScenarioResult> runScenarios(List<Scenario> scenarios, File resultsFile) throws IOException,
+                                                                                 InterruptedException;
+}
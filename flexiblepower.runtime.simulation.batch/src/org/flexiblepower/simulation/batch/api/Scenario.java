@@ -0,0 +1,121 @@
+package org.flexiblepower.simulation.batch.api;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.flexiblepower.simulation.api.Checkpoint;
+
+/**
+ * The definition of a single run of a {@link BatchSimulation}. A scenario starts at a start time or from a
+ * {@link Checkpoint}, runs until its stop time and has a set of parameters (e.g. a tariff or the size of a PV
+ * installation) that are given to the {@link ScenarioParticipant}s before the run.
+ */
+public final class Scenario {
+    private final String name;
+    private final Date startTime;
+    private final Checkpoint checkpoint;
+    private final Date stopTime;
+    private final Map<String, String> parameters;
+
+    /**
+     * @param name
+     *            The name of the scenario, which is used in the results
+     * @param startTime
+     *            The virtual time at which the scenario starts
+     * @param stopTime
+     *            The virtual time at which the scenario ends
+     * @param parameters
+     *            The parameters of the scenario
+     */
+    public Scenario(String name, Date startTime, Date stopTime, Map<String, String> parameters) {
+        this(name, startTime, null, stopTime, parameters);
+        if (startTime == null) {
+            throw new NullPointerException("startTime");
+        }
+    }
+
+    /**
+     * @param name
+     *            The name of the scenario, which is used in the results
+     * @param checkpoint
+     *            The checkpoint from which the scenario starts, e.g. after a warm-up period
+     * @param stopTime
+     *            The virtual time at which the scenario ends
+     * @param parameters
+     *            The parameters of the scenario
+     */
+    public Scenario(String name, Checkpoint checkpoint, Date stopTime, Map<String, String> parameters) {
+        this(name, null, checkpoint, stopTime, parameters);
+        if (checkpoint == null) {
+            throw new NullPointerException("checkpoint");
+        }
+    }
+
+    private Scenario(String name,
+                     Date startTime,
+                     Checkpoint checkpoint,
+                     Date stopTime,
+                     Map<String, String> parameters) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        } else if (stopTime == null) {
+            throw new NullPointerException("stopTime");
+        }
+        this.name = name;
+        this.startTime = startTime == null ? null : new Date(startTime.getTime());
+        this.checkpoint = checkpoint;
+        this.stopTime = new Date(stopTime.getTime());
+        if (parameters == null) {
+            this.parameters = Collections.emptyMap();
+        } else {
+            this.parameters = Collections.unmodifiableMap(new LinkedHashMap<String, String>(parameters));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The virtual time at which the scenario starts.
+     */
+    public Date getStartTime() {
+        return startTime == null ? new Date(checkpoint.getSimulationTime()) : new Date(startTime.getTime());
+    }
+
+    /**
+     * @return The checkpoint from which the scenario starts, or null when it starts from the current state.
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public Date getStopTime() {
+        return new Date(stopTime.getTime());
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @param key
+     *            The name of the parameter
+     * @param defaultValue
+     *            The value that is returned when the parameter is not set
+     * @return The value of the parameter, or the default value when it is not set.
+     */
+    public String getParameter(String key, String defaultValue) {
+        String value = parameters.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public String toString() {
+        return "Scenario [name=" + name + ", startTime=" + getStartTime() + ", stopTime=" + stopTime + ", parameters="
+               + parameters
+               + "]";
+    }
+}
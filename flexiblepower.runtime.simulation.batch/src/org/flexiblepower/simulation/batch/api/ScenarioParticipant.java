@@ -0,0 +1,16 @@
+package org.flexiblepower.simulation.batch.api;
+
+/**
+ * A component that is configured by the parameters of a {@link Scenario}. Components opt in by registering themselves
+ * as a service of this type.
+ */
+public interface ScenarioParticipant {
+    /**
+     * Called by the {@link BatchSimulation} before each scenario, while the simulation is stopped. The participant
+     * should apply the parameters it knows about before it returns, e.g. by resetting its state.
+     *
+     * @param scenario
+     *            The scenario that is about to run
+     */
+    void prepareScenario(Scenario scenario);
+}
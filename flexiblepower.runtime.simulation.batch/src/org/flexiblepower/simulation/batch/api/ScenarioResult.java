@@ -0,0 +1,109 @@
+package org.flexiblepower.simulation.batch.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The result of a single {@link Scenario} of a {@link BatchSimulation}: the energy that has been measured on the
+ * message bus during the scenario.
+ */
+public final class ScenarioResult {
+    private final Scenario scenario;
+    private final long wallTime;
+    private final Map<String, Map<String, Double>> totals;
+    private final boolean finished;
+
+    /**
+     * @param scenario
+     *            The scenario that has been run
+     * @param wallTime
+     *            The number of milliseconds (wall clock time) that the run took
+     * @param totals
+     *            The totals per endpoint pid and commodity, see {@link #getTotals()}
+     */
+    public ScenarioResult(Scenario scenario, long wallTime, Map<String, Map<String, Double>> totals) {
+        this(scenario, wallTime, totals, true);
+    }
+
+    /**
+     * @param scenario
+     *            The scenario that has been run
+     * @param wallTime
+     *            The number of milliseconds (wall clock time) that the run took
+     * @param totals
+     *            The totals per endpoint pid and commodity, see {@link #getTotals()}
+     * @param finished
+     *            false when the scenario has been stopped before it reached its stop time, see {@link #isFinished()}
+     */
+    public ScenarioResult(Scenario scenario,
+                          long wallTime,
+                          Map<String, Map<String, Double>> totals,
+                          boolean finished) {
+        this.scenario = scenario;
+        this.wallTime = wallTime;
+        this.finished = finished;
+        Map<String, Map<String, Double>> copy = new LinkedHashMap<String, Map<String, Double>>();
+        for (Entry<String, Map<String, Double>> entry : totals.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableMap(new LinkedHashMap<String, Double>(entry.getValue())));
+        }
+        this.totals = Collections.unmodifiableMap(copy);
+    }
+
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    /**
+     * @return The number of milliseconds (wall clock time) that the run took
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return The measured amounts, indexed on the pid of the endpoint that sent the measurements and then on the name
+     *         of the commodity. The amounts are in the billable unit of the commodity, which is kWh for electricity,
+     *         J for heat and m³ for gas. Consumption is positive and production is negative.
+     */
+    public Map<String, Map<String, Double>> getTotals() {
+        return totals;
+    }
+
+    /**
+     * @return true when the scenario has run until its stop time, false when it has failed because it did not finish
+     *         within the timeout of the batch. A failed scenario has no totals.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @param commodity
+     *            The name of the commodity (electricity, gas or heat)
+     * @return The net amount of the commodity of all endpoints together.
+     */
+    public double getTotal(String commodity) {
+        double total = 0;
+        for (Map<String, Double> endpointTotals : totals.values()) {
+            Double amount = endpointTotals.get(commodity);
+            if (amount != null) {
+                total += amount;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "ScenarioResult [scenario=" + scenario.getName()
+               + ", wallTime="
+               + wallTime
+               + ", finished="
+               + finished
+               + ", totals="
+               + totals
+               + "]";
+    }
+}
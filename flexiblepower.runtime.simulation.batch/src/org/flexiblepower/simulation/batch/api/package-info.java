@@ -0,0 +1,4 @@
+@Version("1.0.0.${qualifier}")
+package org.flexiblepower.simulation.batch.api;
+
+import aQute.bnd.annotation.Version;
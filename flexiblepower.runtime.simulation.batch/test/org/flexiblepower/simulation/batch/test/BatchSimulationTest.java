@@ -0,0 +1,237 @@
+package org.flexiblepower.simulation.batch.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.uncontrolled.UncontrolledMeasurement;
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.simulation.batch.BatchSimulationRunner;
+import org.flexiblepower.simulation.batch.api.Scenario;
+import org.flexiblepower.simulation.batch.api.ScenarioParticipant;
+import org.flexiblepower.simulation.batch.api.ScenarioResult;
+import org.flexiblepower.simulation.context.SimulationContext;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+public class BatchSimulationTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+    private static final long DAY = 24 * 3600000L;
+
+    /**
+     * A PV panel that measures its production every 15 minutes. The size is a parameter of the scenario. In a stuck
+     * scenario it blocks the simulation until it is released.
+     */
+    @Port(name = "port",
+          sends = UncontrolledMeasurement.class,
+          accepts = Object.class,
+          cardinality = Cardinality.SINGLE)
+    public static class PvEndpoint implements Endpoint, ScenarioParticipant, Runnable {
+        final SimulationContext context;
+        final AtomicInteger listeners;
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile Connection connection;
+        volatile double watts;
+        volatile boolean stuck;
+        volatile int listenersDuringScenario;
+
+        PvEndpoint(SimulationContext context, AtomicInteger listeners) {
+            this.context = context;
+            this.listeners = listeners;
+        }
+
+        @Override
+        public void prepareScenario(Scenario scenario) {
+            watts = Double.parseDouble(scenario.getParameter("pv", "0"));
+            stuck = Boolean.parseBoolean(scenario.getParameter("stuck", "false"));
+            listenersDuringScenario = listeners.get();
+        }
+
+        @Override
+        public void run() {
+            if (stuck) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Date now = context.currentTime();
+            CommodityMeasurables measurables = CommodityMeasurables.create()
+                                                                    .electricity(Measure.valueOf(-watts, SI.WATT))
+                                                                    .build();
+            connection.sendMessage(new UncontrolledMeasurement("pv", now, now, measurables));
+        }
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = connection;
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    private SimulationContext context;
+    private ConnectionManagerImpl connectionManager;
+    private BatchSimulationRunner runner;
+    private PvEndpoint pv;
+    /** The number of message listeners that the runner has registered */
+    private final AtomicInteger listeners = new AtomicInteger();
+
+    /**
+     * Stands in for the {@link BundleContext} of the runner. A {@link MessageListener} that is registered is added
+     * directly to the connection manager, until its {@link ServiceRegistration} is unregistered.
+     */
+    private class ListenerRegistry implements InvocationHandler {
+        private MessageListener listener;
+
+        <T> T createProxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("registerService".equals(method.getName())) {
+                listener = (MessageListener) args[1];
+                connectionManager.addMessageListener(listener);
+                listeners.incrementAndGet();
+                return createProxy(ServiceRegistration.class);
+            } else if ("unregister".equals(method.getName())) {
+                connectionManager.removeMessageListener(listener);
+                listeners.decrementAndGet();
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        context = new SimulationContext();
+        context.activate();
+        connectionManager = new ConnectionManagerImpl();
+        context.setConnectionManager(connectionManager);
+
+        pv = new PvEndpoint(context, listeners);
+        connectionManager.addEndpoint(pv, Collections.singletonMap(Constants.SERVICE_PID, "pv"));
+        connectionManager.addEndpoint(new PvEndpoint(context, listeners),
+                                      Collections.singletonMap(Constants.SERVICE_PID, "meter"));
+        connectionManager.getEndpoints()
+                         .get("pv")
+                         .getPort("port")
+                         .getPotentialConnection(connectionManager.getEndpoints().get("meter").getPort("port"))
+                         .connect();
+        context.scheduleAtFixedRate(pv, Measure.valueOf(0, SI.SECOND), Measure.valueOf(15, NonSI.MINUTE));
+
+        runner = new BatchSimulationRunner();
+        runner.activate(new ListenerRegistry().createProxy(BundleContext.class),
+                        Collections.<String, Object> emptyMap());
+        runner.setSimulation(context);
+        runner.addScenarioParticipant(pv);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pv.release.countDown();
+        connectionManager.deactivate();
+        context.deactivate();
+    }
+
+    public void testScenariosRunBackToBack() throws Exception {
+        File resultsFile = File.createTempFile("batch", ".csv");
+        resultsFile.deleteOnExit();
+
+        List<Scenario> scenarios = Arrays.asList(new Scenario("small",
+                                                              new Date(START),
+                                                              new Date(START + DAY),
+                                                              Collections.singletonMap("pv", "1000")),
+                                                 new Scenario("large",
+                                                              new Date(START),
+                                                              new Date(START + DAY),
+                                                              Collections.singletonMap("pv", "4000")));
+        List<ScenarioResult> results = runner.runScenarios(scenarios, resultsFile);
+
+        assertEquals(2, results.size());
+        assertEquals(-24, results.get(0).getTotal("electricity"), 1e-6);
+        assertEquals(-96, results.get(1).getTotal("electricity"), 1e-6);
+        assertEquals(Collections.singleton("pv"), results.get(0).getTotals().keySet());
+        assertFalse(context.isFastForward());
+        // The runner only listens to the message bus while the batch runs
+        assertEquals(1, pv.listenersDuringScenario);
+        assertEquals(0, listeners.get());
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(resultsFile));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(3, lines.size());
+        assertEquals("scenario,endpoint,commodity,amount,unit,status", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).startsWith("small,pv,electricity,-24.0"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(",finished"));
+        assertTrue(lines.get(2), lines.get(2).startsWith("large,pv,electricity,-96.0"));
+    }
+
+    public void testTimeoutKeepsEarlierResults() throws Exception {
+        runner.activate(new ListenerRegistry().createProxy(BundleContext.class),
+                        Collections.<String, Object> singletonMap("scenarioTimeout", "500"));
+        Map<String, String> stuck = new HashMap<String, String>();
+        stuck.put("pv", "1000");
+        stuck.put("stuck", "true");
+        List<Scenario> scenarios = Arrays.asList(new Scenario("small",
+                                                              new Date(START),
+                                                              new Date(START + DAY),
+                                                              Collections.singletonMap("pv", "1000")),
+                                                 new Scenario("stuck", new Date(START), new Date(START + DAY), stuck),
+                                                 new Scenario("large",
+                                                              new Date(START),
+                                                              new Date(START + DAY),
+                                                              Collections.singletonMap("pv", "4000")));
+        List<ScenarioResult> results = runner.runScenarios(scenarios, null);
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isFinished());
+        assertEquals(-24, results.get(0).getTotal("electricity"), 1e-6);
+        assertEquals("stuck", results.get(1).getScenario().getName());
+        assertFalse(results.get(1).isFinished());
+        assertTrue(results.get(1).getTotals().isEmpty());
+        assertEquals(0, listeners.get());
+    }
+}
@@ -43,7 +43,7 @@ $(window).load(function() {
 			default:      stopTime = startTime + 86400000;    break;
 		}
 		if(btn.text() == "Start") {
-			w.call("startSimulation", {"startTime":startTime, "stopTime":stopTime, "speedFactor":$("#speed").val()}, w.callback);
+			w.call("startSimulation", speedParameters(startTime, stopTime), w.callback);
 		} else {
 			w.call("stopSimulation", {}, w.callback);
 		}
@@ -63,6 +63,13 @@ $(window).load(function() {
 	});
 	
 	$("#speed").change(function () {
-		w.call("changeSpeedFactor", {"startTime":0, "stopTime":0, "speedFactor":$("#speed").val()}, w.callback);
+		w.call("changeSpeedFactor", speedParameters(0, 0), w.callback);
 	});
+
+	// The "fast" option runs the simulation in fast-forward mode, the speedFactor is then ignored
+	function speedParameters(startTime, stopTime) {
+		var speed = $("#speed").val();
+		var fast = speed == "fast";
+		return {"startTime":startTime, "stopTime":stopTime, "speedFactor":fast ? 1 : speed, "fastForward":fast};
+	}
 });
\ No newline at end of file
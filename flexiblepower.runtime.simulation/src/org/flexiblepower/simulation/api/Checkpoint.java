@@ -0,0 +1,157 @@
+package org.flexiblepower.simulation.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The saved state of a paused {@link Simulation}: the simulated time, the scheduled jobs and the states of the
+ * {@link SnapshotParticipant}s. A checkpoint can be written to a file with {@link #writeTo(OutputStream)} and read
+ * again with {@link #readFrom(InputStream)}. The same checkpoint can be used to start many simulations, see
+ * {@link Simulation#startSimulation(Checkpoint, java.util.Date, double)}.
+ */
+public final class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Describes a scheduled job, such that it can be created again by its {@link SnapshotParticipant}.
+     */
+    public static final class JobDescriptor implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String snapshotId;
+        private final String taskId;
+        private final long timeOfNextRun;
+        private final long timeStep;
+
+        /**
+         * @param snapshotId
+         *            The {@link SnapshotParticipant#getSnapshotId()} of the participant that can create the task
+         * @param taskId
+         *            The {@link RecreatableTask#getTaskId()} of the task
+         * @param timeOfNextRun
+         *            The simulated time at which the job runs next
+         * @param timeStep
+         *            The period of the job in milliseconds. This is positive for a fixed rate, negative for a fixed
+         *            delay and 0 for a job that only runs once.
+         */
+        public JobDescriptor(String snapshotId, String taskId, long timeOfNextRun, long timeStep) {
+            this.snapshotId = snapshotId;
+            this.taskId = taskId;
+            this.timeOfNextRun = timeOfNextRun;
+            this.timeStep = timeStep;
+        }
+
+        public String getSnapshotId() {
+            return snapshotId;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        public long getTimeOfNextRun() {
+            return timeOfNextRun;
+        }
+
+        public long getTimeStep() {
+            return timeStep;
+        }
+
+        @Override
+        public String toString() {
+            return snapshotId + "/" + taskId + " @ " + timeOfNextRun + " step " + timeStep;
+        }
+    }
+
+    private final long simulationTime;
+    private final List<JobDescriptor> jobs;
+    private final Map<String, byte[]> states;
+
+    /**
+     * @param simulationTime
+     *            The simulated time at which the checkpoint was taken
+     * @param jobs
+     *            The descriptors of the scheduled jobs, in the order in which they would have been executed
+     * @param states
+     *            The serialized states of the participants, indexed on their
+     *            {@link SnapshotParticipant#getSnapshotId()}
+     */
+    public Checkpoint(long simulationTime, List<JobDescriptor> jobs, Map<String, byte[]> states) {
+        this.simulationTime = simulationTime;
+        this.jobs = Collections.unmodifiableList(new ArrayList<JobDescriptor>(jobs));
+        this.states = Collections.unmodifiableMap(new LinkedHashMap<String, byte[]>(states));
+    }
+
+    /**
+     * @return The simulated time at which the checkpoint was taken
+     */
+    public long getSimulationTime() {
+        return simulationTime;
+    }
+
+    /**
+     * @return The descriptors of the scheduled jobs, in the order in which they would have been executed
+     */
+    public List<JobDescriptor> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return The serialized states of the participants, indexed on their {@link SnapshotParticipant#getSnapshotId()}.
+     *         The states are serialized separately, such that they can be read with the class loader of their
+     *         participant.
+     */
+    public Map<String, byte[]> getStates() {
+        return states;
+    }
+
+    /**
+     * Writes this checkpoint to the stream, which is not closed afterwards.
+     *
+     * @param out
+     *            The stream to write to
+     * @throws IOException
+     *             When the stream could not be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(this);
+        oos.flush();
+    }
+
+    /**
+     * Reads a checkpoint that was written by {@link #writeTo(OutputStream)}.
+     *
+     * @param in
+     *            The stream to read from, which is not closed afterwards
+     * @return The checkpoint
+     * @throws IOException
+     *             When the stream could not be read or does not contain a checkpoint
+     */
+    public static Checkpoint readFrom(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(in);
+        try {
+            Object checkpoint = ois.readObject();
+            if (!(checkpoint instanceof Checkpoint)) {
+                throw new IOException("The stream does not contain a checkpoint, but " + checkpoint);
+            }
+            return (Checkpoint) checkpoint;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The stream does not contain a checkpoint: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint @ " + simulationTime + " (" + jobs.size() + " jobs, " + states.size() + " participants)";
+    }
+}
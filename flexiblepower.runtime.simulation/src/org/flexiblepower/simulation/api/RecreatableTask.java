@@ -0,0 +1,17 @@
+package org.flexiblepower.simulation.api;
+
+/**
+ * A scheduled task that can be saved in a {@link Checkpoint}. Only a description of the task is saved, it is created
+ * again by its {@link SnapshotParticipant} when the simulation is started from the checkpoint.
+ */
+public interface RecreatableTask extends Runnable {
+    /**
+     * @return The {@link SnapshotParticipant#getSnapshotId()} of the participant that can create this task again.
+     */
+    String getSnapshotId();
+
+    /**
+     * @return The identifier of this task, which is given to {@link SnapshotParticipant#recreateTask(String)}.
+     */
+    String getTaskId();
+}
@@ -2,10 +2,15 @@ package org.flexiblepower.simulation.api;
 
 import java.util.Date;
 
+import aQute.bnd.annotation.ProviderType;
+
 /**
  * When a service of this type is available in the service repository, we are running in a simulation environment. It is
  * possible for any package to give a controlling mechanism for this simulation.
+ *
+ * This interface is only implemented by the simulation runtime, so methods may be added in minor versions.
  */
+@ProviderType
 public interface Simulation {
     /**
      * The current state of the simulation.
@@ -74,8 +79,66 @@ public interface Simulation {
      */
     void changeSpeedFactor(double newSpeedFactor);
 
+    /**
+     * Switches the fast-forward mode on or off, which can also be done during the run of the simulation. In
+     * fast-forward mode the speedFactor is ignored. Instead the simulated time jumps straight to the time of the next
+     * job, as soon as all the jobs and messages of the current time have been handled. At the end of the simulation the
+     * state only becomes {@link State#STOPPED} after all the messages, including those for the message listeners, have
+     * been delivered.
+     *
+     * @param fastForward
+     *            true to run the simulation as fast as possible, false to use the speedFactor again.
+     */
+    void setFastForward(boolean fastForward);
+
+    /**
+     * @return true when the simulation runs in fast-forward mode.
+     */
+    boolean isFastForward();
+
     /**
      * @return The current state of simulation.
      */
     State getSimulationClockState();
+
+    /**
+     * Blocks until the state of the simulation is {@link State#STOPPED}, which happens when it reaches its stop time or
+     * when {@link #stopSimulation()} is called.
+     *
+     * @param timeout
+     *            The maximum time in milliseconds (wall clock) to wait
+     * @return true when the simulation has stopped, false when the timeout has passed before that
+     * @throws InterruptedException
+     *             When the thread has been interrupted while waiting
+     */
+    boolean waitUntilStopped(long timeout) throws InterruptedException;
+
+    /**
+     * Takes a checkpoint of the paused or stopped simulation. It contains the simulated time, the scheduled jobs of
+     * which the task is a {@link RecreatableTask} and the states of all the {@link SnapshotParticipant}s. Other jobs can
+     * not be saved and are left out. When the jobs of the current step are still being executed, this waits until they
+     * have finished. Of a stopped simulation the time at which it stopped is saved.
+     *
+     * @return The checkpoint
+     * @throws IllegalStateException
+     *             When the simulation is neither paused nor stopped, or when this is called by a job that runs in
+     *             parallel with other jobs
+     */
+    Checkpoint createCheckpoint();
+
+    /**
+     * Starts the simulation from a checkpoint, which could have been taken in another run. The states of the
+     * {@link SnapshotParticipant}s are restored and their jobs are scheduled again, replacing the jobs of the
+     * {@link RecreatableTask}s of those participants that are currently scheduled.
+     *
+     * @param checkpoint
+     *            The checkpoint to start from, see {@link #createCheckpoint()}
+     * @param stopTime
+     *            The virtual time at which the simulation will be stopped automatically, or null for no planned ending.
+     * @param speedFactor
+     *            The speedFactor at which to start (this can be changed dynamically during the run).
+     * @throws IllegalStateException
+     *             When the simulation is not stopped
+     */
+    void startSimulation(Checkpoint checkpoint, Date stopTime, double speedFactor);
 }
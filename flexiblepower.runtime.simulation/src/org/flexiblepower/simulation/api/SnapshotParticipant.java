@@ -0,0 +1,47 @@
+package org.flexiblepower.simulation.api;
+
+import java.io.Serializable;
+
+/**
+ * A component that takes part in the checkpoints of the {@link Simulation}, see {@link Simulation#createCheckpoint()}.
+ * Endpoints (or other components) opt in by also registering themselves as a service of this type. Their state is then
+ * saved in the {@link Checkpoint} and restored when a simulation is started from it.
+ *
+ * The jobs of a participant can only be saved when their task is a {@link RecreatableTask}. When the simulation is
+ * started from the checkpoint, the participant is asked to create those tasks again through
+ * {@link #recreateTask(String)}.
+ */
+public interface SnapshotParticipant {
+    /**
+     * @return The identifier of this participant, which must be the same in every run of the simulation. The service
+     *         pid is a good choice.
+     */
+    String getSnapshotId();
+
+    /**
+     * Called while the simulation is paused, so no jobs of the simulation are running.
+     *
+     * @return The current state of this participant. The state is serialized right away, so it may not be changed
+     *         afterwards.
+     */
+    Serializable saveState();
+
+    /**
+     * Replaces the current state of this participant with a state that was saved by {@link #saveState()}, possibly in
+     * another run of the simulation. Called before the simulation is started from the checkpoint.
+     *
+     * @param state
+     *            The state that was saved
+     */
+    void restoreState(Serializable state);
+
+    /**
+     * Creates the task of a job that was scheduled when the checkpoint was taken. The simulation schedules the task at
+     * the same time and with the same period as the original one.
+     *
+     * @param taskId
+     *            The {@link RecreatableTask#getTaskId()} of the original task
+     * @return The new task, or null when this task should no longer be scheduled.
+     */
+    RecreatableTask recreateTask(String taskId);
+}
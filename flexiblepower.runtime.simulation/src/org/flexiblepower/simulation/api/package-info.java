@@ -1,3 +1,3 @@
-@Version("1.0.0.${qualifier}")
+@Version("1.3.0.${qualifier}")
 package org.flexiblepower.simulation.api;
 import aQute.bnd.annotation.Version;
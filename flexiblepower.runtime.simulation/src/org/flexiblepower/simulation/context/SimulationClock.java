@@ -1,144 +1,315 @@
 package org.flexiblepower.simulation.context;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.flexiblepower.simulation.api.Simulation;
 import org.flexiblepower.simulation.api.Simulation.State;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The clock of the simulation. The complete state of the clock is kept in an immutable {@link Snapshot}, which is
+ * replaced atomically on every change. This means that reading the time never blocks, which is important because it
+ * is read by every job and every driver in the simulation.
+ */
 public class SimulationClock {
 
     private static final Logger logger = LoggerFactory.getLogger(SimulationClock.class);
 
-    private volatile long simulationStartTime;
-    private volatile long simulationStopTime;
-    private volatile long wallStartTime;
-    private volatile double speedFactor;
-    private volatile Simulation.State state;
+    /**
+     * The immutable state of the clock at some moment. The simulated time is derived from it together with the wall
+     * clock.
+     */
+    private static final class Snapshot {
+        final Simulation.State state;
+        final long simulationStartTime;
+        final long simulationStopTime;
+        final long wallStartTime;
+        final double speedFactor;
+        /** In fast-forward mode the time only changes through {@link SimulationClock#advanceTo(long)} */
+        final boolean fastForward;
+
+        Snapshot(Simulation.State state,
+                 long simulationStartTime,
+                 long simulationStopTime,
+                 long wallStartTime,
+                 double speedFactor,
+                 boolean fastForward) {
+            this.state = state;
+            this.simulationStartTime = simulationStartTime;
+            this.simulationStopTime = simulationStopTime;
+            this.wallStartTime = wallStartTime;
+            this.speedFactor = speedFactor;
+            this.fastForward = fastForward;
+        }
+
+        Snapshot withState(Simulation.State newState) {
+            return new Snapshot(newState,
+                                simulationStartTime,
+                                simulationStopTime,
+                                wallStartTime,
+                                speedFactor,
+                                fastForward);
+        }
+
+        /**
+         * @return A running snapshot that continues from the given simulated time at the given wall clock time.
+         */
+        Snapshot runningFrom(long simulationTime, long wallTime, double newSpeedFactor, boolean newFastForward) {
+            return new Snapshot(State.RUNNING,
+                                simulationTime,
+                                simulationStopTime,
+                                wallTime,
+                                newSpeedFactor,
+                                newFastForward);
+        }
+
+        /**
+         * @return The simulated time at the given wall clock time, which may be past the stop time when running.
+         */
+        long timeAt(long wallTime) {
+            switch (state) {
+            case STOPPED:
+                return 0;
+            case PAUSED:
+                return simulationStartTime;
+            case STOPPING:
+                return simulationStopTime;
+            default:
+                if (fastForward) {
+                    return simulationStartTime;
+                }
+                return (long) ((wallTime - wallStartTime) * speedFactor + simulationStartTime);
+            }
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot;
 
     public SimulationClock() {
-        state = Simulation.State.STOPPED;
-        simulationStartTime = 0;
-        simulationStopTime = 0;
-        wallStartTime = 0;
-        speedFactor = 0;
+        snapshot = new AtomicReference<Snapshot>(new Snapshot(Simulation.State.STOPPED, 0, 0, 0, 0, false));
     }
 
-    public synchronized void start(long startTime, double speedFactor) {
+    public void start(long startTime, double speedFactor) {
         start(startTime, Long.MAX_VALUE, speedFactor);
     }
 
-    public synchronized void start(long startTime, long stopTime, double speedFactor) {
-        if (state != Simulation.State.STOPPED) {
-            throw new IllegalStateException("SimulationClock can not be started if already running");
-        }
-        simulationStartTime = startTime;
-        simulationStopTime = stopTime;
-        wallStartTime = System.currentTimeMillis();
-        this.speedFactor = speedFactor;
-        state = Simulation.State.RUNNING;
+    public void start(long startTime, long stopTime, double speedFactor) {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state != Simulation.State.STOPPED) {
+                throw new IllegalStateException("SimulationClock can not be started if already running");
+            }
+            next = new Snapshot(Simulation.State.RUNNING,
+                                startTime,
+                                stopTime,
+                                System.currentTimeMillis(),
+                                speedFactor,
+                                current.fastForward);
+        } while (!snapshot.compareAndSet(current, next));
         logger.debug("Simulation starting with simulated time " + new Date(startTime).toString());
     }
 
-    public synchronized void pause() {
-        if (state != Simulation.State.RUNNING) {
-            throw new IllegalStateException("SimulationClock can not be paused if not running");
+    public void pause() {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state != Simulation.State.RUNNING) {
+                throw new IllegalStateException("SimulationClock can not be paused if not running");
+            }
+            long time = Math.min(current.timeAt(System.currentTimeMillis()), current.simulationStopTime);
+            next = new Snapshot(Simulation.State.PAUSED,
+                                time,
+                                current.simulationStopTime,
+                                current.wallStartTime,
+                                current.speedFactor,
+                                current.fastForward);
+        } while (!snapshot.compareAndSet(current, next));
+        logger.debug("Simulation paused at simulated time " + new Date(next.simulationStartTime).toString());
+    }
+
+    public void unpause() {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state != Simulation.State.PAUSED) {
+                throw new IllegalStateException("SimulationClock can not be unpaused if not paused");
+            }
+            next = current.runningFrom(current.simulationStartTime,
+                                       System.currentTimeMillis(),
+                                       current.speedFactor,
+                                       current.fastForward);
+        } while (!snapshot.compareAndSet(current, next));
+        logger.debug("Simulation upaused at simulated time " + new Date(next.simulationStartTime).toString());
+    }
+
+    public void stop() {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, current.withState(Simulation.State.STOPPED)));
+        synchronized (this) {
+            notifyAll();
         }
-        simulationStartTime = getCurrentTimeMillis();
-        state = Simulation.State.PAUSED;
-        logger.debug("Simulation paused at simulated time " + new Date(simulationStartTime).toString());
+        logger.debug("Simulation stopped");
     }
 
-    public synchronized void unpause() {
-        if (state != Simulation.State.PAUSED) {
-            throw new IllegalStateException("SimulationClock can not be unpaused if not paused");
+    /**
+     * Blocks until the clock has been stopped.
+     *
+     * @param timeout
+     *            The maximum time in milliseconds (wall clock) to wait
+     * @return true when the clock has been stopped, false when the timeout has passed before that
+     * @throws InterruptedException
+     *             When the thread has been interrupted while waiting
+     */
+    public synchronized boolean waitUntilStopped(long timeout) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (!isStopped()) {
+            long remaining = timeout - (System.currentTimeMillis() - startTime);
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
         }
-        state = Simulation.State.RUNNING;
-        wallStartTime = System.currentTimeMillis();
-        logger.debug("Simulation upaused at simulated time " + new Date(simulationStartTime).toString());
+        return true;
     }
 
-    public synchronized void stop() {
-        logger.debug("Simulation stopped");
-        state = Simulation.State.STOPPED;
-    }
-
-    public synchronized void changeSpeedFactor(double newSpeedFactor) {
-        switch (state) {
-        case RUNNING:
-            long simulationTime = getCurrentTimeMillis();
-            stop();
-            start(simulationTime, simulationStopTime, newSpeedFactor);
-            break;
-        default:
-            speedFactor = newSpeedFactor;
-            break;
+    public void changeSpeedFactor(double newSpeedFactor) {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state == Simulation.State.RUNNING) {
+                long wallTime = System.currentTimeMillis();
+                long simulationTime = Math.min(current.timeAt(wallTime), current.simulationStopTime);
+                next = current.runningFrom(simulationTime, wallTime, newSpeedFactor, current.fastForward);
+            } else {
+                next = new Snapshot(current.state,
+                                    current.simulationStartTime,
+                                    current.simulationStopTime,
+                                    current.wallStartTime,
+                                    newSpeedFactor,
+                                    current.fastForward);
+            }
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    public void setFastForward(boolean fastForward) {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state == Simulation.State.RUNNING && current.fastForward != fastForward) {
+                // Continue from the current time, either with or without the wall clock
+                long wallTime = System.currentTimeMillis();
+                long simulationTime = Math.min(current.timeAt(wallTime), current.simulationStopTime);
+                next = current.runningFrom(simulationTime, wallTime, current.speedFactor, fastForward);
+            } else {
+                next = new Snapshot(current.state,
+                                    current.simulationStartTime,
+                                    current.simulationStopTime,
+                                    current.wallStartTime,
+                                    current.speedFactor,
+                                    fastForward);
+            }
+        } while (!snapshot.compareAndSet(current, next));
+        logger.debug("Simulation fast-forward " + (fastForward ? "on" : "off"));
+    }
+
+    /**
+     * Moves the simulated time forward to the given time when running in fast-forward mode. When the time is past the
+     * stop time of the simulation, the simulation will be stopping.
+     *
+     * @param time
+     *            The new simulated time
+     */
+    public void advanceTo(long time) {
+        Snapshot current, next;
+        do {
+            current = snapshot.get();
+            if (current.state != Simulation.State.RUNNING || !current.fastForward
+                || time <= current.simulationStartTime) {
+                return;
+            }
+            if (time > current.simulationStopTime) {
+                next = new Snapshot(Simulation.State.STOPPING,
+                                    current.simulationStopTime,
+                                    current.simulationStopTime,
+                                    current.wallStartTime,
+                                    current.speedFactor,
+                                    true);
+            } else {
+                next = current.runningFrom(time, current.wallStartTime, current.speedFactor, true);
+            }
+        } while (!snapshot.compareAndSet(current, next));
+
+        if (next.state == Simulation.State.STOPPING) {
+            logger.debug("Simulation reached end time " + new Date(next.simulationStopTime).toString()
+                         + ", stopping simulation...");
         }
     }
 
+    public boolean isFastForward() {
+        return snapshot.get().fastForward;
+    }
+
     public boolean isRunning() {
-        return state == State.RUNNING;
+        return snapshot.get().state == State.RUNNING;
     }
 
     public boolean isStopped() {
-        return state == State.STOPPED;
+        return snapshot.get().state == State.STOPPED;
     }
 
     public boolean isPaused() {
-        return state == State.PAUSED;
+        return snapshot.get().state == State.PAUSED;
     }
 
     public boolean isStopping() {
-        return state == State.STOPPING;
+        return snapshot.get().state == State.STOPPING;
     }
 
     public double getSpeedFactor() {
-        return speedFactor;
+        return snapshot.get().speedFactor;
     }
 
     public Simulation.State getState() {
-        return state;
+        return snapshot.get().state;
     }
 
     /**
      * Calculate the current simulated time based on the wall clock
      *
-     * This method has the side effect that it checks if the simulation is finished. If the simulation is stopped or
-     * finished, the method will return 0.
+     * This method has the side effect that it checks if the simulation is finished. The first caller that sees the
+     * time pass the stop time moves the clock to {@link State#STOPPING}, with a single compare-and-set. If that fails,
+     * another thread has changed the clock in the meantime and the stop time is returned anyway. If the simulation is
+     * stopped, the method will return 0.
      *
      * @return the current simulated time
      */
-    public synchronized long getCurrentTimeMillis() {
-        switch (state) {
-        case STOPPED:
-            return 0;
-        case PAUSED:
-            return simulationStartTime;
-        case STOPPING:
-            return simulationStopTime;
-        default:
-            long currentTime = (long) ((System.currentTimeMillis() - wallStartTime) * speedFactor + simulationStartTime);
-            if (currentTime > simulationStopTime) {
-                logger.debug("Simulation reached end time " + new Date(simulationStopTime).toString()
+    public long getCurrentTimeMillis() {
+        Snapshot current = snapshot.get();
+        long currentTime = current.timeAt(System.currentTimeMillis());
+        if (current.state == State.RUNNING && currentTime > current.simulationStopTime) {
+            if (snapshot.compareAndSet(current, current.withState(State.STOPPING))) {
+                logger.debug("Simulation reached end time " + new Date(current.simulationStopTime).toString()
                              + ", stopping simulation...");
-                state = State.STOPPING;
-                return simulationStopTime;
-            } else {
-                return currentTime;
             }
+            return current.simulationStopTime;
         }
+        return currentTime;
     }
 
     public long getSimulationStartTime() {
-        return simulationStartTime;
+        return snapshot.get().simulationStartTime;
     }
 
     public long getSimulationStopTime() {
-        return simulationStopTime;
+        return snapshot.get().simulationStopTime;
     }
 
     public long getWallStartTime() {
-        return wallStartTime;
+        return snapshot.get().wallStartTime;
     }
 }
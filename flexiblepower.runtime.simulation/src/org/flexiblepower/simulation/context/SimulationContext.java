@@ -1,33 +1,168 @@
 package org.flexiblepower.simulation.context;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.messaging.ConnectionManager;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
 import org.flexiblepower.scheduling.AbstractScheduler;
 import org.flexiblepower.scheduling.Job;
+import org.flexiblepower.scheduling.ParallelSection;
+import org.flexiblepower.scheduling.Partitioned;
+import org.flexiblepower.simulation.api.Checkpoint;
+import org.flexiblepower.simulation.api.Checkpoint.JobDescriptor;
+import org.flexiblepower.simulation.api.RecreatableTask;
 import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.api.SnapshotParticipant;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
 
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
 import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.component.Reference;
 
+/**
+ * The {@link SimulationContext} executes all the jobs of the simulation based on the simulated time of its
+ * {@link SimulationClock}.
+ *
+ * When it is configured with more than one thread, the jobs of the same simulated time are executed in parallel when
+ * they belong to different partitions. The partition of a job is given by its task when that is {@link Partitioned},
+ * otherwise it is the bundle that defined the class of the task. Jobs without a partition are executed alone. The
+ * messages that are sent and the jobs that are added by parallel jobs are delivered after all of them have finished,
+ * in the order of the jobs, so the result is the same as that of a run with a single thread.
+ *
+ * A paused or stopped simulation can be saved in a {@link Checkpoint}, together with the states of the
+ * {@link SnapshotParticipant} services. A new simulation can then be started from that checkpoint.
+ */
 @Component(provide = { FlexiblePowerContext.class, Simulation.class })
 public class SimulationContext extends AbstractScheduler implements Simulation {
+    /**
+     * The system property that sets the number of threads that execute the jobs of the same time. The default is 1,
+     * which executes all the jobs on the scheduler thread.
+     */
+    public static final String PROPERTY_THREADS = "flexiblepower.simulation.threads";
 
     private final SimulationClock simulationClock = new SimulationClock();
 
+    private final int threads;
+    /**
+     * The threads that execute the partitions in parallel, null when there is only one thread. This is a plain fixed
+     * thread pool instead of a ForkJoinPool, because the runtime still runs on Java 6 (-runee: JavaSE-1.6). The
+     * partitions of a step are independent tasks that do not fork, so work stealing would not add anything.
+     */
+    private ExecutorService executor;
+    /**
+     * The bundles that defined the classes of the tasks, only used by the scheduler thread. The keys and values are weak
+     * references, because a bundle references the classloader of its classes, which should not be kept in memory after
+     * the bundle has been uninstalled. The framework keeps the bundle of a class that is still in use.
+     */
+    private final Map<Class<?>, WeakReference<Bundle>> bundles =
+            new WeakHashMap<Class<?>, WeakReference<Bundle>>();
+
+    public SimulationContext() {
+        this(Integer.getInteger(PROPERTY_THREADS, 1));
+    }
+
+    /**
+     * @param threads
+     *            The number of threads that execute the jobs of the same time.
+     */
+    public SimulationContext(int threads) {
+        this.threads = threads;
+    }
+
     @Activate
     public void activate() {
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "simulator-" + ++count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
         start("simulator");
     }
 
     @Deactivate
     public void deactivate() {
         stop();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
     }
 
+    /**
+     * The connection manager of which the messages have to be handled before the time may advance in fast-forward mode,
+     * or null when there is none.
+     */
+    private volatile ConnectionManagerImpl connectionManager;
+
+    @Reference(optional = true, dynamic = true)
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        if (connectionManager instanceof ConnectionManagerImpl) {
+            this.connectionManager = (ConnectionManagerImpl) connectionManager;
+        }
+    }
+
+    public void unsetConnectionManager(ConnectionManager connectionManager) {
+        if (this.connectionManager == connectionManager) {
+            this.connectionManager = null;
+        }
+    }
+
+    /** The participants in the checkpoints, indexed on their snapshot id */
+    private final Map<String, SnapshotParticipant> participants = new ConcurrentHashMap<String, SnapshotParticipant>();
+
+    @Reference(dynamic = true, multiple = true, optional = true)
+    public void addSnapshotParticipant(SnapshotParticipant participant) {
+        participants.put(participant.getSnapshotId(), participant);
+    }
+
+    public void removeSnapshotParticipant(SnapshotParticipant participant) {
+        participants.remove(participant.getSnapshotId());
+    }
+
+    /**
+     * Makes sure that starting a simulation and creating a checkpoint don't overlap. The job queue takes care of its
+     * own consistency, jobs that are added at the same time by other threads are never lost.
+     */
+    private final Object simulationLock = new Object();
+
+    /**
+     * Held by the scheduler thread while it executes jobs. A repeating job is only added to the queue again after it
+     * has been executed, so a checkpoint waits for this lock to see all the jobs.
+     */
+    private final Object stepLock = new Object();
+
     private volatile boolean isWaiting = false;
     private volatile long currentTime = 0;
+    /** The simulated time at which the last simulation was stopped */
+    private volatile long endTime = 0;
 
     @Override
     public long currentTimeMillis() {
@@ -56,44 +191,224 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
             if (simulationClock.isRunning() || simulationClock.isStopping()) {
                 long now = simulationClock.getCurrentTimeMillis();
                 logger.trace("Simulation step {}", now);
-                long waitTime = getNextJobTime() - now;
+                long nextJobTime = getNextJobTime();
+                long waitTime = nextJobTime - now;
                 if (waitTime <= 0) {
-                    Job<?> job = jobs.remove();
-                    currentTime = Math.max(currentTime, job.getTimeOfNextRun());
-                    logger.trace("Executing  {}", job);
-                    job.run();
-                    if (!job.isDone()) {
-                        jobs.add(job);
-                        logger.trace("Rescheduling {}", job);
-                    }
+                    // Does nothing when the job has been removed or the simulation has been paused in the meantime
+                    executeDueJobs(now);
                 } else if (simulationClock.isStopping()) {
-                    logger.trace("Stopping simulation clock");
-                    simulationClock.stop();
+                    if (simulationClock.isFastForward() && hasPendingMessages(true)) {
+                        // Only report the end when everything that happened in the simulation has been delivered
+                        logger.trace("Waiting for the messages to be handled before stopping");
+                        park(Long.MIN_VALUE, 1);
+                    } else {
+                        logger.trace("Stopping simulation clock");
+                        stopClock();
+                    }
+                } else if (simulationClock.isFastForward()) {
+                    fastForward(nextJobTime);
                 } else {
-                    synchronized (jobs) {
-                        long sleepTime = (long) (waitTime / simulationClock.getSpeedFactor());
-                        logger.trace("Sleeping {}ms until next job", sleepTime);
-                        try {
-                            if (sleepTime > 0) {
-                                isWaiting = true;
-                                jobs.wait(sleepTime);
-                            }
-                        } catch (final InterruptedException ex) {
-                        }
+                    long sleepTime = (long) (waitTime / simulationClock.getSpeedFactor());
+                    logger.trace("Sleeping {}ms until next job", sleepTime);
+                    if (sleepTime > 0) {
+                        isWaiting = true;
+                        park(nextJobTime, sleepTime);
                         isWaiting = false;
                     }
                 }
             } else {
                 // Wait for simulation start
-                try {
-                    synchronized (jobs) {
-                        jobs.wait();
+                park(Long.MIN_VALUE, Long.MAX_VALUE);
+                currentTime = simulationClock.getSimulationStartTime();
+            }
+        }
+    }
+
+    /**
+     * Polls the first job that is due and executes it (or its whole step), while holding the {@link #stepLock}. Nothing
+     * is executed when the simulation has been paused or stopped in the meantime, such that a checkpoint never misses
+     * the jobs that are being executed.
+     *
+     * @param now
+     *            The current time
+     */
+    private void executeDueJobs(long now) {
+        synchronized (stepLock) {
+            if (!simulationClock.isRunning() && !simulationClock.isStopping()) {
+                return;
+            }
+            Job<?> job = jobs.pollDue(now);
+            if (job == null) {
+                return;
+            }
+            currentTime = Math.max(currentTime, job.getTimeOfNextRun());
+            if (executor != null) {
+                executeStep(job, now);
+            } else {
+                logger.trace("Executing  {}", job);
+                executeJob(job, now);
+            }
+        }
+    }
+
+    /**
+     * Executes all the jobs of the same time as the given job, running the jobs of different partitions in parallel.
+     *
+     * @param first
+     *            The first job that is due
+     * @param now
+     *            The current time
+     */
+    private void executeStep(Job<?> first, long now) {
+        // The jobs come out of the queue in their fixed order
+        long time = first.getTimeOfNextRun();
+        List<Job<?>> step = new ArrayList<Job<?>>();
+        step.add(first);
+        for (Job<?> job = jobs.pollDue(time); job != null; job = jobs.pollDue(time)) {
+            step.add(job);
+        }
+        logger.trace("Executing {} jobs at {}", step.size(), time);
+
+        int ix = 0;
+        while (ix < step.size()) {
+            Job<?> job = step.get(ix);
+            if (partitionOf(job) == null) {
+                // Could have been cancelled by one of the earlier jobs
+                if (!job.isDone()) {
+                    executeJob(job, now);
+                }
+                ix++;
+            } else {
+                // Collect the partitions until the next job without one
+                List<Job<?>> group = new ArrayList<Job<?>>();
+                Map<Object, List<Job<?>>> partitions = new LinkedHashMap<Object, List<Job<?>>>();
+                Object partition;
+                while (ix < step.size() && (partition = partitionOf(step.get(ix))) != null) {
+                    List<Job<?>> partitionJobs = partitions.get(partition);
+                    if (partitionJobs == null) {
+                        partitionJobs = new ArrayList<Job<?>>();
+                        partitions.put(partition, partitionJobs);
+                    }
+                    partitionJobs.add(step.get(ix));
+                    group.add(step.get(ix++));
+                }
+                executePartitions(group, partitions.values(), now);
+            }
+        }
+    }
+
+    /**
+     * Executes the partitions in parallel and then performs the deferred actions of the jobs in the order of the jobs,
+     * which is the order in which a single thread would have performed them.
+     *
+     * @param group
+     *            All the jobs of the partitions, in their fixed order
+     * @param partitions
+     *            The jobs per partition
+     * @param now
+     *            The current time
+     */
+    private void executePartitions(List<Job<?>> group, Iterable<List<Job<?>>> partitions, final long now) {
+        List<Future<Map<Job<?>, List<Runnable>>>> results = new ArrayList<Future<Map<Job<?>, List<Runnable>>>>();
+        for (final List<Job<?>> partitionJobs : partitions) {
+            results.add(executor.submit(new Callable<Map<Job<?>, List<Runnable>>>() {
+                @Override
+                public Map<Job<?>, List<Runnable>> call() {
+                    Map<Job<?>, List<Runnable>> deferredActions = new IdentityHashMap<Job<?>, List<Runnable>>();
+                    for (Job<?> job : partitionJobs) {
+                        if (!job.isDone()) {
+                            ParallelSection.enter();
+                            try {
+                                runJob(job, now);
+                            } finally {
+                                deferredActions.put(job, ParallelSection.exit());
+                            }
+                        }
+                    }
+                    return deferredActions;
+                }
+            }));
+        }
+
+        // The barrier: wait for all partitions, then perform their deferred actions in the order of the jobs
+        Map<Job<?>, List<Runnable>> deferredActions = new IdentityHashMap<Job<?>, List<Runnable>>();
+        boolean interrupted = false;
+        try {
+            for (Future<Map<Job<?>, List<Runnable>>> result : results) {
+                // The partitions keep running when we are interrupted, so their actions (e.g. the next run of a
+                // repeating job) are still collected
+                while (true) {
+                    try {
+                        deferredActions.putAll(result.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        logger.error("Error while executing the jobs of a partition: " + e.getMessage(), e);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (Job<?> job : group) {
+                List<Runnable> actions = deferredActions.get(job);
+                if (actions != null) {
+                    for (Runnable action : actions) {
+                        action.run();
                     }
-                    currentTime = simulationClock.getSimulationStartTime();
-                } catch (InterruptedException e) {
                 }
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Object partitionOf(Job<?> job) {
+        Object task = job.getTask();
+        if (task instanceof Partitioned) {
+            return ((Partitioned) task).getPartitionKey();
+        }
+        Class<?> taskClass = task.getClass();
+        WeakReference<Bundle> reference = bundles.get(taskClass);
+        if (reference == null) {
+            Bundle bundle = FrameworkUtil.getBundle(taskClass);
+            reference = new WeakReference<Bundle>(bundle);
+            bundles.put(taskClass, reference);
+            return bundle;
         }
+        return reference.get();
+    }
+
+    /**
+     * Moves the time to the next job, but only when there are no messages in flight on other threads. Those could still
+     * lead to new jobs for the current time.
+     */
+    private void fastForward(long nextJobTime) {
+        if (hasPendingMessages(false)) {
+            logger.trace("Waiting for the messages to be handled");
+            park(Long.MIN_VALUE, 1);
+        } else if (nextJobTime == Long.MAX_VALUE && simulationClock.getSimulationStopTime() == Long.MAX_VALUE) {
+            // Nothing left to do and no end in sight, wait for a new job
+            park(nextJobTime, Long.MAX_VALUE);
+        } else {
+            logger.trace("Fast-forwarding to {}", nextJobTime);
+            simulationClock.advanceTo(nextJobTime);
+        }
+    }
+
+    /**
+     * @param includeListeners
+     *            true when the messages that still have to be delivered to the {@link MessageListener}s count as well
+     * @return true when there are messages in flight on other threads
+     */
+    private boolean hasPendingMessages(boolean includeListeners) {
+        ConnectionManagerImpl connectionManager = this.connectionManager;
+        if (connectionManager == null) {
+            return false;
+        }
+        return connectionManager.hasPendingMessages()
+               || (includeListeners && connectionManager.getMessageListenerContainer().hasPendingDeliveries());
     }
 
     // Start or stop the simulation
@@ -105,10 +420,9 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
 
     @Override
     public void startSimulation(Date startTime, Date stopTime, double speedFactor) {
-        synchronized (jobs) {
+        synchronized (simulationLock) {
             logger.trace("Starting simulation @ {} until {} with factor {}", startTime, stopTime, speedFactor);
-            Job<?>[] oldJobs = jobs.toArray(new Job[jobs.size()]);
-            jobs.clear();
+            List<Job<?>> oldJobs = jobs.drain();
 
             for (Job<?> job : oldJobs) {
                 job.reschedule(startTime.getTime());
@@ -120,18 +434,22 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
             } else {
                 simulationClock.start(startTime.getTime(), stopTime.getTime(), speedFactor);
             }
-
-            jobs.notifyAll();
         }
+        wakeUp();
     }
 
     @Override
     public void stopSimulation() {
-        synchronized (jobs) {
-            logger.trace("Signaling the end of the simulation @ {}", simulationClock.getCurrentTimeMillis());
-            simulationClock.stop();
-            jobs.notifyAll();
+        logger.trace("Signaling the end of the simulation @ {}", simulationClock.getCurrentTimeMillis());
+        stopClock();
+        wakeUp();
+    }
+
+    private void stopClock() {
+        if (!simulationClock.isStopped()) {
+            endTime = simulationClock.getCurrentTimeMillis();
         }
+        simulationClock.stop();
     }
 
     @Override
@@ -139,6 +457,17 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
         simulationClock.changeSpeedFactor(newSpeedFactor);
     }
 
+    @Override
+    public void setFastForward(boolean fastForward) {
+        simulationClock.setFastForward(fastForward);
+        wakeUp();
+    }
+
+    @Override
+    public boolean isFastForward() {
+        return simulationClock.isFastForward();
+    }
+
     @Override
     public void pause() {
         logger.trace("Pause @ {}", simulationClock.getCurrentTimeMillis());
@@ -147,15 +476,150 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
 
     @Override
     public void unpause() {
-        synchronized (jobs) {
-            logger.trace("Unpause @ {}", simulationClock.getCurrentTimeMillis());
-            simulationClock.unpause();
-            jobs.notifyAll();
-        }
+        logger.trace("Unpause @ {}", simulationClock.getCurrentTimeMillis());
+        simulationClock.unpause();
+        wakeUp();
+    }
+
+    @Override
+    public boolean waitUntilStopped(long timeout) throws InterruptedException {
+        return simulationClock.waitUntilStopped(timeout);
     }
 
     @Override
     public Simulation.State getSimulationClockState() {
         return simulationClock.getState();
     }
+
+    // Checkpoints
+
+    @Override
+    public Checkpoint createCheckpoint() {
+        if (ParallelSection.isActive()) {
+            // The scheduler thread holds the step lock while it waits for this job
+            throw new IllegalStateException("A checkpoint can not be created by a job that runs in parallel");
+        }
+        // Wait until the jobs that are being executed have finished, the clock makes sure no new ones are started
+        synchronized (stepLock) {
+            return createCheckpointOfIdleSimulation();
+        }
+    }
+
+    private Checkpoint createCheckpointOfIdleSimulation() {
+        synchronized (simulationLock) {
+            long time;
+            if (simulationClock.isPaused()) {
+                time = simulationClock.getCurrentTimeMillis();
+            } else if (simulationClock.isStopped()) {
+                time = endTime;
+            } else {
+                throw new IllegalStateException("A checkpoint can only be created when the simulation is paused or "
+                                                + "stopped");
+            }
+
+            ConnectionManagerImpl connectionManager = this.connectionManager;
+            if (connectionManager != null && connectionManager.hasPendingMessages()) {
+                logger.warn("Creating a checkpoint while messages are still being handled, these are not saved");
+            }
+
+            List<JobDescriptor> descriptors = new ArrayList<JobDescriptor>();
+            int skipped = 0;
+            for (Job<?> job : jobs.toList()) {
+                Object task = job.getTask();
+                if (task instanceof RecreatableTask) {
+                    RecreatableTask recreatableTask = (RecreatableTask) task;
+                    descriptors.add(new JobDescriptor(recreatableTask.getSnapshotId(),
+                                                      recreatableTask.getTaskId(),
+                                                      job.getTimeOfNextRun(),
+                                                      job.getTimeStep()));
+                } else {
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                logger.debug("Left {} jobs out of the checkpoint that can not be recreated", skipped);
+            }
+
+            Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+            for (SnapshotParticipant participant : participants.values()) {
+                try {
+                    states.put(participant.getSnapshotId(), StateSerialization.serialize(participant.saveState()));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not save the state of " + participant.getSnapshotId()
+                                                    + ": "
+                                                    + e.getMessage(), e);
+                }
+            }
+
+            Checkpoint checkpoint = new Checkpoint(time, descriptors, states);
+            logger.debug("Created {}", checkpoint);
+            return checkpoint;
+        }
+    }
+
+    @Override
+    public void startSimulation(Checkpoint checkpoint, Date stopTime, double speedFactor) {
+        synchronized (simulationLock) {
+            if (!simulationClock.isStopped()) {
+                throw new IllegalStateException("The simulation can only be started from a checkpoint when it is "
+                                                + "stopped");
+            }
+            logger.trace("Starting simulation from {} until {} with factor {}", checkpoint, stopTime, speedFactor);
+            long startTime = checkpoint.getSimulationTime();
+
+            // Read all the states before changing anything
+            Map<String, Serializable> states = new LinkedHashMap<String, Serializable>();
+            for (Entry<String, byte[]> entry : checkpoint.getStates().entrySet()) {
+                SnapshotParticipant participant = participants.get(entry.getKey());
+                if (participant == null) {
+                    logger.warn("The state of {} can not be restored, the participant is not available",
+                                entry.getKey());
+                    continue;
+                }
+                try {
+                    ClassLoader classLoader = participant.getClass().getClassLoader();
+                    states.put(entry.getKey(), StateSerialization.deserialize(entry.getValue(), classLoader));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Could not read the state of " + entry.getKey()
+                                                       + ": "
+                                                       + e.getMessage(), e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException("Could not read the state of " + entry.getKey()
+                                                       + ": "
+                                                       + e.getMessage(), e);
+                }
+            }
+            for (Entry<String, Serializable> entry : states.entrySet()) {
+                participants.get(entry.getKey()).restoreState(entry.getValue());
+            }
+
+            // The current jobs of the restored participants are replaced by the ones of the checkpoint
+            List<Job<?>> oldJobs = jobs.drain();
+            for (Job<?> job : oldJobs) {
+                Object task = job.getTask();
+                if (task instanceof RecreatableTask && states.containsKey(((RecreatableTask) task).getSnapshotId())) {
+                    job.cancel(false);
+                } else {
+                    job.reschedule(startTime);
+                    jobs.add(job);
+                }
+            }
+            for (JobDescriptor descriptor : checkpoint.getJobs()) {
+                SnapshotParticipant participant = participants.get(descriptor.getSnapshotId());
+                RecreatableTask task = participant == null ? null : participant.recreateTask(descriptor.getTaskId());
+                if (task == null) {
+                    logger.warn("The job {} of the checkpoint could not be recreated", descriptor);
+                } else {
+                    scheduleAt(task, descriptor.getTimeOfNextRun(), descriptor.getTimeStep());
+                }
+            }
+
+            if (stopTime == null) {
+                simulationClock.start(startTime, speedFactor);
+            } else {
+                simulationClock.start(startTime, stopTime.getTime(), speedFactor);
+            }
+        }
+        wakeUp();
+    }
 }
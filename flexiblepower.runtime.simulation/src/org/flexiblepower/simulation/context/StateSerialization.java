@@ -0,0 +1,48 @@
+package org.flexiblepower.simulation.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import org.flexiblepower.simulation.api.SnapshotParticipant;
+
+/**
+ * Serializes the states of the {@link SnapshotParticipant}s. Each state is serialized on its own, such that it can be
+ * read again with the class loader of its participant. In an OSGi framework the classes of the state are usually not
+ * visible to this bundle.
+ */
+final class StateSerialization {
+    private StateSerialization() {
+    }
+
+    static byte[] serialize(Serializable state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(state);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Serializable deserialize(byte[] data, final ClassLoader classLoader) throws IOException,
+                                                                               ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, classLoader);
+                } catch (ClassNotFoundException e) {
+                    return super.resolveClass(desc);
+                }
+            }
+        };
+        try {
+            return (Serializable) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -16,6 +16,7 @@ public class SimulatedTimeWidget implements Widget {
         private long startTime;
         private long stopTime;
         private double speedFactor;
+        private boolean fastForward;
 
         public long getStopTime() {
             return stopTime;
@@ -40,19 +41,33 @@ public class SimulatedTimeWidget implements Widget {
         public void setStartTime(long startTime) {
             this.startTime = startTime;
         }
+
+        public boolean isFastForward() {
+            return fastForward;
+        }
+
+        public void setFastForward(boolean fastForward) {
+            this.fastForward = fastForward;
+        }
     }
 
     public static class Update {
         private final Date time;
         private final Simulation.State state;
+        private final boolean fastForward;
 
         public Simulation.State getState() {
             return state;
         }
 
-        public Update(Date date, Simulation.State state) {
+        public Update(Date date, Simulation.State state, boolean fastForward) {
             time = date;
             this.state = state;
+            this.fastForward = fastForward;
+        }
+
+        public boolean isFastForward() {
+            return fastForward;
         }
 
         public Date getTime() {
@@ -80,6 +95,7 @@ public class SimulatedTimeWidget implements Widget {
     }
 
     public Update startSimulation(Parameters params) {
+        simulation.setFastForward(params.isFastForward());
         if (params.stopTime == 0) {
             simulation.startSimulation(new Date(params.getStartTime()), params.getSpeedFactor());
         } else {
@@ -106,11 +122,14 @@ public class SimulatedTimeWidget implements Widget {
     }
 
     public Update changeSpeedFactor(Parameters params) {
-        simulation.changeSpeedFactor(params.getSpeedFactor());
+        simulation.setFastForward(params.isFastForward());
+        if (!params.isFastForward()) {
+            simulation.changeSpeedFactor(params.getSpeedFactor());
+        }
         return update();
     }
 
     public Update update() {
-        return new Update(context.currentTime(), simulation.getSimulationClockState());
+        return new Update(context.currentTime(), simulation.getSimulationClockState(), simulation.isFastForward());
     }
 }
@@ -0,0 +1,219 @@
+package org.flexiblepower.simulation.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.simulation.api.Checkpoint;
+import org.flexiblepower.simulation.api.RecreatableTask;
+import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.api.SnapshotParticipant;
+import org.flexiblepower.simulation.context.SimulationContext;
+
+public class CheckpointTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+    private static final long MINUTE = 60000;
+
+    /**
+     * Counts the minutes, its state is the counter.
+     */
+    private static class Counter implements SnapshotParticipant {
+        final SimulationContext context;
+        final List<Long> ticks = Collections.synchronizedList(new ArrayList<Long>());
+        volatile int count = 0;
+
+        Counter(SimulationContext context) {
+            this.context = context;
+            context.addSnapshotParticipant(this);
+            context.scheduleAtFixedRate(recreateTask("tick"),
+                                        Measure.valueOf(0, SI.SECOND),
+                                        Measure.valueOf(1, NonSI.MINUTE));
+        }
+
+        @Override
+        public String getSnapshotId() {
+            return "counter";
+        }
+
+        @Override
+        public Serializable saveState() {
+            return count;
+        }
+
+        @Override
+        public void restoreState(Serializable state) {
+            count = (Integer) state;
+        }
+
+        @Override
+        public RecreatableTask recreateTask(final String taskId) {
+            return new RecreatableTask() {
+                @Override
+                public void run() {
+                    ticks.add(context.currentTimeMillis());
+                    count++;
+                }
+
+                @Override
+                public String getSnapshotId() {
+                    return "counter";
+                }
+
+                @Override
+                public String getTaskId() {
+                    return taskId;
+                }
+            };
+        }
+    }
+
+    private final List<SimulationContext> contexts = new ArrayList<SimulationContext>();
+
+    private SimulationContext createContext() {
+        SimulationContext context = new SimulationContext();
+        context.activate();
+        context.setFastForward(true);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (SimulationContext context : contexts) {
+            context.deactivate();
+        }
+    }
+
+    private static void waitUntilStopped(SimulationContext context) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (context.getSimulationClockState() != Simulation.State.STOPPED
+               && System.currentTimeMillis() - startTime < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(Simulation.State.STOPPED, context.getSimulationClockState());
+    }
+
+    private static Checkpoint writeAndRead(Checkpoint checkpoint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checkpoint.writeTo(out);
+        return Checkpoint.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testForkFromWarmedUpState() throws Exception {
+        // Warm up for half an hour
+        SimulationContext warmUp = createContext();
+        Counter original = new Counter(warmUp);
+        warmUp.startSimulation(new Date(START), new Date(START + 30 * MINUTE - 1), 1);
+        waitUntilStopped(warmUp);
+        assertEquals(30, original.count);
+
+        Checkpoint checkpoint = writeAndRead(warmUp.createCheckpoint());
+        assertEquals(START + 30 * MINUTE - 1, checkpoint.getSimulationTime());
+        assertEquals(1, checkpoint.getJobs().size());
+        assertEquals(START + 30 * MINUTE, checkpoint.getJobs().get(0).getTimeOfNextRun());
+
+        // Two forks, each with a fresh counter that has scheduled its own job
+        for (int fork = 0; fork < 2; fork++) {
+            SimulationContext context = createContext();
+            Counter counter = new Counter(context);
+            context.startSimulation(checkpoint, new Date(START + 60 * MINUTE - 1), 1);
+            waitUntilStopped(context);
+
+            assertEquals(60, counter.count);
+            assertEquals(30, counter.ticks.size());
+            for (int minute = 0; minute < 30; minute++) {
+                assertEquals(Long.valueOf(START + (30 + minute) * MINUTE), counter.ticks.get(minute));
+            }
+        }
+    }
+
+    public void testCheckpointNeedsPausedSimulation() {
+        SimulationContext context = createContext();
+        new Counter(context);
+        context.setFastForward(false);
+        context.startSimulation(new Date(START), 1);
+        try {
+            context.createCheckpoint();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        context.pause();
+        Checkpoint checkpoint = context.createCheckpoint();
+        assertEquals(1, checkpoint.getStates().size());
+        try {
+            context.startSimulation(checkpoint, null, 1);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testCheckpointWaitsForRunningJob() throws Exception {
+        final SimulationContext context = createContext();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        new Counter(context) {
+            @Override
+            public RecreatableTask recreateTask(final String taskId) {
+                final RecreatableTask tick = super.recreateTask(taskId);
+                return new RecreatableTask() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        tick.run();
+                    }
+
+                    @Override
+                    public String getSnapshotId() {
+                        return tick.getSnapshotId();
+                    }
+
+                    @Override
+                    public String getTaskId() {
+                        return taskId;
+                    }
+                };
+            }
+        };
+        context.startSimulation(new Date(START), 1);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        context.pause();
+
+        final Checkpoint[] checkpoint = new Checkpoint[1];
+        Thread creator = new Thread("checkpoint creator") {
+            @Override
+            public void run() {
+                checkpoint[0] = context.createCheckpoint();
+            }
+        };
+        creator.start();
+        creator.join(200);
+        assertTrue("The checkpoint should wait for the running job", creator.isAlive());
+
+        release.countDown();
+        creator.join(10000);
+        assertNotNull(checkpoint[0]);
+        assertEquals(1, checkpoint[0].getJobs().size());
+        assertEquals(START + MINUTE, checkpoint[0].getJobs().get(0).getTimeOfNextRun());
+    }
+}
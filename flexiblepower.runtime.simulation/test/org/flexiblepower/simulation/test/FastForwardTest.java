@@ -0,0 +1,137 @@
+package org.flexiblepower.simulation.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.context.SimulationContext;
+import org.osgi.framework.Constants;
+
+public class FastForwardTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+
+    @Port(name = "port", sends = Long.class, accepts = Long.class, cardinality = Cardinality.SINGLE)
+    public static class TimeEndpoint implements Endpoint {
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        final SimulationContext context;
+        volatile Connection connection;
+
+        TimeEndpoint(SimulationContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = connection;
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                    try {
+                        // Give the simulation the chance to advance the time, it should not do that
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    received.add(context.currentTimeMillis() - (Long) message);
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    private SimulationContext scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        scheduler = new SimulationContext();
+        scheduler.activate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.deactivate();
+    }
+
+    private void runUntilStopped(Date stopDate) throws InterruptedException {
+        scheduler.setFastForward(true);
+        scheduler.startSimulation(new Date(START), stopDate, 1);
+        long startTime = System.currentTimeMillis();
+        while (scheduler.getSimulationClockState() != Simulation.State.STOPPED
+               && System.currentTimeMillis() - startTime < 30000) {
+            Thread.sleep(10);
+        }
+        assertEquals(Simulation.State.STOPPED, scheduler.getSimulationClockState());
+    }
+
+    public void testYearRunsFast() throws InterruptedException {
+        final AtomicInteger runCounter = new AtomicInteger();
+        final AtomicInteger wrongTimes = new AtomicInteger();
+        final AtomicLong lastTime = new AtomicLong();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long expected = START + runCounter.getAndIncrement() * 3600000L;
+                if (scheduler.currentTimeMillis() != expected) {
+                    wrongTimes.incrementAndGet();
+                }
+                lastTime.set(scheduler.currentTimeMillis());
+            }
+        }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(1, NonSI.HOUR));
+
+        // 2012 is a leap year
+        runUntilStopped(new Date(START + 366 * 24 * 3600000L - 1));
+
+        assertEquals(366 * 24, runCounter.get());
+        assertEquals(0, wrongTimes.get());
+        assertEquals(START + (366 * 24 - 1) * 3600000L, lastTime.get());
+    }
+
+    public void testMessagesAreHandledBeforeTimeAdvances() throws InterruptedException {
+        ConnectionManagerImpl connectionManager = new ConnectionManagerImpl();
+        scheduler.setConnectionManager(connectionManager);
+        final TimeEndpoint sender = new TimeEndpoint(scheduler);
+        TimeEndpoint receiver = new TimeEndpoint(scheduler);
+        connectionManager.addEndpoint(sender, Collections.singletonMap(Constants.SERVICE_PID, "sender"));
+        connectionManager.addEndpoint(receiver, Collections.singletonMap(Constants.SERVICE_PID, "receiver"));
+        connectionManager.getEndpoints()
+                         .get("sender")
+                         .getPort("port")
+                         .getPotentialConnection(connectionManager.getEndpoints().get("receiver").getPort("port"))
+                         .connect();
+
+        // The endpoints have no FlexiblePowerContext here, so the messages are handled on another thread
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sender.connection.sendMessage(scheduler.currentTimeMillis());
+            }
+        }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(1, NonSI.MINUTE));
+
+        runUntilStopped(new Date(START + 20 * 60000L - 1));
+        connectionManager.deactivate();
+
+        assertEquals(20, receiver.received.size());
+        for (Long difference : receiver.received) {
+            assertEquals(Long.valueOf(0), difference);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.flexiblepower.simulation.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.scheduling.Partitioned;
+import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.context.SimulationContext;
+
+public class ParallelSimulationTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+    private static final int PARTITIONS = 8;
+
+    /**
+     * Task of a partition that adds jobs to the scheduler, which should end up in the same order with any number of
+     * threads.
+     */
+    private static class PartitionTask implements Runnable, Partitioned {
+        private final SimulationContext context;
+        private final int partition;
+        private final String name;
+        private final List<String> log;
+        private final Set<String> threads;
+        private int runs = 0;
+
+        PartitionTask(SimulationContext context, int partition, String name, List<String> log, Set<String> threads) {
+            this.context = context;
+            this.partition = partition;
+            this.name = name;
+            this.log = log;
+            this.threads = threads;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return partition;
+        }
+
+        @Override
+        public void run() {
+            threads.add(Thread.currentThread().getName());
+            // Some work, such that the partitions overlap
+            long end = System.nanoTime() + 200000;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+
+            final String entry = name + " run " + runs++ + " @ " + context.currentTimeMillis();
+            // Without a partition, so these are executed one by one in the order in which they were added
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    log.add(entry);
+                }
+            });
+        }
+    }
+
+    private List<String> simulate(int threads, Set<String> usedThreads) throws InterruptedException {
+        SimulationContext context = new SimulationContext(threads);
+        context.activate();
+        try {
+            List<String> log = Collections.synchronizedList(new ArrayList<String>());
+            // Two tasks per partition, such that the jobs of the partitions are interleaved
+            for (int task = 0; task < 2; task++) {
+                for (int partition = PARTITIONS - 1; partition >= 0; partition--) {
+                    context.scheduleAtFixedRate(new PartitionTask(context,
+                                                                  partition,
+                                                                  "p" + partition + "t" + task,
+                                                                  log,
+                                                                  usedThreads),
+                                                Measure.valueOf(0, SI.SECOND),
+                                                Measure.valueOf(1, NonSI.MINUTE));
+                }
+            }
+
+            runUntilStopped(context, new Date(START + 60 * 60000L - 1));
+            return new ArrayList<String>(log);
+        } finally {
+            context.deactivate();
+        }
+    }
+
+    private void runUntilStopped(SimulationContext context, Date stopDate) throws InterruptedException {
+        context.setFastForward(true);
+        context.startSimulation(new Date(START), stopDate, 1);
+        long startTime = System.currentTimeMillis();
+        while (context.getSimulationClockState() != Simulation.State.STOPPED
+               && System.currentTimeMillis() - startTime < 30000) {
+            Thread.sleep(10);
+        }
+        assertEquals(Simulation.State.STOPPED, context.getSimulationClockState());
+    }
+
+    public void testSameResultAsSingleThread() throws InterruptedException {
+        Set<String> usedThreads = Collections.synchronizedSet(new HashSet<String>());
+        List<String> expected = simulate(1, new HashSet<String>());
+        assertEquals(60 * PARTITIONS * 2, expected.size());
+
+        for (int run = 0; run < 3; run++) {
+            assertEquals(expected, simulate(4, usedThreads));
+        }
+        assertTrue("Expected the partitions to run on several threads: " + usedThreads, usedThreads.size() > 1);
+    }
+
+    /**
+     * Task that schedules a job and cancels it again, before the parallel section has ended.
+     */
+    private static class CancellingTask implements Runnable, Partitioned {
+        private final SimulationContext context;
+        private final AtomicInteger cancelledRuns;
+
+        CancellingTask(SimulationContext context, AtomicInteger cancelledRuns) {
+            this.context = context;
+            this.cancelledRuns = cancelledRuns;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return this;
+        }
+
+        @Override
+        public void run() {
+            context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancelledRuns.incrementAndGet();
+                }
+            }, Measure.valueOf(1, SI.SECOND)).cancel(false);
+        }
+    }
+
+    /**
+     * Task of its own partition that counts its runs, and interrupts the scheduler thread while that waits for the
+     * partitions.
+     */
+    private static class InterruptingTask implements Runnable, Partitioned {
+        private final AtomicReference<Thread> schedulerThread;
+        private final AtomicInteger runs = new AtomicInteger();
+
+        InterruptingTask(AtomicReference<Thread> schedulerThread) {
+            this.schedulerThread = schedulerThread;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return this;
+        }
+
+        @Override
+        public void run() {
+            if (runs.incrementAndGet() == 1) {
+                schedulerThread.get().interrupt();
+            }
+        }
+    }
+
+    public void testInterruptKeepsDeferredActions() throws InterruptedException {
+        final SimulationContext context = new SimulationContext(4);
+        context.activate();
+        try {
+            // Without a partition, so this runs on the scheduler thread before the partitions
+            final AtomicReference<Thread> schedulerThread = new AtomicReference<Thread>();
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    schedulerThread.set(Thread.currentThread());
+                }
+            });
+            List<InterruptingTask> tasks = new ArrayList<InterruptingTask>();
+            for (int ix = 0; ix < PARTITIONS; ix++) {
+                InterruptingTask task = new InterruptingTask(schedulerThread);
+                tasks.add(task);
+                context.scheduleAtFixedRate(task, Measure.valueOf(0, SI.SECOND), Measure.valueOf(1, NonSI.MINUTE));
+            }
+
+            runUntilStopped(context, new Date(START + 10 * 60000L - 1));
+            // The next runs of the repeating jobs are deferred actions, which should not be lost by the interrupt
+            for (InterruptingTask task : tasks) {
+                assertEquals(10, task.runs.get());
+            }
+        } finally {
+            context.deactivate();
+        }
+    }
+
+    public void testJobCancelledInSectionIsNotAdded() throws InterruptedException {
+        final SimulationContext context = new SimulationContext(4);
+        context.activate();
+        try {
+            AtomicInteger cancelledRuns = new AtomicInteger();
+            for (int ix = 0; ix < PARTITIONS; ix++) {
+                context.submit(new CancellingTask(context, cancelledRuns));
+            }
+            // Without a partition, so this runs after the barrier of the cancelling tasks
+            final AtomicInteger queuedJobs = new AtomicInteger(-1);
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    queuedJobs.set(context.getJobs().size());
+                }
+            });
+            runUntilStopped(context, new Date(START + 60000L));
+            assertEquals(0, cancelledRuns.get());
+            assertEquals(0, queuedJobs.get());
+        } finally {
+            context.deactivate();
+        }
+    }
+}
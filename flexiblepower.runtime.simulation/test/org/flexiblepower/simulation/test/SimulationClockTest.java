@@ -0,0 +1,96 @@
+package org.flexiblepower.simulation.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.simulation.api.Simulation;
+import org.flexiblepower.simulation.context.SimulationClock;
+
+public class SimulationClockTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+    private static final int READERS = 4;
+
+    private final SimulationClock clock = new SimulationClock();
+
+    public void testReadDetectsStop() throws InterruptedException {
+        // A day per millisecond, so the stop time has passed almost immediately
+        clock.start(START, START + 60000, 24 * 3600 * 1000);
+        Thread.sleep(5);
+
+        final CountDownLatch done = new CountDownLatch(READERS);
+        final AtomicInteger wrongTimes = new AtomicInteger();
+        for (int i = 0; i < READERS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    if (clock.getCurrentTimeMillis() != START + 60000) {
+                        wrongTimes.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(0, wrongTimes.get());
+        assertEquals(Simulation.State.STOPPING, clock.getState());
+        assertEquals(START + 60000, clock.getCurrentTimeMillis());
+    }
+
+    public void testPauseKeepsTime() throws InterruptedException {
+        clock.start(START, 1);
+        clock.pause();
+        long paused = clock.getCurrentTimeMillis();
+        Thread.sleep(5);
+        assertEquals(paused, clock.getCurrentTimeMillis());
+
+        clock.unpause();
+        assertTrue(clock.getCurrentTimeMillis() >= paused);
+        clock.stop();
+        assertEquals(0, clock.getCurrentTimeMillis());
+    }
+
+    public void testConcurrentReadsWhileAdvancing() throws InterruptedException {
+        final long stopTime = START + 100000;
+        clock.setFastForward(true);
+        clock.start(START, stopTime, 1);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    long last = START;
+                    while (running.get()) {
+                        long time = clock.getCurrentTimeMillis();
+                        if (time < last || time > stopTime) {
+                            errors.incrementAndGet();
+                        }
+                        last = time;
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (long time = START; time <= stopTime + 1; time++) {
+            clock.advanceTo(time);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertEquals(Simulation.State.STOPPING, clock.getState());
+        assertEquals(stopTime, clock.getCurrentTimeMillis());
+    }
+}
@@ -18,6 +18,10 @@ import javax.measure.quantity.Duration;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.JobQueue;
+import org.flexiblepower.scheduling.PriorityJobQueue;
+import org.flexiblepower.scheduling.SchedulerPool;
+import org.flexiblepower.scheduling.TimingWheelJobQueue;
 import org.flexiblepower.time.TimeService;
 import org.osgi.framework.Bundle;
 import org.osgi.service.component.ComponentContext;
@@ -30,12 +34,63 @@ import aQute.bnd.annotation.component.Deactivate;
                                              ScheduledExecutorService.class,
                                              TimeService.class })
 public class RuntimeContext extends AbstractScheduler implements ScheduledExecutorService, TimeService {
+    /**
+     * The system property that selects the {@link JobQueue} implementation that is used by each {@link RuntimeContext}.
+     * Use <code>timingwheel</code> for the {@link TimingWheelJobQueue} or <code>priority</code> (the default) for the
+     * {@link PriorityJobQueue}.
+     */
+    public static final String PROPERTY_JOB_QUEUE = "flexiblepower.runtime.jobqueue";
+
+    private static JobQueue createJobQueue() {
+        if ("timingwheel".equalsIgnoreCase(System.getProperty(PROPERTY_JOB_QUEUE))) {
+            return new TimingWheelJobQueue();
+        } else {
+            return new PriorityJobQueue();
+        }
+    }
+
+    /**
+     * The system property that sets the number of threads that are shared by all {@link RuntimeContext}s. When this is
+     * not set (or 0), each {@link RuntimeContext} uses its own thread. Otherwise the {@link RuntimeContext}s use a
+     * shared {@link SchedulerPool}, in which the jobs of each bundle are still executed one at a time and in order.
+     */
+    public static final String PROPERTY_SHARED_THREADS = "flexiblepower.runtime.threads";
+
+    private static SchedulerPool sharedPool;
+    private static int sharedPoolUsers;
+
+    private static synchronized SchedulerPool acquireSharedPool(int threads) {
+        if (sharedPool == null) {
+            sharedPool = new SchedulerPool("RuntimeContext", threads);
+        }
+        sharedPoolUsers++;
+        return sharedPool;
+    }
+
+    private static synchronized void releaseSharedPool() {
+        if (--sharedPoolUsers == 0) {
+            sharedPool.shutdown();
+            sharedPool = null;
+        }
+    }
+
     private Bundle bundle;
+    private SchedulerPool pool;
+
+    public RuntimeContext() {
+        super(createJobQueue());
+    }
 
     @Activate
     public void activate(ComponentContext context) {
         bundle = context.getUsingBundle();
-        start(bundle.getSymbolicName());
+        int sharedThreads = Integer.getInteger(PROPERTY_SHARED_THREADS, 0);
+        if (sharedThreads > 0) {
+            pool = acquireSharedPool(sharedThreads);
+            start(bundle.getSymbolicName(), pool);
+        } else {
+            start(bundle.getSymbolicName());
+        }
         logger.info("Created RuntimeContext for bundle: {}", bundle.getSymbolicName());
     }
 
@@ -43,6 +98,10 @@ public class RuntimeContext extends AbstractScheduler implements ScheduledExecut
     public void deactivate() {
         logger.info("Stopping RuntimeContext for bundle: {}", bundle.getSymbolicName());
         stop();
+        if (pool != null) {
+            releaseSharedPool();
+            pool = null;
+        }
         logger.debug("Stopped RuntimeContext for bundle: {}", bundle.getSymbolicName());
     }
 
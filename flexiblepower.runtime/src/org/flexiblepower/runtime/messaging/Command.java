@@ -13,13 +13,38 @@ public interface Command extends Runnable {
 
         private final Object message;
         private final MessageHandler handler;
+        private final Object receiver;
 
         public HandleMessage(Object message, MessageHandler handler) {
-            if (message == null || handler == null) {
+            this(message, handler, handler);
+        }
+
+        /**
+         * @param message
+         *            The message that will be handled
+         * @param handler
+         *            The handler that will handle the message
+         * @param receiver
+         *            Identifies the receiving side (e.g. the connection) for
+         *            {@link EndpointMailbox.OverflowPolicy#COALESCE}, which can be the same for different handlers.
+         */
+        public HandleMessage(Object message, MessageHandler handler, Object receiver) {
+            if (message == null || handler == null || receiver == null) {
                 throw new NullPointerException();
             }
             this.message = message;
             this.handler = handler;
+            this.receiver = receiver;
+        }
+
+        /**
+         * @param other
+         *            The newer command
+         * @return true when the other command delivers a message of the same type to the same receiver, so this
+         *         command can be replaced by it
+         */
+        boolean isReplaceableBy(HandleMessage other) {
+            return receiver == other.receiver && message.getClass() == other.message.getClass();
         }
 
         @Override
@@ -1,5 +1,7 @@
 package org.flexiblepower.runtime.messaging;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import javax.measure.Measurable;
@@ -9,8 +11,18 @@ import javax.measure.unit.SI;
 import org.flexiblepower.messaging.ConnectionFuture;
 import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
 import org.flexiblepower.messaging.ConnectionManagerException;
-
-public class ConnectionFutureImpl implements ConnectionFuture {
+import org.flexiblepower.runtime.messaging.callback.CallbackConnectionFuture;
+import org.flexiblepower.runtime.messaging.callback.ConnectionCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ConnectionFutureImpl} waits until both endpoints have been registered, after which it connects their
+ * ports. The {@link ConnectionManagerImpl} indexes the pending futures on the pids they wait for, such that only the
+ * futures that reference a newly registered endpoint try to connect again.
+ */
+public class ConnectionFutureImpl implements CallbackConnectionFuture {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionFutureImpl.class);
 
     private final ConnectionManagerImpl connectionManager;
     private final String onePid;
@@ -21,7 +33,10 @@ public class ConnectionFutureImpl implements ConnectionFuture {
 
     private final Object syncObject = new Object();
 
-    private boolean isCancelled = false;
+    private volatile boolean isCancelled = false;
+
+    /** The callbacks that still have to be called, null after the future has completed. Guarded by syncObject. */
+    private List<ConnectionCallback> callbacks = new ArrayList<ConnectionCallback>();
 
     ConnectionFutureImpl(ConnectionManagerImpl cm,
                          String onePid,
@@ -35,14 +50,23 @@ public class ConnectionFutureImpl implements ConnectionFuture {
         this.otherPort = otherPort;
     }
 
+    String getOnePid() {
+        return onePid;
+    }
+
+    String getOtherPid() {
+        return otherPid;
+    }
+
     boolean tryConnect() {
-        if (!isCancelled) {
+        // Don't bother building the exception when one of the endpoints is still missing
+        if (!isCancelled && !isConnected()
+            && connectionManager.getEndpoint(onePid) != null
+            && connectionManager.getEndpoint(otherPid) != null) {
             try {
                 potentialConnection = connectionManager.connectEndpointPorts(onePid, onePort, otherPid, otherPort);
-                synchronized (syncObject) {
-                    syncObject.notifyAll();
-                }
                 connectionManager.removeConnectionFuture(this);
+                complete();
                 return true;
             } catch (ConnectionManagerException e) {
                 // Maybe next time...
@@ -55,9 +79,49 @@ public class ConnectionFutureImpl implements ConnectionFuture {
     public void cancel() {
         isCancelled = true;
         connectionManager.removeConnectionFuture(this);
+        complete();
+    }
+
+    /**
+     * Wakes up the waiting threads and calls the callbacks, if this has not been done already.
+     */
+    private void complete() {
+        List<ConnectionCallback> callbacks;
         synchronized (syncObject) {
             syncObject.notifyAll();
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        if (callbacks != null) {
+            for (ConnectionCallback callback : callbacks) {
+                call(callback);
+            }
+        }
+    }
+
+    private void call(ConnectionCallback callback) {
+        try {
+            PotentialConnection connection = potentialConnection;
+            if (connection != null) {
+                callback.connected(connection);
+            } else {
+                callback.cancelled();
+            }
+        } catch (RuntimeException ex) {
+            logger.error("Error while calling the connection callback: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void addCallback(ConnectionCallback callback) {
+        synchronized (syncObject) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
         }
+        // Already completed
+        call(callback);
     }
 
     @Override
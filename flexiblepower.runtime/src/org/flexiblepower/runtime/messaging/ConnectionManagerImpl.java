@@ -13,7 +13,12 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.flexiblepower.messaging.Cardinality;
@@ -43,8 +48,18 @@ import aQute.bnd.annotation.metatype.Meta;
 public class ConnectionManagerImpl implements ConnectionManager {
     private static final String KEY_ACTIVE_CONNECTIONS = "active.connections";
     private static final String KEY_AUTOCONNECT = "autoconnect";
+    private static final String KEY_MAILBOX_CAPACITY = "mailbox.capacity";
+    private static final String KEY_MAILBOX_BATCH_SIZE = "mailbox.batch.size";
+    private static final String KEY_MAILBOX_OVERFLOW_POLICY = "mailbox.overflow.policy";
+    private static final String KEY_LISTENER_FANOUT = "listener.fanout";
+    private static final String KEY_LISTENER_QUEUE_CAPACITY = "listener.queue.capacity";
+    private static final String KEY_STORE_DELAY = "connections.store.delay";
+    private static final String KEY_DISCONNECT_TIMEOUT = "disconnect.timeout";
     private static final Logger logger = LoggerFactory.getLogger(ConnectionManagerImpl.class);
 
+    /** The default maximum time in milliseconds that a disconnect waits for the endpoints */
+    public static final long DEFAULT_DISCONNECT_TIMEOUT = 10000;
+
     @Meta.OCD(name = "Connection Manager Configuration",
               description = "The ConnectionManager is responsible for wiring 2 ports for 2 different endpoints to each other."
                             + "Warning: any modifications during runtime won't be activated right away. "
@@ -60,24 +75,90 @@ public class ConnectionManagerImpl implements ConnectionManager {
                  deflt = "false",
                  description = "When this is set to true, every new Endpoint will trigger an autoconnect call")
         boolean autoconnect();
+
+        @Meta.AD(name = KEY_MAILBOX_CAPACITY,
+                 deflt = "10000",
+                 description = "The maximum number of messages that can be waiting to be handled by a single endpoint")
+        int mailboxCapacity();
+
+        @Meta.AD(name = KEY_MAILBOX_BATCH_SIZE,
+                 deflt = "64",
+                 description = "The maximum number of messages that are handled by an endpoint "
+                               + "in a single scheduler job")
+        int mailboxBatchSize();
+
+        @Meta.AD(name = KEY_MAILBOX_OVERFLOW_POLICY,
+                 deflt = "UNBOUNDED",
+                 optionValues = { "UNBOUNDED", "BLOCK", "DROP_OLDEST", "COALESCE" },
+                 description = "What happens when a message is sent to an endpoint with a full mailbox: "
+                               + "UNBOUNDED ignores the capacity and never drops a message, "
+                               + "BLOCK waits until there is room and rejects the message after 1 second, "
+                               + "DROP_OLDEST drops the oldest waiting message and "
+                               + "COALESCE replaces a waiting message of the same type on the same connection")
+        String mailboxOverflowPolicy();
+
+        @Meta.AD(name = KEY_LISTENER_FANOUT,
+                 deflt = "false",
+                 description = "When this is set to true, each MessageListener gets its own queue and thread, "
+                               + "such that a slow listener can't hold up the others")
+        boolean listenerFanout();
+
+        @Meta.AD(name = KEY_LISTENER_QUEUE_CAPACITY,
+                 deflt = "1000",
+                 description = "The maximum number of messages that can be waiting for a single MessageListener "
+                               + "in fan-out mode, further messages for that listener are dropped")
+        int listenerQueueCapacity();
+
+        @Meta.AD(name = KEY_STORE_DELAY,
+                 deflt = "0",
+                 description = "The time in milliseconds during which changes of the active connections are collected "
+                               + "before they are stored in a single update. "
+                               + "With 0 every change is stored immediately. "
+                               + "Changes that have not been stored yet are lost when the system crashes, "
+                               + "but they are always stored when this component is deactivated")
+        long connectionsStoreDelay();
+
+        @Meta.AD(name = KEY_DISCONNECT_TIMEOUT,
+                 deflt = "10000",
+                 description = "The maximum time in milliseconds that a disconnect waits "
+                               + "for both endpoints to handle it. "
+                               + "When an endpoint is removed, its connections are closed without waiting")
+        long disconnectTimeout();
     }
 
     private final Map<String, Object> otherProperties;
     private final SortedMap<String, EndpointWrapper> endpointWrappers;
+    private final PortIndex portIndex;
     private final MessageListenerContainer messageListenerContainer;
+    private final AtomicInteger busyMailboxes;
 
     private final Set<String> activeConnections;
-    private final List<ConnectionFutureImpl> connectionFutures;
+    /** The pending {@link ConnectionFutureImpl}s, indexed on both pids that they are waiting for */
+    private final Map<String, List<ConnectionFutureImpl>> connectionFutures;
 
     private boolean autoconnect;
 
+    private int mailboxCapacity = EndpointMailbox.DEFAULT_CAPACITY;
+    private int mailboxBatchSize = EndpointMailbox.DEFAULT_BATCH_SIZE;
+    private EndpointMailbox.OverflowPolicy mailboxOverflowPolicy = EndpointMailbox.DEFAULT_OVERFLOW_POLICY;
+
+    private long storeDelay = 0;
+    private ScheduledExecutorService storeExecutor;
+    /** Releases the schedulers of removed endpoints, such that this never happens on the scheduler thread itself */
+    private ExecutorService releaseExecutor;
+    private boolean storePending = false;
+
+    private volatile long disconnectTimeout = DEFAULT_DISCONNECT_TIMEOUT;
+
     public ConnectionManagerImpl() {
         endpointWrappers = new TreeMap<String, EndpointWrapper>();
+        portIndex = new PortIndex();
         otherProperties = new HashMap<String, Object>();
         messageListenerContainer = new MessageListenerContainer();
+        busyMailboxes = new AtomicInteger();
 
         activeConnections = new TreeSet<String>();
-        connectionFutures = new CopyOnWriteArrayList<ConnectionFutureImpl>();
+        connectionFutures = new HashMap<String, List<ConnectionFutureImpl>>();
         autoconnect = false;
     }
 
@@ -132,6 +213,10 @@ public class ConnectionManagerImpl implements ConnectionManager {
             }
 
             parseAutoConnect(properties);
+            parseMailboxSettings(properties);
+            parseListenerSettings(properties);
+            parseStoreDelay(properties);
+            parseDisconnectTimeout(properties);
         }
         logger.debug("These connections are configured at boottime: {}", activeConnections);
 
@@ -158,14 +243,92 @@ public class ConnectionManagerImpl implements ConnectionManager {
         }
     }
 
+    private void parseMailboxSettings(Dictionary<String, Object> properties) {
+        Object capacity = properties.get(KEY_MAILBOX_CAPACITY);
+        if (capacity != null) {
+            mailboxCapacity = Integer.parseInt(capacity.toString());
+        }
+        Object batchSize = properties.get(KEY_MAILBOX_BATCH_SIZE);
+        if (batchSize != null) {
+            mailboxBatchSize = Integer.parseInt(batchSize.toString());
+        }
+        Object overflowPolicy = properties.get(KEY_MAILBOX_OVERFLOW_POLICY);
+        if (overflowPolicy != null) {
+            mailboxOverflowPolicy = EndpointMailbox.OverflowPolicy.valueOf(overflowPolicy.toString());
+        }
+
+        for (EndpointWrapper wrapper : endpointWrappers.values()) {
+            configureMailbox(wrapper);
+        }
+    }
+
+    private void parseListenerSettings(Dictionary<String, Object> properties) {
+        boolean fanOut = messageListenerContainer.isFanOut();
+        Object fanOutValue = properties.get(KEY_LISTENER_FANOUT);
+        if (fanOutValue != null) {
+            fanOut = Boolean.parseBoolean(fanOutValue.toString());
+        }
+        int queueCapacity = MessageListenerContainer.DEFAULT_QUEUE_CAPACITY;
+        Object capacity = properties.get(KEY_LISTENER_QUEUE_CAPACITY);
+        if (capacity != null) {
+            queueCapacity = Integer.parseInt(capacity.toString());
+        }
+        messageListenerContainer.configure(fanOut, queueCapacity);
+    }
+
+    private void parseStoreDelay(Dictionary<String, Object> properties) {
+        Object delay = properties.get(KEY_STORE_DELAY);
+        if (delay != null) {
+            storeDelay = Long.parseLong(delay.toString());
+        }
+        if (storeDelay <= 0) {
+            // Don't keep anything waiting when we switch back to storing immediately
+            flushConnections();
+        }
+    }
+
+    private void parseDisconnectTimeout(Dictionary<String, Object> properties) {
+        Object timeout = properties.get(KEY_DISCONNECT_TIMEOUT);
+        if (timeout != null) {
+            disconnectTimeout = Long.parseLong(timeout.toString());
+        }
+    }
+
+    /**
+     * @return The maximum time in milliseconds that a disconnect waits for both endpoints to handle it.
+     */
+    long getDisconnectTimeout() {
+        return disconnectTimeout;
+    }
+
+    private void configureMailbox(EndpointWrapper wrapper) {
+        wrapper.getMailbox().configure(mailboxCapacity, mailboxBatchSize, mailboxOverflowPolicy);
+    }
+
     @Modified
-    public void modified(Map<String, Object> properties) {
-        // Only the autoConnect change will be parsed, other changes will be ignored
-        parseAutoConnect(new Hashtable<String, Object>(properties));
+    public synchronized void modified(Map<String, Object> properties) {
+        // Only the autoConnect, mailbox, listener, store and disconnect settings will be parsed, others will be ignored
+        Dictionary<String, Object> dictionary = new Hashtable<String, Object>(properties);
+        parseAutoConnect(dictionary);
+        parseMailboxSettings(dictionary);
+        parseListenerSettings(dictionary);
+        parseStoreDelay(dictionary);
+        parseDisconnectTimeout(dictionary);
     }
 
     @Deactivate
     public synchronized void deactivate() {
+        // Make sure that the changes that are still waiting are not lost
+        flushConnections();
+        if (storeExecutor != null) {
+            storeExecutor.shutdownNow();
+            storeExecutor = null;
+        }
+        if (releaseExecutor != null) {
+            // The endpoints that are still being removed are released by the remaining tasks
+            releaseExecutor.shutdown();
+            releaseExecutor = null;
+        }
         configuration = null;
         messageListenerContainer.close();
     }
@@ -199,26 +362,110 @@ public class ConnectionManagerImpl implements ConnectionManager {
     private boolean waitWithStoring = false;
 
     /**
-     * Stores the active connections in the configuration of this component
+     * Stores the active connections in the configuration of this component. When a store delay has been configured, the
+     * changes are collected and stored by a single update after that delay. Until then the changes only live in memory,
+     * so a crash in that period loses them. {@link #deactivate()} always stores the changes that are still waiting.
      */
     private void storeConnections() {
-        if (!waitWithStoring) {
-            // If the configuration is null, it means that the updates are done while the activate and deactivate
-            // methods
-            // are not active. This is probably due to the fact that it is booting up or is shutting down. Then we don't
-            // need to update the configuration.
-            if (configuration != null) {
-                Dictionary<String, Object> properties = new Hashtable<String, Object>(otherProperties);
-                if (!activeConnections.isEmpty()) {
-                    properties.put(KEY_ACTIVE_CONNECTIONS, new ArrayList<String>(activeConnections));
+        if (!waitWithStoring && configuration != null) {
+            if (storeDelay <= 0) {
+                writeConnections();
+            } else if (!storePending) {
+                // The first change starts the window, the rest of the changes within it will be stored along with it
+                storePending = true;
+                getStoreExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushConnections();
+                    }
+                }, storeDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Immediately stores the changes of the active connections that are waiting for the store delay to pass.
+     */
+    public synchronized void flushConnections() {
+        if (storePending) {
+            storePending = false;
+            writeConnections();
+        }
+    }
+
+    private ScheduledExecutorService getStoreExecutor() {
+        if (storeExecutor == null) {
+            storeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ConnectionManager store");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return storeExecutor;
+    }
 
-                if (!properties.isEmpty()) {
-                    try {
-                        configuration.update(properties);
-                    } catch (IOException e) {
-                        logger.warn("Could not store the new active connections: " + e.getMessage(), e);
+    /**
+     * Releases the scheduler of an endpoint that has been removed, after it has handled its disconnects, but not later
+     * than the disconnect timeout. This is done on a thread of the connection manager, because the scheduler can not
+     * stop itself.
+     *
+     * @param wrapper
+     *            The endpoint that has been removed
+     * @param futures
+     *            The futures of the disconnects of all the connections of the endpoint
+     */
+    synchronized void releaseAfterDisconnect(final EndpointWrapper wrapper, final List<DisconnectFuture> futures) {
+        if (releaseExecutor == null) {
+            releaseExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ConnectionManager release");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final long deadline = System.currentTimeMillis() + disconnectTimeout;
+        releaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (DisconnectFuture future : futures) {
+                        long waitTime = Math.max(0, deadline - System.currentTimeMillis());
+                        if (!future.await(waitTime, TimeUnit.MILLISECONDS)) {
+                            logger.warn("Endpoint [{}] did not handle its disconnects within {} ms",
+                                        wrapper.getPid(),
+                                        disconnectTimeout);
+                            break;
+                        }
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    wrapper.release();
+                }
+            }
+        });
+    }
+
+    private void writeConnections() {
+        // If the configuration is null, it means that the updates are done while the activate and deactivate methods
+        // are not active. This is probably due to the fact that it is booting up or is shutting down. Then we don't
+        // need to update the configuration.
+        if (configuration != null) {
+            Dictionary<String, Object> properties = new Hashtable<String, Object>(otherProperties);
+            if (!activeConnections.isEmpty()) {
+                properties.put(KEY_ACTIVE_CONNECTIONS, new ArrayList<String>(activeConnections));
+            }
+
+            if (!properties.isEmpty()) {
+                try {
+                    configuration.update(properties);
+                } catch (IOException e) {
+                    logger.warn("Could not store the new active connections: " + e.getMessage(), e);
                 }
             }
         }
@@ -230,17 +477,20 @@ public class ConnectionManagerImpl implements ConnectionManager {
             String key = getKey(endpoint, properties);
             if (key != null) {
                 EndpointWrapper wrapper = new EndpointWrapper(key, endpoint, this);
-                endpointWrappers.put(key, wrapper);
+                configureMailbox(wrapper);
+                EndpointWrapper old = endpointWrappers.put(key, wrapper);
+                if (old != null) {
+                    removeFromIndex(old);
+                }
                 detectPossibleConnections(wrapper);
                 logger.debug("Added endpoint on key [{}]", key);
 
                 if (autoconnect) {
                     autoConnect();
                 }
-            }
-            // Check if there is a future connection that now can be connected
-            for (ConnectionFutureImpl future : connectionFutures) {
-                future.tryConnect();
+
+                // Check if there is a future connection that now can be connected
+                tryConnectionFutures(key);
             }
         } catch (IllegalArgumentException ex) {
             logger.warn("Could not add endpoint: {}", ex.getMessage());
@@ -251,6 +501,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
         String key = getKey(endpoint, properties);
         if (key != null) {
             EndpointWrapper endpointWrapper = endpointWrappers.remove(key);
+            if (endpointWrapper != null) {
+                removeFromIndex(endpointWrapper);
+            }
             if (endpointWrapper != null && endpointWrapper.getEndpoint() == endpoint) {
                 endpointWrapper.close();
                 logger.debug("Removed endpoint on key [{}]", key);
@@ -269,45 +522,29 @@ public class ConnectionManagerImpl implements ConnectionManager {
 
     private void detectPossibleConnections(EndpointWrapper leftWrapper) {
         for (EndpointPortImpl left : leftWrapper.getPorts().values()) {
-            for (EndpointWrapper rightWrapper : endpointWrappers.values()) {
-                if (leftWrapper != rightWrapper) {
-                    for (EndpointPortImpl right : rightWrapper.getPorts().values()) {
-                        if (isSubset(left.getPort().sends(), right.getPort().accepts()) && isSubset(right.getPort()
-                                                                                                         .sends(),
-                                                                                                    left.getPort()
-                                                                                                        .accepts())) {
-                            PotentialConnectionImpl connection = new PotentialConnectionImpl(left, right);
-                            logger.info("Found matching ports: {} <--> {}", left, right);
-                            left.addMatch(connection);
-                            right.addMatch(connection);
-
-                            String key = connection.toString();
-                            if (activeConnections.contains(key)) {
-                                logger.info("Auto-starting connection on {}", connection);
-                                connection.connect();
-                            }
-                        }
-                    }
+            for (EndpointPortImpl right : portIndex.findMatches(left)) {
+                PotentialConnectionImpl connection = new PotentialConnectionImpl(left, right);
+                logger.info("Found matching ports: {} <--> {}", left, right);
+                left.addMatch(connection);
+                right.addMatch(connection);
+
+                String key = connection.toString();
+                if (activeConnections.contains(key)) {
+                    logger.info("Auto-starting connection on {}", connection);
+                    connection.connect();
                 }
             }
         }
+        // Only add the ports after detection, so they are never matched with a port of the same endpoint
+        for (EndpointPortImpl port : leftWrapper.getPorts().values()) {
+            portIndex.add(port);
+        }
     }
 
-    private static boolean isSubset(Class<?>[] sends, Class<?>[] accepts) {
-        boolean correct = true;
-        for (Class<?> send : sends) {
-            correct = false;
-            for (Class<?> accept : accepts) {
-                if (accept.isAssignableFrom(send)) {
-                    correct = true;
-                    break;
-                }
-            }
-            if (!correct) {
-                break;
-            }
+    private void removeFromIndex(EndpointWrapper wrapper) {
+        for (EndpointPortImpl port : wrapper.getPorts().values()) {
+            portIndex.remove(port);
         }
-        return correct;
     }
 
     @Reference(dynamic = true,
@@ -384,6 +621,18 @@ public class ConnectionManagerImpl implements ConnectionManager {
         storeConnections();
     }
 
+    AtomicInteger getBusyMailboxes() {
+        return busyMailboxes;
+    }
+
+    /**
+     * @return true when there is an endpoint that still has commands (e.g. messages) to handle. A simulation uses
+     *         this to make sure that all messages of the current moment have been handled before the time advances.
+     */
+    public boolean hasPendingMessages() {
+        return busyMailboxes.get() > 0;
+    }
+
     public MessageListenerContainer getMessageListenerContainer() {
         return messageListenerContainer;
     }
@@ -433,19 +682,71 @@ public class ConnectionManagerImpl implements ConnectionManager {
         return potentialConnection;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The returned future is a {@link org.flexiblepower.runtime.messaging.callback.CallbackConnectionFuture}, so
+     * callbacks can be added to it.
+     */
     @Override
-    public ConnectionFuture asyncConnectEndpointPorts(String onePid,
-                                                      String onePort,
-                                                      String otherPid,
-                                                      String otherPort) {
+    public synchronized ConnectionFuture asyncConnectEndpointPorts(String onePid,
+                                                                   String onePort,
+                                                                   String otherPid,
+                                                                   String otherPort) {
         ConnectionFutureImpl future = new ConnectionFutureImpl(this, onePid, onePort, otherPid, otherPort);
         if (!future.tryConnect()) {
-            connectionFutures.add(future);
+            addConnectionFuture(onePid, future);
+            if (!otherPid.equals(onePid)) {
+                addConnectionFuture(otherPid, future);
+            }
         }
         return future;
     }
 
-    void removeConnectionFuture(ConnectionFutureImpl connectionFutureImpl) {
-        connectionFutures.remove(connectionFutureImpl);
+    private void addConnectionFuture(String pid, ConnectionFutureImpl future) {
+        List<ConnectionFutureImpl> futures = connectionFutures.get(pid);
+        if (futures == null) {
+            futures = new ArrayList<ConnectionFutureImpl>(1);
+            connectionFutures.put(pid, futures);
+        }
+        futures.add(future);
+    }
+
+    synchronized void removeConnectionFuture(ConnectionFutureImpl future) {
+        removeConnectionFuture(future.getOnePid(), future);
+        removeConnectionFuture(future.getOtherPid(), future);
+    }
+
+    private void removeConnectionFuture(String pid, ConnectionFutureImpl future) {
+        List<ConnectionFutureImpl> futures = connectionFutures.get(pid);
+        if (futures != null) {
+            futures.remove(future);
+            if (futures.isEmpty()) {
+                connectionFutures.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Tries to connect the pending futures that wait for the endpoint with the given key. Since
+     * {@link #getEndpoint(String)} also finds an endpoint on a prefix of its pid, the futures that wait for any prefix
+     * of the key are tried.
+     *
+     * @param key
+     *            The pid of the endpoint that has been added
+     */
+    private void tryConnectionFutures(String key) {
+        if (connectionFutures.isEmpty()) {
+            return;
+        }
+        for (int length = key.length(); length > 0; length--) {
+            List<ConnectionFutureImpl> futures = connectionFutures.get(key.substring(0, length));
+            if (futures != null) {
+                // Copy, because a connected future removes itself
+                for (ConnectionFutureImpl future : futures.toArray(new ConnectionFutureImpl[futures.size()])) {
+                    future.tryConnect();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,79 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.flexiblepower.messaging.MessageHandler;
+
+/**
+ * The {@link DisconnectFuture} completes when both endpoints of a connection have handled the
+ * {@link MessageHandler#disconnected()} call. Those calls are executed by the schedulers of the endpoints, so waiting
+ * for it could take a while when an endpoint is busy. A {@link DisconnectFuture} can't be cancelled.
+ */
+final class DisconnectFuture implements Future<Void> {
+    /** The future for a connection that was not connected, so nothing needs to be done */
+    static final DisconnectFuture DONE = new DisconnectFuture(0);
+
+    private final CountDownLatch latch;
+
+    /**
+     * @param endpoints
+     *            The number of endpoints that have to handle the disconnect
+     */
+    DisconnectFuture(int endpoints) {
+        latch = new CountDownLatch(endpoints);
+    }
+
+    /**
+     * @return The latch that is counted down by the {@link Command.Disconnect} commands.
+     */
+    CountDownLatch getLatch() {
+        return latch;
+    }
+
+    /**
+     * Waits until both endpoints have handled the disconnect, or until the timeout passes.
+     *
+     * @param timeout
+     *            The maximum time to wait
+     * @param unit
+     *            The unit of the timeout
+     * @return true when both endpoints have handled the disconnect, false when the timeout passed.
+     * @throws InterruptedException
+     *             When the thread has been interrupted while waiting
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException {
+        latch.await();
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("The endpoints did not handle the disconnect in time");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,402 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.scheduling.Partitioned;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link EndpointMailbox} is the queue of {@link Command}s for a single endpoint. Any number of threads can add
+ * commands, while at most one drain job is submitted to the {@link Executor} of the endpoint at any moment. That job
+ * executes the commands one at a time (in order) in batches of at most {@link #getBatchSize()} commands, after which it
+ * resubmits itself when there is more work. This means that the scheduler of the endpoint only sees a single job per
+ * batch, instead of a job per message.
+ *
+ * The number of pending {@link Command.HandleMessage} commands is bounded by the {@link #getCapacity()}, unless the
+ * {@link OverflowPolicy#UNBOUNDED} policy (the default) is used. What happens when that capacity is reached is
+ * determined by the {@link OverflowPolicy}. Other commands (e.g. {@link Command.Disconnect}) are never dropped or
+ * delayed.
+ */
+public class EndpointMailbox {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointMailbox.class);
+
+    /**
+     * The maximum time in milliseconds that a sender will be blocked by the {@link OverflowPolicy#BLOCK} policy. After
+     * this the message is rejected, such that 2 endpoints that are sending to each other can never deadlock.
+     */
+    static final long MAX_BLOCK_TIME = 1000;
+
+    /**
+     * Describes what happens when a message is sent to a mailbox that already has reached its capacity.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * The capacity is not enforced, so messages are never dropped and senders are never blocked.
+         */
+        UNBOUNDED,
+        /**
+         * The sending thread is blocked until there is space in the mailbox. When there is still no space after 1
+         * second, or when the mailbox is drained by the sending thread itself, the new message is rejected.
+         */
+        BLOCK,
+        /**
+         * The oldest pending message is dropped to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * A pending message of the same type for the same connection is replaced by the new one. When there is no such
+         * message, the oldest pending message is dropped.
+         */
+        COALESCE
+    }
+
+    /** The default maximum number of pending messages */
+    public static final int DEFAULT_CAPACITY = 10000;
+    /** The default maximum number of commands that are executed in a single job */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    /** The default {@link OverflowPolicy} */
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.UNBOUNDED;
+
+    private final String name;
+    private final Executor executor;
+    private final Queue<Command> queue;
+    private final AtomicInteger pendingMessages;
+    private final AtomicBoolean scheduled;
+    private final AtomicLong droppedMessages, coalescedMessages;
+    private final Object notFull;
+    private final Runnable drainer;
+    /** Counts the mailboxes that have a drain job, shared by all mailboxes of a connection manager. May be null. */
+    private final AtomicInteger busyMailboxes;
+
+    private volatile int capacity;
+    private volatile int batchSize;
+    private volatile OverflowPolicy overflowPolicy;
+    private volatile Thread drainingThread;
+    private volatile int blockedSenders;
+
+    /**
+     * @param name
+     *            The name of the mailbox, which is used for logging and in the {@link #toString()}.
+     * @param executor
+     *            The {@link Executor} on which the drain jobs will be submitted. This should execute the jobs in the
+     *            order they are submitted (e.g. a single threaded scheduler).
+     */
+    public EndpointMailbox(String name, Executor executor) {
+        this(name, executor, null, null);
+    }
+
+    /**
+     * @param name
+     *            The name of the mailbox, which is used for logging and in the {@link #toString()}.
+     * @param executor
+     *            The {@link Executor} on which the drain jobs will be submitted. This should execute the jobs in the
+     *            order they are submitted (e.g. a single threaded scheduler).
+     * @param busyMailboxes
+     *            The counter that is incremented while this mailbox has a drain job, or null when it is not needed.
+     * @param partitionKey
+     *            The key of the {@link Partitioned} drain jobs, which should be the same as that of the other jobs of
+     *            the endpoint. May be null.
+     */
+    EndpointMailbox(String name, Executor executor, AtomicInteger busyMailboxes, final Object partitionKey) {
+        this.name = name;
+        this.executor = executor;
+        this.busyMailboxes = busyMailboxes;
+        queue = new ConcurrentLinkedQueue<Command>();
+        pendingMessages = new AtomicInteger();
+        scheduled = new AtomicBoolean(false);
+        droppedMessages = new AtomicLong();
+        coalescedMessages = new AtomicLong();
+        notFull = new Object();
+        drainer = new PartitionedRunnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+
+            @Override
+            public Object getPartitionKey() {
+                return partitionKey;
+            }
+
+            @Override
+            public String toString() {
+                return "Deliver messages to " + EndpointMailbox.this.name;
+            }
+        };
+
+        capacity = DEFAULT_CAPACITY;
+        batchSize = DEFAULT_BATCH_SIZE;
+        overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    }
+
+    /**
+     * Changes the settings of this mailbox. The new settings will be used for all messages that are added after this
+     * call.
+     *
+     * @param capacity
+     *            The maximum number of pending messages, should be positive.
+     * @param batchSize
+     *            The maximum number of commands that are executed in a single job, should be positive.
+     * @param overflowPolicy
+     *            The {@link OverflowPolicy} that is used when the capacity has been reached.
+     */
+    public void configure(int capacity, int batchSize, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of the mailbox should be positive");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size of the mailbox should be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds a command to this mailbox and makes sure that there is a job that will execute it.
+     *
+     * @param command
+     *            The {@link Command} that should be executed.
+     * @return false when the command is a message that has been rejected because the mailbox is full (see
+     *         {@link OverflowPolicy#BLOCK}), true otherwise
+     */
+    public boolean add(Command command) {
+        if (command instanceof Command.HandleMessage) {
+            if (!reserveRoomFor((Command.HandleMessage) command)) {
+                droppedMessages.incrementAndGet();
+                logger.debug("Mailbox of {} is full, rejected {}", name, command);
+                return false;
+            }
+        }
+        queue.add(command);
+        schedule();
+        return true;
+    }
+
+    private interface PartitionedRunnable extends Runnable, Partitioned {
+    }
+
+    /**
+     * Reserves a place in the mailbox for the new message, by incrementing the number of pending messages. When the
+     * mailbox is full, the {@link OverflowPolicy} is applied until a place can be reserved.
+     *
+     * @return false when there is no room for the new message
+     */
+    private boolean reserveRoomFor(Command.HandleMessage command) {
+        OverflowPolicy overflowPolicy = this.overflowPolicy;
+        if (overflowPolicy == OverflowPolicy.UNBOUNDED) {
+            pendingMessages.incrementAndGet();
+            return true;
+        }
+
+        while (!tryReserve()) {
+            switch (overflowPolicy) {
+            case COALESCE:
+                if (removeFirst(command, true)) {
+                    coalescedMessages.incrementAndGet();
+                } else {
+                    // There is no message that can be replaced, so drop the oldest instead
+                    dropOldest(command);
+                }
+                break;
+            case DROP_OLDEST:
+                dropOldest(command);
+                break;
+            default: // BLOCK
+                return waitUntilReserved();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the number of pending messages was below the capacity and has been incremented
+     */
+    private boolean tryReserve() {
+        while (true) {
+            int pending = pendingMessages.get();
+            if (pending >= capacity) {
+                return false;
+            } else if (pendingMessages.compareAndSet(pending, pending + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dropOldest(Command.HandleMessage command) {
+        if (removeFirst(command, false)) {
+            droppedMessages.incrementAndGet();
+        } else {
+            // The pending messages have been reserved, but not yet added by the other senders
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Removes the first pending {@link Command.HandleMessage} from the queue.
+     *
+     * @param command
+     *            The new command for which room is needed
+     * @param sameType
+     *            When true, only a message that can be replaced by the new command (see
+     *            {@link Command.HandleMessage#isReplaceableBy(Command.HandleMessage)}) may be removed
+     * @return true when a message has been removed
+     */
+    private boolean removeFirst(Command.HandleMessage command, boolean sameType) {
+        for (Iterator<Command> it = queue.iterator(); it.hasNext();) {
+            Command pending = it.next();
+            if (pending instanceof Command.HandleMessage) {
+                Command.HandleMessage message = (Command.HandleMessage) pending;
+                if (!sameType || message.isReplaceableBy(command)) {
+                    // Only count it when we really removed it, the drain job could have taken it in the meantime
+                    if (queue.remove(message)) {
+                        pendingMessages.decrementAndGet();
+                        logger.debug("Mailbox of {} is full, removed {}", name, message);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true when a place has been reserved, false when the mailbox is still full after {@link #MAX_BLOCK_TIME}
+     */
+    private boolean waitUntilReserved() {
+        if (Thread.currentThread() == drainingThread) {
+            // Sending to ourselves (or to an endpoint on the same thread), waiting would never free up any room
+            return false;
+        }
+
+        long waitUntil = System.currentTimeMillis() + MAX_BLOCK_TIME;
+        synchronized (notFull) {
+            blockedSenders++;
+            try {
+                long waitTime = MAX_BLOCK_TIME;
+                while (!tryReserve()) {
+                    if (waitTime <= 0) {
+                        return false;
+                    }
+                    notFull.wait(waitTime);
+                    waitTime = waitUntil - System.currentTimeMillis();
+                }
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blockedSenders--;
+            }
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            if (busyMailboxes != null) {
+                busyMailboxes.incrementAndGet();
+            }
+            try {
+                executor.execute(drainer);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                if (busyMailboxes != null) {
+                    busyMailboxes.decrementAndGet();
+                }
+                logger.warn("Could not deliver messages to {}, the executor has been stopped", name);
+            }
+        }
+    }
+
+    private void drain() {
+        drainingThread = Thread.currentThread();
+        try {
+            int batchSize = this.batchSize;
+            for (int ix = 0; ix < batchSize; ix++) {
+                Command command = queue.poll();
+                if (command == null) {
+                    break;
+                }
+                if (command instanceof Command.HandleMessage) {
+                    pendingMessages.decrementAndGet();
+                }
+                command.run();
+            }
+        } finally {
+            drainingThread = null;
+            if (blockedSenders > 0) {
+                synchronized (notFull) {
+                    notFull.notifyAll();
+                }
+            }
+
+            scheduled.set(false);
+            // Commands could have been added after the last poll, but before the flag was cleared
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+            // Only after the rescheduling, such that the counter never drops to 0 while there are commands waiting
+            if (busyMailboxes != null) {
+                busyMailboxes.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of pending messages
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The maximum number of commands that are executed in a single job
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return The {@link OverflowPolicy} that is used when the capacity has been reached
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return The number of messages that are waiting to be handled
+     */
+    public int getPendingMessages() {
+        return pendingMessages.get();
+    }
+
+    /**
+     * @return The number of messages that have been dropped or rejected since the creation of this mailbox
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return The number of messages that have been replaced by a newer message since the creation of this mailbox
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Mailbox of " + name + " (" + pendingMessages.get() + "/" + capacity + " pending)";
+    }
+}
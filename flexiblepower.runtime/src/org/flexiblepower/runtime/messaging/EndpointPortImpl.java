@@ -1,6 +1,7 @@
 package org.flexiblepower.runtime.messaging;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -81,10 +82,16 @@ public class EndpointPortImpl implements EndpointPort {
         return false;
     }
 
-    public void close() {
+    /**
+     * Closes all the connections of this port without waiting for the endpoints to handle the disconnects.
+     *
+     * @param futures
+     *            The list to which the {@link DisconnectFuture} of each closed connection is added
+     */
+    void close(List<DisconnectFuture> futures) {
         PotentialConnectionImpl[] conns = getPotentialConnections().values().toArray(new PotentialConnectionImpl[0]);
         for (PotentialConnectionImpl connection : conns) {
-            connection.close();
+            futures.add(connection.close());
             removeMatch(connection);
             connection.getOtherEnd(this).removeMatch(connection);
         }
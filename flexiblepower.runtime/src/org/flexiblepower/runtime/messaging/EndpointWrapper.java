@@ -1,8 +1,11 @@
 package org.flexiblepower.runtime.messaging;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -20,7 +23,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The {@link EndpointWrapper} wraps the {@link Endpoint} object and makes sure that each message is handled on a
- * separate thread.
+ * separate thread. All commands for the endpoint are collected in its {@link EndpointMailbox}, which delivers them in
+ * batches.
  */
 public class EndpointWrapper implements ManagedEndpoint, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(EndpointWrapper.class);
@@ -36,6 +40,8 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
     private final FlexiblePowerContext endpointContext;
     /** In case there is no {@link FlexiblePowerContext}, this {@link ExecutorService} is used to submit commands */
     private final ExecutorService executorService;
+    /** The mailbox through which all the commands for this endpoint are delivered */
+    private final EndpointMailbox mailbox;
 
     private final SortedMap<String, EndpointPortImpl> ports;
 
@@ -70,6 +76,17 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
             serviceReference = bundleContext.getServiceReference(FlexiblePowerContext.class);
             endpointContext = bundleContext.getService(serviceReference);
         }
+
+        mailbox = new EndpointMailbox(pid, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (endpointContext == null) {
+                    executorService.submit(command);
+                } else { // executorService == null
+                    endpointContext.submit(command);
+                }
+            }
+        }, connectionManager.getBusyMailboxes(), bundle);
     }
 
     private void parsePorts(Class<?> clazz) {
@@ -104,7 +121,7 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
                 }
                 logger.debug("Replacing port on endpoint [{}]: {}", endpoint, port.name());
                 this.ports.put(port.name(), endpointPort);
-                storedPort.close();
+                storedPort.close(new ArrayList<DisconnectFuture>());
             } else if (port.sends().length == 0 && port.accepts().length == 0) {
                 if (storedPort.getPort().cardinality() != port.cardinality()) {
                     logger.warn("Defined cardinality {} on port {} is different from the implementation port {}",
@@ -164,20 +181,38 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
         return ports;
     }
 
-    void addCommand(Command command) {
-        if (endpointContext == null) {
-            executorService.submit(command);
-        } else { // executorService == null
-            endpointContext.submit(command);
-        }
+    /**
+     * @return The {@link EndpointMailbox} that delivers the commands for this endpoint
+     */
+    public EndpointMailbox getMailbox() {
+        return mailbox;
     }
 
+    /**
+     * @return false when the command is a message that has been rejected, see {@link EndpointMailbox#add(Command)}
+     */
+    boolean addCommand(Command command) {
+        return mailbox.add(command);
+    }
+
+    /**
+     * Closes all the connections of this endpoint without waiting for the endpoints to handle the disconnects. The
+     * connection manager releases the scheduler of this endpoint once the disconnects have been handled.
+     */
     @Override
     public void close() {
+        List<DisconnectFuture> futures = new ArrayList<DisconnectFuture>();
         for (EndpointPortImpl port : ports.values()) {
-            port.close();
+            port.close(futures);
         }
+        connectionManager.releaseAfterDisconnect(this, futures);
+    }
 
+    /**
+     * Releases the scheduler of this endpoint. This must not be called from the scheduler itself, because releasing
+     * the last use of a {@link FlexiblePowerContext} stops its thread.
+     */
+    void release() {
         if (bundleContext != null) {
             bundleContext.ungetService(serviceReference);
         }
@@ -1,70 +1,170 @@
 package org.flexiblepower.runtime.messaging;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
-import org.flexiblepower.messaging.Filter;
 import org.flexiblepower.messaging.MessageListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The {@link MessageListenerContainer} delivers a copy of each message that is sent over a connection to the
+ * registered {@link MessageListener}s. By default all the messages are delivered by a single thread to each listener in
+ * turn. In fan-out mode each listener gets a bounded queue and a thread of its own, see
+ * {@link #configure(boolean, int)}.
+ *
+ * The listeners that are interested in a message class are kept in a subscription index, which is rebuilt lazily when
+ * a listener is added or removed. When no listener is interested in a message, {@link #publishMessage(EndpointPort,
+ * EndpointPort, Object)} returns without allocating anything.
+ */
 public class MessageListenerContainer implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(MessageListenerContainer.class);
 
-    private final Map<MessageListener, List<Class<?>>> messageListeners;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static final MessageListenerQueue[] NO_SUBSCRIBERS = new MessageListenerQueue[0];
+
+    private final Map<MessageListener, MessageListenerQueue> messageListeners;
+    /** The listeners that are interested in each message class, replaced when the listeners change */
+    private volatile ConcurrentMap<Class<?>, MessageListenerQueue[]> subscriptions;
     private final BlockingQueue<Data> data;
+    /** The number of messages that have been published, but not yet delivered to all their listeners */
+    private final AtomicInteger pendingDeliveries;
     private final Thread thread;
     private volatile boolean running;
 
+    private volatile boolean fanOut;
+    private volatile int queueCapacity;
+
     public MessageListenerContainer() {
-        messageListeners = new ConcurrentHashMap<MessageListener, List<Class<?>>>();
+        messageListeners = new ConcurrentHashMap<MessageListener, MessageListenerQueue>();
+        subscriptions = new ConcurrentHashMap<Class<?>, MessageListenerQueue[]>();
         data = new LinkedBlockingQueue<MessageListenerContainer.Data>();
+        pendingDeliveries = new AtomicInteger();
         running = true;
+        fanOut = false;
+        queueCapacity = DEFAULT_QUEUE_CAPACITY;
 
         thread = new Thread(this, "MessageListeners Thread");
         thread.start();
     }
 
-    public synchronized void addMessageListener(MessageListener messageListener) {
-        List<Class<?>> filter = new ArrayList<Class<?>>();
-        Filter annotation = messageListener.getClass().getAnnotation(Filter.class);
-        if (annotation != null) {
-            for (Class<?> clazz : annotation.value()) {
-                filter.add(clazz);
+    /**
+     * Changes the way that messages are delivered to the listeners. When the fan-out mode is switched off, messages
+     * that are still waiting in the queue of a listener are dropped.
+     *
+     * @param fanOut
+     *            When true, each listener gets its own queue and thread.
+     * @param queueCapacity
+     *            The maximum number of messages that can be waiting for a single listener in fan-out mode.
+     */
+    public synchronized void configure(boolean fanOut, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("The queue capacity should be at least 1, not " + queueCapacity);
+        }
+        boolean restart = fanOut != this.fanOut || queueCapacity != this.queueCapacity;
+        this.fanOut = fanOut;
+        this.queueCapacity = queueCapacity;
+        if (restart) {
+            for (MessageListenerQueue listenerQueue : messageListeners.values()) {
+                listenerQueue.stop();
+                if (fanOut) {
+                    listenerQueue.start(queueCapacity);
+                }
             }
         }
+    }
+
+    public boolean isFanOut() {
+        return fanOut;
+    }
 
-        messageListeners.put(messageListener, filter);
+    public synchronized void addMessageListener(MessageListener messageListener) {
+        MessageListenerQueue listenerQueue = new MessageListenerQueue(messageListener, pendingDeliveries);
+        if (fanOut) {
+            listenerQueue.start(queueCapacity);
+        }
+        MessageListenerQueue old = messageListeners.put(messageListener, listenerQueue);
+        subscriptions = new ConcurrentHashMap<Class<?>, MessageListenerQueue[]>();
+        if (old != null) {
+            old.stop();
+        }
     }
 
     public synchronized void removeMessageListener(MessageListener messageListener) {
-        messageListeners.remove(messageListener);
+        MessageListenerQueue listenerQueue = messageListeners.remove(messageListener);
+        subscriptions = new ConcurrentHashMap<Class<?>, MessageListenerQueue[]>();
+        if (listenerQueue != null) {
+            listenerQueue.stop();
+        }
     }
 
-    public void publishMessage(EndpointPort from, EndpointPort to, Object message) {
-        data.add(new Data(from, to, message));
+    /**
+     * @return The queues of all the registered listeners, which contain the delivery statistics.
+     */
+    public Collection<MessageListenerQueue> getListenerQueues() {
+        return Collections.unmodifiableCollection(messageListeners.values());
+    }
+
+    /**
+     * @param messageClass
+     *            The class of a message.
+     * @return The queues of the listeners that are interested in messages of this class, which is an empty array when
+     *         there are none.
+     */
+    MessageListenerQueue[] getSubscribers(Class<?> messageClass) {
+        ConcurrentMap<Class<?>, MessageListenerQueue[]> subscriptions = this.subscriptions;
+        MessageListenerQueue[] subscribers = subscriptions.get(messageClass);
+        if (subscribers == null) {
+            List<MessageListenerQueue> matching = new ArrayList<MessageListenerQueue>();
+            for (MessageListenerQueue listenerQueue : messageListeners.values()) {
+                if (listenerQueue.matches(messageClass)) {
+                    matching.add(listenerQueue);
+                }
+            }
+            subscribers = matching.isEmpty() ? NO_SUBSCRIBERS
+                                             : matching.toArray(new MessageListenerQueue[matching.size()]);
+            subscriptions.put(messageClass, subscribers);
+        }
+        return subscribers;
     }
 
-    private boolean matches(List<Class<?>> filter, Class<? extends Object> clazz) {
-        if (filter == null || filter.isEmpty()) {
-            // No effective filter, so it matches
-            return true;
+    public void publishMessage(EndpointPort from, EndpointPort to, Object message) {
+        MessageListenerQueue[] subscribers = getSubscribers(message.getClass());
+        if (subscribers.length == 0) {
+            // Nobody is interested
+            return;
         }
-        for (Class<?> filterClass : filter) {
-            if (filterClass.isAssignableFrom(clazz)) {
-                return true;
+
+        if (fanOut) {
+            Data data = new Data(from, to, message);
+            for (MessageListenerQueue listenerQueue : subscribers) {
+                listenerQueue.offer(data);
             }
+        } else {
+            pendingDeliveries.incrementAndGet();
+            data.add(new Data(from, to, message));
         }
-        return false;
     }
 
-    public void close() {
+    /**
+     * @return true when there are messages that have been published, but have not been delivered to all their
+     *         listeners yet. Messages that are dropped are not counted.
+     */
+    public boolean hasPendingDeliveries() {
+        return pendingDeliveries.get() > 0;
+    }
+
+    public synchronized void close() {
         try {
             running = false;
             thread.interrupt();
@@ -72,6 +172,9 @@ public class MessageListenerContainer implements Runnable {
         } catch (InterruptedException ex) {
             // Ignore
         }
+        for (MessageListenerQueue listenerQueue : messageListeners.values()) {
+            listenerQueue.stop();
+        }
     }
 
     @Override
@@ -79,12 +182,12 @@ public class MessageListenerContainer implements Runnable {
         while (running) {
             try {
                 Data data = this.data.take();
-                for (Entry<MessageListener, List<Class<?>>> entry : messageListeners.entrySet()) {
-                    MessageListener messageListener = entry.getKey();
-                    List<Class<?>> filter = entry.getValue();
-                    if (matches(filter, data.getMessage().getClass())) {
-                        messageListener.handleMessage(data.getFrom(), data.getTo(), data.getMessage());
+                try {
+                    for (MessageListenerQueue listenerQueue : getSubscribers(data.getMessage().getClass())) {
+                        listenerQueue.deliver(data);
                     }
+                } finally {
+                    pendingDeliveries.decrementAndGet();
                 }
             } catch (InterruptedException ex) {
                 // Ignore
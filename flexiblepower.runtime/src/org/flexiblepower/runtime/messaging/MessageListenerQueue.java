@@ -0,0 +1,214 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.runtime.messaging.MessageListenerContainer.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link MessageListenerQueue} wraps a single {@link MessageListener} in the {@link MessageListenerContainer}. It
+ * caches the result of the {@link Filter} per message class and keeps the delivery statistics of the listener.
+ *
+ * In fan-out mode it also has a bounded queue and a thread of its own, such that a slow listener can't hold up the
+ * other listeners. When its queue is full, new messages for this listener are dropped.
+ */
+public class MessageListenerQueue implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageListenerQueue.class);
+
+    private final MessageListener messageListener;
+    private final Class<?>[] filter;
+    private final ConcurrentMap<Class<?>, Boolean> matchCache;
+
+    private final AtomicLong delivered;
+    private final AtomicLong dropped;
+    private final AtomicInteger maxPending;
+    /** The number of messages that are waiting in the queues of all listeners, shared with the other listeners */
+    private final AtomicInteger pendingDeliveries;
+
+    private volatile BlockingQueue<Data> queue;
+    private volatile Thread thread;
+
+    MessageListenerQueue(MessageListener messageListener, AtomicInteger pendingDeliveries) {
+        this.messageListener = messageListener;
+        this.pendingDeliveries = pendingDeliveries;
+        Filter annotation = messageListener.getClass().getAnnotation(Filter.class);
+        filter = annotation == null ? new Class<?>[0] : annotation.value();
+        matchCache = new ConcurrentHashMap<Class<?>, Boolean>();
+
+        delivered = new AtomicLong();
+        dropped = new AtomicLong();
+        maxPending = new AtomicInteger();
+    }
+
+    /**
+     * @return The {@link MessageListener} that is wrapped.
+     */
+    public MessageListener getMessageListener() {
+        return messageListener;
+    }
+
+    boolean matches(Class<?> messageClass) {
+        if (filter.length == 0) {
+            // No effective filter, so it matches
+            return true;
+        }
+
+        Boolean result = matchCache.get(messageClass);
+        if (result == null) {
+            result = Boolean.FALSE;
+            for (Class<?> filterClass : filter) {
+                if (filterClass.isAssignableFrom(messageClass)) {
+                    result = Boolean.TRUE;
+                    break;
+                }
+            }
+            matchCache.put(messageClass, result);
+        }
+        return result.booleanValue();
+    }
+
+    /**
+     * Delivers the message directly on the calling thread.
+     */
+    void deliver(Data data) {
+        try {
+            messageListener.handleMessage(data.getFrom(), data.getTo(), data.getMessage());
+        } catch (Exception ex) {
+            logger.warn("Error while publishing message to a listener: " + ex.getMessage(), ex);
+        }
+        delivered.incrementAndGet();
+    }
+
+    /**
+     * Starts the fan-out mode, in which messages are put on a queue of the given capacity and delivered by a thread of
+     * this listener.
+     */
+    synchronized void start(int capacity) {
+        if (thread == null) {
+            queue = new ArrayBlockingQueue<Data>(capacity);
+            thread = new Thread(this, "MessageListener Thread for " + messageListener.getClass().getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the fan-out mode. Messages that are still waiting are counted as dropped.
+     */
+    synchronized void stop() {
+        Thread thread = this.thread;
+        if (thread != null) {
+            this.thread = null;
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            int remaining = queue.size();
+            dropped.addAndGet(remaining);
+            pendingDeliveries.addAndGet(-remaining);
+            queue = null;
+        }
+    }
+
+    /**
+     * Puts the message on the queue of this listener, without blocking.
+     *
+     * @return false when the queue is full and the message has been dropped.
+     */
+    boolean offer(Data data) {
+        BlockingQueue<Data> queue = this.queue;
+        // Counted before it is offered, otherwise it could be delivered before it is counted
+        pendingDeliveries.incrementAndGet();
+        if (queue == null || !queue.offer(data)) {
+            pendingDeliveries.decrementAndGet();
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                logger.warn("The queue of message listener {} is full, dropped {} messages so far",
+                            messageListener,
+                            dropped.get());
+            }
+            return false;
+        }
+
+        int pending = queue.size();
+        int max = maxPending.get();
+        while (pending > max && !maxPending.compareAndSet(max, pending)) {
+            max = maxPending.get();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        Thread currentThread = Thread.currentThread();
+        BlockingQueue<Data> queue = this.queue;
+        while (thread == currentThread) {
+            try {
+                Data data = queue.poll(1, TimeUnit.SECONDS);
+                if (data != null) {
+                    try {
+                        deliver(data);
+                    } finally {
+                        pendingDeliveries.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Check if we should stop
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages that have been delivered to this listener.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The number of messages that have been dropped, because the queue of this listener was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of messages that are waiting to be delivered to this listener (only in fan-out mode).
+     */
+    public int getPending() {
+        BlockingQueue<Data> queue = this.queue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return The highest number of messages that have been waiting to be delivered to this listener at the same time
+     *         (only in fan-out mode).
+     */
+    public int getMaxPending() {
+        return maxPending.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageListenerQueue [messageListener=" + messageListener
+               + ", delivered="
+               + delivered
+               + ", dropped="
+               + dropped
+               + ", pending="
+               + getPending()
+               + ", maxPending="
+               + maxPending
+               + "]";
+    }
+}
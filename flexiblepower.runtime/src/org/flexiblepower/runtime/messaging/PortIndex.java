@@ -0,0 +1,215 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.flexiblepower.messaging.Port;
+
+/**
+ * The {@link PortIndex} finds the ports that can be connected to a new port, without comparing it to every port that is
+ * known. Two ports match when all the classes that one sends are assignable to a class that the other accepts, in both
+ * directions. To find the candidates the ports are indexed on each class they accept and on the first class they send.
+ * The results of {@link Class#isAssignableFrom(Class)} are cached per pair of classes. The index counts how many ports
+ * use each class, and a class is removed from the cache when the last of those ports is removed. This makes sure that
+ * the classes (and their classloaders) of bundles that are updated or uninstalled are not kept in memory.
+ *
+ * This class is not thread-safe, the {@link ConnectionManagerImpl} only uses it while holding its lock.
+ */
+class PortIndex {
+    /**
+     * Orders the ports in the same way as the endpoints and their ports are ordered in the
+     * {@link ConnectionManagerImpl}
+     */
+    private static final Comparator<EndpointPortImpl> PORT_ORDER = new Comparator<EndpointPortImpl>() {
+        @Override
+        public int compare(EndpointPortImpl o1, EndpointPortImpl o2) {
+            int result = o1.getEndpoint().getPid().compareTo(o2.getEndpoint().getPid());
+            if (result == 0) {
+                result = o1.getName().compareTo(o2.getName());
+            }
+            return result;
+        }
+    };
+
+    /** The ports that accept each class */
+    private final Map<Class<?>, Set<EndpointPortImpl>> acceptors;
+    /** The ports that send each class as the first of their sent classes */
+    private final Map<Class<?>, Set<EndpointPortImpl>> firstSenders;
+    /** The ports that don't send anything */
+    private final Set<EndpointPortImpl> nonSenders;
+    /** Cache of target.isAssignableFrom(source), indexed on target and then on source */
+    private final Map<Class<?>, Map<Class<?>, Boolean>> assignableCache;
+    /** The number of ports in the index that accept or send each class */
+    private final Map<Class<?>, Integer> classUses;
+
+    PortIndex() {
+        acceptors = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+        firstSenders = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+        nonSenders = new HashSet<EndpointPortImpl>();
+        assignableCache = new HashMap<Class<?>, Map<Class<?>, Boolean>>();
+        classUses = new HashMap<Class<?>, Integer>();
+    }
+
+    void add(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        for (Class<?> accept : definition.accepts()) {
+            get(acceptors, accept).add(port);
+        }
+        if (definition.sends().length == 0) {
+            nonSenders.add(port);
+        } else {
+            get(firstSenders, definition.sends()[0]).add(port);
+        }
+        for (Class<?> clazz : getClasses(definition)) {
+            Integer uses = classUses.get(clazz);
+            classUses.put(clazz, uses == null ? 1 : uses + 1);
+        }
+    }
+
+    void remove(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        for (Class<?> accept : definition.accepts()) {
+            remove(acceptors, accept, port);
+        }
+        if (definition.sends().length == 0) {
+            nonSenders.remove(port);
+        } else {
+            remove(firstSenders, definition.sends()[0], port);
+        }
+        for (Class<?> clazz : getClasses(definition)) {
+            Integer uses = classUses.get(clazz);
+            if (uses == null || uses <= 1) {
+                classUses.remove(clazz);
+                evict(clazz);
+            } else {
+                classUses.put(clazz, uses - 1);
+            }
+        }
+    }
+
+    /**
+     * @return The classes that are accepted or sent by the port, each class only once
+     */
+    private static Set<Class<?>> getClasses(Port definition) {
+        Set<Class<?>> classes = new HashSet<Class<?>>();
+        for (Class<?> accept : definition.accepts()) {
+            classes.add(accept);
+        }
+        for (Class<?> send : definition.sends()) {
+            classes.add(send);
+        }
+        return classes;
+    }
+
+    /**
+     * Removes all the cached results for a class, both as target and as source.
+     */
+    private void evict(Class<?> clazz) {
+        assignableCache.remove(clazz);
+        for (Iterator<Map<Class<?>, Boolean>> it = assignableCache.values().iterator(); it.hasNext();) {
+            Map<Class<?>, Boolean> cache = it.next();
+            cache.remove(clazz);
+            if (cache.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Set<EndpointPortImpl> get(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> clazz) {
+        Set<EndpointPortImpl> ports = index.get(clazz);
+        if (ports == null) {
+            ports = new HashSet<EndpointPortImpl>();
+            index.put(clazz, ports);
+        }
+        return ports;
+    }
+
+    private static void remove(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> clazz, EndpointPortImpl port) {
+        Set<EndpointPortImpl> ports = index.get(clazz);
+        if (ports != null) {
+            ports.remove(port);
+            if (ports.isEmpty()) {
+                index.remove(clazz);
+            }
+        }
+    }
+
+    /**
+     * @param port
+     *            The port for which the matching ports should be found. This port itself should not be in the index.
+     * @return All the ports in the index that match the given port, ordered by endpoint and port name.
+     */
+    List<EndpointPortImpl> findMatches(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        Collection<EndpointPortImpl> candidates = new TreeSet<EndpointPortImpl>(PORT_ORDER);
+        if (definition.sends().length > 0) {
+            // The other port should accept at least the first class that this port sends
+            Class<?> firstSend = definition.sends()[0];
+            for (Entry<Class<?>, Set<EndpointPortImpl>> entry : acceptors.entrySet()) {
+                if (isAssignable(entry.getKey(), firstSend)) {
+                    candidates.addAll(entry.getValue());
+                }
+            }
+        } else {
+            // The other port should send nothing, or its first class should be accepted by this port
+            candidates.addAll(nonSenders);
+            for (Entry<Class<?>, Set<EndpointPortImpl>> entry : firstSenders.entrySet()) {
+                if (isSubset(new Class<?>[] { entry.getKey() }, definition.accepts())) {
+                    candidates.addAll(entry.getValue());
+                }
+            }
+        }
+
+        List<EndpointPortImpl> result = new ArrayList<EndpointPortImpl>();
+        for (EndpointPortImpl candidate : candidates) {
+            if (candidate.getEndpoint() != port.getEndpoint() && matches(port, candidate)) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    boolean matches(EndpointPortImpl left, EndpointPortImpl right) {
+        return isSubset(left.getPort().sends(), right.getPort().accepts())
+               && isSubset(right.getPort().sends(), left.getPort().accepts());
+    }
+
+    private boolean isSubset(Class<?>[] sends, Class<?>[] accepts) {
+        for (Class<?> send : sends) {
+            boolean accepted = false;
+            for (Class<?> accept : accepts) {
+                if (isAssignable(accept, send)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isAssignable(Class<?> target, Class<?> source) {
+        Map<Class<?>, Boolean> cache = assignableCache.get(target);
+        if (cache == null) {
+            cache = new HashMap<Class<?>, Boolean>();
+            assignableCache.put(target, cache);
+        }
+        Boolean result = cache.get(source);
+        if (result == null) {
+            result = target.isAssignableFrom(source);
+            cache.put(source, result);
+        }
+        return result;
+    }
+}
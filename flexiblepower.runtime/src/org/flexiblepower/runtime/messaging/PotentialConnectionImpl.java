@@ -1,17 +1,21 @@
 package org.flexiblepower.runtime.messaging;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.flexiblepower.messaging.Cardinality;
 import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
-import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
 import org.flexiblepower.messaging.MessageHandler;
 import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.callback.AsyncPotentialConnection;
+import org.flexiblepower.scheduling.ParallelSection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-final class PotentialConnectionImpl implements PotentialConnection {
+final class PotentialConnectionImpl implements AsyncPotentialConnection {
     private static final Logger logger = LoggerFactory.getLogger(PotentialConnectionImpl.class);
 
     private static final MessageHandler DUMP = new MessageHandler() {
@@ -50,11 +54,21 @@ final class PotentialConnectionImpl implements PotentialConnection {
         }
 
         @Override
-        public void sendMessage(Object message) {
+        public void sendMessage(final Object message) {
             if (message == null) {
                 logger.warn("Trying to send a null message to {}, ignoring", receivingEndpoint.getPid());
                 return;
             }
+            if (ParallelSection.isActive()) {
+                // Deliver the messages of parallel jobs in a fixed order, after those jobs have finished
+                ParallelSection.defer(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendMessage(message);
+                    }
+                });
+                return;
+            }
 
             listeners.publishMessage(fromPort, toPort, message);
 
@@ -82,7 +96,12 @@ final class PotentialConnectionImpl implements PotentialConnection {
                 };
             }
 
-            receivingEndpoint.addCommand(new Command.HandleMessage(message, messageHandler));
+            if (!receivingEndpoint.addCommand(new Command.HandleMessage(message, messageHandler, this))) {
+                logger.warn("The mailbox of {} is full, the message {} from port [{}] has been rejected",
+                            receivingEndpoint.getPid(),
+                            message,
+                            fromPort);
+            }
         }
 
         @Override
@@ -169,37 +188,53 @@ final class PotentialConnectionImpl implements PotentialConnection {
         }
     }
 
+    /**
+     * Disconnects the ports and waits until both endpoints have handled the disconnect, but not longer than the
+     * disconnect timeout of the {@link ConnectionManagerImpl}. No locks are held while waiting. Use
+     * {@link #disconnectAsync()} to disconnect without waiting.
+     */
     @Override
-    public synchronized void disconnect() {
-        close();
-        left.getEndpoint().getConnectionManager().disconnectedPort(toString());
+    public void disconnect() {
+        Future<Void> future = disconnectAsync();
+        long timeout = left.getEndpoint().getConnectionManager().getDisconnectTimeout();
+        try {
+            future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("The endpoints did not handle the disconnect of [{}] within {} ms", this, timeout);
+        } catch (ExecutionException e) {
+            // Can't happen, the disconnected() calls catch their own exceptions
+            logger.error("Error while disconnecting [" + this + "]", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    synchronized void close() {
-        if (isConnected()) {
-            logger.debug("Disconnecting port [{}] to port [{}]", left, right);
-            try {
-                CountDownLatch latch = new CountDownLatch(2);
-
-                if (leftMessageHandler != null) {
-                    left.getEndpoint().addCommand(new Command.Disconnect(leftMessageHandler, latch));
-                } else {
-                    latch.countDown();
-                }
-
-                if (rightMessageHandler != null) {
-                    right.getEndpoint().addCommand(new Command.Disconnect(rightMessageHandler, latch));
-                } else {
-                    latch.countDown();
-                }
-
-                latch.await();
-            } catch (InterruptedException e) {
-            }
+    @Override
+    public Future<Void> disconnectAsync() {
+        DisconnectFuture future = close();
+        left.getEndpoint().getConnectionManager().disconnectedPort(toString());
+        return future;
+    }
 
-            leftMessageHandler = null;
-            rightMessageHandler = null;
+    /**
+     * Disconnects the ports without waiting for the endpoints. The {@link MessageHandler#disconnected()} calls are
+     * queued after the messages that the endpoints still have to handle.
+     *
+     * @return The {@link DisconnectFuture} that completes when both endpoints have handled the disconnect.
+     */
+    synchronized DisconnectFuture close() {
+        if (!isConnected()) {
+            return DisconnectFuture.DONE;
         }
+
+        logger.debug("Disconnecting port [{}] to port [{}]", left, right);
+        DisconnectFuture future = new DisconnectFuture(2);
+        left.getEndpoint().addCommand(new Command.Disconnect(leftMessageHandler, future.getLatch()));
+        right.getEndpoint().addCommand(new Command.Disconnect(rightMessageHandler, future.getLatch()));
+
+        leftMessageHandler = null;
+        rightMessageHandler = null;
+        return future;
     }
 
     @Override
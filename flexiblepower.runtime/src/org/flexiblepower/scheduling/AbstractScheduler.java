@@ -2,13 +2,15 @@ package org.flexiblepower.scheduling;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.measure.Measurable;
 import javax.measure.quantity.Duration;
@@ -16,12 +18,19 @@ import javax.measure.unit.SI;
 import javax.measure.unit.Unit;
 
 import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.scheduling.metrics.JobMetrics;
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * The {@link AbstractScheduler} is a single-thread scheduler that implements most of the {@link FlexiblePowerContext}
- * methods, except the current time.
+ * methods, except the current time. The scheduled jobs are kept in a {@link JobQueue}. When there is no job to run, the
+ * scheduler thread is parked until the next job is due or until an earlier job is added.
+ *
+ * Instead of using its own thread, the scheduler can also be started on a {@link SchedulerPool} that is shared with
+ * other schedulers, see {@link #start(String, SchedulerPool)}. The jobs of a single scheduler are then still executed
+ * one at a time and in the same order.
  */
 public abstract class AbstractScheduler implements FlexiblePowerContext, Runnable {
     static final SchedulerThreadMonitor THREAD_MONITOR = new SchedulerThreadMonitor();
@@ -31,6 +40,11 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
      */
     public static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
 
+    /**
+     * A job is counted as late when it starts more than this number of milliseconds after its planned time.
+     */
+    public static final long LATE_THRESHOLD = 10;
+
     /**
      * The logger that will be used for all logging. Subclasses should reuse this.
      */
@@ -46,20 +60,73 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     private final AtomicLong serialGenerator;
 
     /**
-     * The {@link PriorityQueue} of {@link Job}s that are scheduled.
+     * The {@link JobQueue} of {@link Job}s that are scheduled.
      */
-    protected final PriorityBlockingQueue<Job<?>> jobs;
+    protected final JobQueue jobs;
 
     private volatile Thread thread;
 
+    /**
+     * The time until which the scheduler thread is parked. When a job is added that should run before this time, the
+     * thread is woken up. This is {@link Long#MIN_VALUE} when the thread is not parked.
+     */
+    private volatile long wakeUpTime = Long.MIN_VALUE;
+
+    /**
+     * The maximum number of jobs that is executed in one turn on a {@link SchedulerPool}, before giving other
+     * schedulers a chance to use the thread.
+     */
+    private static final int LANE_BATCH_SIZE = 64;
+
+    /** The pool on which this scheduler is executed, or null when it uses its own thread */
+    private volatile SchedulerPool pool;
+    private volatile String laneName;
+    /** True when the lane has been submitted to the pool and has not finished yet */
+    private final AtomicBoolean laneActive = new AtomicBoolean(false);
+    private final Object laneLock = new Object();
+    /** The timer that wakes up the lane at the time of the next job, only changed while the lane is active */
+    private volatile ScheduledFuture<?> laneTimer;
+    private long laneTimerTime;
+
+    // Metrics, updated by the threads that execute the jobs
+    private final AtomicLong executedJobs = new AtomicLong(), lateJobs = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final Histogram lateness = new Histogram();
+    private final Histogram runTime = new Histogram();
+
+    private final Runnable laneRunner = new Runnable() {
+        @Override
+        public void run() {
+            runLane();
+        }
+    };
+
+    private final Runnable laneTimerTask = new Runnable() {
+        @Override
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    /**
+     * Creates a new {@link AbstractScheduler} that uses a {@link PriorityJobQueue}. The {@link #start(String)} method
+     * should be called to make sure that a thread is running.
+     */
+    public AbstractScheduler() {
+        this(new PriorityJobQueue());
+    }
+
     /**
      * Creates a new {@link AbstractScheduler}. The {@link #start(String)} method should be called to make sure that a
      * thread is running.
+     *
+     * @param jobs
+     *            The {@link JobQueue} implementation that will hold the scheduled jobs.
      */
-    public AbstractScheduler() {
+    public AbstractScheduler(JobQueue jobs) {
         running = new AtomicBoolean(false);
         serialGenerator = new AtomicLong();
-        jobs = new PriorityBlockingQueue<Job<?>>();
+        this.jobs = jobs;
     }
 
     /**
@@ -78,14 +145,41 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     }
 
     /**
-     * Stops the execution thread. Notice: this will cancel all jobs that are still scheduled.
+     * Starts executing the jobs on the given {@link SchedulerPool}, instead of on a thread of its own. When jobs were
+     * scheduled before this method has been called, these will executed at the moment they are planned (or immediately
+     * if that moment is in history).
+     *
+     * @param name
+     *            The name of the scheduler that is used for monitoring.
+     * @param pool
+     *            The pool of threads that will execute the jobs.
+     */
+    public void start(String name, SchedulerPool pool) {
+        if (running.compareAndSet(false, true)) {
+            laneName = "Scheduler lane for " + name;
+            this.pool = pool;
+            THREAD_MONITOR.addScheduler(laneName, this);
+            wakeUp();
+        }
+    }
+
+    /**
+     * Stops the execution thread. Notice: this will cancel all jobs that are still scheduled. When this is called from
+     * the execution thread itself, it does not wait for the thread to end.
      */
     public void stop() {
         if (!running.compareAndSet(true, false)) {
             return; // Already stopped
         }
-        synchronized (jobs) {
-            jobs.notifyAll();
+        if (pool != null) {
+            stopLane();
+            return;
+        }
+        wakeUp();
+        if (Thread.currentThread() == thread) {
+            // The thread can't wait for itself, it stops after the current job
+            thread = null;
+            return;
         }
 
         try {
@@ -102,23 +196,86 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     @Override
     public abstract long currentTimeMillis();
 
-    private <T> Job<T> addJob(Job<T> job) {
-        synchronized (jobs) {
-            jobs.add(job);
-            jobs.notifyAll();
+    private <T> Job<T> addJob(final Job<T> job) {
+        if (ParallelSection.isActive()) {
+            // The serial number decides the order of jobs of the same time, so it is given when the section ends
+            ParallelSection.defer(new Runnable() {
+                @Override
+                public void run() {
+                    // Could have been cancelled before the end of the section
+                    if (!job.isDone()) {
+                        job.setSerial(serialGenerator.getAndIncrement());
+                        addJob(job);
+                    }
+                }
+            });
             return job;
         }
+
+        jobs.add(job);
+        int depth = jobs.size();
+        int maxDepth = maxQueueDepth.get();
+        while (depth > maxDepth && !maxQueueDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = maxQueueDepth.get();
+        }
+
+        // Only wake up the scheduler thread when it is parked until after the moment that this job should run
+        if (job.getTimeOfNextRun() < wakeUpTime) {
+            wakeUp();
+        }
+        return job;
     }
 
     <T> void remove(Job<T> job, boolean mayInterrupt) {
-        synchronized (jobs) {
-            if (mayInterrupt && job == currentJob) {
-                thread.interrupt();
+        Thread thread = currentThread;
+        if (mayInterrupt && job == currentJob && thread != null) {
+            thread.interrupt();
+        }
+
+        // The scheduler thread does not need to be woken up, at worst it wakes up for nothing
+        jobs.remove(job);
+    }
+
+    /**
+     * Wakes up the scheduler thread if it is parked, such that it will check the jobs again.
+     */
+    protected void wakeUp() {
+        SchedulerPool pool = this.pool;
+        if (pool != null) {
+            if (laneActive.compareAndSet(false, true)) {
+                try {
+                    pool.execute(laneRunner);
+                } catch (RejectedExecutionException ex) {
+                    // The pool has been shut down, which only happens after this scheduler has been stopped
+                    laneActive.set(false);
+                }
             }
+        } else {
+            Thread thread = this.thread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
 
-            jobs.remove(job);
-            jobs.notifyAll();
+    /**
+     * Parks the scheduler thread until it is woken up by {@link #wakeUp()}, by the addition of a job that should run
+     * before the wakeUpTime, or until the maximum sleep time has passed. This method can also return spuriously, so it
+     * should be called in a loop that checks its condition. This should only be called by the scheduler thread.
+     *
+     * @param wakeUpTime
+     *            The time (according to {@link #currentTimeMillis()}) of the next job that is known to the caller. Use
+     *            {@link Long#MIN_VALUE} to only wake up on a call to {@link #wakeUp()}.
+     * @param maxSleepTime
+     *            The maximum number of milliseconds (wall clock time) that the thread will be parked.
+     */
+    protected void park(long wakeUpTime, long maxSleepTime) {
+        this.wakeUpTime = wakeUpTime;
+        // Check again after publishing the wakeUpTime, a job could have been added just before that
+        if (running.get() && getNextJobTime() >= wakeUpTime) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(maxSleepTime));
         }
+        this.wakeUpTime = Long.MIN_VALUE;
     }
 
     @Override
@@ -178,57 +335,223 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
                                  serialGenerator));
     }
 
+    /**
+     * Schedules a job at an absolute time, for example to recreate a job that was scheduled before.
+     *
+     * @param command
+     *            The task to execute
+     * @param timeOfNextRun
+     *            The time (according to {@link #currentTimeMillis()}) at which the task should be run
+     * @param timeStep
+     *            The period in milliseconds, positive for a fixed rate, negative for a fixed delay or 0 to run once.
+     * @return The {@link ScheduledFuture} of the job
+     */
+    protected ScheduledFuture<?> scheduleAt(Runnable command, long timeOfNextRun, long timeStep) {
+        logger.trace("scheduleAt(runnable: {}, time: {}, step: {})", command, timeOfNextRun, timeStep);
+        return addJob(Job.create(command, null, this, timeOfNextRun, timeStep, serialGenerator));
+    }
+
     /**
      * @return The timestamp at which the next job should be run or {@link Long#MAX_VALUE} when there is no job
      *         scheduled.
      */
     protected long getNextJobTime() {
-        return jobs.isEmpty() ? Long.MAX_VALUE : jobs.peek().getTimeOfNextRun();
+        return jobs.getNextJobTime();
     }
 
     private volatile long startOfCurrentJob;
     private volatile Job<?> currentJob;
+    private volatile Thread currentThread;
 
     @Override
     public void run() {
-        THREAD_MONITOR.addScheduler(Thread.currentThread().getName(), this);
-
-        while (running.get()) {
-            long now = currentTimeMillis();
-
-            synchronized (jobs) {
-                long waitTime = getNextJobTime() - now;
-                if (waitTime > 0) {
-                    logger.trace("{} is sleeping {}ms until next job", thread.getName(), waitTime);
-                    try {
-                        jobs.wait(waitTime);
-                        logger.trace("{} wake up", thread.getName());
-                    } catch (final InterruptedException ex) {
-                        logger.debug("{} interrupted", thread.getName());
+        // Not the thread field, because stop() clears that when it is called by a job
+        String threadName = Thread.currentThread().getName();
+        THREAD_MONITOR.addScheduler(threadName, this);
+        try {
+            while (running.get()) {
+                long now = currentTimeMillis();
+
+                Job<?> job = jobs.pollDue(now);
+                if (job == null) {
+                    long nextJobTime = getNextJobTime();
+                    long waitTime = nextJobTime - now;
+                    if (waitTime > 0) {
+                        logger.trace("{} is sleeping {}ms until next job", threadName, waitTime);
+                        park(nextJobTime, waitTime);
+                        if (Thread.interrupted()) {
+                            logger.debug("{} interrupted", threadName);
+                        }
+                        logger.trace("{} wake up", threadName);
                     }
                     // Go back to the start of the while loop
                     continue;
                 }
+
+                // Now the job is due, so execute it
+                logger.trace("{} is executing job {}", threadName, job);
+                executeJob(job, now);
+            }
+
+            cancelAllJobs();
+
+            logger.debug("Stopped thread [{}]", threadName);
+        } finally {
+            THREAD_MONITOR.removeScheduler(threadName);
+        }
+    }
+
+    /**
+     * Executes a job that is due and adds it to the queue again when it should be repeated. This also records the
+     * metrics of the execution. This should only be called by the thread that executes the jobs.
+     *
+     * @param job
+     *            The job that should be executed.
+     * @param now
+     *            The current time, which should be at or after the planned time of the job.
+     */
+    protected void executeJob(Job<?> job, long now) {
+        currentThread = Thread.currentThread();
+        currentJob = job;
+        startOfCurrentJob = now;
+
+        runJob(job, now);
+
+        currentJob = null;
+        currentThread = null;
+        // Clear an interrupt that was meant for the job that just finished
+        Thread.interrupted();
+    }
+
+    /**
+     * Runs a job, records the metrics of the execution and adds it to the queue again when it should be repeated.
+     * Unlike {@link #executeJob(Job, long)} this can be called by several threads at the same time, but the job will
+     * not be interrupted when it is cancelled.
+     *
+     * @param job
+     *            The job that should be executed.
+     * @param now
+     *            The current time, which should be at or after the planned time of the job.
+     */
+    protected void runJob(Job<?> job, long now) {
+        long jobLateness = now - job.getTimeOfNextRun();
+        long startTime = System.nanoTime();
+        job.run();
+        long jobRunTime = (System.nanoTime() - startTime) / 1000;
+
+        boolean late = jobLateness > LATE_THRESHOLD;
+        job.recordExecution(late, jobRunTime);
+        lateness.record(jobLateness);
+        runTime.record(jobRunTime);
+        executedJobs.incrementAndGet();
+        if (late) {
+            lateJobs.incrementAndGet();
+        }
+
+        if (!job.isDone()) {
+            jobs.add(job);
+        }
+    }
+
+    private void cancelAllJobs() {
+        for (Job<?> job : jobs.toList()) {
+            job.cancel(false);
+        }
+    }
+
+    /**
+     * Executes the jobs that are due on a thread of the pool. At most one thread executes this at the same time, which
+     * is guarded by {@link #laneActive}.
+     */
+    private void runLane() {
+        wakeUpTime = Long.MIN_VALUE;
+        try {
+            for (int executed = 0; executed < LANE_BATCH_SIZE && running.get(); executed++) {
+                long now = currentTimeMillis();
+                Job<?> job = jobs.pollDue(now);
+                if (job == null) {
+                    break;
+                }
+                logger.trace("{} is executing job {}", laneName, job);
+                executeJob(job, now);
             }
+        } finally {
+            finishLane();
+        }
+    }
 
-            // Now the wait time is <= 0, so execute the first job
-            currentJob = jobs.remove();
-            startOfCurrentJob = now;
-            logger.trace("{} is executing job {}", thread.getName(), currentJob);
-            currentJob.run();
-            if (!currentJob.isDone()) {
-                jobs.add(currentJob);
+    private void finishLane() {
+        if (!running.get()) {
+            synchronized (laneLock) {
+                laneActive.set(false);
+                laneLock.notifyAll();
             }
-            currentJob = null;
+            return;
         }
 
-        while (!jobs.isEmpty()) {
-            jobs.peek().cancel(false);
+        long now = currentTimeMillis();
+        long nextJobTime = getNextJobTime();
+        if (nextJobTime <= now) {
+            // There is more work, but first give the other schedulers in the pool a turn
+            pool.execute(laneRunner);
+            return;
         }
 
-        logger.debug("Stopped thread [{}]", thread.getName());
+        scheduleLaneTimer(nextJobTime, now);
+        wakeUpTime = nextJobTime;
+        laneActive.set(false);
+        // Check again after publishing the wakeUpTime, a job could have been added just before that
+        if (getNextJobTime() < nextJobTime) {
+            wakeUp();
+        }
+    }
 
-        THREAD_MONITOR.removeScheduler(Thread.currentThread().getName());
+    private void scheduleLaneTimer(long nextJobTime, long now) {
+        ScheduledFuture<?> timer = laneTimer;
+        if (nextJobTime == Long.MAX_VALUE) {
+            if (timer != null) {
+                timer.cancel(false);
+                laneTimer = null;
+            }
+        } else if (timer == null || laneTimerTime <= now || nextJobTime < laneTimerTime) {
+            // A pending timer that fires too early is harmless, so only replace it when the next job is earlier or when
+            // it has already fired (it may still be running, so isDone() can't be used)
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            laneTimerTime = nextJobTime;
+            laneTimer = pool.schedule(laneTimerTask, nextJobTime - now);
+        }
+    }
+
+    private void stopLane() {
+        ScheduledFuture<?> timer = laneTimer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+
+        // Wait for the jobs that are running, unless this is called from one of those jobs
+        if (currentThread != Thread.currentThread()) {
+            long deadline = System.currentTimeMillis() + 10000;
+            synchronized (laneLock) {
+                long waitTime = deadline - System.currentTimeMillis();
+                while (laneActive.get() && waitTime > 0) {
+                    try {
+                        laneLock.wait(waitTime);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    waitTime = deadline - System.currentTimeMillis();
+                }
+            }
+            if (laneActive.get()) {
+                logger.warn("Could not stop {}", laneName);
+            }
+        }
+
+        cancelAllJobs();
+        logger.debug("Stopped [{}]", laneName);
+        THREAD_MONITOR.removeScheduler(laneName);
     }
 
     /**
@@ -247,12 +570,31 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
         }
     }
 
+    /**
+     * @param name
+     *            The name under which the scheduler is known.
+     * @return A snapshot of the metrics of this scheduler.
+     */
+    SchedulerMetrics getMetrics(String name) {
+        List<Job<?>> jobList = jobs.toList();
+        List<JobMetrics> jobMetrics = new ArrayList<JobMetrics>(jobList.size());
+        for (Job<?> job : jobList) {
+            jobMetrics.add(job.getMetrics());
+        }
+        return new SchedulerMetrics(name,
+                                    executedJobs.get(),
+                                    lateJobs.get(),
+                                    jobList.size(),
+                                    maxQueueDepth.get(),
+                                    lateness.snapshot(),
+                                    runTime.snapshot(),
+                                    jobMetrics);
+    }
+
     public List<String> getJobs() {
         List<String> result = new ArrayList<String>();
-        synchronized (jobs) {
-            for (Job<?> job : jobs) {
-                result.add(job.toString());
-            }
+        for (Job<?> job : jobs.toList()) {
+            result.add(job.toString());
         }
         return result;
     }
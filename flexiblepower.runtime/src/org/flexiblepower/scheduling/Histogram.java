@@ -0,0 +1,133 @@
+package org.flexiblepower.scheduling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.flexiblepower.scheduling.metrics.HistogramSnapshot;
+
+/**
+ * The {@link Histogram} records the distribution of non-negative long values, with a fixed relative precision in the
+ * style of an HDR histogram. Values below 16 get a bucket of their own, every higher power of 2 is split into 16
+ * buckets. This keeps the memory use fixed and recording a value cheap, while percentiles are within about 6% of the
+ * real value. Values can be recorded and read concurrently.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest value that is recorded in the given bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a single value. Negative values are recorded as 0.
+     *
+     * @param value
+     *            The value that should be recorded.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+        current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile
+     *            The percentile, between 0 and 100.
+     * @return The value below which the given percentage of the recorded values are, or 0 when nothing has been
+     *         recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            snapshot[ix] = counts.get(ix);
+            total += snapshot[ix];
+        }
+        return valueAtPercentile(snapshot, total, percentile);
+    }
+
+    private long valueAtPercentile(long[] snapshot, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            seen += snapshot[ix];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(ix), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return A snapshot of the current distribution. Values that are recorded while the snapshot is being made may or
+     *         may not be included.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int ix = 0; ix < BUCKETS; ix++) {
+            snapshot[ix] = counts.get(ix);
+            count += snapshot[ix];
+        }
+        if (count == 0) {
+            return new HistogramSnapshot(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        return new HistogramSnapshot(count,
+                                     min.get(),
+                                     max.get(),
+                                     (double) total.get() / this.count.get(),
+                                     valueAtPercentile(snapshot, count, 50),
+                                     valueAtPercentile(snapshot, count, 90),
+                                     valueAtPercentile(snapshot, count, 99),
+                                     valueAtPercentile(snapshot, count, 99.9));
+    }
+}
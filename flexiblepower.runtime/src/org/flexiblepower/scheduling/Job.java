@@ -8,12 +8,16 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.flexiblepower.scheduling.metrics.JobMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class Job<V> implements ScheduledFuture<V> {
     private final static Logger logger = LoggerFactory.getLogger(Job.class);
 
+    /** The serial number of a job that has been created in a {@link ParallelSection} and has not been added yet */
+    private static final long NO_SERIAL = -1;
+
     public static <V> Job<V> create(final Runnable runnable,
                                     final V result,
                                     final AbstractScheduler scheduler,
@@ -31,7 +35,7 @@ public final class Job<V> implements ScheduledFuture<V> {
             public String toString() {
                 return runnable.toString();
             }
-        }, scheduler, timeOfNextRun, timeStep, serialGenerator.getAndIncrement());
+        }, runnable, scheduler, timeOfNextRun, timeStep, nextSerial(serialGenerator));
     }
 
     public static <V> Job<V> create(final Callable<V> callable,
@@ -39,24 +43,47 @@ public final class Job<V> implements ScheduledFuture<V> {
                                     long timeOfNextRun,
                                     long timeStep,
                                     AtomicLong serialGenerator) {
-        return new Job<V>(callable, scheduler, timeOfNextRun, timeStep, serialGenerator.getAndIncrement());
+        return new Job<V>(callable, callable, scheduler, timeOfNextRun, timeStep, nextSerial(serialGenerator));
+    }
+
+    private static long nextSerial(AtomicLong serialGenerator) {
+        // The threads of a parallel section would take the numbers in a random order, so the scheduler gives them later
+        return ParallelSection.isActive() ? NO_SERIAL : serialGenerator.getAndIncrement();
     }
 
     private final Callable<V> callable;
+    /** The task as it was given to the scheduler */
+    private final Object task;
     private final AbstractScheduler scheduler;
 
     private volatile V result;
     private volatile Throwable exception;
 
-    // Serial number for the jobs to distinguish between them for sorting
-    private final long serial;
+    // Serial number for the jobs to distinguish between them for sorting. Only set later when created in a section.
+    private volatile long serial;
 
     // Both of these are is milliseconds
     private volatile long timeOfNextRun, timeStep;
     private volatile boolean cancelled;
 
-    private Job(Callable<V> callable, AbstractScheduler scheduler, long timeOfNextRun, long timeStep, long serial) {
+    /**
+     * The entry that currently represents this job in a {@link TimingWheelJobQueue}, or null when it is not in such a
+     * queue. Only used by that queue.
+     */
+    volatile Object queueEntry;
+
+    // Metrics of the executions of this job, only updated by the scheduler that executes it. Run times are in
+    // microseconds.
+    private volatile long executions, lateExecutions, totalRunTime, maxRunTime;
+
+    private Job(Callable<V> callable,
+                Object task,
+                AbstractScheduler scheduler,
+                long timeOfNextRun,
+                long timeStep,
+                long serial) {
         this.callable = callable;
+        this.task = task;
         this.scheduler = scheduler;
 
         this.timeOfNextRun = timeOfNextRun;
@@ -76,6 +103,24 @@ public final class Job<V> implements ScheduledFuture<V> {
         return timeStep;
     }
 
+    /**
+     * @return The {@link Runnable} or {@link Callable} that is executed by this job.
+     */
+    public Object getTask() {
+        return task;
+    }
+
+    /**
+     * Gives this job its serial number, which determines its order among the jobs of the same time, when it has been
+     * created in a {@link ParallelSection}. The serial number of a job is never changed once it has been given.
+     */
+    void setSerial(long serial) {
+        if (this.serial != NO_SERIAL) {
+            throw new IllegalStateException("The job " + this + " already has serial number " + this.serial);
+        }
+        this.serial = serial;
+    }
+
     @Override
     public long getDelay(TimeUnit unit) {
         long delay = timeOfNextRun - scheduler.currentTimeMillis();
@@ -178,6 +223,26 @@ public final class Job<V> implements ScheduledFuture<V> {
         }
     }
 
+    void recordExecution(boolean late, long runTime) {
+        executions++;
+        if (late) {
+            lateExecutions++;
+        }
+        totalRunTime += runTime;
+        if (runTime > maxRunTime) {
+            maxRunTime = runTime;
+        }
+    }
+
+    JobMetrics getMetrics() {
+        return new JobMetrics(callable.toString(),
+                              timeOfNextRun,
+                              executions,
+                              lateExecutions,
+                              totalRunTime,
+                              maxRunTime);
+    }
+
     public void reschedule(long time) {
         timeOfNextRun = time;
         logger.trace("Rescheduled {}", this);
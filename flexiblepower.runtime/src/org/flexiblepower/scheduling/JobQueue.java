@@ -0,0 +1,73 @@
+package org.flexiblepower.scheduling;
+
+import java.util.List;
+
+/**
+ * The {@link JobQueue} holds the {@link Job}s that are scheduled on an {@link AbstractScheduler}. The
+ * {@link #add(Job)}, {@link #remove(Job)} and inspection methods can be called from any thread, while
+ * {@link #pollDue(long)} will only be called by the thread that executes the jobs.
+ */
+public interface JobQueue {
+    /**
+     * Adds the job to the queue, such that it will be returned by {@link #pollDue(long)} once its
+     * {@link Job#getTimeOfNextRun()} has been reached.
+     *
+     * @param job
+     *            The job that should be added.
+     */
+    void add(Job<?> job);
+
+    /**
+     * Removes the job from the queue, if it is present.
+     *
+     * @param job
+     *            The job that should be removed.
+     * @return true if the job was present in the queue.
+     */
+    boolean remove(Job<?> job);
+
+    /**
+     * Removes the first job that should be run at or before the given time. When multiple jobs are due, they are
+     * returned ordered by their {@link Job#getTimeOfNextRun()} and then by their creation order.
+     *
+     * @param now
+     *            The current time in milliseconds.
+     * @return The job that should be executed next, or null when there is no job due yet.
+     */
+    Job<?> pollDue(long now);
+
+    /**
+     * @return The time at which {@link #pollDue(long)} could return the next job, or {@link Long#MAX_VALUE} when the
+     *         queue is empty. Implementations may return an earlier time than the time of the next job, but never a
+     *         later one.
+     */
+    long getNextJobTime();
+
+    /**
+     * @return The number of jobs in this queue.
+     */
+    int size();
+
+    /**
+     * @return true when there are no jobs in this queue.
+     */
+    boolean isEmpty();
+
+    /**
+     * Removes all the jobs from this queue.
+     */
+    void clear();
+
+    /**
+     * @return A snapshot of all the jobs in the queue, in the order in which they will be executed.
+     */
+    List<Job<?>> toList();
+
+    /**
+     * Removes all the jobs from this queue and returns them. Unlike {@link #toList()} followed by {@link #clear()}, a
+     * job that is added at the same time is either returned or stays in the queue, but never gets lost.
+     *
+     * @return The jobs that have been removed, in the order in which they would have been executed.
+     */
+    List<Job<?>> drain();
+}
@@ -0,0 +1,125 @@
+package org.flexiblepower.scheduling;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import org.flexiblepower.scheduling.metrics.HistogramSnapshot;
+import org.flexiblepower.scheduling.metrics.JobMetrics;
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
+
+/**
+ * Writes {@link SchedulerMetrics} as JSON. This is written by hand, because the runtime does not depend on a JSON
+ * library.
+ */
+class MetricsJsonWriter {
+    private final PrintWriter w;
+
+    MetricsJsonWriter(PrintWriter w) {
+        this.w = w;
+    }
+
+    void write(List<SchedulerMetrics> schedulers) {
+        w.print('[');
+        for (int ix = 0; ix < schedulers.size(); ix++) {
+            if (ix > 0) {
+                w.print(',');
+            }
+            write(schedulers.get(ix));
+        }
+        w.print(']');
+        w.flush();
+    }
+
+    private void write(SchedulerMetrics metrics) {
+        w.print("{\"name\":");
+        writeString(metrics.getName());
+        w.print(",\"executedJobs\":");
+        w.print(metrics.getExecutedJobs());
+        w.print(",\"lateJobs\":");
+        w.print(metrics.getLateJobs());
+        w.print(",\"queueDepth\":");
+        w.print(metrics.getQueueDepth());
+        w.print(",\"maxQueueDepth\":");
+        w.print(metrics.getMaxQueueDepth());
+        w.print(",\"latenessMs\":");
+        write(metrics.getLateness());
+        w.print(",\"runTimeUs\":");
+        write(metrics.getRunTime());
+        w.print(",\"jobs\":[");
+        List<JobMetrics> jobs = metrics.getJobs();
+        for (int ix = 0; ix < jobs.size(); ix++) {
+            if (ix > 0) {
+                w.print(',');
+            }
+            write(jobs.get(ix));
+        }
+        w.print("]}");
+    }
+
+    private void write(HistogramSnapshot histogram) {
+        w.print("{\"count\":");
+        w.print(histogram.getCount());
+        w.print(",\"min\":");
+        w.print(histogram.getMin());
+        w.print(",\"max\":");
+        w.print(histogram.getMax());
+        w.print(",\"mean\":");
+        w.print(histogram.getMean());
+        w.print(",\"p50\":");
+        w.print(histogram.getP50());
+        w.print(",\"p90\":");
+        w.print(histogram.getP90());
+        w.print(",\"p99\":");
+        w.print(histogram.getP99());
+        w.print(",\"p999\":");
+        w.print(histogram.getP999());
+        w.print('}');
+    }
+
+    private void write(JobMetrics job) {
+        w.print("{\"description\":");
+        writeString(job.getDescription());
+        w.print(",\"timeOfNextRun\":");
+        w.print(job.getTimeOfNextRun());
+        w.print(",\"executions\":");
+        w.print(job.getExecutions());
+        w.print(",\"lateExecutions\":");
+        w.print(job.getLateExecutions());
+        w.print(",\"meanRunTimeUs\":");
+        w.print(job.getMeanRunTime());
+        w.print(",\"maxRunTimeUs\":");
+        w.print(job.getMaxRunTime());
+        w.print('}');
+    }
+
+    private void writeString(String value) {
+        w.print('"');
+        for (int ix = 0; ix < value.length(); ix++) {
+            char c = value.charAt(ix);
+            switch (c) {
+            case '"':
+                w.print("\\\"");
+                break;
+            case '\\':
+                w.print("\\\\");
+                break;
+            case '\n':
+                w.print("\\n");
+                break;
+            case '\r':
+                w.print("\\r");
+                break;
+            case '\t':
+                w.print("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    w.printf("\\u%04x", (int) c);
+                } else {
+                    w.print(c);
+                }
+            }
+        }
+        w.print('"');
+    }
+}
@@ -0,0 +1,70 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ParallelSection} is entered by a thread that executes jobs in parallel with other threads. Within a section
+ * the actions that affect other partitions, like adding jobs or sending messages, are not performed immediately, but
+ * collected by {@link #defer(Runnable)}. After all the threads have finished, the scheduler performs the collected
+ * actions in a fixed order, such that the result does not depend on the timing of the threads.
+ */
+public final class ParallelSection {
+    private static final ThreadLocal<List<Runnable>> deferredActions = new ThreadLocal<List<Runnable>>();
+    /** The number of threads that are in a section, which avoids the thread local lookup when there are none */
+    private static final AtomicInteger activeSections = new AtomicInteger();
+
+    private ParallelSection() {
+    }
+
+    /**
+     * Enters a section on the current thread.
+     */
+    public static void enter() {
+        deferredActions.set(new ArrayList<Runnable>());
+        activeSections.incrementAndGet();
+    }
+
+    /**
+     * Leaves the section of the current thread.
+     *
+     * @return The actions that have been deferred in this section, in the order they have been deferred.
+     */
+    public static List<Runnable> exit() {
+        List<Runnable> actions = deferredActions.get();
+        if (actions == null) {
+            throw new IllegalStateException("The current thread is not in a parallel section");
+        }
+        deferredActions.remove();
+        activeSections.decrementAndGet();
+        return actions;
+    }
+
+    /**
+     * @return true when the current thread is in a section, so actions should be deferred.
+     */
+    public static boolean isActive() {
+        return activeSections.get() > 0 && deferredActions.get() != null;
+    }
+
+    /**
+     * Defers the action until the end of the section of the current thread, if there is one.
+     *
+     * @param action
+     *            The action that should be deferred.
+     * @return true when the action has been deferred, false when the current thread is not in a section and the caller
+     *         should perform the action itself.
+     */
+    public static boolean defer(Runnable action) {
+        if (activeSections.get() == 0) {
+            return false;
+        }
+        List<Runnable> actions = deferredActions.get();
+        if (actions == null) {
+            return false;
+        }
+        actions.add(action);
+        return true;
+    }
+}
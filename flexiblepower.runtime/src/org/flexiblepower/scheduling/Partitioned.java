@@ -0,0 +1,15 @@
+package org.flexiblepower.scheduling;
+
+/**
+ * A task (a {@link Runnable} or {@link java.util.concurrent.Callable}) that implements {@link Partitioned} tells the
+ * scheduler to which partition it belongs. A scheduler that executes jobs of the same time in parallel never runs two
+ * jobs of the same partition at the same time, and it keeps the order of the jobs within a partition. Tasks of
+ * different partitions should only interact through messages or by scheduling new jobs.
+ */
+public interface Partitioned {
+    /**
+     * @return The key of the partition (e.g. the bundle or the endpoint that owns the task). Keys are compared with
+     *         {@link Object#equals(Object)}. When this is null, the task will never run in parallel with other tasks.
+     */
+    Object getPartitionKey();
+}
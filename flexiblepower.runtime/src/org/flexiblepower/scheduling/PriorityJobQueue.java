@@ -0,0 +1,70 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The {@link PriorityJobQueue} is a {@link JobQueue} that keeps all the jobs in a single {@link PriorityQueue}. Adding
+ * and polling a job takes O(log n) time, removing it takes O(n) time. All methods are guarded by a lock on the queue
+ * itself. The result of {@link #getNextJobTime()} is always exact, which makes this queue suitable for simulations.
+ */
+public class PriorityJobQueue implements JobQueue {
+    private final PriorityQueue<Job<?>> jobs = new PriorityQueue<Job<?>>();
+
+    @Override
+    public synchronized void add(Job<?> job) {
+        jobs.add(job);
+    }
+
+    @Override
+    public synchronized boolean remove(Job<?> job) {
+        return jobs.remove(job);
+    }
+
+    @Override
+    public synchronized Job<?> pollDue(long now) {
+        Job<?> job = jobs.peek();
+        if (job != null && job.getTimeOfNextRun() <= now) {
+            return jobs.poll();
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long getNextJobTime() {
+        Job<?> job = jobs.peek();
+        return job == null ? Long.MAX_VALUE : job.getTimeOfNextRun();
+    }
+
+    @Override
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return jobs.isEmpty();
+    }
+
+    @Override
+    public synchronized void clear() {
+        jobs.clear();
+    }
+
+    @Override
+    public synchronized List<Job<?>> toList() {
+        List<Job<?>> result = new ArrayList<Job<?>>(jobs);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Override
+    public synchronized List<Job<?>> drain() {
+        List<Job<?>> result = toList();
+        jobs.clear();
+        return result;
+    }
+}
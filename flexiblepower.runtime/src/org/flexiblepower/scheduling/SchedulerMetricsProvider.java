@@ -0,0 +1,30 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
+import org.flexiblepower.scheduling.metrics.SchedulerMetricsService;
+
+import aQute.bnd.annotation.component.Component;
+
+@Component(provide = SchedulerMetricsService.class)
+public class SchedulerMetricsProvider implements SchedulerMetricsService {
+    @Override
+    public List<SchedulerMetrics> getSchedulerMetrics() {
+        List<SchedulerMetrics> result = new ArrayList<SchedulerMetrics>();
+        for (Entry<String, AbstractScheduler> entry : AbstractScheduler.THREAD_MONITOR) {
+            result.add(entry.getValue().getMetrics(entry.getKey()));
+        }
+        Collections.sort(result, new Comparator<SchedulerMetrics>() {
+            @Override
+            public int compare(SchedulerMetrics o1, SchedulerMetrics o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return result;
+    }
+}
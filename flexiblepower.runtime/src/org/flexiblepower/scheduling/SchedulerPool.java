@@ -0,0 +1,66 @@
+package org.flexiblepower.scheduling;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link SchedulerPool} is a small pool of threads that can be shared by many {@link AbstractScheduler}s, see
+ * {@link AbstractScheduler#start(String, SchedulerPool)}. Each scheduler that uses the pool acts as a serial lane: its
+ * jobs are still executed one at a time and in the same order as they would be by its own thread, but the pool threads
+ * are only occupied while a scheduler actually has a job that is due.
+ */
+public class SchedulerPool {
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Creates a new {@link SchedulerPool} and starts its threads.
+     *
+     * @param name
+     *            The name of the pool that is used in the thread names.
+     * @param threads
+     *            The number of threads in the pool.
+     */
+    public SchedulerPool(final String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A SchedulerPool needs at least 1 thread, not " + threads);
+        }
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Scheduler pool " + name + " thread "
+                                                     + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.prestartAllCoreThreads();
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The number of threads in this pool.
+     */
+    public int getThreadCount() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * Stops all the threads of this pool. This should only be called when all the schedulers that use this pool have
+     * been stopped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -5,10 +5,13 @@ import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map.Entry;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.felix.webconsole.SimpleWebConsolePlugin;
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
+import org.flexiblepower.scheduling.metrics.SchedulerMetricsService;
 import org.osgi.framework.BundleContext;
 
 import aQute.bnd.annotation.component.Activate;
@@ -19,6 +22,8 @@ import aQute.bnd.annotation.component.Deactivate;
 public class SchedulingServlet extends SimpleWebConsolePlugin {
     private static final long serialVersionUID = 6576166876090020661L;
 
+    private final SchedulerMetricsService metricsService = new SchedulerMetricsProvider();
+
     public SchedulingServlet() {
         super("scheduling", "Runtime Scheduling", "FPAI", null);
     }
@@ -33,6 +38,18 @@ public class SchedulingServlet extends SimpleWebConsolePlugin {
         unregister();
     }
 
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String path = req.getPathInfo();
+        if (path != null && path.endsWith("/" + getLabel() + "/metrics.json")) {
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            new MetricsJsonWriter(resp.getWriter()).write(metricsService.getSchedulerMetrics());
+        } else {
+            super.doGet(req, resp);
+        }
+    }
+
     @Override
     protected void renderContent(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         PrintWriter w = resp.getWriter();
@@ -66,6 +83,23 @@ public class SchedulingServlet extends SimpleWebConsolePlugin {
                     w.print(jobs.get(ix));
                 }
             }
+            SchedulerMetrics metrics = entry.getValue().getMetrics(entry.getKey());
+            w.print("</td></tr>");
+            if (i % 2 == 1) {
+                w.print("<tr class=\"odd ui-state-default\"><td></td><td>");
+            } else {
+                w.print("<tr class=\"even ui-state-default\"><td></td><td>");
+            }
+            w.print("Executed: " + metrics.getExecutedJobs()
+                    + ", late: "
+                    + metrics.getLateJobs()
+                    + ", p99 lateness: "
+                    + metrics.getLateness().getP99()
+                    + "ms, p99 run time: "
+                    + metrics.getRunTime().getP99()
+                    + "&micro;s, max queue depth: "
+                    + metrics.getMaxQueueDepth());
+
             long currentExecutionTime = entry.getValue().getCurrentExecutionTime();
             if (currentExecutionTime > 0) {
                 w.print("</td></tr>");
@@ -82,5 +116,6 @@ public class SchedulingServlet extends SimpleWebConsolePlugin {
         }
         w.print("</table>");
         w.println("<div class=\"ui-widget-header ui-corner-bottom buttonGroup\"></div>");
+        w.println("<p><a href=\"" + getLabel() + "/metrics.json\">Metrics as JSON</a></p>");
     }
 }
@@ -0,0 +1,371 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The {@link TimingWheelJobQueue} is a {@link JobQueue} based on a hierarchical timing wheel with a resolution of 1ms.
+ * Both {@link #add(Job)} and {@link #remove(Job)} take O(1) time and never take a lock:
+ * <ul>
+ * <li>New jobs are put on a lock-free incoming queue. Only the thread that calls {@link #pollDue(long)} moves them into
+ * the wheel, so the wheel itself is never shared between threads (except for the occasional {@link #toList()}).</li>
+ * <li>Each job refers to the entry that currently represents it. Removing a job only clears that reference, the entry
+ * in the wheel is discarded when it expires.</li>
+ * </ul>
+ *
+ * The wheel has 5 levels. The first level has 256 slots of 1ms, the other levels have 64 slots that each cover a whole
+ * lower level, which gives a range of 2^32ms (about 49 days). Jobs that are even further away are kept in an overflow
+ * list until they come within range. Jobs of which the slot has expired are sorted on their time and serial number, so
+ * jobs are executed in exactly the same order as with the {@link PriorityJobQueue}.
+ *
+ * The result of {@link #getNextJobTime()} is a lower bound (e.g. the start of the next slot that contains jobs), so a
+ * scheduler can wake up just before the next job becomes due. This makes this queue unsuitable for simulations, where
+ * the exact time of the next job is needed.
+ */
+public class TimingWheelJobQueue implements JobQueue {
+    private static final int LEVELS = 5;
+    /** The shift to get the slot index on each level */
+    private static final int[] SLOT_SHIFT = { 0, 8, 14, 20, 26 };
+    /** The shift to get the range of each level, which is the slot shift of the next level */
+    private static final int[] RANGE_SHIFT = { 8, 14, 20, 26, 32 };
+    private static final int[] SLOT_MASK = { 255, 63, 63, 63, 63 };
+
+    /**
+     * An entry in the wheel. A job can be added again after it has been removed, so the entry is the identity of a
+     * single add.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final Job<?> job;
+        final long time;
+        Entry next;
+
+        Entry(Job<?> job) {
+            this.job = job;
+            time = job.getTimeOfNextRun();
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            } else {
+                return job.compareTo(o.job);
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Job, Object> QUEUE_ENTRY =
+            AtomicReferenceFieldUpdater.newUpdater(Job.class, Object.class, "queueEntry");
+
+    /** The number of jobs that are in the queue */
+    private final AtomicInteger size;
+    /** Entries that have been added, but are not yet in the wheel */
+    private final Queue<Entry> incoming;
+    /** Lower bound for the time of the entries in {@link #incoming} */
+    private final AtomicLong earliestIncoming;
+    /** Lower bound for the time of the entries in the wheel, updated by the polling thread */
+    private volatile long nextWheelTime;
+
+    // From here on everything is only used by the polling thread, while holding the lock on this object
+
+    /** The singly linked lists of entries in each slot of each level */
+    private final Entry[][] slots;
+    /** Bitmaps of the slots that are not empty, 4 words for the first level and 1 word for the others */
+    private final long[][] occupied;
+    /** Entries that are more than 2^32ms away */
+    private final List<Entry> overflow;
+    /** Entries of which the slot has expired, ordered on time and serial */
+    private final PriorityQueue<Entry> expired;
+    /** The time of the first slot that has not been expired yet */
+    private long cursor;
+    /** The number of entries in the wheel (including the overflow list, but not the expired ones) */
+    private int wheelSize;
+
+    /**
+     * Creates a new empty {@link TimingWheelJobQueue}.
+     */
+    public TimingWheelJobQueue() {
+        size = new AtomicInteger();
+        incoming = new ConcurrentLinkedQueue<Entry>();
+        earliestIncoming = new AtomicLong(Long.MAX_VALUE);
+        nextWheelTime = Long.MAX_VALUE;
+
+        slots = new Entry[LEVELS][];
+        occupied = new long[LEVELS][];
+        for (int level = 0; level < LEVELS; level++) {
+            slots[level] = new Entry[SLOT_MASK[level] + 1];
+            occupied[level] = new long[(SLOT_MASK[level] >> 6) + 1];
+        }
+        overflow = new ArrayList<Entry>();
+        expired = new PriorityQueue<Entry>();
+        cursor = Long.MIN_VALUE;
+        wheelSize = 0;
+    }
+
+    @Override
+    public void add(Job<?> job) {
+        Entry entry = new Entry(job);
+        if (QUEUE_ENTRY.getAndSet(job, entry) == null) {
+            size.incrementAndGet();
+        }
+        incoming.add(entry);
+
+        long earliest = earliestIncoming.get();
+        while (entry.time < earliest && !earliestIncoming.compareAndSet(earliest, entry.time)) {
+            earliest = earliestIncoming.get();
+        }
+    }
+
+    @Override
+    public boolean remove(Job<?> job) {
+        Object entry = job.queueEntry;
+        while (entry != null) {
+            if (QUEUE_ENTRY.compareAndSet(job, entry, null)) {
+                size.decrementAndGet();
+                return true;
+            }
+            entry = job.queueEntry;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the job out of the queue if the entry still represents it, otherwise the job has been removed (or removed
+     * and added again) after the entry was made.
+     */
+    private boolean take(Entry entry) {
+        if (QUEUE_ENTRY.compareAndSet(entry.job, entry, null)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isValid(Entry entry) {
+        return entry.job.queueEntry == entry;
+    }
+
+    @Override
+    public synchronized Job<?> pollDue(long now) {
+        if (cursor == Long.MIN_VALUE || (wheelSize == 0 && expired.isEmpty())) {
+            // The wheel is empty, so the cursor can be moved to anywhere
+            cursor = now;
+        }
+
+        // Reset the lower bound before transferring, so we never miss an entry that is added concurrently
+        earliestIncoming.set(Long.MAX_VALUE);
+        for (Entry entry = incoming.poll(); entry != null; entry = incoming.poll()) {
+            insert(entry);
+        }
+
+        advance(now);
+
+        Job<?> result = null;
+        while (result == null && !expired.isEmpty() && expired.peek().time <= now) {
+            Entry entry = expired.poll();
+            if (take(entry)) {
+                result = entry.job;
+            }
+        }
+
+        nextWheelTime = expired.isEmpty() ? nextSlotTime() : expired.peek().time;
+        return result;
+    }
+
+    @Override
+    public long getNextJobTime() {
+        if (size.get() == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.min(nextWheelTime, earliestIncoming.get());
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        // The entries that are still in the wheel will be discarded when they expire
+        for (Entry entry : allEntries()) {
+            take(entry);
+        }
+    }
+
+    @Override
+    public synchronized List<Job<?>> toList() {
+        List<Job<?>> result = new ArrayList<Job<?>>();
+        for (Entry entry : allEntries()) {
+            if (isValid(entry)) {
+                result.add(entry.job);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Override
+    public synchronized List<Job<?>> drain() {
+        // A job that is added concurrently gets a new entry, which is either taken here or stays in the incoming queue
+        List<Job<?>> result = new ArrayList<Job<?>>();
+        for (Entry entry : allEntries()) {
+            if (take(entry)) {
+                result.add(entry.job);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return All the entries in the wheel, the expired queue and the incoming queue (including invalid ones)
+     */
+    private List<Entry> allEntries() {
+        List<Entry> result = new ArrayList<Entry>(incoming);
+        result.addAll(expired);
+        result.addAll(overflow);
+        for (Entry[] levelSlots : slots) {
+            for (Entry slot : levelSlots) {
+                for (Entry entry = slot; entry != null; entry = entry.next) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void insert(Entry entry) {
+        long time = entry.time;
+        if (time < cursor) {
+            expired.add(entry);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if ((time >>> RANGE_SHIFT[level]) == (cursor >>> RANGE_SHIFT[level])) {
+                int slot = (int) ((time >>> SLOT_SHIFT[level]) & SLOT_MASK[level]);
+                entry.next = slots[level][slot];
+                slots[level][slot] = entry;
+                occupied[level][slot >> 6] |= 1L << slot;
+                wheelSize++;
+                return;
+            }
+        }
+
+        overflow.add(entry);
+        wheelSize++;
+    }
+
+    /**
+     * Expires all the slots up to and including the given time. Instead of stepping through every millisecond, the
+     * cursor jumps directly to the next slot that contains entries.
+     */
+    private void advance(long now) {
+        while (wheelSize > 0) {
+            long time = nextSlotTime();
+            if (time > now) {
+                return;
+            }
+
+            moveCursor(time);
+            int slot = (int) (time & SLOT_MASK[0]);
+            if ((occupied[0][slot >> 6] & (1L << slot)) != 0) {
+                for (Entry entry = takeSlot(0, slot); entry != null; entry = entry.next) {
+                    expired.add(entry);
+                }
+                moveCursor(time + 1);
+            }
+            // Otherwise the cursor moved to a higher level slot, whose entries have now been cascaded to lower levels
+        }
+    }
+
+    /**
+     * Moves the cursor forward and cascades the entries of each higher level slot that the cursor enters.
+     */
+    private void moveCursor(long time) {
+        long previous = cursor;
+        cursor = time;
+
+        if ((time >>> RANGE_SHIFT[LEVELS - 1]) != (previous >>> RANGE_SHIFT[LEVELS - 1]) && !overflow.isEmpty()) {
+            Entry[] entries = overflow.toArray(new Entry[overflow.size()]);
+            overflow.clear();
+            wheelSize -= entries.length;
+            for (Entry entry : entries) {
+                insert(entry);
+            }
+        }
+
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((time >>> SLOT_SHIFT[level]) != (previous >>> SLOT_SHIFT[level])) {
+                int slot = (int) ((time >>> SLOT_SHIFT[level]) & SLOT_MASK[level]);
+                if ((occupied[level][slot >> 6] & (1L << slot)) != 0) {
+                    Entry entry = takeSlot(level, slot);
+                    while (entry != null) {
+                        Entry next = entry.next;
+                        insert(entry);
+                        entry = next;
+                    }
+                }
+            }
+        }
+    }
+
+    private Entry takeSlot(int level, int slot) {
+        Entry entry = slots[level][slot];
+        slots[level][slot] = null;
+        occupied[level][slot >> 6] &= ~(1L << slot);
+        for (Entry e = entry; e != null; e = e.next) {
+            wheelSize--;
+        }
+        return entry;
+    }
+
+    /**
+     * @return The start time of the first slot after the cursor that contains entries, or {@link Long#MAX_VALUE} when
+     *         the wheel is empty.
+     */
+    private long nextSlotTime() {
+        if (wheelSize == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            int from = (int) ((cursor >>> SLOT_SHIFT[level]) & SLOT_MASK[level]);
+            int slot = nextOccupied(occupied[level], from);
+            if (slot >= 0) {
+                long rangeStart = (cursor >>> RANGE_SHIFT[level]) << RANGE_SHIFT[level];
+                return rangeStart + ((long) slot << SLOT_SHIFT[level]);
+            }
+        }
+
+        // Only the overflow list contains entries, the next moment to look at them is the start of the next range
+        return ((cursor >>> RANGE_SHIFT[LEVELS - 1]) + 1) << RANGE_SHIFT[LEVELS - 1];
+    }
+
+    private static int nextOccupied(long[] bitmap, int from) {
+        int word = from >> 6;
+        long bits = bitmap[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            } else if (++word == bitmap.length) {
+                return -1;
+            }
+            bits = bitmap[word];
+        }
+    }
+}
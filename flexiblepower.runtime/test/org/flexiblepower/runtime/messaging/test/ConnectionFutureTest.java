@@ -0,0 +1,121 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.runtime.messaging.callback.CallbackConnectionFuture;
+import org.flexiblepower.runtime.messaging.callback.ConnectionCallback;
+import org.osgi.framework.Constants;
+
+public class ConnectionFutureTest extends TestCase {
+    @Port(name = "port", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class TestEndpoint implements Endpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    private static class RecordingCallback implements ConnectionCallback {
+        final List<Object> events = new ArrayList<Object>();
+
+        @Override
+        public void connected(PotentialConnection connection) {
+            events.add(connection);
+        }
+
+        @Override
+        public void cancelled() {
+            events.add("cancelled");
+        }
+    }
+
+    private ConnectionManagerImpl connectionManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        connectionManager = new ConnectionManagerImpl();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connectionManager.deactivate();
+    }
+
+    private void add(String pid) {
+        connectionManager.addEndpoint(new TestEndpoint(), Collections.singletonMap(Constants.SERVICE_PID, pid));
+    }
+
+    private CallbackConnectionFuture connectLater(String onePid, String otherPid) {
+        ConnectionFuture future = connectionManager.asyncConnectEndpointPorts(onePid, "port", otherPid, "port");
+        assertTrue(future instanceof CallbackConnectionFuture);
+        return (CallbackConnectionFuture) future;
+    }
+
+    public void testCallbackWhenBothEndpointsAreRegistered() {
+        CallbackConnectionFuture future = connectLater("a", "b");
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        add("a");
+        add("unrelated");
+        assertFalse(future.isConnected());
+        assertTrue(callback.events.isEmpty());
+
+        add("b");
+        assertTrue(future.isConnected());
+        assertEquals(Collections.<Object> singletonList(future.getPotentialConnection()), callback.events);
+        assertTrue(future.getPotentialConnection().isConnected());
+    }
+
+    public void testCallbackAfterCompletionIsCalledImmediately() {
+        add("a");
+        add("b");
+        CallbackConnectionFuture future = connectLater("a", "b");
+        assertTrue(future.isConnected());
+
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        assertEquals(1, callback.events.size());
+    }
+
+    public void testCancelledFutureIsNotConnected() {
+        CallbackConnectionFuture future = connectLater("a", "b");
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        future.cancel();
+        assertEquals(Collections.<Object> singletonList("cancelled"), callback.events);
+
+        add("a");
+        add("b");
+        assertFalse(future.isConnected());
+        assertEquals(1, callback.events.size());
+    }
+
+    public void testFutureIsFoundOnPrefixOfPid() {
+        CallbackConnectionFuture future = connectLater("a", "b");
+        add("a.1");
+        add("b.1");
+        assertTrue(future.isConnected());
+        assertEquals("a.1:port-b.1:port", future.getPotentialConnection().toString());
+    }
+}
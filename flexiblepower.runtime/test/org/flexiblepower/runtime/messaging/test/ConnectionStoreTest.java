@@ -0,0 +1,112 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+public class ConnectionStoreTest extends TestCase {
+    @Port(name = "port", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class TestEndpoint implements Endpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    private ConnectionManagerImpl connectionManager;
+    private Configuration configuration;
+
+    @Override
+    protected void setUp() throws Exception {
+        configuration = Mockito.mock(Configuration.class);
+        ConfigurationAdmin configurationAdmin = Mockito.mock(ConfigurationAdmin.class);
+        Mockito.when(configurationAdmin.getConfiguration(ConnectionManagerImpl.class.getName()))
+               .thenReturn(configuration);
+
+        connectionManager = new ConnectionManagerImpl();
+        connectionManager.setConfigurationAdmin(configurationAdmin);
+        connectionManager.activate();
+        for (String pid : Arrays.asList("hub", "a", "b", "c")) {
+            connectionManager.addEndpoint(new TestEndpoint(), Collections.singletonMap(Constants.SERVICE_PID, pid));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connectionManager.deactivate();
+    }
+
+    private void setStoreDelay(long delay) {
+        connectionManager.modified(Collections.<String, Object> singletonMap("connections.store.delay", delay));
+    }
+
+    private void connectAll() {
+        for (String pid : Arrays.asList("a", "b", "c")) {
+            connectionManager.getEndpoints()
+                             .get("hub")
+                             .getPort("port")
+                             .getPotentialConnection(connectionManager.getEndpoints().get(pid).getPort("port"))
+                             .connect();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<?> lastStoredConnections() throws Exception {
+        Class<Dictionary<String, ?>> type = (Class<Dictionary<String, ?>>) (Class<?>) Dictionary.class;
+        ArgumentCaptor<Dictionary<String, ?>> captor = ArgumentCaptor.forClass(type);
+        Mockito.verify(configuration, Mockito.atLeastOnce()).update(captor.capture());
+        return (List<?>) captor.getValue().get("active.connections");
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testStoreImmediatelyByDefault() throws Exception {
+        connectAll();
+        Mockito.verify(configuration, Mockito.times(3)).update(Mockito.any(Dictionary.class));
+        assertEquals(3, lastStoredConnections().size());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testChangesAreCoalescedWithinTheDelay() throws Exception {
+        setStoreDelay(200);
+        connectAll();
+        Mockito.verify(configuration, Mockito.never()).update(Mockito.any(Dictionary.class));
+
+        Thread.sleep(500);
+        Mockito.verify(configuration, Mockito.times(1)).update(Mockito.any(Dictionary.class));
+        assertEquals(3, lastStoredConnections().size());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testDeactivateFlushesWaitingChanges() throws Exception {
+        setStoreDelay(60000);
+        connectAll();
+        Mockito.verify(configuration, Mockito.never()).update(Mockito.any(Dictionary.class));
+
+        connectionManager.deactivate();
+        Mockito.verify(configuration, Mockito.times(1)).update(Mockito.any(Dictionary.class));
+        assertEquals(3, lastStoredConnections().size());
+    }
+}
@@ -0,0 +1,160 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.runtime.messaging.callback.AsyncPotentialConnection;
+import org.osgi.framework.Constants;
+
+public class DisconnectTest extends TestCase {
+    /**
+     * Endpoint of which the {@link MessageHandler#disconnected()} blocks until it is released.
+     */
+    @Port(name = "port", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class TestEndpoint implements Endpoint {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        TestEndpoint(boolean blocking) {
+            if (!blocking) {
+                release.countDown();
+            }
+        }
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    disconnected.countDown();
+                }
+            };
+        }
+    }
+
+    private ConnectionManagerImpl connectionManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        connectionManager = new ConnectionManagerImpl();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connectionManager.deactivate();
+    }
+
+    private void add(String pid, Endpoint endpoint) {
+        connectionManager.addEndpoint(endpoint, Collections.singletonMap(Constants.SERVICE_PID, pid));
+    }
+
+    private PotentialConnection connect(String left, String right) {
+        PotentialConnection connection = connectionManager.getEndpoints()
+                                                          .get(left)
+                                                          .getPort("port")
+                                                          .getPotentialConnection(connectionManager.getEndpoints()
+                                                                                                   .get(right)
+                                                                                                   .getPort("port"));
+        connection.connect();
+        return connection;
+    }
+
+    public void testDisconnectWaitsForEndpoints() throws InterruptedException {
+        TestEndpoint a = new TestEndpoint(false);
+        TestEndpoint b = new TestEndpoint(false);
+        add("a", a);
+        add("b", b);
+        PotentialConnection connection = connect("a", "b");
+
+        connection.disconnect();
+        assertFalse(connection.isConnected());
+        assertEquals(0, a.disconnected.getCount());
+        assertEquals(0, b.disconnected.getCount());
+    }
+
+    public void testDisconnectGivesUpAfterTimeout() throws InterruptedException {
+        connectionManager.modified(Collections.<String, Object> singletonMap("disconnect.timeout", 100));
+        TestEndpoint a = new TestEndpoint(false);
+        TestEndpoint b = new TestEndpoint(true);
+        add("a", a);
+        add("b", b);
+        PotentialConnection connection = connect("a", "b");
+
+        long start = System.currentTimeMillis();
+        connection.disconnect();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertFalse(connection.isConnected());
+
+        b.release.countDown();
+        assertTrue(b.disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testDisconnectAsync() throws Exception {
+        TestEndpoint a = new TestEndpoint(false);
+        TestEndpoint b = new TestEndpoint(true);
+        add("a", a);
+        add("b", b);
+        PotentialConnection connection = connect("a", "b");
+        assertTrue(connection instanceof AsyncPotentialConnection);
+
+        Future<Void> future = ((AsyncPotentialConnection) connection).disconnectAsync();
+        assertFalse(connection.isConnected());
+        assertTrue(a.disconnected.await(5, TimeUnit.SECONDS));
+        assertFalse(future.isDone());
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+            // Expected, b is still busy
+        }
+
+        b.release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        assertTrue(future.isDone());
+        assertEquals(0, b.disconnected.getCount());
+
+        // Disconnecting again completes immediately
+        assertTrue(((AsyncPotentialConnection) connection).disconnectAsync().isDone());
+    }
+
+    public void testRemoveEndpointDoesNotWaitForDisconnect() throws InterruptedException {
+        TestEndpoint a = new TestEndpoint(false);
+        TestEndpoint b = new TestEndpoint(true);
+        add("a", a);
+        add("b", b);
+        PotentialConnection connection = connect("a", "b");
+
+        long start = System.currentTimeMillis();
+        connectionManager.removeEndpoint(b, Collections.singletonMap(Constants.SERVICE_PID, "b"));
+        // Other endpoints can still be registered while b is busy
+        add("c", new TestEndpoint(false));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertFalse(connection.isConnected());
+        assertTrue(a.disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, b.disconnected.getCount());
+
+        b.release.countDown();
+        assertTrue(b.disconnected.await(5, TimeUnit.SECONDS));
+    }
+}
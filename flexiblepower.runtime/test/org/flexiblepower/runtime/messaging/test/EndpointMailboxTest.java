@@ -0,0 +1,191 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.runtime.messaging.Command;
+import org.flexiblepower.runtime.messaging.EndpointMailbox;
+import org.flexiblepower.runtime.messaging.EndpointMailbox.OverflowPolicy;
+
+public class EndpointMailboxTest extends TestCase {
+    /**
+     * {@link Executor} that only collects the jobs, such that the test can decide when they are executed.
+     */
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> jobs = new LinkedList<Runnable>();
+        private int executed = 0;
+
+        @Override
+        public void execute(Runnable command) {
+            jobs.add(command);
+        }
+
+        void runAll() {
+            while (!jobs.isEmpty()) {
+                jobs.remove().run();
+                executed++;
+            }
+        }
+    }
+
+    private static class RecordingHandler implements MessageHandler {
+        private final List<Object> messages = new ArrayList<Object>();
+
+        @Override
+        public void handleMessage(Object message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void disconnected() {
+            messages.add("disconnected");
+        }
+    }
+
+    private ManualExecutor executor;
+    private RecordingHandler handler;
+    private EndpointMailbox mailbox;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new ManualExecutor();
+        handler = new RecordingHandler();
+        mailbox = new EndpointMailbox("test", executor);
+    }
+
+    private void send(Object... messages) {
+        for (Object message : messages) {
+            mailbox.add(new Command.HandleMessage(message, handler));
+        }
+    }
+
+    public void testBatching() {
+        mailbox.configure(1000, 10, OverflowPolicy.BLOCK);
+        List<Object> expected = new ArrayList<Object>();
+        for (int ix = 0; ix < 100; ix++) {
+            send(ix);
+            expected.add(ix);
+        }
+        assertEquals(1, executor.jobs.size());
+        assertEquals(100, mailbox.getPendingMessages());
+
+        executor.runAll();
+        assertEquals(10, executor.executed);
+        assertEquals(expected, handler.messages);
+        assertEquals(0, mailbox.getPendingMessages());
+    }
+
+    public void testDropOldest() {
+        mailbox.configure(3, 10, OverflowPolicy.DROP_OLDEST);
+        send(1, 2, 3, 4, 5);
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList(3, 4, 5), handler.messages);
+        assertEquals(2, mailbox.getDroppedMessages());
+    }
+
+    public void testCoalesce() {
+        mailbox.configure(2, 10, OverflowPolicy.COALESCE);
+        send("a", 1, "b", 2L);
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList("b", 2L), handler.messages);
+        assertEquals(1, mailbox.getCoalescedMessages());
+        assertEquals(1, mailbox.getDroppedMessages());
+    }
+
+    public void testUnboundedByDefault() {
+        assertEquals(OverflowPolicy.UNBOUNDED, mailbox.getOverflowPolicy());
+        mailbox.configure(2, 10, OverflowPolicy.UNBOUNDED);
+        send(1, 2, 3, 4, 5);
+        assertEquals(5, mailbox.getPendingMessages());
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList(1, 2, 3, 4, 5), handler.messages);
+        assertEquals(0, mailbox.getDroppedMessages());
+    }
+
+    public void testCoalesceOnTheSameReceiver() {
+        mailbox.configure(1, 10, OverflowPolicy.COALESCE);
+        Object connection = new Object();
+        // Each message has its own handler, but they are sent over the same connection
+        mailbox.add(new Command.HandleMessage("a", new RecordingHandler(), connection));
+        mailbox.add(new Command.HandleMessage("b", handler, connection));
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList("b"), handler.messages);
+        assertEquals(1, mailbox.getCoalescedMessages());
+        assertEquals(0, mailbox.getDroppedMessages());
+    }
+
+    public void testCapacityWithConcurrentSenders() throws InterruptedException {
+        mailbox.configure(10, 10, OverflowPolicy.DROP_OLDEST);
+        Thread[] senders = new Thread[4];
+        for (int ix = 0; ix < senders.length; ix++) {
+            senders[ix] = new Thread() {
+                @Override
+                public void run() {
+                    for (int message = 0; message < 10000; message++) {
+                        send(message);
+                    }
+                }
+            };
+            senders[ix].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        assertEquals(10, mailbox.getPendingMessages());
+        assertEquals(40000 - 10, mailbox.getDroppedMessages());
+        executor.runAll();
+        assertEquals(10, handler.messages.size());
+    }
+
+    public void testDisconnectIsNeverDropped() {
+        mailbox.configure(1, 10, OverflowPolicy.DROP_OLDEST);
+        CountDownLatch latch = new CountDownLatch(1);
+        send(1);
+        mailbox.add(new Command.Disconnect(handler, latch));
+        send(2);
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList("disconnected", 2), handler.messages);
+        assertEquals(0, latch.getCount());
+    }
+
+    public void testBlockedSenderContinuesWhenThereIsRoom() throws InterruptedException {
+        mailbox.configure(1, 10, OverflowPolicy.BLOCK);
+        send(1);
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                executor.runAll();
+            }
+        };
+        receiver.start();
+        assertTrue(mailbox.add(new Command.HandleMessage(2, handler)));
+        receiver.join();
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList(1, 2), handler.messages);
+        assertEquals(0, mailbox.getDroppedMessages());
+    }
+
+    public void testBlockedSenderIsRejectedAfterTimeout() {
+        mailbox.configure(1, 10, OverflowPolicy.BLOCK);
+        send(1);
+        long start = System.currentTimeMillis();
+        assertFalse(mailbox.add(new Command.HandleMessage(2, handler)));
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        assertEquals(1, mailbox.getPendingMessages());
+        assertEquals(1, mailbox.getDroppedMessages());
+        executor.runAll();
+        assertEquals(Arrays.<Object> asList(1), handler.messages);
+    }
+}
@@ -0,0 +1,132 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.Collections;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.osgi.framework.Constants;
+
+/**
+ * Measures how long it takes to register many endpoints at the {@link ConnectionManagerImpl}, like at the startup of a
+ * simulation with thousands of households. This is not a unit test, run the {@link #main(String[])} method manually.
+ *
+ * There are 4 kinds of households. Each has one manager endpoint that is shared by all the households of that kind,
+ * and every household has a driver endpoint that only matches that manager.
+ */
+public class EndpointRegistrationBenchmark {
+    private static final int ENDPOINTS = 10000;
+
+    public static class State {
+    }
+
+    public static class Control {
+    }
+
+    public static class State1 extends State {
+    }
+
+    public static class Control1 extends Control {
+    }
+
+    public static class State2 extends State {
+    }
+
+    public static class Control2 extends Control {
+    }
+
+    public static class State3 extends State {
+    }
+
+    public static class Control3 extends Control {
+    }
+
+    public static class State4 extends State {
+    }
+
+    public static class Control4 extends Control {
+    }
+
+    public abstract static class TestEndpoint implements Endpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return null;
+        }
+    }
+
+    @Port(name = "manager", sends = State1.class, accepts = Control1.class)
+    public static class Driver1 extends TestEndpoint {
+    }
+
+    @Port(name = "driver", sends = Control1.class, accepts = State1.class, cardinality = Cardinality.MULTIPLE)
+    public static class Manager1 extends TestEndpoint {
+    }
+
+    @Port(name = "manager", sends = State2.class, accepts = Control2.class)
+    public static class Driver2 extends TestEndpoint {
+    }
+
+    @Port(name = "driver", sends = Control2.class, accepts = State2.class, cardinality = Cardinality.MULTIPLE)
+    public static class Manager2 extends TestEndpoint {
+    }
+
+    @Port(name = "manager", sends = State3.class, accepts = Control3.class)
+    public static class Driver3 extends TestEndpoint {
+    }
+
+    @Port(name = "driver", sends = Control3.class, accepts = State3.class, cardinality = Cardinality.MULTIPLE)
+    public static class Manager3 extends TestEndpoint {
+    }
+
+    @Port(name = "manager", sends = State4.class, accepts = Control4.class)
+    public static class Driver4 extends TestEndpoint {
+    }
+
+    @Port(name = "driver", sends = Control4.class, accepts = State4.class, cardinality = Cardinality.MULTIPLE)
+    public static class Manager4 extends TestEndpoint {
+    }
+
+    public static void main(String[] args) {
+        // First a round to warm up the JIT
+        run(1000, false);
+        run(ENDPOINTS, true);
+    }
+
+    private static Endpoint createEndpoint(int ix) {
+        switch (ix % 4) {
+        case 0:
+            return new Driver1();
+        case 1:
+            return new Driver2();
+        case 2:
+            return new Driver3();
+        default:
+            return new Driver4();
+        }
+    }
+
+    private static void run(int size, boolean print) {
+        ConnectionManagerImpl connectionManager = new ConnectionManagerImpl();
+        long start = System.nanoTime();
+        add(connectionManager, "manager1", new Manager1());
+        add(connectionManager, "manager2", new Manager2());
+        add(connectionManager, "manager3", new Manager3());
+        add(connectionManager, "manager4", new Manager4());
+        for (int ix = 4; ix < size; ix++) {
+            add(connectionManager, "household" + ix, createEndpoint(ix));
+        }
+        long time = System.nanoTime() - start;
+
+        if (print) {
+            System.out.printf("Registered %d endpoints in %d ms%n", size, time / 1000000);
+        }
+        connectionManager.deactivate();
+    }
+
+    private static void add(ConnectionManagerImpl connectionManager, String pid, Endpoint endpoint) {
+        connectionManager.addEndpoint(endpoint, Collections.singletonMap(Constants.SERVICE_PID, pid));
+    }
+}
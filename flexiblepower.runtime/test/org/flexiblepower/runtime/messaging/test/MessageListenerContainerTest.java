@@ -0,0 +1,199 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.runtime.messaging.MessageListenerContainer;
+import org.flexiblepower.runtime.messaging.MessageListenerQueue;
+
+public class MessageListenerContainerTest extends TestCase {
+    private static class RecordingListener implements MessageListener {
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            messages.add(message);
+        }
+    }
+
+    @Filter(Number.class)
+    private static class NumberListener extends RecordingListener {
+    }
+
+    /**
+     * Listener that blocks until it is released.
+     */
+    private static class BlockingListener extends RecordingListener {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            super.handleMessage(from, to, message);
+        }
+    }
+
+    private MessageListenerContainer container;
+
+    @Override
+    protected void setUp() throws Exception {
+        container = new MessageListenerContainer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        container.close();
+    }
+
+    private static void waitFor(RecordingListener listener, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.messages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private MessageListenerQueue queueOf(MessageListener listener) {
+        for (MessageListenerQueue queue : container.getListenerQueues()) {
+            if (queue.getMessageListener() == listener) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    public void testFilterInSerialMode() throws InterruptedException {
+        RecordingListener all = new RecordingListener();
+        NumberListener numbers = new NumberListener();
+        container.addMessageListener(all);
+        container.addMessageListener(numbers);
+
+        container.publishMessage(null, null, "a");
+        container.publishMessage(null, null, 1);
+        container.publishMessage(null, null, 2.0);
+        waitFor(all, 3);
+        waitFor(numbers, 2);
+
+        assertEquals(3, all.messages.size());
+        assertEquals(2, numbers.messages.size());
+        assertEquals(3, queueOf(all).getDelivered());
+        assertEquals(2, queueOf(numbers).getDelivered());
+    }
+
+    public void testSlowListenerDoesNotBlockOthersInFanOutMode() throws InterruptedException {
+        container.configure(true, 10);
+        BlockingListener slow = new BlockingListener();
+        NumberListener fast = new NumberListener();
+        container.addMessageListener(slow);
+        container.addMessageListener(fast);
+
+        // Make sure that the slow listener is holding the first message before the rest is sent
+        container.publishMessage(null, null, 0);
+        MessageListenerQueue slowQueue = queueOf(slow);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (slowQueue.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // Wait for the fast listener after each message, its queue is small as well
+        for (int ix = 1; ix < 100; ix++) {
+            container.publishMessage(null, null, ix);
+            waitFor(fast, ix + 1);
+        }
+        assertEquals(100, fast.messages.size());
+        assertEquals(0, queueOf(fast).getDropped());
+
+        // The slow listener holds one message and has 10 in its queue, the rest has been dropped
+        assertEquals(10, slowQueue.getPending());
+        assertEquals(10, slowQueue.getMaxPending());
+        assertEquals(89, slowQueue.getDropped());
+
+        slow.release.countDown();
+        waitFor(slow, 11);
+        assertEquals(11, slow.messages.size());
+        assertEquals(Integer.valueOf(0), slow.messages.get(0));
+    }
+
+    public void testFilterInFanOutMode() throws InterruptedException {
+        container.configure(true, 100);
+        NumberListener numbers = new NumberListener();
+        container.addMessageListener(numbers);
+
+        container.publishMessage(null, null, "a");
+        container.publishMessage(null, null, 1L);
+        waitFor(numbers, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.<Object> singletonList(1L), numbers.messages);
+        assertEquals(0, queueOf(numbers).getDropped());
+    }
+
+    public void testSubscriptionsFollowListenerChanges() throws InterruptedException {
+        NumberListener numbers = new NumberListener();
+        container.addMessageListener(numbers);
+        // Nobody is interested in strings yet
+        container.publishMessage(null, null, "a");
+
+        RecordingListener all = new RecordingListener();
+        container.addMessageListener(all);
+        container.publishMessage(null, null, "b");
+        waitFor(all, 1);
+        assertEquals(Collections.<Object> singletonList("b"), all.messages);
+
+        container.removeMessageListener(all);
+        container.publishMessage(null, null, "c");
+        container.publishMessage(null, null, 1);
+        waitFor(numbers, 1);
+        assertEquals(Collections.<Object> singletonList("b"), all.messages);
+        assertEquals(Collections.<Object> singletonList(1), numbers.messages);
+    }
+
+    private void assertPendingUntilDelivered(BlockingListener listener) throws InterruptedException {
+        container.addMessageListener(listener);
+        assertFalse(container.hasPendingDeliveries());
+        container.publishMessage(null, null, "a");
+        container.publishMessage(null, null, "b");
+        assertTrue(container.hasPendingDeliveries());
+
+        listener.release.countDown();
+        waitFor(listener, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (container.hasPendingDeliveries() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(container.hasPendingDeliveries());
+    }
+
+    public void testPendingDeliveriesInSerialMode() throws InterruptedException {
+        assertPendingUntilDelivered(new BlockingListener());
+    }
+
+    public void testPendingDeliveriesInFanOutMode() throws InterruptedException {
+        container.configure(true, 10);
+        assertPendingUntilDelivered(new BlockingListener());
+    }
+
+    public void testSwitchBackToSerialMode() throws InterruptedException {
+        container.configure(true, 100);
+        RecordingListener listener = new RecordingListener();
+        container.addMessageListener(listener);
+        container.configure(false, 100);
+        assertFalse(container.isFanOut());
+
+        container.publishMessage(null, null, "a");
+        waitFor(listener, 1);
+        assertEquals(1, listener.messages.size());
+        assertTrue(queueOf(listener).getDelivered() >= 1);
+        assertEquals(1, container.getListenerQueues().size());
+        container.removeMessageListener(listener);
+        assertTrue(container.getListenerQueues().isEmpty());
+    }
+}
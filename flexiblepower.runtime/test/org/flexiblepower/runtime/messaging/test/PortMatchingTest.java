@@ -0,0 +1,154 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.runtime.messaging.EndpointPortImpl;
+import org.flexiblepower.runtime.messaging.EndpointWrapper;
+import org.osgi.framework.Constants;
+
+public class PortMatchingTest extends TestCase {
+    public static class Message {
+    }
+
+    public static class SpecialMessage extends Message {
+    }
+
+    public abstract static class TestEndpoint implements Endpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return null;
+        }
+    }
+
+    @Port(name = "port", sends = SpecialMessage.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class SpecialSender extends TestEndpoint {
+    }
+
+    @Ports({ @Port(name = "a", sends = String.class, accepts = Message.class, cardinality = Cardinality.MULTIPLE),
+            @Port(name = "b", sends = { Integer.class, Long.class }, accepts = Number.class) })
+    public static class MessageAcceptor extends TestEndpoint {
+    }
+
+    @Port(name = "port", sends = { Long.class, Integer.class }, accepts = { Long.class, Integer.class })
+    public static class NumberSender extends TestEndpoint {
+    }
+
+    @Port(name = "port", accepts = Object.class, cardinality = Cardinality.MULTIPLE)
+    public static class Sink extends TestEndpoint {
+    }
+
+    @Port(name = "port", accepts = Integer.class, cardinality = Cardinality.MULTIPLE)
+    public static class IntegerSink extends TestEndpoint {
+    }
+
+    private ConnectionManagerImpl connectionManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        connectionManager = new ConnectionManagerImpl();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connectionManager.deactivate();
+    }
+
+    private void add(String pid, Endpoint endpoint) {
+        connectionManager.addEndpoint(endpoint, Collections.singletonMap(Constants.SERVICE_PID, pid));
+    }
+
+    private void remove(String pid, Endpoint endpoint) {
+        connectionManager.removeEndpoint(endpoint, Collections.singletonMap(Constants.SERVICE_PID, pid));
+    }
+
+    private static boolean isSubset(Class<?>[] sends, Class<?>[] accepts) {
+        for (Class<?> send : sends) {
+            boolean accepted = false;
+            for (Class<?> accept : accepts) {
+                accepted |= accept.isAssignableFrom(send);
+            }
+            if (!accepted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Set<String> actualMatches() {
+        Set<String> result = new TreeSet<String>();
+        for (EndpointWrapper wrapper : connectionManager.getEndpoints().values()) {
+            for (EndpointPortImpl port : wrapper.getPorts().values()) {
+                for (String other : port.getPotentialConnections().keySet()) {
+                    result.add(port + " <-> " + other);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The matches as found by comparing each pair of ports.
+     */
+    private Set<String> expectedMatches() {
+        List<EndpointPortImpl> ports = new ArrayList<EndpointPortImpl>();
+        for (EndpointWrapper wrapper : connectionManager.getEndpoints().values()) {
+            ports.addAll(wrapper.getPorts().values());
+        }
+        Set<String> result = new TreeSet<String>();
+        for (EndpointPortImpl left : ports) {
+            for (EndpointPortImpl right : ports) {
+                if (left.getEndpoint() != right.getEndpoint() && isSubset(left.getPort().sends(),
+                                                                          right.getPort().accepts())
+                    && isSubset(right.getPort().sends(), left.getPort().accepts())) {
+                    result.add(left + " <-> " + right);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void testSameMatchesAsComparingAllPorts() {
+        add("special1", new SpecialSender());
+        add("acceptor1", new MessageAcceptor());
+        add("numbers1", new NumberSender());
+        add("sink1", new Sink());
+        add("integers1", new IntegerSink());
+        add("special2", new SpecialSender());
+        add("acceptor2", new MessageAcceptor());
+        add("numbers2", new NumberSender());
+        add("sink2", new Sink());
+
+        Set<String> expected = expectedMatches();
+        assertEquals(expected, actualMatches());
+        assertTrue(expected.contains("special1:port <-> acceptor2:a"));
+        assertTrue(expected.contains("acceptor1:b <-> numbers2:port"));
+        // Two ports that don't send anything can always be connected
+        assertTrue(expected.contains("sink1:port <-> integers1:port"));
+        assertFalse(expected.contains("numbers1:port <-> integers1:port"));
+    }
+
+    public void testRemovedEndpointIsNotMatched() {
+        SpecialSender special = new SpecialSender();
+        add("special", special);
+        remove("special", special);
+        add("acceptor", new MessageAcceptor());
+
+        Map<String, EndpointWrapper> endpoints = connectionManager.getEndpoints();
+        assertEquals(1, endpoints.size());
+        assertTrue(endpoints.get("acceptor").getPort("a").getPotentialConnections().isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+package org.flexiblepower.runtime.messaging.test;
+
+import java.util.Collections;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.ConnectionManagerImpl;
+import org.flexiblepower.runtime.messaging.EndpointMailbox.OverflowPolicy;
+import org.flexiblepower.runtime.messaging.EndpointWrapper;
+import org.osgi.framework.Constants;
+
+/**
+ * Measures the cost of sending a message over a connection (the HalfConnection send path), depending on the registered
+ * {@link MessageListener}s. This is not a unit test, run the {@link #main(String[])} method manually.
+ */
+public class SendMessageBenchmark {
+    private static final int MESSAGES = 5000000;
+
+    @Port(name = "port", sends = String.class, accepts = String.class, cardinality = Cardinality.SINGLE)
+    public static class TestEndpoint implements Endpoint {
+        volatile Connection connection;
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = connection;
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    public static class AllListener implements MessageListener {
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+        }
+    }
+
+    @Filter(Number.class)
+    public static class NumberListener implements MessageListener {
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+        }
+    }
+
+    public static void main(String[] args) {
+        // First a round to warm up the JIT
+        run("warm up", null, false);
+
+        run("no listeners", null, true);
+        run("non-matching listener", new NumberListener(), true);
+        run("matching listener", new AllListener(), true);
+    }
+
+    private static void run(String name, MessageListener listener, boolean print) {
+        ConnectionManagerImpl connectionManager = new ConnectionManagerImpl();
+        TestEndpoint sender = new TestEndpoint();
+        TestEndpoint receiver = new TestEndpoint();
+        connectionManager.addEndpoint(sender, Collections.singletonMap(Constants.SERVICE_PID, "sender"));
+        connectionManager.addEndpoint(receiver, Collections.singletonMap(Constants.SERVICE_PID, "receiver"));
+        EndpointWrapper senderWrapper = connectionManager.getEndpoints().get("sender");
+        EndpointWrapper receiverWrapper = connectionManager.getEndpoints().get("receiver");
+        // Never block the sender, such that only the send path itself is measured
+        receiverWrapper.getMailbox().configure(10000, 64, OverflowPolicy.DROP_OLDEST);
+        if (listener != null) {
+            connectionManager.addMessageListener(listener);
+        }
+
+        PotentialConnection connection = senderWrapper.getPort("port")
+                                                      .getPotentialConnection(receiverWrapper.getPort("port"));
+        connection.connect();
+
+        Connection senderConnection = sender.connection;
+        String message = "message";
+        long start = System.nanoTime();
+        for (int ix = 0; ix < MESSAGES; ix++) {
+            senderConnection.sendMessage(message);
+        }
+        long time = System.nanoTime() - start;
+
+        if (print) {
+            System.out.printf("%-22s: %6.1f ns/message%n", name, (double) time / MESSAGES);
+        }
+
+        connection.disconnect();
+        connectionManager.removeEndpoint(sender, Collections.singletonMap(Constants.SERVICE_PID, "sender"));
+        connectionManager.removeEndpoint(receiver, Collections.singletonMap(Constants.SERVICE_PID, "receiver"));
+        connectionManager.deactivate();
+    }
+}
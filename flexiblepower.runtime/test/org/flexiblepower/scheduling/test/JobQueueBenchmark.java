@@ -0,0 +1,91 @@
+package org.flexiblepower.scheduling.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.scheduling.Job;
+import org.flexiblepower.scheduling.JobQueue;
+import org.flexiblepower.scheduling.PriorityJobQueue;
+import org.flexiblepower.scheduling.TimingWheelJobQueue;
+
+/**
+ * Compares the {@link JobQueue} implementations with many pending fixed rate jobs. This is not a unit test, run the
+ * {@link #main(String[])} method manually.
+ *
+ * For each size, N jobs are scheduled with a period between 1 and 60 seconds. Then ten minutes of time is simulated in
+ * steps of 1ms, in which each due job is polled and added again for its next run (as the scheduler does for a fixed
+ * rate job). At last all the jobs are cancelled.
+ */
+public class JobQueueBenchmark {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+    private static final long DURATION = 600 * 1000;
+
+    private static final Callable<Void> NOOP = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            return null;
+        }
+    };
+
+    public static void main(String[] args) {
+        int[] sizes = { 10000, 100000, 1000000 };
+        // First a round to warm up the JIT
+        run("priority", new PriorityJobQueue(), 10000, false);
+        run("timingwheel", new TimingWheelJobQueue(), 10000, false);
+
+        for (int size : sizes) {
+            run("priority", new PriorityJobQueue(), size, true);
+            run("timingwheel", new TimingWheelJobQueue(), size, true);
+        }
+    }
+
+    private static void run(String name, JobQueue queue, int size, boolean print) {
+        Random random = new Random(size);
+        AtomicLong serialGenerator = new AtomicLong();
+        queue.pollDue(START);
+
+        List<Job<Void>> jobs = new ArrayList<Job<Void>>(size);
+        for (int ix = 0; ix < size; ix++) {
+            long period = 1000 + random.nextInt(59000);
+            jobs.add(Job.create(NOOP, null, START + random.nextInt((int) period), period, serialGenerator));
+        }
+
+        long startSchedule = System.nanoTime();
+        for (Job<Void> job : jobs) {
+            queue.add(job);
+        }
+        long scheduleTime = System.nanoTime() - startSchedule;
+
+        long executed = 0;
+        long startRun = System.nanoTime();
+        for (long now = START; now < START + DURATION; now++) {
+            for (Job<?> job = queue.pollDue(now); job != null; job = queue.pollDue(now)) {
+                job.reschedule(job.getTimeOfNextRun() + job.getTimeStep());
+                queue.add(job);
+                executed++;
+            }
+        }
+        long runTime = System.nanoTime() - startRun;
+
+        long startCancel = System.nanoTime();
+        for (Job<Void> job : jobs) {
+            queue.remove(job);
+        }
+        long cancelTime = System.nanoTime() - startCancel;
+
+        if (print) {
+            System.out.printf("%-12s %8d jobs: schedule %7.1f ns/job, "
+                                      + "run %7.1f ns/execution (%d executions), "
+                                      + "cancel %7.1f ns/job%n",
+                              name,
+                              size,
+                              (double) scheduleTime / size,
+                              (double) runTime / executed,
+                              executed,
+                              (double) cancelTime / size);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.flexiblepower.scheduling.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.scheduling.Job;
+import org.flexiblepower.scheduling.JobQueue;
+import org.flexiblepower.scheduling.PriorityJobQueue;
+import org.flexiblepower.scheduling.TimingWheelJobQueue;
+
+public class JobQueueTest extends TestCase {
+    private static final long START = 1325376000000L; // 01-01-2012 00:00:00.000
+
+    private final AtomicLong serialGenerator = new AtomicLong();
+
+    private Job<Void> createJob(long time) {
+        return Job.create(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        }, null, time, 0, serialGenerator);
+    }
+
+    private static List<Job<?>> pollAll(JobQueue queue, long until, long step) {
+        List<Job<?>> result = new ArrayList<Job<?>>();
+        for (long now = START; now <= until; now += step) {
+            for (Job<?> job = queue.pollDue(now); job != null; job = queue.pollDue(now)) {
+                assertTrue(job.getTimeOfNextRun() <= now);
+                result.add(job);
+            }
+            assertTrue(queue.getNextJobTime() > now);
+        }
+        return result;
+    }
+
+    public void testSameOrderAsPriorityQueue() {
+        Random random = new Random(42);
+        JobQueue expected = new PriorityJobQueue();
+        JobQueue wheel = new TimingWheelJobQueue();
+        wheel.pollDue(START);
+
+        for (int ix = 0; ix < 10000; ix++) {
+            // Mix of short, long and very long (overflow) delays, with lots of jobs at the same time
+            long delay;
+            switch (ix % 4) {
+            case 0:
+                delay = random.nextInt(300);
+                break;
+            case 1:
+                delay = random.nextInt(100) * 1000L;
+                break;
+            case 2:
+                delay = random.nextInt(3600 * 1000);
+                break;
+            default:
+                delay = random.nextInt(100) * 24L * 3600 * 1000;
+                break;
+            }
+            Job<Void> job = createJob(START + delay);
+            expected.add(job);
+            wheel.add(job);
+        }
+        assertEquals(expected.size(), wheel.size());
+        assertEquals(expected.toList(), wheel.toList());
+
+        long end = START + 100L * 24 * 3600 * 1000;
+        List<Job<?>> expectedOrder = pollAll(expected, end, 997);
+        List<Job<?>> wheelOrder = pollAll(wheel, end, 997);
+        assertEquals(10000, expectedOrder.size());
+        assertEquals(expectedOrder, wheelOrder);
+        assertTrue(wheel.isEmpty());
+    }
+
+    public void testRemove() {
+        JobQueue wheel = new TimingWheelJobQueue();
+        Job<Void> first = createJob(START + 10);
+        Job<Void> second = createJob(START + 20);
+        Job<Void> third = createJob(START + 100000);
+        wheel.add(first);
+        wheel.add(second);
+        wheel.add(third);
+        assertNull(wheel.pollDue(START));
+
+        assertTrue(wheel.remove(second));
+        assertFalse(wheel.remove(second));
+        assertTrue(wheel.remove(third));
+        assertEquals(1, wheel.size());
+
+        // Adding it again should not make the old entry valid
+        wheel.add(second);
+        assertEquals(first, wheel.pollDue(START + 50));
+        assertEquals(second, wheel.pollDue(START + 50));
+        assertNull(wheel.pollDue(START + 200000));
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.getNextJobTime());
+    }
+
+    public void testJobInThePast() {
+        JobQueue wheel = new TimingWheelJobQueue();
+        assertNull(wheel.pollDue(START));
+        Job<Void> later = createJob(START + 5);
+        Job<Void> past = createJob(START - 1000);
+        wheel.add(later);
+        wheel.add(past);
+        assertTrue(wheel.getNextJobTime() <= START - 1000);
+        assertEquals(past, wheel.pollDue(START));
+        assertNull(wheel.pollDue(START));
+        assertEquals(later, wheel.pollDue(START + 5));
+    }
+
+    public void testDrain() {
+        for (JobQueue queue : new JobQueue[] { new PriorityJobQueue(), new TimingWheelJobQueue() }) {
+            Job<Void> first = createJob(START + 10);
+            Job<Void> second = createJob(START + 100000);
+            queue.add(second);
+            assertNull(queue.pollDue(START));
+            queue.add(first);
+
+            assertEquals(Arrays.<Job<?>> asList(first, second), queue.drain());
+            assertTrue(queue.isEmpty());
+            assertNull(queue.pollDue(START + 200000));
+            assertTrue(queue.drain().isEmpty());
+        }
+    }
+}
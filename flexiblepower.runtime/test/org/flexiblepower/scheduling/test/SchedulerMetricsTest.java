@@ -0,0 +1,104 @@
+package org.flexiblepower.scheduling.test;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.Histogram;
+import org.flexiblepower.scheduling.SchedulerMetricsProvider;
+import org.flexiblepower.scheduling.metrics.HistogramSnapshot;
+import org.flexiblepower.scheduling.metrics.JobMetrics;
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
+
+public class SchedulerMetricsTest extends TestCase {
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000.5, snapshot.getMean(), 0.001);
+        assertEquals(5000, snapshot.getP50(), 5000 * 0.07);
+        assertEquals(9000, snapshot.getP90(), 9000 * 0.07);
+        assertEquals(9900, snapshot.getP99(), 9900 * 0.07);
+        assertTrue(snapshot.getP999() <= 10000);
+    }
+
+    public void testEmptyHistogram() {
+        HistogramSnapshot snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getP99());
+    }
+
+    public void testSchedulerMetrics() throws Exception {
+        AbstractScheduler scheduler = new AbstractScheduler() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public Date currentTime() {
+                return new Date(currentTimeMillis());
+            }
+        };
+        scheduler.start("metrics test");
+        try {
+            Callable<Void> sleep = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Thread.sleep(20);
+                    return null;
+                }
+            };
+            // The first job delays the second one, which makes it late
+            scheduler.submit(sleep);
+            scheduler.submit(sleep).get(5, TimeUnit.SECONDS);
+            Runnable noop = new Runnable() {
+                @Override
+                public void run() {
+                }
+
+                @Override
+                public String toString() {
+                    return "repeating";
+                }
+            };
+            scheduler.scheduleAtFixedRate(noop,
+                                          Measure.valueOf(0, AbstractScheduler.MS),
+                                          Measure.valueOf(1, AbstractScheduler.MS.times(60000)));
+            Thread.sleep(100);
+
+            SchedulerMetrics metrics = null;
+            for (SchedulerMetrics m : new SchedulerMetricsProvider().getSchedulerMetrics()) {
+                if (m.getName().endsWith("metrics test")) {
+                    metrics = m;
+                }
+            }
+            assertNotNull(metrics);
+            assertEquals(3, metrics.getExecutedJobs());
+            assertEquals(1, metrics.getLateJobs());
+            assertEquals(1, metrics.getQueueDepth());
+            assertTrue(metrics.getMaxQueueDepth() >= 1);
+            assertEquals(3, metrics.getRunTime().getCount());
+            assertTrue(metrics.getRunTime().getMax() >= 20000);
+            assertTrue(metrics.getLateness().getMax() >= AbstractScheduler.LATE_THRESHOLD);
+
+            JobMetrics job = metrics.getJobs().get(0);
+            assertEquals("repeating", job.getDescription());
+            assertEquals(1, job.getExecutions());
+            assertEquals(0, job.getLateExecutions());
+        } finally {
+            scheduler.stop();
+        }
+    }
+}
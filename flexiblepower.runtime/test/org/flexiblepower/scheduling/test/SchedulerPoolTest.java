@@ -0,0 +1,167 @@
+package org.flexiblepower.scheduling.test;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.measure.Measure;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.SchedulerMetricsProvider;
+import org.flexiblepower.scheduling.SchedulerPool;
+import org.flexiblepower.scheduling.metrics.SchedulerMetrics;
+
+public class SchedulerPoolTest extends TestCase {
+    private static class WallClockScheduler extends AbstractScheduler {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public Date currentTime() {
+            return new Date(currentTimeMillis());
+        }
+    }
+
+    private SchedulerPool pool;
+    private final List<WallClockScheduler> schedulers = new ArrayList<WallClockScheduler>();
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new SchedulerPool("test", 2);
+        for (int ix = 0; ix < 10; ix++) {
+            WallClockScheduler scheduler = new WallClockScheduler();
+            scheduler.start("test " + ix, pool);
+            schedulers.add(scheduler);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (WallClockScheduler scheduler : schedulers) {
+            scheduler.stop();
+        }
+        pool.shutdown();
+    }
+
+    public void testJobsOfOneSchedulerRunInOrder() throws InterruptedException {
+        final int jobsPerScheduler = 1000;
+        final CountDownLatch done = new CountDownLatch(schedulers.size() * jobsPerScheduler);
+        final AtomicBoolean concurrent = new AtomicBoolean(false);
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+
+        for (WallClockScheduler scheduler : schedulers) {
+            final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+            final AtomicInteger active = new AtomicInteger();
+            results.add(result);
+            for (int ix = 0; ix < jobsPerScheduler; ix++) {
+                final int number = ix;
+                scheduler.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (active.incrementAndGet() > 1) {
+                            concurrent.set(true);
+                        }
+                        result.add(number);
+                        active.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(concurrent.get());
+        for (List<Integer> result : results) {
+            assertEquals(jobsPerScheduler, result.size());
+            for (int ix = 0; ix < jobsPerScheduler; ix++) {
+                assertEquals(ix, result.get(ix).intValue());
+            }
+        }
+    }
+
+    public void testDelayedJob() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        Runnable increment = new Runnable() {
+            @Override
+            public void run() {
+                counter.incrementAndGet();
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        Future<?> late = schedulers.get(0).schedule(increment, Measure.valueOf(500, AbstractScheduler.MS));
+        Future<?> early = schedulers.get(0).schedule(increment, Measure.valueOf(100, AbstractScheduler.MS));
+        early.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, counter.get());
+        late.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 500);
+        assertEquals(2, counter.get());
+    }
+
+    public void testStopCancelsJobs() {
+        WallClockScheduler scheduler = schedulers.get(0);
+        Future<?> future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, Measure.valueOf(1, AbstractScheduler.MS.times(60000)));
+        scheduler.stop();
+        assertTrue(future.isCancelled());
+    }
+
+    public void testStopFromOwnThread() throws Exception {
+        final WallClockScheduler scheduler = new WallClockScheduler();
+        scheduler.start("own thread");
+        assertTrue(getSchedulerNames().contains("Scheduler thread for own thread"));
+
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicReference<Thread> schedulerThread = new AtomicReference<Thread>();
+        final AtomicReference<Throwable> uncaught = new AtomicReference<Throwable>();
+        Future<?> stopper = scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        uncaught.set(e);
+                    }
+                });
+                schedulerThread.set(thread);
+                scheduler.stop();
+                counter.incrementAndGet();
+            }
+        });
+        long start = System.currentTimeMillis();
+        stopper.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, counter.get());
+
+        // The thread should end without an exception and remove itself from the monitor
+        schedulerThread.get().join(5000);
+        assertFalse(schedulerThread.get().isAlive());
+        assertNull(uncaught.get());
+        assertFalse(getSchedulerNames().contains("Scheduler thread for own thread"));
+    }
+
+    private static List<String> getSchedulerNames() {
+        List<String> names = new ArrayList<String>();
+        for (SchedulerMetrics metrics : new SchedulerMetricsProvider().getSchedulerMetrics()) {
+            names.add(metrics.getName());
+        }
+        return names;
+    }
+}